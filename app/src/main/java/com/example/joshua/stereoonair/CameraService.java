@@ -23,37 +23,79 @@ import android.media.MediaCodecInfo;
 import android.media.MediaCodecList;
 import android.media.MediaFormat;
 import android.os.Binder;
+import android.os.Build;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.Range;
+import android.util.Size;
 import android.view.Surface;
 
-import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
 import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.List;
 
 public class CameraService extends Service {
 
     private final static String TAG = "CameraService";
     private final static int ONGOING_NOTIFICATION_ID = 1;
+    private final static int MAX_FRAME_BACKLOG = 3;
+    private final static long BACKLOG_RETRY_MILLIS = 2;
+    private final static int INITIAL_BITRATE = 2_000_000;
+    private final static int MIN_BITRATE = 300_000;
+    private final static int MAX_BITRATE = 8_000_000;
+    // Loss that FEC did not repair halves the group, down to a parity packet per this many
+    private final static int MIN_FEC_GROUP_SIZE = 2;
+    // Two seconds of reports without loss double it again, up to MainActivity.fecGroupSize
+    private final static int CLEAN_REPORTS_BEFORE_FEC_RELAX = 8;
+    // MediaFormat.KEY_LATENCY, which encoders only take from Android 11 on
+    private final static String KEY_LATENCY = "latency";
+    private final static int LATENCY_KEY_API = 30;
 
     private CameraDevice cameraDevice;
     private CaptureRequest.Builder captureRequestBuilder;
     private CameraCaptureSession cameraCaptureSession;
     private MediaCodec videoCodec;
+    // Outlives the encoder, so a change of codec leaves the capture session alone
     private Surface videoInputSurface;
+    private volatile VideoCodec currentCodec = VideoCodec.AVC;
+    private int encoders = VideoCodec.AVC.bit();
     private MediaFormat videoFormat;
+    // What the encoder took of MainActivity.encoderProfile; replaced, never changed
+    private volatile EncoderSettings encoderSettings;
 //    private Integer sensorOrientation = 0;
-//    private StreamConfigurationMap configurationMap;
-    private Socket socket;
+    private StreamConfigurationMap configurationMap;
+    private Range<Integer>[] fpsRanges;
+    // What this camera can run at, and what it runs at now; the viewer picks for both eyes
+    private volatile int videoModes = 0;
+    private volatile VideoMode videoMode;
+    // Set while the capture session is closed to come back at another mode
+    private volatile boolean restartingCapture = false;
     private Handler codecHandler;
     private Handler networkHandler;
-    private ArrayBlockingQueue<byte[]> blockingQueue;
+    private Handler captureHandler;
+    private int timestampSource = CameraMetadata.SENSOR_INFO_TIMESTAMP_SOURCE_UNKNOWN;
+    private volatile CaptureClock captureClock;
+    private final PipelineMetrics metrics = new PipelineMetrics(System.nanoTime());
+    private SpscRing<Frame> frameRing;
+    private FramePool framePool;
+    private FrameDropPolicy frameDropPolicy;
+    private BitrateController bitrateController;
+    // The FEC group size the stream runs at now; network thread only once streaming
+    private int fecGroupSize;
+    private int cleanFecReports = 0;
+    private HandlerThread networkThread;
+    private volatile CameraStreamer streamer;
+    private Side side = Side.LEFT;
+    private int frameSequence = 0;
 
     private OnStartCameraCallback onStartCameraCallback;
     private OnStopCameraCallback onStopCameraCallback;
@@ -104,13 +146,22 @@ public class CameraService extends Service {
 //        }
 //        return START_NOT_STICKY;
 //
-        blockingQueue = new ArrayBlockingQueue<>(2);
+        side = MainActivity.cameraSide;
+        frameRing = new SpscRing<>(2, SpscRing.WaitStrategy.PARK);
+        // One frame for each ring and backlog slot, plus the one being sent and the one being filled
+        framePool = new FramePool(frameRing.capacity() + MAX_FRAME_BACKLOG + 2, 256 * 1024);
+        frameDropPolicy = new FrameDropPolicy(frameRing, MAX_FRAME_BACKLOG, onDropCallback);
 
         HandlerThread cameraThread = new HandlerThread("cameraThread");
         cameraThread.start();
         codecHandler = new Handler(cameraThread.getLooper());
 
-        HandlerThread networkThread = new HandlerThread("cameraNetworkThread");
+        // Capture results get their own thread so they never wait behind the encoder
+        HandlerThread captureThread = new HandlerThread("cameraCaptureThread");
+        captureThread.start();
+        captureHandler = new Handler(captureThread.getLooper());
+
+        networkThread = new HandlerThread("cameraNetworkThread");
         networkThread.start();
         networkHandler = new Handler(networkThread.getLooper());
 
@@ -159,8 +210,10 @@ public class CameraService extends Service {
                 int lensFacing = characteristics.get(CameraCharacteristics.LENS_FACING);
                 if (lensFacing == CameraCharacteristics.LENS_FACING_BACK) {
 
-//                    configurationMap = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+                    configurationMap = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+                    fpsRanges = characteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
 //                    sensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+                    timestampSource = characteristics.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
 
                     cameraManager.openCamera(id, cameraStateCallback, null);
                     break;
@@ -201,6 +254,15 @@ public class CameraService extends Service {
 
     private void prepareForRecording() {
 
+        encoders = MediaCodecs.encoders() & MainActivity.offeredCodecs | VideoCodec.AVC.bit();
+        bitrateController = new BitrateController(INITIAL_BITRATE, MIN_BITRATE, MAX_BITRATE);
+        videoModes = supportedModes();
+        videoMode = VideoMode.of(MainActivity.videoWidth, MainActivity.videoHeight, 30);
+        if (videoMode == null || (videoModes & videoMode.bit()) == 0 && videoModes != 0) {
+            videoMode = videoModes != 0 ? VideoMode.best(videoModes) : VideoMode.SVGA_30;
+        }
+        Log.d(TAG, "Video modes " + Integer.toBinaryString(videoModes) + ", starting at " + videoMode);
+        videoInputSurface = MediaCodec.createPersistentInputSurface();
         try {
             startVideoCodec();
             startCamera();
@@ -216,18 +278,20 @@ public class CameraService extends Service {
 
     private void startVideoCodec() throws IOException {
 
-        final MediaFormat format = MediaFormat.createVideoFormat(MainActivity.mimeType, MainActivity.videoWidth, MainActivity.videoHeight);
-
-        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-        format.setInteger(MediaFormat.KEY_BIT_RATE, 2_000_000);
-        format.setInteger(MediaFormat.KEY_FRAME_RATE, 30);
-        format.setFloat(MediaFormat.KEY_I_FRAME_INTERVAL, 0.1f);
+        final MediaFormat format = createEncoderFormat();
 
         MediaCodecList codecList = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
         String codecName = codecList.findEncoderForFormat(format);
         Log.d(TAG, "codecName: " + codecName);
 
         videoCodec = MediaCodec.createByCodecName(codecName);
+        EncoderProfile profile = MainActivity.encoderProfile;
+        EncoderSettings settings = new EncoderSettings(side, profile);
+        settings.keyFrameIntervalMs = Math.round(profile.keyFrameIntervalSeconds * 1000);
+        settings.bitrate = bitrateController.getBitrate();
+        MediaCodecInfo.CodecCapabilities capabilities =
+                videoCodec.getCodecInfo().getCapabilitiesForType(currentCodec.mimeType);
+        settings.requestedFeatures = applyProfile(format, profile, capabilities, settings);
 //        videoCodec = MediaCodec.createEncoderByType(MainActivity.mimeType);
 //        MediaCodecInfo info = videoCodec.getCodecInfo();
 //        MediaCodecInfo.CodecCapabilities capabilities = info.getCapabilitiesForType(MainActivity.mimeType);
@@ -245,8 +309,23 @@ public class CameraService extends Service {
 //        Log.d(TAG, videoCodec.getCodecInfo().toString());
 
         videoCodec.setCallback(videoCodecCallback, codecHandler);
-        videoCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        videoInputSurface = videoCodec.createInputSurface();
+        try {
+            videoCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        } catch (IllegalArgumentException | MediaCodec.CodecException e) {
+            // Some encoders refuse keys they list as supported; fall back to asking for nothing
+            Log.w(TAG, "Encoder refused " + profile + ", configuring without it", e);
+            videoCodec.reset();
+            videoCodec.setCallback(videoCodecCallback, codecHandler);
+            videoCodec.configure(createEncoderFormat(), null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            settings.requestedFeatures = 0;
+        }
+        settings.features = confirmedFeatures(settings.requestedFeatures);
+        if (! settings.has(EncoderSettings.FEATURE_INTRA_REFRESH)) {
+            settings.intraRefreshFrames = 0;
+        }
+        videoCodec.setInputSurface(videoInputSurface);
+        Log.d(TAG, "Encoder settings: " + settings);
+        publishEncoderSettings(settings);
 
         codecHandler.post(new Runnable() {
             @Override
@@ -257,6 +336,126 @@ public class CameraService extends Service {
         });
     }
 
+    /** The encoder format every encoder takes: size, rate, bitrate and key frame interval. */
+    private MediaFormat createEncoderFormat() {
+
+        MediaFormat format = MediaFormat.createVideoFormat(currentCodec.mimeType, videoMode.width, videoMode.height);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitrateController.getBitrate());
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, videoMode.fps);
+        format.setFloat(MediaFormat.KEY_I_FRAME_INTERVAL, MainActivity.encoderProfile.keyFrameIntervalSeconds);
+        return format;
+    }
+
+    /**
+     * Adds to format what profile asks for and capabilities say the encoder
+     * can do, and returns the EncoderSettings features requested.
+     */
+    private int applyProfile(MediaFormat format, EncoderProfile profile,
+                             MediaCodecInfo.CodecCapabilities capabilities, EncoderSettings settings) {
+
+        int features = 0;
+        int refreshFrames = profile.intraRefreshFrames(videoMode.fps);
+        if (refreshFrames > 0
+                && capabilities.isFeatureSupported(MediaCodecInfo.CodecCapabilities.FEATURE_IntraRefresh)) {
+            format.setInteger(MediaFormat.KEY_INTRA_REFRESH_PERIOD, refreshFrames);
+            settings.intraRefreshFrames = refreshFrames;
+            features |= EncoderSettings.FEATURE_INTRA_REFRESH;
+        }
+        if (profile.lowLatency && Build.VERSION.SDK_INT >= LATENCY_KEY_API) {
+            // MediaFormat.KEY_LATENCY, hidden from compileSdk 27
+            format.setInteger(KEY_LATENCY, 1);
+            features |= EncoderSettings.FEATURE_LOW_LATENCY;
+        }
+        // 0 is realtime
+        format.setInteger(MediaFormat.KEY_PRIORITY, 0);
+        features |= EncoderSettings.FEATURE_REALTIME_PRIORITY;
+        if (profile.maxOperatingRate) {
+            format.setInteger(MediaFormat.KEY_OPERATING_RATE, Short.MAX_VALUE);
+            features |= EncoderSettings.FEATURE_OPERATING_RATE;
+        }
+        MediaCodecInfo.EncoderCapabilities encoderCapabilities = capabilities.getEncoderCapabilities();
+        int bitrateMode = profile.bitrateMode == EncoderProfile.BitrateMode.CBR
+                ? MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR
+                : MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR;
+        if (encoderCapabilities != null && encoderCapabilities.isBitrateModeSupported(bitrateMode)) {
+            format.setInteger(MediaFormat.KEY_BITRATE_MODE, bitrateMode);
+            features |= EncoderSettings.FEATURE_BITRATE_MODE;
+        }
+        if (currentCodec == VideoCodec.AVC) {
+            // Baseline has no B-frames to hold output back, High compresses best
+            int avcProfile = profile == EncoderProfile.ULTRA_LOW_LATENCY
+                    ? MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline
+                    : profile == EncoderProfile.BALANCED
+                    ? MediaCodecInfo.CodecProfileLevel.AVCProfileMain
+                    : MediaCodecInfo.CodecProfileLevel.AVCProfileHigh;
+            // The highest level listed, so the level never caps size or bitrate; levels are bit flags in order
+            int level = 0;
+            for (MediaCodecInfo.CodecProfileLevel profileLevel : capabilities.profileLevels) {
+                if (profileLevel.profile == avcProfile) {
+                    level = Math.max(level, profileLevel.level);
+                }
+            }
+            if (level != 0) {
+                format.setInteger(MediaFormat.KEY_PROFILE, avcProfile);
+                format.setInteger(MediaFormat.KEY_LEVEL, level);
+                features |= EncoderSettings.FEATURE_CODEC_PROFILE;
+            }
+        }
+        return features;
+    }
+
+    /**
+     * Those of the requested features whose keys the configured encoder reports
+     * back in its input or output format; a key it dropped didn't take.
+     */
+    private int confirmedFeatures(int requested) {
+
+        MediaFormat input;
+        MediaFormat output;
+        try {
+            input = videoCodec.getInputFormat();
+            output = videoCodec.getOutputFormat();
+        } catch (IllegalStateException e) {
+            e.printStackTrace();
+            return 0;
+        }
+        int confirmed = 0;
+        if (reports(input, output, MediaFormat.KEY_INTRA_REFRESH_PERIOD)) {
+            confirmed |= EncoderSettings.FEATURE_INTRA_REFRESH;
+        }
+        if (reports(input, output, KEY_LATENCY)) {
+            confirmed |= EncoderSettings.FEATURE_LOW_LATENCY;
+        }
+        if (reports(input, output, MediaFormat.KEY_PRIORITY)) {
+            confirmed |= EncoderSettings.FEATURE_REALTIME_PRIORITY;
+        }
+        if (reports(input, output, MediaFormat.KEY_OPERATING_RATE)) {
+            confirmed |= EncoderSettings.FEATURE_OPERATING_RATE;
+        }
+        if (reports(input, output, MediaFormat.KEY_BITRATE_MODE)) {
+            confirmed |= EncoderSettings.FEATURE_BITRATE_MODE;
+        }
+        if (reports(input, output, MediaFormat.KEY_PROFILE)) {
+            confirmed |= EncoderSettings.FEATURE_CODEC_PROFILE;
+        }
+        return confirmed & requested;
+    }
+
+    private static boolean reports(MediaFormat input, MediaFormat output, String key) {
+        return input != null && input.containsKey(key) || output != null && output.containsKey(key);
+    }
+
+    /** Makes settings what the viewer is told the encoder runs with. */
+    private void publishEncoderSettings(EncoderSettings settings) {
+
+        encoderSettings = settings;
+        CameraStreamer current = streamer;
+        if (current != null) {
+            current.setEncoderSettings(settings);
+        }
+    }
+
     private void startCamera() {
 
         if (cameraDevice == null) {
@@ -268,6 +467,10 @@ public class CameraService extends Service {
         try {
             captureRequestBuilder = cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
             captureRequestBuilder.set(CaptureRequest.CONTROL_MODE, CameraMetadata.CONTROL_MODE_AUTO);
+            Range<Integer> fpsRange = fpsRange(videoMode.fps);
+            if (fpsRange != null) {
+                captureRequestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, fpsRange);
+            }
 //            captureRequestBuilder.set(CaptureRequest.)
             captureRequestBuilder.addTarget(videoInputSurface);
             cameraDevice.createCaptureSession(Arrays.asList(videoInputSurface), captureSessionStateCallback, null);
@@ -282,33 +485,269 @@ public class CameraService extends Service {
             Log.e(TAG, "cameraService openSockets: null serverAddress");
             return;
         }
-        Runnable socketRunnable = new Runnable() {
+        InetSocketAddress address = new InetSocketAddress(MainActivity.serverAddress, MainActivity.port);
+        streamer = new CameraStreamer(side, address, MainActivity.transport, frameRing, framePool, metrics, onStreamCallback);
+        streamer.setMaxPacketSize(MainActivity.maxPacketSize);
+        fecGroupSize = MainActivity.fecGroupSize;
+        cleanFecReports = 0;
+        streamer.setFecOverhead(fecGroupSize, MainActivity.fecInterleave);
+        streamer.setVideoModes(videoModes);
+        streamer.setEncoderSettings(encoderSettings);
+        codecHandler.postDelayed(heartbeatRunnable, CameraStreamer.HEARTBEAT_CHECK_MILLIS);
+        networkHandler.post(streamer);
+    }
+
+    private CameraStreamer.OnStreamCallback onStreamCallback = new CameraStreamer.OnStreamCallback() {
+
+        @Override
+        void onConnected(long recoveryMillis) {
+
+            Log.d(TAG, "Connected as " + side + " over " + MainActivity.transport);
+            if (recoveryMillis > 0) {
+                Log.d(TAG, "Reconnected after " + recoveryMillis + " ms");
+            }
+        }
+
+        @Override
+        void onDisconnected(IOException exception, long retryMillis) {
+            Log.e(TAG, "Stream lost: " + exception.getMessage() + ", reconnecting in " + retryMillis + " ms");
+        }
+
+        @Override
+        void onSyncFrameNeeded() {
+
+            Log.d(TAG, "Sending cached codec config first");
+            codecHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    requestSyncFrame();
+                }
+            });
+        }
+
+        @Override
+        void onReport(ReceiverReport report) {
+            onReceiverReport(report);
+        }
+
+        @Override
+        void onCodecOffer(int codecs) {
+
+            final VideoCodec chosen = VideoCodec.choose(encoders, codecs);
+            if (chosen == currentCodec) {
+                return;
+            }
+            codecHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    switchCodec(chosen);
+                }
+            });
+        }
+
+        @Override
+        void onVideoMode(final VideoMode mode) {
+
+            if (mode == videoMode || (videoModes & mode.bit()) == 0) {
+                return;
+            }
+            codecHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    changeVideoMode(mode);
+                }
+            });
+        }
+    };
+
+    /**
+     * The VideoModes the sensor can stream to an encoder at and the encoder, in
+     * the current codec, can take: the exact size among the sensor's outputs, a
+     * frame duration short enough and an AE target range that reaches the rate.
+     */
+    private int supportedModes() {
+
+        if (configurationMap == null) {
+            return 0;
+        }
+        MediaCodecList codecList = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
+        List<Size> sizes = Arrays.asList(configurationMap.getOutputSizes(MediaCodec.class));
+        int modes = 0;
+        for (VideoMode mode : VideoMode.values()) {
+            Size size = new Size(mode.width, mode.height);
+            if (! sizes.contains(size)
+                    || configurationMap.getOutputMinFrameDuration(MediaCodec.class, size) > 1_000_000_000L / mode.fps
+                    || fpsRange(mode.fps) == null) {
+                continue;
+            }
+            MediaFormat format = MediaFormat.createVideoFormat(currentCodec.mimeType, mode.width, mode.height);
+            format.setInteger(MediaFormat.KEY_FRAME_RATE, mode.fps);
+            if (codecList.findEncoderForFormat(format) != null) {
+                modes |= mode.bit();
+            }
+        }
+        return modes;
+    }
+
+    /** The steadiest AE target range that reaches fps, or null if none does. */
+    private Range<Integer> fpsRange(int fps) {
+
+        Range<Integer> best = null;
+        if (fpsRanges != null) {
+            for (Range<Integer> range : fpsRanges) {
+                if (range.getUpper() == fps && (best == null || range.getLower() > best.getLower())) {
+                    best = range;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Starts capture and encoder over at mode, on the codec thread. The capture
+     * session is made anew, as the camera only takes the encoder's new size with
+     * a new session; the encoder's new codec config tells the viewer.
+     */
+    private void changeVideoMode(VideoMode mode) {
+
+        if (mode == videoMode || videoCodec == null || cameraCaptureSession == null) {
+            return;
+        }
+        Log.d(TAG, "Changing video mode from " + videoMode + " to " + mode);
+        videoMode = mode;
+        restartingCapture = true;
+        cameraCaptureSession.close();
+        cameraCaptureSession = null;
+        try {
+            videoCodec.stop();
+        } catch (IllegalStateException e) {
+            e.printStackTrace();
+        }
+        videoCodec.release();
+        videoFormat = null;
+        try {
+            startVideoCodec();
+        } catch (IOException e) {
+            e.printStackTrace();
+            stopSelf();
+            return;
+        }
+        startCamera();
+    }
+
+    /**
+     * Restarts the encoder in codec, on the codec thread. The camera keeps
+     * drawing into the persistent input surface meanwhile; what it draws while no
+     * encoder is attached is lost, which at worst costs a frame or two.
+     */
+    private void switchCodec(VideoCodec codec) {
+
+        if (codec == currentCodec || videoCodec == null) {
+            return;
+        }
+        Log.d(TAG, "Switching encoder from " + currentCodec + " to " + codec);
+        try {
+            videoCodec.stop();
+        } catch (IllegalStateException e) {
+            e.printStackTrace();
+        }
+        videoCodec.release();
+        currentCodec = codec;
+        videoFormat = null;
+        videoModes = supportedModes();
+        // The old codec's config would only confuse a viewer that connects now
+        CameraStreamer current = streamer;
+        if (current != null) {
+            current.setCodecConfig(null);
+            current.setVideoModes(videoModes);
+        }
+        try {
+            startVideoCodec();
+        } catch (IOException e) {
+            e.printStackTrace();
+            stopSelf();
+        }
+    }
+
+    /** Runs the streamer's heartbeat check for as long as it streams. */
+    private Runnable heartbeatRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+
+            CameraStreamer current = streamer;
+            if (current == null) {
+                return;
+            }
+            if (current.checkHeartbeat(System.nanoTime())) {
+                Log.e(TAG, "Nothing from the viewer for " + CameraStreamer.PEER_TIMEOUT_MILLIS + " ms, dropping connection");
+            }
+            codecHandler.postDelayed(this, CameraStreamer.HEARTBEAT_CHECK_MILLIS);
+        }
+    };
+
+    /**
+     * Spends more on FEC while frames still get lost through it, and less once
+     * they stop: frames the viewer lost are ones parity could not rebuild, so a
+     * smaller group, more parity per media packet, is what would have saved them.
+     * Stays off when MainActivity.fecGroupSize turns FEC off.
+     */
+    private void adaptFecOverhead(ReceiverReport report) {
 
+        if (MainActivity.fecGroupSize <= 0) {
+            return;
+        }
+        int groupSize = fecGroupSize;
+        if (report.framesLost > 0) {
+            cleanFecReports = 0;
+            if (fecGroupSize > MIN_FEC_GROUP_SIZE) {
+                groupSize = Math.max(MIN_FEC_GROUP_SIZE, fecGroupSize / 2);
+            }
+        } else if (++cleanFecReports >= CLEAN_REPORTS_BEFORE_FEC_RELAX) {
+            cleanFecReports = 0;
+            groupSize = Math.min(MainActivity.fecGroupSize, fecGroupSize * 2);
+        }
+        CameraStreamer current = streamer;
+        if (groupSize == fecGroupSize || current == null) {
+            return;
+        }
+        Log.d(TAG, "FEC group size " + fecGroupSize + " -> " + groupSize + " after report: " + report);
+        fecGroupSize = groupSize;
+        current.setFecOverhead(groupSize, MainActivity.fecInterleave);
+    }
+
+    private void onReceiverReport(ReceiverReport report) {
+
+        adaptFecOverhead(report);
+        if (! bitrateController.onReport(report)) {
+            return;
+        }
+        final int bitrate = bitrateController.getBitrate();
+        Log.d(TAG, "Bitrate " + bitrate / 1000 + " kbit/s after report: " + report);
+        codecHandler.post(new Runnable() {
             @Override
             public void run() {
+
+                Bundle parameters = new Bundle();
+                parameters.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
                 try {
-                    socket = new Socket();
-                    socket.bind(null);
-                    socket.connect(new InetSocketAddress(MainActivity.serverAddress, MainActivity.port));
-                    Log.d(TAG, "Connected!");
-                    DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
-                    while (true) {
-                        try {
-                            byte[] bytes = blockingQueue.take();
-                            Log.d(TAG, "outputStream bytes: " + bytes.length);
-                            outputStream.write(bytes);
-                            outputStream.flush();
-                        } catch (InterruptedException exception) {
-                            Log.e(TAG, exception.getMessage());
-                        }
-                    }
-                } catch (IOException exception) {
-                    Log.e(TAG, exception.getMessage());
+                    videoCodec.setParameters(parameters);
+                } catch (IllegalStateException e) {
+                    e.printStackTrace();
+                    return;
+                }
+                EncoderSettings current = encoderSettings;
+                if (current != null) {
+                    EncoderSettings settings = new EncoderSettings(current.side, current.profile);
+                    settings.features = current.features;
+                    settings.requestedFeatures = current.requestedFeatures;
+                    settings.intraRefreshFrames = current.intraRefreshFrames;
+                    settings.keyFrameIntervalMs = current.keyFrameIntervalMs;
+                    settings.bitrate = bitrate;
+                    publishEncoderSettings(settings);
                 }
             }
-        };
-
-        networkHandler.post(socketRunnable);
+        });
     }
 
     private CameraCaptureSession.StateCallback captureSessionStateCallback = new CameraCaptureSession.StateCallback() {
@@ -318,11 +757,17 @@ public class CameraService extends Service {
 
             cameraCaptureSession = session;
 
+            long sensorToClockUs = 0;
+            if (timestampSource == CameraMetadata.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME) {
+                sensorToClockUs = CameraStreamer.clockUs() - SystemClock.elapsedRealtimeNanos() / 1000;
+            }
+            captureClock = new CaptureClock(sensorToClockUs);
+
             if (onStartCameraCallback != null) {
                 onStartCameraCallback.onStartCamera();
             }
             try {
-                session.setRepeatingRequest(captureRequestBuilder.build(), null, null);
+                session.setRepeatingRequest(captureRequestBuilder.build(), captureCallback, captureHandler);
             } catch (CameraAccessException e) {
                 e.printStackTrace();
                 stopSelf();
@@ -337,11 +782,65 @@ public class CameraService extends Service {
 
         @Override
         public void onClosed(CameraCaptureSession session) {
+
             Log.d(TAG, "captureSessionStateCallback.onClosed");
+            if (restartingCapture) {
+                // Closed to come back at another video mode
+                restartingCapture = false;
+                return;
+            }
             cameraStopped();
         }
     };
 
+    private CameraCaptureSession.CaptureCallback captureCallback = new CameraCaptureSession.CaptureCallback() {
+
+        @Override
+        public void onCaptureStarted(CameraCaptureSession session, CaptureRequest request, long timestamp, long frameNumber) {
+
+            // The same SENSOR_TIMESTAMP the result will carry, but known before the frame reaches the encoder
+            captureClock.onCaptured(timestamp);
+        }
+    };
+
+    private FrameDropPolicy.OnDropCallback onDropCallback = new FrameDropPolicy.OnDropCallback() {
+
+        @Override
+        void onDrop(Frame frame) {
+            framePool.recycle(frame);
+        }
+
+        @Override
+        void onSyncFrameNeeded() {
+
+            Log.d(TAG, "Reference frame dropped, requesting sync frame");
+            requestSyncFrame();
+        }
+    };
+
+    private void requestSyncFrame() {
+
+        Bundle parameters = new Bundle();
+        parameters.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        try {
+            videoCodec.setParameters(parameters);
+        } catch (IllegalStateException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private Runnable flushBacklogRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+
+            // Runs on the codec thread, which owns the backlog
+            if (frameDropPolicy.flush()) {
+                codecHandler.postDelayed(this, BACKLOG_RETRY_MILLIS);
+            }
+        }
+    };
+
     private MediaCodec.Callback videoCodecCallback = new MediaCodec.Callback() {
 
         @Override
@@ -362,11 +861,47 @@ public class CameraService extends Service {
                 return;
             }
 
-            byte[] bufferBytes = new byte[outputBuffer.remaining()];
-            outputBuffer.get(bufferBytes);
+            int flags = currentCodec.flags();
+            if ((info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+                flags |= Frame.FLAG_KEY_FRAME;
+            }
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                flags |= Frame.FLAG_CODEC_CONFIG;
+            }
+
+            // The only copy on the way to the socket: straight into a pooled direct buffer
+            Frame frame = framePool.acquire(outputBuffer.remaining());
+            if (frame == null) {
+                frameDropPolicy.lost(FrameDropPolicy.typeOf(flags, outputBuffer));
+                codec.releaseOutputBuffer(index, false);
+                return;
+            }
+            frame.payload.put(outputBuffer);
+            frame.payload.flip();
             codec.releaseOutputBuffer(index, false);
 
-            blockingQueue.offer(bufferBytes);
+            frame.sequence = frameSequence++;
+            frame.streamId = side.ordinal();
+            CaptureClock clock = captureClock;
+            if ((flags & Frame.FLAG_CODEC_CONFIG) != 0 || clock == null) {
+                frame.ptsUs = info.presentationTimeUs;
+            } else {
+                frame.ptsUs = clock.toClockUs(info.presentationTimeUs);
+                metrics.record(PipelineMetrics.Stage.ENCODED, CameraStreamer.clockUs() - frame.ptsUs, frame.size());
+            }
+            frame.flags = flags;
+            if (frame.isCodecConfig()) {
+                // Kept for viewers that connect after it has gone by
+                CameraStreamer current = streamer;
+                if (current != null) {
+                    current.setCodecConfig(CodecConfig.copyOf(frame));
+                }
+            }
+            frameDropPolicy.offer(frame);
+            if (frameDropPolicy.backlog() > 0) {
+                codecHandler.removeCallbacks(flushBacklogRunnable);
+                codecHandler.postDelayed(flushBacklogRunnable, BACKLOG_RETRY_MILLIS);
+            }
         }
 
         @Override
@@ -418,6 +953,11 @@ public class CameraService extends Service {
         startForeground(ONGOING_NOTIFICATION_ID, notification);
     }
 
+    /** The camera's end of the pipeline: capture to encoder output and to sent. */
+    PipelineMetrics getMetrics() {
+        return metrics;
+    }
+
     void stopCamera() {
 
         if (videoCodec != null) {
@@ -436,6 +976,41 @@ public class CameraService extends Service {
     private void cameraStopped() {
 
         Log.d(TAG, "cameraStopped");
+        if (framePool != null) {
+            Log.d(TAG, "framePool acquired: " + framePool.acquiredCount()
+                    + " exhausted: " + framePool.exhaustedCount()
+                    + " grown: " + framePool.grownCount()
+                    + " frameRing high water mark: " + frameRing.highWaterMark());
+        }
+        if (frameDropPolicy != null) {
+            StringBuilder drops = new StringBuilder("frames dropped");
+            for (FrameDropPolicy.FrameType type : FrameDropPolicy.FrameType.values()) {
+                drops.append(' ').append(type).append(": ").append(frameDropPolicy.droppedCount(type));
+            }
+            drops.append(" sync frames requested: ").append(frameDropPolicy.syncFramesRequested());
+            Log.d(TAG, drops.toString());
+        }
+        if (captureClock != null) {
+            Log.d(TAG, "captures matched: " + captureClock.matchedCount()
+                    + " unmatched: " + captureClock.unmatchedCount()
+                    + " not encoded: " + captureClock.skippedCount());
+        }
+        if (bitrateController != null) {
+            Log.d(TAG, "bitrate " + bitrateController.getBitrate() / 1000 + " kbit/s decreases: "
+                    + bitrateController.decreaseCount() + " increases: " + bitrateController.increaseCount());
+        }
+        Log.d(TAG, "latency since capture:\n" + metrics.summary(System.nanoTime()));
+        dumpMetrics();
+        CameraStreamer current = streamer;
+        if (current != null) {
+            Log.d(TAG, "reconnects: " + current.reconnectCount() + " last recovery: " + current.lastRecoveryMillis()
+                    + " ms max: " + current.maxRecoveryMillis() + " ms");
+            FecEncoder fecEncoder = current.getFecEncoder();
+            if (fecEncoder != null) {
+                Log.d(TAG, "fecEncoder media packets: " + fecEncoder.mediaPacketCount()
+                        + " parity packets: " + fecEncoder.parityPacketCount());
+            }
+        }
         releaseResources();
 
         if (onStopCameraCallback != null) {
@@ -446,8 +1021,29 @@ public class CameraService extends Service {
         stopSelf();
     }
 
+    private void dumpMetrics() {
+
+        File file = new File(getFilesDir(), "latency-camera-" + side + ".txt");
+        try (Writer writer = new FileWriter(file)) {
+            metrics.dump(writer, System.nanoTime());
+            Log.d(TAG, "Latency histograms written to " + file);
+        } catch (IOException exception) {
+            Log.e(TAG, "Writing " + file + ": " + exception.getMessage());
+        }
+    }
+
     private void releaseResources() {
 
+        CameraStreamer current = streamer;
+        if (current != null) {
+            current.stop();
+        }
+        if (codecHandler != null) {
+            codecHandler.removeCallbacks(heartbeatRunnable);
+        }
+        if (networkThread != null) {
+            networkThread.interrupt();
+        }
         if (videoCodec != null) {
             videoCodec.release();
         }
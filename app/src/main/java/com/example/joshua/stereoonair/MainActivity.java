@@ -16,6 +16,9 @@ import android.view.Surface;
 import android.view.SurfaceView;
 import android.view.View;
 import android.widget.Button;
+import android.widget.CheckBox;
+import android.widget.CompoundButton;
+import android.widget.RadioGroup;
 import android.util.Log;
 import android.widget.TextView;
 
@@ -31,13 +34,28 @@ public class MainActivity extends Activity {
 
     public static String serverAddress;
     public final static int port = 18353; // arbitrary
-    public static int videoWidth = 800;
+    public static String relayAddress = null; // a relay to watch through, null for the cameras themselves
+    public final static int relayPort = port + 1; // where the relay takes viewers
+    public static int videoWidth = 800; // until the viewer picks a VideoMode both cameras can run at
     public static int videoHeight = 600;
 //    public static int videoWidth = 1280;
 //    public static int videoHeight = 720;
 //    public static int videoWidth = 1920;
 //    public static int videoHeight = 1080;
-    public static String mimeType = "video/avc";
+    public static int offeredCodecs = VideoCodec.ALL; // VideoCodec bits to use where both ends can, H.264 always
+    public static EncoderProfile encoderProfile = EncoderProfile.ULTRA_LOW_LATENCY; // what the encoder favours, where it can
+    public static Side cameraSide = Side.LEFT;
+
+    public static CameraStreamer.Transport transport = CameraStreamer.Transport.TCP;
+    public static int maxPacketSize = 1400; // RTP packets in UDP mode, headers included
+    public static int fecGroupSize = 8; // one parity packet per 8 media packets, 0 for none
+    public static int fecInterleave = 4; // longest burst of lost packets FEC can repair
+    public static int minPlayoutDelayMillis = 10; // bounds on the viewer's jitter buffer delay
+    public static int maxPlayoutDelayMillis = 150;
+    public static int catchUpLagMillis = 250; // how far behind capture the viewer may fall before skipping ahead, 0 never
+    public static boolean showLatencyOverlay = false; // per-stage latency on the viewer's controls
+    public static boolean recordSession = false; // the viewer keeps everything it receives, for replay later
+    public static int instantReplaySeconds = 10; // how far back the viewer's replay button goes, 0 for none
     public static Point screenSize = new Point();
 
     private class BroadcastReceiver extends android.content.BroadcastReceiver {
@@ -181,6 +199,24 @@ public class MainActivity extends Activity {
             }
         });
 
+        final RadioGroup sideRadioGroup = findViewById(R.id.side_radio_group);
+        sideRadioGroup.check(cameraSide == Side.LEFT ? R.id.left_radio_button : R.id.right_radio_button);
+        sideRadioGroup.setOnCheckedChangeListener(new RadioGroup.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(RadioGroup group, int checkedId) {
+                cameraSide = checkedId == R.id.left_radio_button ? Side.LEFT : Side.RIGHT;
+            }
+        });
+
+        final CheckBox udpCheckBox = findViewById(R.id.udp_checkbox);
+        udpCheckBox.setChecked(transport == CameraStreamer.Transport.UDP);
+        udpCheckBox.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                transport = isChecked ? CameraStreamer.Transport.UDP : CameraStreamer.Transport.TCP;
+            }
+        });
+
         final Button receiverButton = findViewById(R.id.receiver_button);
         receiverButton.setOnClickListener(new View.OnClickListener() {
             @Override
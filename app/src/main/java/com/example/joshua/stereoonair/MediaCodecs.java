@@ -0,0 +1,68 @@
+package com.example.joshua.stereoonair;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+
+/**
+ * The VideoCodecs this device can encode and decode, and the VideoModes it can
+ * decode, as bits for negotiation. Only H.264 is worth encoding in software at
+ * these frame rates, so the platform's software encoders count for nothing else.
+ */
+class MediaCodecs {
+
+    private MediaCodecs() { }
+
+    static int encoders() {
+        return find(true);
+    }
+
+    static int decoders() {
+        return find(false);
+    }
+
+    /**
+     * The VideoModes an H.264 decoder, which every stream can fall back to, takes
+     * at twice the rate, as both eyes share the hardware.
+     */
+    static int decoderModes() {
+
+        MediaCodecList codecList = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
+        int modes = 0;
+        for (VideoMode mode : VideoMode.values()) {
+            MediaFormat format = MediaFormat.createVideoFormat(VideoCodec.AVC.mimeType, mode.width, mode.height);
+            format.setInteger(MediaFormat.KEY_FRAME_RATE, 2 * mode.fps);
+            if (codecList.findDecoderForFormat(format) != null) {
+                modes |= mode.bit();
+            }
+        }
+        return modes;
+    }
+
+    private static int find(boolean encoders) {
+
+        int codecs = 0;
+        for (MediaCodecInfo info : new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos()) {
+            if (info.isEncoder() != encoders) {
+                continue;
+            }
+            for (String type : info.getSupportedTypes()) {
+                VideoCodec codec = VideoCodec.fromMimeType(type);
+                if (codec == null) {
+                    continue;
+                }
+                if (encoders && codec != VideoCodec.AVC && isSoftware(info)) {
+                    continue;
+                }
+                codecs |= codec.bit();
+            }
+        }
+        return codecs;
+    }
+
+    private static boolean isSoftware(MediaCodecInfo info) {
+
+        String name = info.getName();
+        return name.startsWith("OMX.google.") || name.startsWith("c2.android.");
+    }
+}
@@ -16,21 +16,25 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.MotionEvent;
 import android.view.Surface;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 import android.view.View;
+import android.widget.TextView;
 
-import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
-import java.util.Calendar;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * An example full-screen activity that shows and hides the system UI (i.e.
@@ -44,30 +48,94 @@ public class ViewerActivity extends Activity {
     private BroadcastReceiver receiver;
     private IntentFilter intentFilter;
 
-    private MediaFormat mediaFormat;
     private HandlerThread leftCodecThread;
     private HandlerThread rightCodecThread;
-    private HandlerThread leftNetworkThread;
-    private HandlerThread rightNetworkThread;
+    private HandlerThread networkThread;
     private Handler leftCodecHandler;
     private Handler rightCodecHandler;
-    private Handler leftNetworkHandler;
-    private Handler rightNetworkHandler;
+    private Handler networkHandler;
     private SurfaceHolder leftSurfaceHolder;
     private SurfaceHolder rightSurfaceHolder;
     private SurfaceHolder.Callback leftHolderCallback;
     private SurfaceHolder.Callback rightHolderCallback;
-    private ServerSocket serverSocket;
-    private MediaCodec leftVideoCodec;
-    private MediaCodec rightVideoCodec;
-    private ArrayBlockingQueue<ByteBuffer> leftBlockingQueue;
-    private ArrayBlockingQueue<ByteBuffer> rightBlockingQueue;
+    private ViewerServer viewerServer;
+    // Replaced when the stream changes codec
+    private volatile MediaCodec leftVideoCodec;
+    private volatile MediaCodec rightVideoCodec;
+    private SpscRing<Frame> leftFrameRing;
+    private SpscRing<Frame> rightFrameRing;
     private MediaCodec.Callback leftCodecCallback;
     private MediaCodec.Callback rightCodecCallback;
-
-    private enum Side { LEFT, RIGHT }
-    private Side acceptingSocketForSide = Side.LEFT;
-    private boolean leftConnected = false;
+    private JitterBuffer leftJitterBuffer;
+    private JitterBuffer rightJitterBuffer;
+    private StereoPairer stereoPairer;
+    private VsyncPresenter vsyncPresenter;
+    // Runs the Choreographer that paces presentation, away from the main thread's layout work
+    private HandlerThread presentThread;
+    private Handler statsHandler;
+    private PipelineMetrics metrics;
+    private TextView latencyOverlay;
+    private SessionRecorder sessionRecorder;
+    private Thread recorderThread;
+    private RecordingPlayer recordingPlayer;
+    private Thread playerThread;
+    private int replayCount = 0;
+    private SpscRing<Frame> leftReplayRing;
+    private SpscRing<Frame> rightReplayRing;
+    // Set while a replay, rather than the cameras, feeds the decoders
+    private volatile boolean replaying = false;
+    // Decoder set-up for each side, driven from its codec thread
+    private final Surface[] surfaces = new Surface[Side.values().length];
+    private final ByteBuffer[] codecConfigs = new ByteBuffer[Side.values().length];
+    private final VideoCodec[] configCodecs = new VideoCodec[Side.values().length];
+    // The codec each stream is in, and the one each decoder was made for
+    private final VideoCodec[] streamCodecs = { VideoCodec.AVC, VideoCodec.AVC };
+    private final VideoCodec[] decoderCodecs = { VideoCodec.AVC, VideoCodec.AVC };
+    // A frame taken for a decoder of another codec, kept for the one that replaces it
+    private final Frame[] heldFrames = new Frame[Side.values().length];
+    private final ByteBuffer[] configuredWith = new ByteBuffer[Side.values().length];
+    private final boolean[] decoderStarted = new boolean[Side.values().length];
+    private final boolean[] codecConfigWaitOver = new boolean[Side.values().length];
+    // Time to first frame, from the camera connecting to its first picture shown
+    private final long[] connectedAtUs = new long[Side.values().length];
+    private final boolean[] awaitingFirstFrame = new boolean[Side.values().length];
+    private final long[] timeToFirstFrameUs = new long[Side.values().length];
+    // Recovery time, from the last picture before a camera was lost to the first after
+    private final long[] lastRenderedUs = new long[Side.values().length];
+    private final boolean[] recovering = new boolean[Side.values().length];
+    private final long[] recoveryCount = new long[Side.values().length];
+    private final long[] lastRecoveryUs = new long[Side.values().length];
+    private final long[] maxRecoveryUs = new long[Side.values().length];
+    // Which stream each decoder thread is taking frames from, and whether it is
+    // skipping the live stream up to a key frame after a replay
+    private final boolean[] decodingReplay = new boolean[Side.values().length];
+    private final boolean[] awaitingKeyFrame = new boolean[Side.values().length];
+    // Input buffers each decoder has handed over and no frame has been due for yet
+    private final ArrayDeque<Integer>[] freeInputs = newFreeInputs();
+    // Set while an arrival has posted feedDecoder() and it hasn't run yet
+    private final AtomicBoolean[] feedPending = { new AtomicBoolean(), new AtomicBoolean() };
+    private final Runnable[] feedRunnables = { createFeedRunnable(Side.LEFT, true), createFeedRunnable(Side.RIGHT, true) };
+    // Per eye, null if catching up is off
+    private final CatchUpController[] catchUps = new CatchUpController[Side.values().length];
+    // Output captured before this is decoded but not shown, while catching up
+    private final long[] skipUntilPtsUs = { Long.MIN_VALUE, Long.MIN_VALUE };
+    private final long[] lastQueuedPtsUs = { Long.MIN_VALUE, Long.MIN_VALUE };
+    // Set while the jitter buffer is handed to the decoder without waiting for playout
+    private final boolean[] flushing = new boolean[Side.values().length];
+    // Posted for when the jitter buffer's next frame is due
+    private final Runnable[] playoutRunnables = { createFeedRunnable(Side.LEFT, false), createFeedRunnable(Side.RIGHT, false) };
+
+    // Frames captured further apart than this are not shown as a pair
+    private final static long PAIRING_TOLERANCE_US = 8_000;
+    // How long one eye waits for the other before it is shown on its own
+    private final static long PAIRING_MAX_WAIT_US = 100_000;
+    private final static long STATS_INTERVAL_MILLIS = 5_000;
+    private final static long OVERLAY_INTERVAL_MILLIS = 1_000;
+    // A stream whose codec config hasn't come by then is decoded without it up front
+    private final static long CODEC_CONFIG_WAIT_MILLIS = 1_000;
+    private final static int RECORDING_SEGMENT_SIZE = 32 * 1024 * 1024;
+    // Two 20 Mbit/s eyes, for sizing the instant replay ring
+    private final static int RECORDING_BYTES_PER_SECOND = 2 * 20_000_000 / 8;
 
     private class BroadcastReceiver extends android.content.BroadcastReceiver {
 
@@ -145,10 +213,11 @@ public class ViewerActivity extends Activity {
 //        rightVideoCodec.stop();
 //        rightVideoCodec.release();
 
-        leftCodecThread.interrupt();
-        rightCodecThread.interrupt();
-        leftNetworkThread.interrupt();
-        rightNetworkThread.interrupt();
+        // Nothing on the codec threads waits, so they are simply let run out
+        leftCodecThread.quitSafely();
+        rightCodecThread.quitSafely();
+        presentThread.quitSafely();
+        networkThread.interrupt();
     }
 
     @Override
@@ -174,27 +243,63 @@ public class ViewerActivity extends Activity {
         // operations to prevent the jarring behavior of controls going away
         // while interacting with the UI.
         findViewById(R.id.close_button).setOnTouchListener(mDelayHideTouchListener);
+        latencyOverlay = findViewById(R.id.latency_overlay);
+        latencyOverlay.setVisibility(MainActivity.showLatencyOverlay ? View.VISIBLE : View.GONE);
+        findViewById(R.id.replay_button).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+
+                if (replaying) {
+                    stopReplay();
+                } else {
+                    startInstantReplay();
+                }
+            }
+        });
+
 
+        leftFrameRing = createDecoderRing(Side.LEFT);
+        rightFrameRing = createDecoderRing(Side.RIGHT);
+        leftReplayRing = createDecoderRing(Side.LEFT);
+        rightReplayRing = createDecoderRing(Side.RIGHT);
 
         try {
-            serverSocket = new ServerSocket();
-            serverSocket.setReuseAddress(true);
-            serverSocket.bind(new InetSocketAddress(MainActivity.port));
-            serverSocket.setSoTimeout(5_000);
+            viewerServer = new ViewerServer(MainActivity.port, leftFrameRing, rightFrameRing, onConnectionCallback);
         } catch (IOException exception) {
-            Log.e(TAG, "start binding ServerSocket exception: " + exception.getMessage());
+            Log.e(TAG, "start binding ViewerServer exception: " + exception.getMessage());
             return;
         }
+        metrics = viewerServer.getMetrics();
+        viewerServer.setDecoders(MediaCodecs.decoders() & MainActivity.offeredCodecs | VideoCodec.AVC.bit());
+        // Each eye gets half the screen, the long way
+        int eyeWidth = Math.max(MainActivity.screenSize.x, MainActivity.screenSize.y) / 2;
+        int eyeHeight = Math.min(MainActivity.screenSize.x, MainActivity.screenSize.y);
+        viewerServer.setVideoModes(VideoMode.fitting(MediaCodecs.decoderModes(), eyeWidth, eyeHeight));
+        if (MainActivity.relayAddress != null) {
+            viewerServer.subscribe(InetSocketAddress.createUnresolved(MainActivity.relayAddress, MainActivity.relayPort));
+        }
+
+        long minPlayoutDelayUs = MainActivity.minPlayoutDelayMillis * 1000L;
+        long maxPlayoutDelayUs = MainActivity.maxPlayoutDelayMillis * 1000L;
+        leftJitterBuffer = new JitterBuffer(minPlayoutDelayUs, maxPlayoutDelayUs);
+        rightJitterBuffer = new JitterBuffer(minPlayoutDelayUs, maxPlayoutDelayUs);
+
+        if (MainActivity.catchUpLagMillis > 0) {
+            for (Side side : Side.values()) {
+                catchUps[side.ordinal()] = new CatchUpController(MainActivity.catchUpLagMillis * 1000L);
+            }
+        }
 
-        mediaFormat = MediaFormat.createVideoFormat(MainActivity.mimeType, MainActivity.videoWidth, MainActivity.videoHeight);
+        leftCodecCallback = createCodecCallback(Side.LEFT);
+        leftVideoCodec = createCodec(VideoCodec.AVC);
 
-        leftBlockingQueue = new ArrayBlockingQueue<>(4);
-        leftCodecCallback = createCodecCallback(leftBlockingQueue);
-        leftVideoCodec = createCodec(mediaFormat);
+        rightCodecCallback = createCodecCallback(Side.RIGHT);
+        rightVideoCodec = createCodec(VideoCodec.AVC);
 
-        rightBlockingQueue = new ArrayBlockingQueue<>(4);
-        rightCodecCallback = createCodecCallback(rightBlockingQueue);
-        rightVideoCodec = createCodec(mediaFormat);
+        long refreshPeriodNanos = (long) (1_000_000_000 / getWindowManager().getDefaultDisplay().getRefreshRate());
+        vsyncPresenter = new VsyncPresenter(refreshPeriodNanos, onPresentCallback);
+        stereoPairer = new StereoPairer(PAIRING_TOLERANCE_US, PAIRING_MAX_WAIT_US, vsyncPresenter);
+        statsHandler = new Handler(getMainLooper());
 
 
         manager = (WifiP2pManager) getSystemService(Context.WIFI_P2P_SERVICE);
@@ -217,82 +322,87 @@ public class ViewerActivity extends Activity {
 
         registerReceiver(receiver, intentFilter);
 
-        // Left network thread init
-        leftNetworkThread = new HandlerThread("leftNetworkThread");
-        leftNetworkThread.start();
-        leftNetworkHandler = new Handler(leftNetworkThread.getLooper());
-        leftNetworkHandler.post(createSocketRunnable());
+        // Wakeups posted to the last threads died with them
+        for (Side side : Side.values()) {
+            freeInputs[side.ordinal()].clear();
+            feedPending[side.ordinal()].set(false);
+        }
+
         // Left codec thread init
         leftCodecThread = new HandlerThread("leftCodecThread");
         leftCodecThread.start();
         leftCodecHandler = new Handler(leftCodecThread.getLooper());
         leftVideoCodec.setCallback(leftCodecCallback, leftCodecHandler);
-        leftHolderCallback = createSurfaceHolderCallback(leftCodecHandler, leftVideoCodec, leftCodecCallback);
+        leftHolderCallback = createSurfaceHolderCallback(Side.LEFT, leftCodecHandler);
         SurfaceView leftSurfaceView = findViewById(R.id.surface_view_left);
         leftSurfaceHolder = leftSurfaceView.getHolder();
         leftSurfaceHolder.addCallback(leftHolderCallback);
 
-        // Right network thread init
-        rightNetworkThread = new HandlerThread("rightNetworkThread");
-        rightNetworkThread.start();
-        rightNetworkHandler = new Handler(rightNetworkThread.getLooper());
-        rightNetworkHandler.post(createSocketRunnable());
         // Right codec thread init
         rightCodecThread = new HandlerThread("rightCodecThread");
         rightCodecThread.start();
         rightCodecHandler = new Handler(rightCodecThread.getLooper());
         rightVideoCodec.setCallback(rightCodecCallback, rightCodecHandler);
-        rightHolderCallback = createSurfaceHolderCallback(rightCodecHandler, rightVideoCodec, rightCodecCallback);
+        rightHolderCallback = createSurfaceHolderCallback(Side.RIGHT, rightCodecHandler);
         SurfaceView rightSurfaceView = findViewById(R.id.surface_view_right);
         rightSurfaceHolder = rightSurfaceView.getHolder();
         rightSurfaceHolder.addCallback(rightHolderCallback);
+
+        presentThread = new HandlerThread("presentThread");
+        presentThread.start();
+        new Handler(presentThread.getLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                Choreographer.getInstance().postFrameCallback(vsyncCallback);
+            }
+        });
+
+        // One network thread serves both cameras, started last as it calls into the codec threads
+        networkThread = new HandlerThread("viewerNetworkThread");
+        networkThread.start();
+        networkHandler = new Handler(networkThread.getLooper());
+        startRecording();
+        networkHandler.post(viewerServer);
+
+        statsHandler.postDelayed(logStatsRunnable, STATS_INTERVAL_MILLIS);
+        if (MainActivity.showLatencyOverlay) {
+            statsHandler.post(updateOverlayRunnable);
+        }
     }
 
-    private MediaCodec.Callback createCodecCallback(final ArrayBlockingQueue<ByteBuffer> queue) {
+    private MediaCodec.Callback createCodecCallback(final Side side) {
 
         return new MediaCodec.Callback() {
 
-            private long presentationTime;
-            private long firstTime = -1;
-
             @Override
             public void onInputBufferAvailable(MediaCodec codec, int index) {
 
 //                Log.d(TAG, "onInputBufferAvailable thread id: " + Thread.currentThread().getId());
-                ByteBuffer inputBuffer;
-                try {
-                    inputBuffer = codec.getInputBuffer(index);
-                } catch (IllegalStateException e) {
-                    e.printStackTrace();
-                    return;
-                }
-
-                if (inputBuffer == null) {
-                    return;
-                }
-
-                if (firstTime == -1) {
-                    firstTime = Calendar.getInstance().getTimeInMillis();
-                }
-                presentationTime = 1000 * (Calendar.getInstance().getTimeInMillis() - firstTime);
-
-                try {
-                    ByteBuffer buffer = queue.take();
-                    buffer.rewind();
-                    inputBuffer.put(buffer);
-                    codec.queueInputBuffer(index, 0, buffer.capacity(), presentationTime, 0);
-                } catch (InterruptedException exception) {
-                    Log.e(TAG, "Interrupted reading from ByteBuffer queue");
-                }
+                freeInputs[side.ordinal()].add(index);
+                feedDecoder(side);
             }
 
             @Override
             public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
 
-                try {
-                    codec.releaseOutputBuffer(index, info.presentationTimeUs);
-                } catch (IllegalStateException exception) {
-                    Log.e(TAG, "onOutputBufferAvailable exception: " + exception.getMessage());
+                int i = side.ordinal();
+                if (info.presentationTimeUs < skipUntilPtsUs[i]) {
+                    // Decoded only so that the frames after it come out whole
+                    catchUps[i].onFrameSkipped();
+                    try {
+                        codec.releaseOutputBuffer(index, false);
+                    } catch (IllegalStateException exception) {
+                        Log.e(TAG, "releaseOutputBuffer exception: " + exception.getMessage());
+                    }
+                    return;
+                }
+                long captureUs = toLocalUs(side, info.presentationTimeUs);
+                long nowUs = System.nanoTime() / 1000;
+                recordStage(PipelineMetrics.Stage.DECODED, side, info.presentationTimeUs, 0);
+                stereoPairer.offer(side, index, captureUs, nowUs);
+                if (catchUps[i] != null && ! decodingReplay[i] && viewerServer.getClockSync(side).isSynchronized()
+                        && catchUps[i].onLag(nowUs - captureUs, nowUs)) {
+                    catchUp(side);
                 }
             }
 
@@ -309,8 +419,234 @@ public class ViewerActivity extends Activity {
         };
     };
 
-    private MediaCodec createCodec(MediaFormat mediaFormat) {
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static ArrayDeque<Integer>[] newFreeInputs() {
 
+        ArrayDeque<Integer>[] freeInputs = new ArrayDeque[Side.values().length];
+        for (int i = 0; i < freeInputs.length; i++) {
+            freeInputs[i] = new ArrayDeque<>();
+        }
+        return freeInputs;
+    }
+
+    /** A ring into side's decoder that has its codec thread feed it whenever a frame goes in. */
+    private SpscRing<Frame> createDecoderRing(final Side side) {
+
+        return new SpscRing<Frame>(4, SpscRing.WaitStrategy.PARK) {
+            @Override
+            boolean offer(Frame frame) {
+
+                if (! super.offer(frame)) {
+                    return false;
+                }
+                wakeDecoder(side);
+                return true;
+            }
+        };
+    }
+
+    /** Has feedDecoder() run on side's codec thread soon, once however often it is called. Any thread. */
+    private void wakeDecoder(Side side) {
+
+        int i = side.ordinal();
+        Handler handler = side == Side.LEFT ? leftCodecHandler : rightCodecHandler;
+        if (handler != null && feedPending[i].compareAndSet(false, true) && ! handler.post(feedRunnables[i])) {
+            // The thread is gone; the next one starts afresh
+            feedPending[i].set(false);
+        }
+    }
+
+    private Runnable createFeedRunnable(final Side side, final boolean arrival) {
+
+        return new Runnable() {
+            @Override
+            public void run() {
+
+                if (arrival) {
+                    // Cleared first, so a frame that arrives from here on posts again
+                    feedPending[side.ordinal()].set(false);
+                }
+                feedDecoder(side);
+            }
+        };
+    }
+
+    /**
+     * Fills side's free decoder inputs with the frames the jitter buffer has due,
+     * moving everything that has arrived over into it first, and has itself run
+     * again when the next frame is due. Called on side's codec thread whenever
+     * a frame arrives or an input frees up; it never waits, so the decoder's
+     * output callbacks are never held up behind its input.
+     */
+    private void feedDecoder(Side side) {
+
+        int i = side.ordinal();
+        JitterBuffer jitterBuffer = side == Side.LEFT ? leftJitterBuffer : rightJitterBuffer;
+        Handler handler = side == Side.LEFT ? leftCodecHandler : rightCodecHandler;
+        MediaCodec codec = side == Side.LEFT ? leftVideoCodec : rightVideoCodec;
+        ArrayDeque<Integer> free = freeInputs[i];
+        if (! decoderStarted[i]) {
+            // Until then the frames wait where they are, as the server holds back what doesn't fit
+            return;
+        }
+        takeArrivals(side, side == Side.LEFT ? leftFrameRing : rightFrameRing, jitterBuffer);
+        handler.removeCallbacks(playoutRunnables[i]);
+
+        while (! free.isEmpty()) {
+            long nowUs = System.nanoTime() / 1000;
+            Frame frame = heldFrames[i] != null ? heldFrames[i] : jitterBuffer.poll(flushing[i] ? Long.MAX_VALUE : nowUs);
+            if (frame == null) {
+                flushing[i] = false;
+                if (! jitterBuffer.isEmpty()) {
+                    long waitUs = jitterBuffer.nextPlayoutUs() - nowUs;
+                    handler.postDelayed(playoutRunnables[i], Math.max(1, (waitUs + 999) / 1000));
+                }
+                return;
+            }
+            heldFrames[i] = null;
+            if (frame.codec() != decoderCodecs[i]) {
+                // Kept for the decoder in the frame's codec that is about to replace this one, inputs and all
+                heldFrames[i] = frame;
+                streamCodecs[i] = frame.codec();
+                free.clear();
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        configureDecoder(side);
+                    }
+                });
+                return;
+            }
+            int index = free.poll();
+            ByteBuffer inputBuffer;
+            try {
+                inputBuffer = codec.getInputBuffer(index);
+            } catch (IllegalStateException e) {
+                e.printStackTrace();
+                inputBuffer = null;
+            }
+            if (inputBuffer == null) {
+                // Not an input of this decoder any more; the frame waits for one that is
+                heldFrames[i] = frame;
+                continue;
+            }
+            int size = frame.size();
+            inputBuffer.put(frame.payload);
+            int flags = frame.isCodecConfig() ? MediaCodec.BUFFER_FLAG_CODEC_CONFIG : 0;
+            // The capture time rides through the decoder for pairing on the way out
+            codec.queueInputBuffer(index, 0, size, frame.ptsUs, flags);
+            if (! frame.isCodecConfig()) {
+                lastQueuedPtsUs[i] = frame.ptsUs;
+                recordStage(PipelineMetrics.Stage.DECODER_INPUT, side, frame.ptsUs, size);
+            }
+        }
+    }
+
+    /**
+     * Brings side back within its lag budget, on its codec thread. Whatever is in
+     * the decoder is decoded but only the newest of it shown; what is in the
+     * jitter buffer goes if there is a key frame after it to start again from,
+     * and otherwise is decoded straight away, only its newest frame shown.
+     */
+    private void catchUp(Side side) {
+
+        int i = side.ordinal();
+        JitterBuffer jitterBuffer = side == Side.LEFT ? leftJitterBuffer : rightJitterBuffer;
+        takeArrivals(side, side == Side.LEFT ? leftFrameRing : rightFrameRing, jitterBuffer);
+        int skipped = jitterBuffer.skipToLastKeyFrame();
+        skipUntilPtsUs[i] = lastQueuedPtsUs[i];
+        if (skipped == 0 && ! jitterBuffer.isEmpty()) {
+            skipUntilPtsUs[i] = Math.max(skipUntilPtsUs[i], jitterBuffer.newestPtsUs());
+            flushing[i] = true;
+        }
+        catchUps[i].onCaughtUp(skipped);
+        Log.d(TAG, side + " " + catchUps[i].lagUs() / 1000 + " ms behind, catching up"
+                + (skipped > 0 ? " past " + skipped + " frames to a key frame" : " by decoding without showing"));
+        feedDecoder(side);
+    }
+
+    /** Forgets any catch up in progress, for a decoder or stream that starts over. */
+    private void resetCatchUp(Side side) {
+
+        int i = side.ordinal();
+        skipUntilPtsUs[i] = Long.MIN_VALUE;
+        lastQueuedPtsUs[i] = Long.MIN_VALUE;
+        flushing[i] = false;
+    }
+
+    /**
+     * Moves the frames that have arrived into the jitter buffer: from the live
+     * ring, or side's replay ring while a replay is on. Live frames that come in
+     * meanwhile are thrown away so the cameras don't back up, and after a replay
+     * the live stream picks up again at its codec config and next key frame.
+     */
+    private void takeArrivals(Side side, SpscRing<Frame> liveRing, JitterBuffer jitterBuffer) {
+
+        int i = side.ordinal();
+        SpscRing<Frame> replayRing = side == Side.LEFT ? leftReplayRing : rightReplayRing;
+        boolean replay = replaying;
+        if (replay != decodingReplay[i]) {
+            // Whatever is held belongs to the other stream
+            decodingReplay[i] = replay;
+            jitterBuffer.clear();
+            resetCatchUp(side);
+            awaitingKeyFrame[i] = ! replay;
+            if (! replay) {
+                while (replayRing.poll() != null) { }
+                if (codecConfigs[i] != null) {
+                    jitterBuffer.offer(new Frame(0, i, 0, Frame.FLAG_CODEC_CONFIG | configCodecs[i].flags(),
+                                    codecConfigs[i].duplicate()),
+                            System.nanoTime() / 1000);
+                }
+            }
+        }
+        SpscRing<Frame> ring = replay ? replayRing : liveRing;
+        if (replay) {
+            while (liveRing.poll() != null) { }
+        }
+
+        Frame arrived;
+        while ((arrived = ring.poll()) != null) {
+            if (awaitingKeyFrame[i] && ! arrived.isKeyFrame() && ! arrived.isCodecConfig()) {
+                continue;
+            }
+            awaitingKeyFrame[i] &= ! arrived.isKeyFrame();
+            jitterBuffer.offer(arrived, System.nanoTime() / 1000);
+        }
+    }
+
+    /** side's capture time ptsUs on this clock; replayed frames are on it already. */
+    private long toLocalUs(Side side, long ptsUs) {
+        return decodingReplay[side.ordinal()] ? ptsUs : viewerServer.getClockSync(side).toLocalUs(ptsUs);
+    }
+
+    /** Records side's frame captured at ptsUs on its camera's clock reaching stage now. */
+    private void recordStage(PipelineMetrics.Stage stage, Side side, long ptsUs, int size) {
+
+        if (decodingReplay[side.ordinal()]) {
+            return;
+        }
+        ClockSync clockSync = viewerServer.getClockSync(side);
+        if (clockSync.isSynchronized()) {
+            metrics.record(stage, System.nanoTime() / 1000 - clockSync.toLocalUs(ptsUs), size);
+        }
+    }
+
+    private synchronized void logConnectionStats(Side side) {
+
+        int i = side.ordinal();
+        if (timeToFirstFrameUs[i] > 0) {
+            Log.d(TAG, side + " time to first frame: " + timeToFirstFrameUs[i] / 1000 + " ms");
+        }
+        if (recoveryCount[i] > 0) {
+            Log.d(TAG, String.format("%s recoveries: %d last: %d ms max: %d ms", side,
+                    recoveryCount[i], lastRecoveryUs[i] / 1000, maxRecoveryUs[i] / 1000));
+        }
+    }
+
+    private MediaCodec createCodec(VideoCodec videoCodec) {
+
+        MediaFormat mediaFormat = createVideoFormat(videoCodec);
         MediaCodecList codecList = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
         String codecName = codecList.findDecoderForFormat(mediaFormat);
 //        Log.d(TAG, "codecName: " + codecName);
@@ -325,7 +661,7 @@ public class ViewerActivity extends Activity {
         }
     }
 
-    private SurfaceHolder.Callback createSurfaceHolderCallback(final Handler handler, final MediaCodec codec, final MediaCodec.Callback callback) {
+    private SurfaceHolder.Callback createSurfaceHolderCallback(final Side side, final Handler handler) {
 
         return new SurfaceHolder.Callback() {
             @Override
@@ -336,11 +672,18 @@ public class ViewerActivity extends Activity {
                     @Override
                     public void run() {
 
-                        codec.configure(mediaFormat, holder.getSurface(), null, 0);
-                        codec.setVideoScalingMode(MediaCodec.VIDEO_SCALING_MODE_SCALE_TO_FIT_WITH_CROPPING);
-                        codec.start();
+                        surfaces[side.ordinal()] = holder.getSurface();
+                        configureDecoder(side);
                     }
                 });
+                handler.postDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+
+                        codecConfigWaitOver[side.ordinal()] = true;
+                        configureDecoder(side);
+                    }
+                }, CODEC_CONFIG_WAIT_MILLIS);
             }
 
             @Override
@@ -352,6 +695,8 @@ public class ViewerActivity extends Activity {
             public void surfaceDestroyed(SurfaceHolder holder) {
 
                 Log.d(TAG, "surfaceDestroyed");
+                surfaces[side.ordinal()] = null;
+                MediaCodec codec = side == Side.LEFT ? leftVideoCodec : rightVideoCodec;
                 codec.signalEndOfInputStream();
                 codec.stop();
                 codec.release();
@@ -359,81 +704,407 @@ public class ViewerActivity extends Activity {
         };
     }
 
-    private Runnable createSocketRunnable() {
+    /**
+     * Configures and starts side's decoder once it has a surface, handing it the
+     * stream's codec config as csd-N buffers so it is ready before the first
+     * picture arrives. A stream whose config hasn't turned up within
+     * CODEC_CONFIG_WAIT_MILLIS is decoded without, the config then coming in-band
+     * as before. A camera that comes back with a different config, e.g. after a
+     * restart with new settings, gets the decoder set up afresh, and one that
+     * changes codec gets a new decoder altogether. Runs on side's codec thread.
+     */
+    private void configureDecoder(Side side) {
 
-        return new Runnable() {
+        int i = side.ordinal();
+        Surface surface = surfaces[i];
+        ByteBuffer config = configCodecs[i] == streamCodecs[i] ? codecConfigs[i] : null;
+        if (surface == null) {
+            return;
+        }
+        if (decoderCodecs[i] != streamCodecs[i]) {
+            replaceDecoder(side);
+        }
+        if (decoderStarted[i] && (configuredWith[i] == null || configuredWith[i].equals(config))) {
+            return;
+        }
+        if (! decoderStarted[i] && config == null && ! codecConfigWaitOver[i] && streamCodecs[i].hasCodecConfig()) {
+            return;
+        }
 
-            private Socket socket;
-            private DataInputStream inputStream;
-            private ArrayBlockingQueue<ByteBuffer> myQueue;
+        MediaCodec codec = side == Side.LEFT ? leftVideoCodec : rightVideoCodec;
+        if (decoderStarted[i]) {
+            Log.d(TAG, side + " codec config changed, restarting decoder");
+            stereoPairer.clear(side);
+            vsyncPresenter.clear(side);
+            codec.stop();
+            freeInputs[i].clear();
+            resetCatchUp(side);
+            codec.setCallback(side == Side.LEFT ? leftCodecCallback : rightCodecCallback,
+                    side == Side.LEFT ? leftCodecHandler : rightCodecHandler);
+        }
 
-            @Override
-            public void run() {
+        String mimeType = decoderCodecs[i].mimeType;
+        MediaFormat format = createVideoFormat(decoderCodecs[i]);
+        if (config != null) {
+            ByteBuffer[] csd = CodecConfig.toCsd(mimeType, config);
+            for (int n = 0; n < csd.length; n++) {
+                format.setByteBuffer("csd-" + n, csd[n]);
+            }
+        }
+        codec.configure(format, surface, null, 0);
+        codec.setVideoScalingMode(MediaCodec.VIDEO_SCALING_MODE_SCALE_TO_FIT_WITH_CROPPING);
+        codec.start();
+        decoderStarted[i] = true;
+        configuredWith[i] = config;
+        Log.d(TAG, side + " decoder started " + (config != null ? "with" : "without") + " codec config");
+    }
 
-                // The first of these Runnables to get here claims the left half of the screen.
-                // The second takes right and waits for the left to connect before listening on the
-                // ServerSocket.
-                if (acceptingSocketForSide == Side.LEFT) {
-                    acceptingSocketForSide = Side.RIGHT;
-                    myQueue = leftBlockingQueue;
-                } else {
-                    while (! leftConnected) {
-                        try {
-                            Thread.sleep(100);
-                        } catch (InterruptedException exception) {
-                            Log.e(TAG, "Interrupted waiting for left to connect");
-                            return;
-                        }
+    /** A decoder format at the negotiated mode, or the default size until there is one. */
+    private MediaFormat createVideoFormat(VideoCodec videoCodec) {
+
+        VideoMode mode = viewerServer.getVideoMode();
+        return mode != null ? MediaFormat.createVideoFormat(videoCodec.mimeType, mode.width, mode.height)
+                : MediaFormat.createVideoFormat(videoCodec.mimeType, MainActivity.videoWidth, MainActivity.videoHeight);
+    }
+
+    /** Releases side's decoder for a new one in its stream's codec, to be configured next. */
+    private void replaceDecoder(Side side) {
+
+        int i = side.ordinal();
+        Log.d(TAG, side + " stream changed from " + decoderCodecs[i] + " to " + streamCodecs[i] + ", replacing decoder");
+        stereoPairer.clear(side);
+        vsyncPresenter.clear(side);
+        MediaCodec old = side == Side.LEFT ? leftVideoCodec : rightVideoCodec;
+        if (decoderStarted[i]) {
+            old.stop();
+        }
+        old.release();
+        freeInputs[i].clear();
+        resetCatchUp(side);
+        MediaCodec codec = createCodec(streamCodecs[i]);
+        codec.setCallback(side == Side.LEFT ? leftCodecCallback : rightCodecCallback,
+                side == Side.LEFT ? leftCodecHandler : rightCodecHandler);
+        if (side == Side.LEFT) {
+            leftVideoCodec = codec;
+        } else {
+            rightVideoCodec = codec;
+        }
+        decoderCodecs[i] = streamCodecs[i];
+        decoderStarted[i] = false;
+        configuredWith[i] = null;
+    }
+
+    private ViewerServer.OnConnectionCallback onConnectionCallback = new ViewerServer.OnConnectionCallback() {
+
+        @Override
+        void onConnected(Side side) {
+
+            Log.d(TAG, "Connected! " + side + " camera on port " + viewerServer.getLocalPort());
+            onCameraConnected(side);
+        }
+
+        @Override
+        void onDisconnected(Side side, IOException exception) {
+
+            if (exception == null) {
+                Log.e(TAG, side + " camera disconnected");
+            } else {
+                Log.e(TAG, side + " camera connection exception: " + exception.getMessage());
+            }
+            // The decoder is kept as it is for the camera to come back to
+            onCameraLost(side);
+        }
+
+        @Override
+        void onCodecConfig(final Side side, final VideoCodec codec, ByteBuffer config) {
+
+            // The view is only valid until the frame is decoded
+            final ByteBuffer copy = config != null ? ByteBuffer.allocate(config.remaining()) : null;
+            if (copy != null) {
+                copy.put(config);
+                copy.flip();
+            }
+            Handler handler = side == Side.LEFT ? leftCodecHandler : rightCodecHandler;
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+
+                    int i = side.ordinal();
+                    codecConfigs[i] = copy;
+                    configCodecs[i] = codec;
+                    if (! decodingReplay[i]) {
+                        streamCodecs[i] = codec;
                     }
-                    myQueue = rightBlockingQueue;
+                    configureDecoder(side);
                 }
-                while (true) {
-                    try {
-                        socket = serverSocket.accept();
-                        leftConnected = true;
-                        Log.d(TAG, "Connected! Accepted socket on port " + serverSocket.getLocalPort());
-                        inputStream = new DataInputStream(socket.getInputStream());
-                        break;
-                    } catch (SocketTimeoutException exception) {
-                        if (Thread.interrupted()) {
-                            Log.d(TAG, "Interrupted waiting for socket connection");
-                            return;
-                        } // else repeat the while loop and try to accept the serverSocket again
-                    } catch (IOException exception) {
-                        Log.e(TAG, "Accept serverSocket exception: " + exception.getMessage());
-//                        stopSelf();
-                        return;
-                    }
+            });
+        }
+    };
+
+    private synchronized void onCameraConnected(Side side) {
+
+        connectedAtUs[side.ordinal()] = System.nanoTime() / 1000;
+        awaitingFirstFrame[side.ordinal()] = true;
+    }
+
+    private synchronized void onCameraLost(Side side) {
+
+        int i = side.ordinal();
+        recovering[i] = lastRenderedUs[i] != 0;
+    }
+
+    private synchronized void onRendered(Side side) {
+
+        int i = side.ordinal();
+        long nowUs = System.nanoTime() / 1000;
+        if (awaitingFirstFrame[i]) {
+            awaitingFirstFrame[i] = false;
+            timeToFirstFrameUs[i] = nowUs - connectedAtUs[i];
+            Log.d(TAG, side + " time to first frame: " + timeToFirstFrameUs[i] / 1000 + " ms");
+        }
+        if (recovering[i]) {
+            recovering[i] = false;
+            recoveryCount[i]++;
+            lastRecoveryUs[i] = nowUs - lastRenderedUs[i];
+            maxRecoveryUs[i] = Math.max(maxRecoveryUs[i], lastRecoveryUs[i]);
+            Log.d(TAG, side + " recovered, " + lastRecoveryUs[i] / 1000 + " ms without a picture");
+        }
+        lastRenderedUs[i] = nowUs;
+    }
+
+    /** Hands the presenter each vsync, on the present thread, letting a lone eye through first if its wait is over. */
+    private Choreographer.FrameCallback vsyncCallback = new Choreographer.FrameCallback() {
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+
+            stereoPairer.poll(System.nanoTime() / 1000);
+            vsyncPresenter.onVsync(frameTimeNanos, System.nanoTime());
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    };
+
+    private VsyncPresenter.OnPresentCallback onPresentCallback = new VsyncPresenter.OnPresentCallback() {
+
+        @Override
+        void onPresent(Side side, int index, long captureUs, long renderTimeNanos) {
+
+            MediaCodec codec = side == Side.LEFT ? leftVideoCodec : rightVideoCodec;
+            onRendered(side);
+            if (! replaying && viewerServer.getClockSync(side).isSynchronized()) {
+                // When it reaches the glass rather than when it is handed over
+                metrics.record(PipelineMetrics.Stage.RENDERED, renderTimeNanos / 1000 - captureUs, 0);
+            }
+            try {
+                codec.releaseOutputBuffer(index, renderTimeNanos);
+            } catch (IllegalStateException exception) {
+                Log.e(TAG, "releaseOutputBuffer exception: " + exception.getMessage());
+            }
+        }
+
+        @Override
+        void onDrop(Side side, int index, long captureUs) {
+
+            MediaCodec codec = side == Side.LEFT ? leftVideoCodec : rightVideoCodec;
+            try {
+                codec.releaseOutputBuffer(index, false);
+            } catch (IllegalStateException exception) {
+                Log.e(TAG, "releaseOutputBuffer exception: " + exception.getMessage());
+            }
+        }
+    };
+
+    private Runnable logStatsRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+
+            Log.d(TAG, String.format("pairing rate %.1f%% paired: %d dropped: %d solo: %d skew mean: %d us max: %d us",
+                    100 * stereoPairer.pairingRate(), stereoPairer.pairedCount(), stereoPairer.droppedCount(),
+                    stereoPairer.soloCount(), stereoPairer.meanSkewUs(), stereoPairer.maxSkewUs()));
+            Log.d(TAG, String.format("presentation: %.2f frames/vsync over %d vsyncs, stale: %d judder: %d eye mismatch: %d",
+                    vsyncPresenter.framesPerVsync(), vsyncPresenter.vsyncCount(), vsyncPresenter.staleDropCount(),
+                    vsyncPresenter.judderCount(), vsyncPresenter.eyeMismatchCount()));
+            for (Side side : Side.values()) {
+                JitterBuffer jitterBuffer = side == Side.LEFT ? leftJitterBuffer : rightJitterBuffer;
+                Log.d(TAG, String.format("%s playout delay: %d us jitter: %d us held: %d underruns: %d late: %d", side,
+                        jitterBuffer.delayUs(), jitterBuffer.jitterUs(), jitterBuffer.size(),
+                        jitterBuffer.underrunCount(), jitterBuffer.lateDropCount()));
+                logConnectionStats(side);
+                FecDecoder fecDecoder = viewerServer.getFecDecoder(side);
+                Log.d(TAG, String.format("%s fec parity: %d recovered: %d unrecoverable: %d", side,
+                        fecDecoder.parityPackets(), fecDecoder.packetsRecovered(), fecDecoder.packetsUnrecoverable()));
+                CatchUpController catchUp = catchUps[side.ordinal()];
+                if (catchUp != null) {
+                    Log.d(TAG, String.format("%s lag: %d ms catch-ups: %d frames skipped: %d", side,
+                            catchUp.lagUs() / 1000, catchUp.catchUpCount(), catchUp.framesSkipped()));
                 }
-                // Make a really big byte array to hold video frames
-                byte[] bytes = new byte[100_000];
-                int numBytes;
-                try {
-                    while (true) {
-                        numBytes = inputStream.read(bytes);
-                        if (numBytes == bytes.length) {
-                            Log.e(TAG, "Maxed out byte buffer with " + numBytes + " bytes");
-                        } else if (numBytes == -1) {
-                            Log.e(TAG, "socket inputStream EOF");
-                            return;
-//                            stopSelf();
+                ClockSync clockSync = viewerServer.getClockSync(side);
+                if (clockSync.isSynchronized()) {
+                    Log.d(TAG, String.format("%s clock offset: %d us skew: %.1f ppm delay: %d us", side,
+                            clockSync.offsetUs(System.nanoTime() / 1000), clockSync.skewPpm(), clockSync.delayUs()));
+                }
+                EncoderSettings settings = viewerServer.getEncoderSettings(side);
+                if (settings != null) {
+                    Log.d(TAG, "encoder: " + settings);
+                }
+            }
+            if (sessionRecorder != null) {
+                logRecordingStats();
+            }
+            Log.d(TAG, "latency since capture:\n" + metrics.summary(System.nanoTime()));
+            statsHandler.postDelayed(this, STATS_INTERVAL_MILLIS);
+        }
+    };
+
+    private Runnable updateOverlayRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+
+            latencyOverlay.setText(metrics.summary(System.nanoTime()));
+            statsHandler.postDelayed(this, OVERLAY_INTERVAL_MILLIS);
+        }
+    };
+
+    /** Writes the latency histograms and the FEC counters where adb can pull them from. */
+    private void dumpMetrics() {
+
+        File file = new File(getFilesDir(), "latency-viewer.txt");
+        try (Writer writer = new FileWriter(file)) {
+            metrics.dump(writer, System.nanoTime());
+            writer.write("\n# FEC per side: parity recovered unrecoverable\n");
+            for (Side side : Side.values()) {
+                FecDecoder fecDecoder = viewerServer.getFecDecoder(side);
+                writer.write(side + " " + fecDecoder.parityPackets() + " " + fecDecoder.packetsRecovered()
+                        + " " + fecDecoder.packetsUnrecoverable() + "\n");
+            }
+            Log.d(TAG, "Latency histograms written to " + file);
+        } catch (IOException exception) {
+            Log.e(TAG, "Writing " + file + ": " + exception.getMessage());
+        }
+    }
+
+    /**
+     * Starts writing what arrives to disk: the whole session if
+     * MainActivity.recordSession is set, otherwise a ring of segments just big
+     * enough for instant replay. Call before the server runs.
+     */
+    private void startRecording() {
+
+        RecordingStore store;
+        try {
+            if (MainActivity.recordSession) {
+                String name = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+                store = new RecordingStore(new File(getFilesDir(), "recordings/" + name), RECORDING_SEGMENT_SIZE, 0);
+            } else if (MainActivity.instantReplaySeconds > 0) {
+                // The oldest segment isn't replayed from, being the next to go
+                int segments = 2 + (int) ((long) MainActivity.instantReplaySeconds * RECORDING_BYTES_PER_SECOND
+                        / RECORDING_SEGMENT_SIZE);
+                store = new RecordingStore(new File(getCacheDir(), "instant-replay"), RECORDING_SEGMENT_SIZE, segments);
+            } else {
+                return;
+            }
+        } catch (IOException exception) {
+            Log.e(TAG, "Cannot record: " + exception.getMessage());
+            return;
+        }
+        sessionRecorder = new SessionRecorder(store);
+        recorderThread = new Thread(sessionRecorder, "sessionRecorder");
+        recorderThread.start();
+        viewerServer.setRecorder(sessionRecorder);
+        Log.d(TAG, "Recording to " + store.directory());
+    }
+
+    private void stopRecording() {
+
+        if (sessionRecorder == null) {
+            return;
+        }
+        viewerServer.setRecorder(null);
+        recorderThread.interrupt();
+        try {
+            recorderThread.join();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+        logRecordingStats();
+        sessionRecorder = null;
+    }
+
+    /**
+     * Plays the last MainActivity.instantReplaySeconds again in place of the
+     * cameras, going back to live when it is over.
+     */
+    private void startInstantReplay() {
+
+        if (sessionRecorder == null || replaying) {
+            return;
+        }
+        long nowUs = System.nanoTime() / 1000;
+        recordingPlayer = new RecordingPlayer(sessionRecorder.getStore(),
+                nowUs - MainActivity.instantReplaySeconds * 1_000_000L, nowUs,
+                leftReplayRing, rightReplayRing, createPlaybackCallback(++replayCount));
+        replaying = true;
+        playerThread = new Thread(recordingPlayer, "recordingPlayer");
+        playerThread.start();
+        Log.d(TAG, "Replaying the last " + MainActivity.instantReplaySeconds + " s");
+    }
+
+    /** Stops a replay, if one is on, and goes back to live. Main thread only. */
+    private void stopReplay() {
+
+        if (playerThread == null) {
+            return;
+        }
+        playerThread.interrupt();
+        try {
+            // The next player mustn't start on the rings before this one is done with them
+            playerThread.join();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+        playerThread = null;
+        recordingPlayer = null;
+        replaying = false;
+    }
+
+    private RecordingPlayer.OnPlaybackCallback createPlaybackCallback(final int replay) {
+
+        return new RecordingPlayer.OnPlaybackCallback() {
+
+            @Override
+            void onFinished(final long framesPlayed, IOException exception) {
+
+                if (exception != null) {
+                    Log.e(TAG, "Replay failed: " + exception.getMessage());
+                }
+                statsHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+
+                        Log.d(TAG, "Replay over, " + framesPlayed + " frames");
+                        // Unless it has been stopped already and another one begun
+                        if (replay == replayCount) {
+                            stopReplay();
                         }
-                        ByteBuffer buffer = ByteBuffer.allocate(numBytes);
-                        buffer.put(bytes, 0, numBytes);
-                        buffer.rewind();
-                        myQueue.put(buffer);
                     }
-                } catch (InterruptedException exception) {
-                    Log.e(TAG, "Interrupted reading socket input stream");
-                } catch (IOException exception) {
-                    Log.e(TAG, "Read socket inputStream exception: " + exception.getMessage());
-//                    stopSelf();
-                    return;
-                }
+                });
             }
         };
     }
 
+    private void logRecordingStats() {
+
+        RecordingStore store = sessionRecorder.getStore();
+        Log.d(TAG, String.format("recording: %d frames %d MB, skipped: %d too large: %d segments recycled: %d",
+                store.framesWritten(), store.bytesWritten() / (1024 * 1024), sessionRecorder.framesSkipped(),
+                store.framesTooLarge(), store.segmentsRecycled()));
+        if (sessionRecorder.failure() != null) {
+            Log.e(TAG, "Recording stopped: " + sessionRecorder.failure().getMessage());
+        }
+    }
+
     @Override
     protected void onPause() {
 
@@ -442,6 +1113,11 @@ public class ViewerActivity extends Activity {
         unregisterReceiver(receiver);
         leftSurfaceHolder.removeCallback(leftHolderCallback);
         rightSurfaceHolder.removeCallback(rightHolderCallback);
+        statsHandler.removeCallbacks(logStatsRunnable);
+        statsHandler.removeCallbacks(updateOverlayRunnable);
+        dumpMetrics();
+        stopReplay();
+        stopRecording();
         stopServer();
     }
 
@@ -450,7 +1126,7 @@ public class ViewerActivity extends Activity {
 
         super.onDestroy();
         try {
-            serverSocket.close();
+            viewerServer.close();
         } catch (IOException exception) {
             Log.e(TAG, exception.getMessage());
         }
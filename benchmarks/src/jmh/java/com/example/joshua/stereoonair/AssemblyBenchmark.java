@@ -0,0 +1,114 @@
+package com.example.joshua.stereoonair;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning bytes off the network back into access units, one frame per call and
+ * the two eyes in turn. annexB is a raw encoder stream through AnnexBAssembler,
+ * in chunks of ViewerServer's 64 KB read buffer. rtp is the UDP path: the
+ * camera's RtpPacketizer splitting the frame into packets and the viewer's
+ * RtpDepacketizer putting it back together, with no loss.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class AssemblyBenchmark {
+
+    private final static int READ_SIZE = 64 * 1024;
+    private final static int MAX_PACKET_SIZE = 1400 - FecEncoder.OVERHEAD;
+    private final static long DEADLINE_NANOS = 100_000_000;
+
+    @Param({"50000", "300000"})
+    int keyFrameSize;
+
+    @Param({"2000", "20000"})
+    int pFrameSize;
+
+    @Param({"30", "60"})
+    int fps;
+
+    private StereoStream stream;
+    private final AnnexBAssembler[] assemblers = new AnnexBAssembler[Side.values().length];
+    private final RtpPacketizer[] packetizers = new RtpPacketizer[Side.values().length];
+    private final RtpDepacketizer[] depacketizers = new RtpDepacketizer[Side.values().length];
+    // RTP needs timestamps that keep going forward, so frames are sent as these
+    private final Frame[] sending = new Frame[Side.values().length];
+    private long elapsedUs = 0;
+    private long nowNanos = 0;
+    private RtpDepacketizer depacketizer;
+    private Frame assembled;
+
+    private final StreamParser.OnFrameCallback onFrameCallback = new StreamParser.OnFrameCallback() {
+        @Override
+        void onFrame(Frame frame) {
+            assembled = frame;
+        }
+    };
+
+    private final RtpPacketizer.OnPacketCallback onPacketCallback = new RtpPacketizer.OnPacketCallback() {
+        @Override
+        void onPacket(ByteBuffer packet) throws IOException {
+            depacketizer.onPacket(packet, nowNanos);
+        }
+    };
+
+    @Setup
+    public void setUp() {
+
+        stream = new StereoStream(keyFrameSize, pFrameSize, fps);
+        for (Side side : Side.values()) {
+            assemblers[side.ordinal()] = new AnnexBAssembler(side.ordinal(), onFrameCallback);
+            packetizers[side.ordinal()] = new RtpPacketizer(side, MAX_PACKET_SIZE);
+            depacketizers[side.ordinal()] = new RtpDepacketizer(side.ordinal(), DEADLINE_NANOS, onFrameCallback);
+            sending[side.ordinal()] = new Frame();
+        }
+    }
+
+    @Benchmark
+    public Object annexB() {
+
+        Frame frame = stream.next();
+        ByteBuffer bytes = frame.payload.duplicate();
+        int end = bytes.limit();
+        while (bytes.position() < end) {
+            bytes.limit(Math.min(end, bytes.position() + READ_SIZE));
+            assemblers[frame.streamId].feed(bytes);
+        }
+        // The assembler only knows a unit is done when the next one starts
+        Object unit = assembled;
+        assembled = null;
+        return unit;
+    }
+
+    @Benchmark
+    public Object rtp() throws IOException {
+
+        Frame frame = stream.next();
+        if (frame.streamId == 0) {
+            elapsedUs += stream.frameIntervalUs;
+            nowNanos = elapsedUs * 1000;
+        }
+        Frame send = sending[frame.streamId];
+        send.sequence = frame.sequence;
+        send.streamId = frame.streamId;
+        send.ptsUs = elapsedUs;
+        send.flags = frame.flags;
+        send.payload = frame.payload;
+        depacketizer = depacketizers[frame.streamId];
+        packetizers[frame.streamId].packetize(send, onPacketCallback);
+        Object unit = assembled;
+        assembled = null;
+        return unit;
+    }
+}
@@ -0,0 +1,70 @@
+package com.example.joshua.stereoonair;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The encoder callback's copy of each output buffer, one frame per call and
+ * the two eyes in turn. pooled takes a Frame from a FramePool sized like
+ * CameraService's, copies the payload in and hands it back as the network
+ * thread would. allocated is the same copy into a fresh buffer every time; run
+ * with the gc profiler to see what the pool saves.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class FramePoolBenchmark {
+
+    private final static int POOL_SIZE = 8;
+    private final static int INITIAL_CAPACITY = 256 * 1024;
+
+    @Param({"50000", "300000"})
+    int keyFrameSize;
+
+    @Param({"2000", "20000"})
+    int pFrameSize;
+
+    @Param({"30", "60"})
+    int fps;
+
+    private StereoStream stream;
+    private FramePool pool;
+
+    @Setup
+    public void setUp() {
+
+        stream = new StereoStream(keyFrameSize, pFrameSize, fps);
+        pool = new FramePool(POOL_SIZE, INITIAL_CAPACITY);
+    }
+
+    @Benchmark
+    public int pooled() {
+
+        Frame source = stream.next();
+        Frame frame = pool.acquire(source.size());
+        frame.payload.put(source.payload.duplicate());
+        frame.payload.flip();
+        int size = frame.size();
+        pool.release(frame);
+        return size;
+    }
+
+    @Benchmark
+    public Object allocated() {
+
+        Frame source = stream.next();
+        ByteBuffer payload = ByteBuffer.allocate(source.size());
+        payload.put(source.payload.duplicate());
+        payload.flip();
+        return new Frame(source.sequence, source.streamId, source.ptsUs, source.flags, payload);
+    }
+}
@@ -0,0 +1,95 @@
+package com.example.joshua.stereoonair;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The TCP framing on both ends, one frame per call. write is the camera putting
+ * a frame header and payload into a socket-sized buffer; parse is ViewerServer
+ * feeding FrameParser what it reads from the socket, in chunks of its 64 KB read
+ * buffer, until the frame comes out.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class FramingBenchmark {
+
+    private final static int READ_SIZE = 64 * 1024;
+
+    @Param({"50000", "300000"})
+    int keyFrameSize;
+
+    @Param({"2000", "20000"})
+    int pFrameSize;
+
+    @Param({"30", "60"})
+    int fps;
+
+    private StereoStream stream;
+    private ByteBuffer[] wire;
+    private int next = 0;
+    private ByteBuffer header;
+    private ByteBuffer socket;
+    private FrameParser parser;
+    private Frame parsed;
+
+    @Setup
+    public void setUp() {
+
+        stream = new StereoStream(keyFrameSize, pFrameSize, fps);
+        wire = new ByteBuffer[stream.length()];
+        for (int i = 0; i < wire.length; i++) {
+            Frame frame = stream.next();
+            wire[i] = ByteBuffer.allocateDirect(FrameProtocol.HEADER_SIZE + frame.size());
+            FrameProtocol.writeHeader(wire[i], frame);
+            wire[i].put(frame.payload.duplicate());
+            wire[i].flip();
+        }
+        header = ByteBuffer.allocateDirect(FrameProtocol.HEADER_SIZE);
+        socket = ByteBuffer.allocateDirect(FrameProtocol.HEADER_SIZE + keyFrameSize);
+        parser = new FrameParser(new StreamParser.OnFrameCallback() {
+            @Override
+            void onFrame(Frame frame) {
+                parsed = frame;
+            }
+        });
+    }
+
+    @Benchmark
+    public int write() {
+
+        Frame frame = stream.next();
+        header.clear();
+        FrameProtocol.writeHeader(header, frame);
+        header.flip();
+        socket.clear();
+        socket.put(header);
+        socket.put(frame.payload.duplicate());
+        return socket.position();
+    }
+
+    @Benchmark
+    public Object parse() throws ProtocolException {
+
+        ByteBuffer bytes = wire[next].duplicate();
+        next = (next + 1) % wire.length;
+        int end = bytes.limit();
+        while (bytes.position() < end) {
+            bytes.limit(Math.min(end, bytes.position() + READ_SIZE));
+            parser.feed(bytes);
+        }
+        Object frame = parsed;
+        parsed = null;
+        return frame;
+    }
+}
@@ -0,0 +1,79 @@
+package com.example.joshua.stereoonair;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frames handed from an encoder or network thread to the next thread along, one
+ * producer and one consumer as in CameraService and ViewerActivity. Only
+ * references move, so frame size doesn't matter here; capacity does, since the
+ * app's rings hold only 2 to 4 frames. ArrayBlockingQueue is there as the
+ * baseline SpscRing has to beat.
+ *
+ * offer and poll never block, so each side's score counts the calls that moved
+ * a frame as well as the ones that found the ring full or empty.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class HandOffBenchmark {
+
+    @State(Scope.Group)
+    public static class Rings {
+
+        @Param({"2", "4", "64"})
+        int capacity;
+
+        SpscRing<Frame> ring;
+        ArrayBlockingQueue<Frame> queue;
+        Frame frame;
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+
+            ring = new SpscRing<>(capacity, SpscRing.WaitStrategy.SPIN);
+            queue = new ArrayBlockingQueue<>(ring.capacity());
+            frame = new Frame(0, 0, 0, 0, ByteBuffer.allocate(0));
+        }
+    }
+
+    @Benchmark
+    @Group("spscRing")
+    @GroupThreads(1)
+    public boolean spscRingOffer(Rings rings) {
+        return rings.ring.offer(rings.frame);
+    }
+
+    @Benchmark
+    @Group("spscRing")
+    @GroupThreads(1)
+    public Object spscRingPoll(Rings rings) {
+        return rings.ring.poll();
+    }
+
+    @Benchmark
+    @Group("arrayBlockingQueue")
+    @GroupThreads(1)
+    public boolean arrayBlockingQueueOffer(Rings rings) {
+        return rings.queue.offer(rings.frame);
+    }
+
+    @Benchmark
+    @Group("arrayBlockingQueue")
+    @GroupThreads(1)
+    public Object arrayBlockingQueuePoll(Rings rings) {
+        return rings.queue.poll();
+    }
+}
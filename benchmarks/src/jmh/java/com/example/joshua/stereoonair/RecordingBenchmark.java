@@ -0,0 +1,94 @@
+package com.example.joshua.stereoonair;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The viewer's recording thread, one frame per call and the two eyes in turn.
+ * append writes into a RecordingStore ring of the size ViewerActivity uses for
+ * instant replay, so segments are written over and renamed as they would be
+ * over a long session. replay reads the same frames back through a cursor, as
+ * RecordingPlayer does. Two 20 Mbit/s eyes at 60 fps come to 120 frames and 5
+ * MB a second; compare that with the throughput here.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class RecordingBenchmark {
+
+    private final static int SEGMENT_SIZE = 32 * 1024 * 1024;
+    private final static int MAX_SEGMENTS = 4;
+
+    @Param({"50000", "300000"})
+    int keyFrameSize;
+
+    @Param({"2000", "20000"})
+    int pFrameSize;
+
+    @Param({"30", "60"})
+    int fps;
+
+    private StereoStream stream;
+    private File directory;
+    private RecordingStore store;
+    private RecordingStore.Cursor cursor;
+    private long arrivalUs = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+
+        stream = new StereoStream(keyFrameSize, pFrameSize, fps);
+        directory = Files.createTempDirectory("recording").toFile();
+        store = new RecordingStore(directory, SEGMENT_SIZE, MAX_SEGMENTS);
+        // Enough to replay from, short of going round the ring
+        for (int i = 0; i < 4 * stream.length(); i++) {
+            append();
+        }
+        cursor = store.seek(0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+
+        store.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Benchmark
+    public boolean append() throws IOException {
+
+        Frame frame = stream.next();
+        arrivalUs += stream.frameIntervalUs / 2;
+        return store.append(Side.fromId(frame.streamId), frame, arrivalUs, arrivalUs - 10_000);
+    }
+
+    @Benchmark
+    public Frame replay() throws IOException {
+
+        Frame frame = cursor.next();
+        if (frame == null) {
+            cursor = store.seek(0);
+            frame = cursor.next();
+        }
+        return frame;
+    }
+}
@@ -0,0 +1,97 @@
+package com.example.joshua.stereoonair;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * One second of synthetic H.264 video per eye, as the encoders would hand it
+ * out: a keyframe (SPS, PPS and IDR slice) of keyFrameSize bytes followed by P
+ * slices of pFrameSize bytes, fps frames in all. Payload bytes never form a
+ * start code, just like emulation-prevented encoder output, so the scanners do
+ * the same work as on a real stream.
+ *
+ * next() walks both eyes in turn, left then right, and wraps around, so a
+ * benchmark that handles one frame per call sees the real mix of sizes.
+ */
+class StereoStream {
+
+    private final static int SPS_SIZE = 16;
+    private final static int PPS_SIZE = 8;
+
+    final int fps;
+    final long frameIntervalUs;
+    private final Frame[][] frames;
+    private int next = 0;
+
+    StereoStream(int keyFrameSize, int pFrameSize, int fps) {
+
+        this.fps = fps;
+        frameIntervalUs = 1_000_000 / fps;
+        Random random = new Random(fps * 31L + keyFrameSize + pFrameSize);
+        frames = new Frame[Side.values().length][fps];
+        for (Side side : Side.values()) {
+            for (int i = 0; i < fps; i++) {
+                ByteBuffer payload;
+                int flags = 0;
+                if (i == 0) {
+                    payload = ByteBuffer.allocate(keyFrameSize);
+                    putNal(payload, AnnexBAssembler.NAL_SPS, SPS_SIZE, random);
+                    putNal(payload, AnnexBAssembler.NAL_PPS, PPS_SIZE, random);
+                    putNal(payload, AnnexBAssembler.NAL_IDR, payload.remaining(), random);
+                    flags = Frame.FLAG_KEY_FRAME;
+                } else {
+                    payload = ByteBuffer.allocate(pFrameSize);
+                    putNal(payload, AnnexBAssembler.NAL_SLICE, pFrameSize, random);
+                }
+                payload.flip();
+                frames[side.ordinal()][i] = new Frame(i, side.ordinal(), (i + 1) * frameIntervalUs, flags, payload);
+            }
+        }
+    }
+
+    /** Frames per call of next() before it repeats. */
+    int length() {
+        return frames.length * fps;
+    }
+
+    Frame frame(Side side, int index) {
+        return frames[side.ordinal()][index];
+    }
+
+    /** The next frame, alternating eyes. Its payload must be read through a duplicate. */
+    Frame next() {
+
+        int side = next % frames.length;
+        int index = next / frames.length;
+        next = (next + 1) % length();
+        return frames[side][index];
+    }
+
+    /** Every frame of side back to back, as the encoder's raw output would be. */
+    ByteBuffer annexB(Side side) {
+
+        int size = 0;
+        for (Frame frame : frames[side.ordinal()]) {
+            size += frame.size();
+        }
+        ByteBuffer stream = ByteBuffer.allocate(size);
+        for (Frame frame : frames[side.ordinal()]) {
+            stream.put(frame.payload.duplicate());
+        }
+        stream.flip();
+        return stream;
+    }
+
+    /** A start code, NAL header and size in all, slice headers with first_mb_in_slice 0. */
+    private static void putNal(ByteBuffer dst, int type, int size, Random random) {
+
+        dst.put((byte) 0).put((byte) 0).put((byte) 0).put((byte) 1);
+        dst.put((byte) (0x60 | type));
+        dst.put((byte) 0x88);
+        for (int i = 6; i < size - 1; i++) {
+            // Zeros are never adjacent, so no start code or emulation prevention needed
+            dst.put((byte) (i % 5 == 0 ? 0 : 1 + random.nextInt(255)));
+        }
+        dst.put((byte) 0x80);
+    }
+}
@@ -0,0 +1,122 @@
+package com.example.joshua.stereoonair;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The timing work done per frame, one frame per call and the two eyes in turn,
+ * on a simulated clock so nothing waits. camera is CaptureClock matching an
+ * encoded frame to its sensor timestamp. viewer is what happens to it on
+ * arrival: mapped onto the viewer's clock by ClockSync, through the JitterBuffer
+ * with a few milliseconds of network jitter and the odd spike, and paired with
+ * the other eye by StereoPairer once it plays out.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class TimestampBenchmark {
+
+    private final static long CAMERA_OFFSET_US = 123_456_789;
+    private final static long TRANSIT_US = 5_000;
+    private final static int JITTER_SAMPLES = 1024;
+    private final static int FRAMES_HELD = 32;
+    private final static int DECODER_BUFFERS = 8;
+    private final static Side[] SIDES = Side.values();
+
+    @Param({"30", "60"})
+    int fps;
+
+    private long frameIntervalUs;
+    private final CaptureClock[] captureClocks = new CaptureClock[SIDES.length];
+    private final ClockSync[] clockSyncs = new ClockSync[SIDES.length];
+    private final JitterBuffer[] jitterBuffers = new JitterBuffer[SIDES.length];
+    private final Frame[][] frames = new Frame[SIDES.length][FRAMES_HELD];
+    private final long[] lastArrivalUs = new long[SIDES.length];
+    private final long[] jitterUs = new long[JITTER_SAMPLES];
+    private StereoPairer stereoPairer;
+    private long next = 0;
+    private long released = 0;
+
+    @Setup
+    public void setUp() {
+
+        frameIntervalUs = 1_000_000 / fps;
+        Random random = new Random(fps);
+        for (int i = 0; i < JITTER_SAMPLES; i++) {
+            jitterUs[i] = random.nextInt(50) == 0 ? 30_000 + random.nextInt(30_000) : random.nextInt(4_000);
+        }
+        for (Side side : SIDES) {
+            captureClocks[side.ordinal()] = new CaptureClock(0);
+            clockSyncs[side.ordinal()] = synchronizedClock(random);
+            jitterBuffers[side.ordinal()] = new JitterBuffer(10_000, 150_000);
+            for (int i = 0; i < FRAMES_HELD; i++) {
+                frames[side.ordinal()][i] = new Frame(0, side.ordinal(), 0, 0, ByteBuffer.allocate(0));
+            }
+        }
+        stereoPairer = new StereoPairer(8_000, 100_000, new StereoPairer.OnReleaseCallback() {
+            @Override
+            void onRelease(Side side, int index, long captureUs, boolean render) {
+                released++;
+            }
+        });
+    }
+
+    /** A ClockSync that has had ten seconds of pings from a camera CAMERA_OFFSET_US ahead. */
+    private static ClockSync synchronizedClock(Random random) {
+
+        ClockSync clockSync = new ClockSync();
+        for (long t0 = 0; t0 < 10_000_000; t0 += 250_000) {
+            int id = clockSync.ping(t0);
+            long up = 1_000 + random.nextInt(300);
+            long down = 1_000 + random.nextInt(300);
+            ClockReply reply = new ClockReply(Side.LEFT, id, t0 + up + CAMERA_OFFSET_US);
+            reply.transmitUs = reply.receiveUs + 100;
+            clockSync.onReply(reply, t0 + up + 100 + down);
+        }
+        return clockSync;
+    }
+
+    @Benchmark
+    public long camera() {
+
+        int side = (int) (next & 1);
+        long captureUs = 10_000_000 + (next >> 1) * frameIntervalUs;
+        next++;
+        CaptureClock captureClock = captureClocks[side];
+        captureClock.onCaptured(captureUs * 1000);
+        return captureClock.toClockUs(captureUs);
+    }
+
+    @Benchmark
+    public long viewer() {
+
+        int side = (int) (next & 1);
+        int sequence = (int) (next >> 1);
+        long captureUs = 10_000_000 + sequence * frameIntervalUs;
+        long localUs = clockSyncs[side].toLocalUs(captureUs + CAMERA_OFFSET_US);
+        long arrivalUs = Math.max(lastArrivalUs[side], localUs + TRANSIT_US + jitterUs[(int) (next % JITTER_SAMPLES)]);
+        lastArrivalUs[side] = arrivalUs;
+        next++;
+
+        Frame frame = frames[side][sequence % FRAMES_HELD];
+        frame.sequence = sequence;
+        frame.ptsUs = localUs;
+        JitterBuffer jitterBuffer = jitterBuffers[side];
+        jitterBuffer.offer(frame, arrivalUs);
+        Frame due;
+        while ((due = jitterBuffer.poll(arrivalUs)) != null) {
+            stereoPairer.offer(SIDES[side], due.sequence % DECODER_BUFFERS, due.ptsUs, arrivalUs);
+        }
+        return released;
+    }
+}
@@ -0,0 +1,189 @@
+package com.example.joshua.stereoonair;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reassembles a plain H.264 Annex-B byte stream, as written by a MediaCodec
+ * encoder, into access units. Start codes are found with a single pass over each
+ * chunk and payload bytes are copied once, straight into the buffer that is
+ * handed to the callback. Only the few bytes of a start code and NAL header that
+ * straddle an access unit boundary are copied twice, plus the occasional unit
+ * that outgrows the buffer sized from its predecessor.
+ *
+ * Parameter sets that precede a picture are emitted as their own codec-config
+ * Frame, the same way the encoder hands them out. Annex-B carries no timing, so
+ * ptsUs is left at 0.
+ */
+class AnnexBAssembler extends StreamParser {
+
+    final static int NAL_SLICE = 1;
+    final static int NAL_IDR = 5;
+    final static int NAL_SEI = 6;
+    final static int NAL_SPS = 7;
+    final static int NAL_PPS = 8;
+    final static int NAL_AUD = 9;
+
+    private final static int MIN_CAPACITY = 32 * 1024;
+
+    private final int streamId;
+    private int sequence = 0;
+
+    // Bytes of the access unit being assembled, in write mode
+    private ByteBuffer unit = ByteBuffer.allocate(MIN_CAPACITY);
+    private boolean unitHasVcl;
+    private boolean unitHasParameterSets;
+    private boolean unitHasIdr;
+
+    // Start code scanning state, carried across chunks
+    private int zeros = 0;
+    private long streamPosition = 0;
+    private long nalStart = -1;
+    private int nalHeaderBytes = 0;
+    private int nalType;
+
+    AnnexBAssembler(int streamId, OnFrameCallback callback) {
+
+        super(callback);
+        this.streamId = streamId;
+    }
+
+    @Override
+    void feed(ByteBuffer chunk) {
+
+        int end = chunk.limit();
+        int copied = chunk.position();
+        long chunkStart = streamPosition - copied;
+
+        for (int i = copied; i < end; i++) {
+
+            int b = chunk.get(i) & 0xFF;
+
+            if (nalStart >= 0) {
+                if (nalHeaderBytes == 0) {
+                    nalType = b & 0x1F;
+                    nalHeaderBytes = 1;
+                    if (! isVcl(nalType)) {
+                        copied = onNalStart(chunk, copied, i, chunkStart, false);
+                    }
+                } else {
+                    // first_mb_in_slice is ue(v), so a leading 1 bit means it is 0
+                    copied = onNalStart(chunk, copied, i, chunkStart, (b & 0x80) != 0);
+                }
+            }
+
+            if (b == 0) {
+                zeros++;
+            } else {
+                if (b == 1 && zeros >= 2) {
+                    // A start code is at most a zero_byte plus 00 00 01; earlier
+                    // zeros belong to the previous NAL unit
+                    nalStart = chunkStart + i - Math.min(zeros, 3);
+                    nalHeaderBytes = 0;
+                }
+                zeros = 0;
+            }
+        }
+
+        append(chunk, copied, end);
+        streamPosition = chunkStart + end;
+        chunk.position(end);
+    }
+
+    @Override
+    void flush() {
+
+        if (unit.position() > 0 && (unitHasVcl || unitHasParameterSets)) {
+            emit(unit.position());
+        }
+        unit.clear();
+        unitHasVcl = unitHasParameterSets = unitHasIdr = false;
+        zeros = 0;
+        nalStart = -1;
+    }
+
+    /**
+     * Called once the header of the NAL unit starting at nalStart is known.
+     * Returns the new index into chunk up to which bytes have been copied.
+     */
+    private int onNalStart(ByteBuffer chunk, int copied, int i, long chunkStart, boolean firstSliceOfPicture) {
+
+        boolean boundary;
+        if (unitHasVcl) {
+            boundary = isVcl(nalType)
+                    ? firstSliceOfPicture
+                    : nalType == NAL_AUD || nalType == NAL_SEI || nalType == NAL_SPS || nalType == NAL_PPS
+                            || (nalType >= 14 && nalType <= 18);
+        } else {
+            // Close off a run of parameter sets as a codec-config unit
+            boundary = unitHasParameterSets && (isVcl(nalType) || nalType == NAL_SEI);
+        }
+
+        if (boundary) {
+            append(chunk, copied, i + 1);
+            copied = i + 1;
+            // unit now holds every stream byte up to chunkStart + copied
+            long unitStart = chunkStart + copied - unit.position();
+            emit((int) (nalStart - unitStart));
+        }
+
+        if (isVcl(nalType)) {
+            unitHasVcl = true;
+            unitHasIdr |= nalType == NAL_IDR;
+        } else if (nalType == NAL_SPS || nalType == NAL_PPS) {
+            unitHasParameterSets = true;
+        }
+        nalStart = -1;
+        return copied;
+    }
+
+    /**
+     * Hands unit[0, length) to the callback and starts a new unit with whatever
+     * was assembled after it.
+     */
+    private void emit(int length) {
+
+        ByteBuffer done = unit;
+        unit = ByteBuffer.allocate(Math.max(MIN_CAPACITY, 2 * length));
+        int tail = done.position();
+        if (unit.capacity() < tail - length) {
+            unit = ByteBuffer.allocate(tail - length);
+        }
+        done.position(length);
+        done.limit(tail);
+        unit.put(done);
+        done.position(0);
+        done.limit(length);
+
+        int flags = 0;
+        if (! unitHasVcl) {
+            flags |= Frame.FLAG_CODEC_CONFIG;
+        }
+        if (unitHasIdr) {
+            flags |= Frame.FLAG_KEY_FRAME;
+        }
+        unitHasVcl = unitHasParameterSets = unitHasIdr = false;
+
+        callback.onFrame(new Frame(sequence++, streamId, 0, flags, done));
+    }
+
+    private void append(ByteBuffer chunk, int from, int to) {
+
+        if (to <= from) {
+            return;
+        }
+        if (unit.remaining() < to - from) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(unit.capacity() * 2, unit.position() + to - from));
+            unit.flip();
+            grown.put(unit);
+            unit = grown;
+        }
+        ByteBuffer range = chunk.duplicate();
+        range.limit(to);
+        range.position(from);
+        unit.put(range);
+    }
+
+    static boolean isVcl(int nalType) {
+        return nalType == NAL_SLICE || nalType == NAL_IDR;
+    }
+}
@@ -0,0 +1,111 @@
+package com.example.joshua.stereoonair;
+
+/**
+ * Picks the encoder bitrate from the viewer's receiver reports. The link counts
+ * as congested when frames are lost, when frames queue up at the viewer,
+ * or when inter-arrival jitter climbs well above what the link normally shows.
+ * Congestion cuts the target to a little under what actually got through; a run
+ * of clean reports raises it again in small steps, but never far beyond the rate
+ * the viewer is receiving, so a static scene doesn't talk the target up to the
+ * maximum unchecked.
+ *
+ * Driven purely by onReport() so it can be replayed against recorded traces.
+ */
+class BitrateController {
+
+    private final static double DECREASE_FACTOR = 0.85;
+    private final static double INCREASE_FACTOR = 1.08;
+    private final static double MAX_LOSS_FRACTION = 0.02;
+    private final static int MAX_QUEUE_DEPTH = 2;
+    private final static int CLEAN_REPORTS_BEFORE_INCREASE = 2;
+    // A cut takes a while to drain the queues; don't cut again on the same event
+    private final static int REPORTS_HELD_AFTER_DECREASE = 2;
+    private final static double HEADROOM_OVER_RECEIVE_RATE = 1.5;
+    private final static int MIN_JITTER_BASELINE_US = 2_000;
+    private final static int JITTER_MARGIN_US = 10_000;
+    // Don't bother the encoder with changes smaller than this
+    private final static double MIN_CHANGE = 0.05;
+
+    private final int minBitrate;
+    private final int maxBitrate;
+    private int bitrate;
+    private int appliedBitrate;
+    private int cleanReports = 0;
+    private int heldReports = 0;
+    private double jitterBaselineUs = MIN_JITTER_BASELINE_US;
+
+    private long decreaseCount = 0;
+    private long increaseCount = 0;
+
+    BitrateController(int initialBitrate, int minBitrate, int maxBitrate) {
+
+        if (minBitrate <= 0 || minBitrate > maxBitrate) {
+            throw new IllegalArgumentException("Bad bitrate range: " + minBitrate + " - " + maxBitrate);
+        }
+        this.minBitrate = minBitrate;
+        this.maxBitrate = maxBitrate;
+        bitrate = clamp(initialBitrate);
+        appliedBitrate = bitrate;
+    }
+
+    /** The bitrate the encoder should be running at. */
+    int getBitrate() {
+        return appliedBitrate;
+    }
+
+    /**
+     * Takes one report into account. Returns true if getBitrate() changed and
+     * should be applied to the encoder.
+     */
+    boolean onReport(ReceiverReport report) {
+
+        long receiveRate = report.receiveRate();
+        int frames = report.framesReceived + report.framesLost;
+        double lossFraction = frames > 0 ? report.framesLost / (double) frames : 0;
+        boolean jittery = report.jitterUs > 2 * jitterBaselineUs + JITTER_MARGIN_US;
+        boolean congested = lossFraction > MAX_LOSS_FRACTION || report.queueDepth > MAX_QUEUE_DEPTH || jittery;
+
+        if (heldReports > 0) {
+            heldReports--;
+        }
+
+        if (congested) {
+            cleanReports = 0;
+            if (heldReports == 0) {
+                long delivered = receiveRate > 0 ? Math.min(bitrate, receiveRate) : bitrate;
+                bitrate = clamp((long) (delivered * DECREASE_FACTOR));
+                heldReports = REPORTS_HELD_AFTER_DECREASE;
+                decreaseCount++;
+            }
+        } else {
+            jitterBaselineUs = Math.max(MIN_JITTER_BASELINE_US, jitterBaselineUs + (report.jitterUs - jitterBaselineUs) / 8);
+            if (++cleanReports >= CLEAN_REPORTS_BEFORE_INCREASE) {
+                cleanReports = 0;
+                long increased = (long) (bitrate * INCREASE_FACTOR);
+                if (increased <= receiveRate * HEADROOM_OVER_RECEIVE_RATE) {
+                    bitrate = clamp(increased);
+                    increaseCount++;
+                }
+            }
+        }
+
+        if (Math.abs(bitrate - appliedBitrate) >= appliedBitrate * MIN_CHANGE
+                || (bitrate != appliedBitrate && (bitrate == minBitrate || bitrate == maxBitrate))) {
+            appliedBitrate = bitrate;
+            return true;
+        }
+        return false;
+    }
+
+    long decreaseCount() {
+        return decreaseCount;
+    }
+
+    long increaseCount() {
+        return increaseCount;
+    }
+
+    private int clamp(long value) {
+        return (int) Math.max(minBitrate, Math.min(maxBitrate, value));
+    }
+}
@@ -0,0 +1,548 @@
+package com.example.joshua.stereoonair;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The camera's end of the link to the viewer. run() connects, sends every frame
+ * that comes out of the ring, over TCP in FrameProtocol or as RTP with FEC over
+ * UDP, and hands each frame back to the pool once it is on its way. A feedback
+ * thread reads the viewer's receiver reports, codec offers and video mode
+ * requests, and answers its clock pings, each answer followed by the
+ * VideoModes this camera can run at (setVideoModes()) and what its encoder runs
+ * with (setEncoderSettings()).
+ *
+ * When the connection drops, or the viewer has been silent for
+ * PEER_TIMEOUT_MILLIS (see checkHeartbeat()), it connects again after a
+ * ReconnectBackoff wait, until stop() is called or its thread is interrupted.
+ * Frames keep coming meanwhile; whatever is stale is thrown away when the new
+ * connection is up, and the cached codec config goes out first.
+ */
+class CameraStreamer implements Runnable {
+
+    enum Transport { TCP, UDP }
+
+    static abstract class OnStreamCallback {
+        /** recoveryMillis is how long the link was down, 0 for the first connection. */
+        abstract void onConnected(long recoveryMillis);
+        abstract void onDisconnected(IOException exception, long retryMillis);
+        /** The cached codec config went out first; a sync frame should follow it. */
+        abstract void onSyncFrameNeeded();
+        /** Called on the feedback thread for every receiver report. */
+        abstract void onReport(ReceiverReport report);
+        /** Called on the feedback thread with the VideoCodec bits of every codec offer. */
+        abstract void onCodecOffer(int codecs);
+        /** Called on the feedback thread with the mode of every video mode request. */
+        abstract void onVideoMode(VideoMode mode);
+    }
+
+    // The viewer reports every 250 ms; this long without a word and it is gone
+    final static long PEER_TIMEOUT_MILLIS = 2_000;
+    final static long HEARTBEAT_CHECK_MILLIS = 500;
+    private final static long RECONNECT_INITIAL_MILLIS = 100;
+    private final static long RECONNECT_MAX_MILLIS = 5_000;
+
+    private final Side side;
+    private final InetSocketAddress address;
+    private final Transport transport;
+    private final SpscRing<Frame> frameRing;
+    private final FramePool framePool;
+    private final PipelineMetrics metrics;
+    private final OnStreamCallback callback;
+
+    private SocketChannel socketChannel;
+    private DatagramChannel datagramChannel;
+    private final SpscRing<ClockReply> clockReplies = new SpscRing<>(4, SpscRing.WaitStrategy.YIELD);
+    private volatile Frame codecConfig;
+    private volatile int videoModes = 0;
+    private volatile EncoderSettings encoderSettings;
+    private volatile FecEncoder fecEncoder;
+    private volatile int maxPacketSize = 1400;
+    private volatile int fecGroupSize = 8;
+    private volatile int fecInterleave = 4;
+    private Thread feedbackThread;
+    private volatile boolean streaming = true;
+    private volatile boolean connected = false;
+    private volatile long lastFeedbackNanos;
+    private final ReconnectBackoff reconnectBackoff = new ReconnectBackoff(RECONNECT_INITIAL_MILLIS, RECONNECT_MAX_MILLIS);
+    private long streamLostNanos = 0;
+    private volatile long reconnectCount = 0;
+    private volatile long lastRecoveryMillis = 0;
+    private volatile long maxRecoveryMillis = 0;
+
+    CameraStreamer(Side side, InetSocketAddress address, Transport transport, SpscRing<Frame> frameRing,
+                   FramePool framePool, PipelineMetrics metrics, OnStreamCallback callback) {
+
+        this.side = side;
+        this.address = address;
+        this.transport = transport;
+        this.frameRing = frameRing;
+        this.framePool = framePool;
+        this.metrics = metrics;
+        this.callback = callback;
+    }
+
+    /**
+     * The clock frame timestamps are on, which the viewer's pings measure.
+     * CaptureClock moves sensor timestamps onto it.
+     */
+    static long clockUs() {
+        return System.nanoTime() / 1000;
+    }
+
+    @Override
+    public void run() {
+
+        while (streaming) {
+            try {
+                if (transport == Transport.UDP) {
+                    streamOverUdp();
+                } else {
+                    streamOverTcp();
+                }
+            } catch (IOException exception) {
+                connected = false;
+                closeChannels();
+                if (! streaming) {
+                    return;
+                }
+
+                // The encoder and camera keep going; only the connection is made again
+                if (streamLostNanos == 0) {
+                    streamLostNanos = System.nanoTime();
+                }
+                long delay = reconnectBackoff.nextDelayMillis();
+                callback.onDisconnected(exception, delay);
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+                continue;
+            }
+            connected = false;
+            closeChannels();
+        }
+    }
+
+    /** Ends run() and closes the connection. Safe to call from any thread. */
+    void stop() {
+
+        streaming = false;
+        closeChannels();
+        Thread thread = feedbackThread;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Drops a connection the viewer has stopped answering on and returns whether
+     * it did. The viewer's reports and pings are its heartbeat; TCP on its own can
+     * take minutes to notice a peer that dropped off the Wi-Fi. Call every
+     * HEARTBEAT_CHECK_MILLIS or so from any thread.
+     */
+    boolean checkHeartbeat(long nowNanos) {
+
+        if (! streaming || ! connected || nowNanos - lastFeedbackNanos <= PEER_TIMEOUT_MILLIS * 1_000_000) {
+            return false;
+        }
+        lastFeedbackNanos = nowNanos;
+        closeChannels();
+        return true;
+    }
+
+    /**
+     * Keeps config, the encoder's codec config, for viewers that connect after it
+     * has gone by. It must not share its buffer with a pooled frame. null forgets
+     * it, as when the encoder changes to a codec that has none.
+     */
+    void setCodecConfig(Frame config) {
+        codecConfig = config;
+    }
+
+    /** The VideoMode bits this camera can capture and encode at, 0 to say nothing. */
+    void setVideoModes(int modes) {
+        videoModes = modes;
+    }
+
+    /**
+     * What the encoder was configured with, null to say nothing. settings must
+     * not change once set; set a new one instead.
+     */
+    void setEncoderSettings(EncoderSettings settings) {
+        encoderSettings = settings;
+    }
+
+    /** RTP packet size, headers included. Takes effect on the next connection. */
+    void setMaxPacketSize(int maxPacketSize) {
+        this.maxPacketSize = maxPacketSize;
+    }
+
+    /**
+     * Changes the FEC overhead, also of a running UDP stream: one parity packet
+     * per groupSize media packets, interleaved to survive bursts of up to
+     * interleave losses. A groupSize of 0 turns FEC off.
+     */
+    void setFecOverhead(int groupSize, int interleave) {
+
+        fecGroupSize = groupSize;
+        fecInterleave = interleave;
+        FecEncoder encoder = fecEncoder;
+        if (encoder != null) {
+            encoder.setGroupSize(groupSize);
+            encoder.setInterleave(interleave);
+        }
+    }
+
+    boolean isConnected() {
+        return connected;
+    }
+
+    /** The current UDP stream's, or null. */
+    FecEncoder getFecEncoder() {
+        return fecEncoder;
+    }
+
+    long reconnectCount() {
+        return reconnectCount;
+    }
+
+    long lastRecoveryMillis() {
+        return lastRecoveryMillis;
+    }
+
+    long maxRecoveryMillis() {
+        return maxRecoveryMillis;
+    }
+
+    private void streamOverTcp() throws IOException {
+
+        socketChannel = SocketChannel.open();
+        socketChannel.socket().connect(address, (int) PEER_TIMEOUT_MILLIS);
+        socketChannel.socket().setTcpNoDelay(true);
+        onStreamConnected();
+
+        ByteBuffer hello = ByteBuffer.allocate(FrameProtocol.HELLO_SIZE);
+        FrameProtocol.writeHello(hello, side);
+        hello.flip();
+        while (hello.hasRemaining()) {
+            socketChannel.write(hello);
+        }
+        startFeedback(socketChannel, false);
+
+        ByteBuffer header = ByteBuffer.allocateDirect(FrameProtocol.HEADER_SIZE);
+        ByteBuffer[] buffers = new ByteBuffer[] { header, null };
+        Frame config = sendCodecConfigFirst();
+        if (config != null) {
+            writeFrame(header, buffers, config, config.payload.duplicate());
+        }
+        while (true) {
+            Frame frame;
+            try {
+                frame = frameRing.take();
+            } catch (InterruptedException exception) {
+                if (! streaming) {
+                    return;
+                }
+                continue;
+            }
+            if (isSent(frame, config)) {
+                framePool.release(frame);
+                continue;
+            }
+            ClockReply reply;
+            while ((reply = clockReplies.poll()) != null) {
+                header.clear();
+                reply.transmitUs = clockUs();
+                FrameProtocol.writeClockReply(header, reply);
+                header.flip();
+                while (header.hasRemaining()) {
+                    socketChannel.write(header);
+                }
+                sendStatus(header, socketChannel);
+            }
+            try {
+                int size = frame.size();
+                writeFrame(header, buffers, frame, frame.payload);
+                recordSent(frame, size);
+            } finally {
+                framePool.release(frame);
+            }
+        }
+    }
+
+    /**
+     * RTP over UDP: a lost packet costs only the frame it belongs to instead of
+     * stalling everything queued behind it.
+     */
+    private void streamOverUdp() throws IOException {
+
+        datagramChannel = DatagramChannel.open();
+        datagramChannel.connect(address);
+        onStreamConnected();
+        startFeedback(datagramChannel, true);
+
+        // Media packets leave room for the FEC overhead so parity packets fit the same size
+        int maxMediaPacketSize = maxPacketSize - FecEncoder.OVERHEAD;
+        RtpPacketizer packetizer = new RtpPacketizer(side, maxMediaPacketSize);
+        final FecEncoder encoder = new FecEncoder(maxMediaPacketSize, fecGroupSize, fecInterleave);
+        fecEncoder = encoder;
+        final RtpPacketizer.OnPacketCallback sendCallback = new RtpPacketizer.OnPacketCallback() {
+            @Override
+            void onPacket(ByteBuffer packet) throws IOException {
+                datagramChannel.write(packet);
+            }
+        };
+        RtpPacketizer.OnPacketCallback onPacketCallback = new RtpPacketizer.OnPacketCallback() {
+            @Override
+            void onPacket(ByteBuffer packet) throws IOException {
+                encoder.onPacket(packet, sendCallback);
+            }
+        };
+        Frame config = sendCodecConfigFirst();
+        if (config != null) {
+            Frame copy = new Frame(config.sequence, config.streamId, config.ptsUs, config.flags, config.payload.duplicate());
+            packetizer.packetize(copy, onPacketCallback);
+        }
+        while (true) {
+            Frame frame;
+            try {
+                frame = frameRing.take();
+            } catch (InterruptedException exception) {
+                if (! streaming) {
+                    return;
+                }
+                continue;
+            }
+            if (isSent(frame, config)) {
+                framePool.release(frame);
+                continue;
+            }
+            try {
+                int size = frame.size();
+                packetizer.packetize(frame, onPacketCallback);
+                recordSent(frame, size);
+            } finally {
+                framePool.release(frame);
+            }
+        }
+    }
+
+    /**
+     * Starts a new session on the still running encoder: frames queued while
+     * there was no connection are stale, and the viewer gets the codec config and
+     * a sync frame first (see sendCodecConfigFirst()).
+     */
+    private void onStreamConnected() {
+
+        Frame stale;
+        while ((stale = frameRing.poll()) != null) {
+            framePool.release(stale);
+        }
+        lastFeedbackNanos = System.nanoTime();
+        connected = true;
+        reconnectBackoff.reset();
+        long recoveryMillis = 0;
+        if (streamLostNanos != 0) {
+            recoveryMillis = (System.nanoTime() - streamLostNanos) / 1_000_000;
+            streamLostNanos = 0;
+            reconnectCount++;
+            lastRecoveryMillis = recoveryMillis;
+            maxRecoveryMillis = Math.max(maxRecoveryMillis, recoveryMillis);
+        }
+        callback.onConnected(recoveryMillis);
+    }
+
+    /** Closing a channel also wakes the threads blocked on it. */
+    private void closeChannels() {
+
+        try {
+            if (socketChannel != null) {
+                socketChannel.close();
+            }
+            if (datagramChannel != null) {
+                datagramChannel.close();
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void recordSent(Frame frame, int size) {
+
+        if (! frame.isCodecConfig()) {
+            metrics.record(PipelineMetrics.Stage.SENT, clockUs() - frame.ptsUs, size);
+        }
+    }
+
+    private void writeFrame(ByteBuffer header, ByteBuffer[] buffers, Frame frame, ByteBuffer payload) throws IOException {
+
+        header.clear();
+        FrameProtocol.writeHeader(header, frame);
+        header.flip();
+        buffers[1] = payload;
+        try {
+            while (header.hasRemaining() || payload.hasRemaining()) {
+                socketChannel.write(buffers);
+            }
+        } finally {
+            buffers[1] = null;
+        }
+    }
+
+    /**
+     * Returns the codec config to send ahead of everything else on a new
+     * connection, or null if the encoder hasn't produced it yet, in which case it
+     * comes through the ring as usual. With a config to send, the encoder is also
+     * asked for a sync frame so the viewer needn't wait for the next one.
+     */
+    private Frame sendCodecConfigFirst() {
+
+        Frame config = codecConfig;
+        if (config != null) {
+            callback.onSyncFrameNeeded();
+        }
+        return config;
+    }
+
+    /** Whether frame is the codec config already sent ahead of the ring. */
+    private static boolean isSent(Frame frame, Frame config) {
+        return config != null && frame.isCodecConfig() && frame.sequence == config.sequence;
+    }
+
+    /**
+     * Reads the viewer's receiver reports on a thread of their own, so a blocking
+     * read never holds up sending.
+     */
+    private void startFeedback(final ReadableByteChannel channel, final boolean datagrams) {
+
+        feedbackThread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+
+                ByteBuffer buffer = ByteBuffer.allocate(FrameProtocol.REPORT_SIZE);
+                ReceiverReport report = new ReceiverReport();
+                while (! Thread.currentThread().isInterrupted()) {
+                    buffer.clear();
+                    try {
+                        if (datagrams) {
+                            // One message per datagram; anything else is not for us
+                            channel.read(buffer);
+                            buffer.flip();
+                            if (buffer.remaining() < 4
+                                    || buffer.remaining() != FrameProtocol.feedbackMessageSize(buffer.getInt(0))) {
+                                continue;
+                            }
+                        } else {
+                            buffer.limit(4);
+                            if (! readFully(channel, buffer)) {
+                                break;
+                            }
+                            int size = FrameProtocol.feedbackMessageSize(buffer.getInt(0));
+                            if (size < 0) {
+                                throw new ProtocolException("Bad feedback magic: 0x" + Integer.toHexString(buffer.getInt(0)));
+                            }
+                            buffer.limit(size);
+                            if (! readFully(channel, buffer)) {
+                                break;
+                            }
+                            buffer.flip();
+                        }
+                        long receivedUs = clockUs();
+                        lastFeedbackNanos = System.nanoTime();
+                        if (buffer.getInt(0) == FrameProtocol.CLOCK_PING_MAGIC) {
+                            onClockPing(FrameProtocol.readClockPing(buffer), receivedUs, datagrams);
+                            continue;
+                        }
+                        if (buffer.getInt(0) == FrameProtocol.CODEC_OFFER_MAGIC) {
+                            callback.onCodecOffer(FrameProtocol.readCodecOffer(buffer));
+                            continue;
+                        }
+                        if (buffer.getInt(0) == FrameProtocol.VIDEO_MODE_MAGIC) {
+                            callback.onVideoMode(FrameProtocol.readVideoMode(buffer));
+                            continue;
+                        }
+                        FrameProtocol.readReport(buffer, report);
+                    } catch (PortUnreachableException exception) {
+                        // The viewer isn't listening yet
+                        continue;
+                    } catch (IOException exception) {
+                        break;
+                    }
+                    callback.onReport(report);
+                }
+
+                // Don't leave the sending side writing to a connection the viewer has left
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }, "cameraFeedbackThread");
+        feedbackThread.start();
+    }
+
+    private static boolean readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) == -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Answers a clock ping. Datagrams are answered straight away; on TCP the
+     * answer has to wait for the network thread to get between two frames, which
+     * the transmit time it stamps takes care of.
+     */
+    private void onClockPing(int pingId, long receivedUs, boolean datagrams) throws IOException {
+
+        ClockReply reply = new ClockReply(side, pingId, receivedUs);
+        if (! datagrams) {
+            clockReplies.offer(reply);
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(FrameProtocol.CLOCK_REPLY_SIZE);
+        reply.transmitUs = clockUs();
+        FrameProtocol.writeClockReply(buffer, reply);
+        buffer.flip();
+        datagramChannel.write(buffer);
+        sendStatus(buffer, datagramChannel);
+    }
+
+    /**
+     * Sends the modes and encoder settings that follow a clock reply, each a
+     * message of its own, through buffer, which must hold a frame header.
+     */
+    private void sendStatus(ByteBuffer buffer, WritableByteChannel channel) throws IOException {
+
+        int modes = videoModes;
+        if (modes != 0) {
+            buffer.clear();
+            FrameProtocol.writeCameraModes(buffer, side, modes);
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        EncoderSettings settings = encoderSettings;
+        if (settings != null) {
+            buffer.clear();
+            FrameProtocol.writeEncoderSettings(buffer, settings);
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.example.joshua.stereoonair;
+
+/**
+ * Ties encoded frames back to the camera captures they came from. The camera
+ * reports each capture's SENSOR_TIMESTAMP as it starts, and the encoder's input
+ * surface hands the same timestamp on as the frame's presentation time, so an
+ * encoded frame is matched to its capture by time. Captures the encoder skipped
+ * are counted and forgotten on the way.
+ *
+ * Sensor timestamps are either on System.nanoTime()'s clock or, on devices whose
+ * SENSOR_INFO_TIMESTAMP_SOURCE is REALTIME, on elapsedRealtimeNanos(), which also
+ * counts deep sleep. sensorToClockUs moves them onto the clock the viewer's pings
+ * measure.
+ *
+ * onCaptured() is called on the camera's capture thread and toClockUs() on the
+ * codec thread, so both are synchronized.
+ */
+class CaptureClock {
+
+    private final static int CAPACITY = 32;
+    // Surface timestamps are in nanoseconds and presentation times in microseconds
+    private final static long MATCH_TOLERANCE_US = 1;
+
+    private final long sensorToClockUs;
+    private final long[] capturedUs = new long[CAPACITY];
+    private int head = 0;
+    private int count = 0;
+
+    private long matchedCount = 0;
+    private long unmatchedCount = 0;
+    private long skippedCount = 0;
+
+    CaptureClock(long sensorToClockUs) {
+        this.sensorToClockUs = sensorToClockUs;
+    }
+
+    /** Records a capture that started at sensorTimestampNs. */
+    synchronized void onCaptured(long sensorTimestampNs) {
+
+        if (count == CAPACITY) {
+            // Nothing is being encoded; forget the oldest
+            head = (head + 1) % CAPACITY;
+            count--;
+            skippedCount++;
+        }
+        capturedUs[(head + count) % CAPACITY] = sensorTimestampNs / 1000;
+        count++;
+    }
+
+    /**
+     * Returns the capture time, on the pinged clock, of the encoded frame with
+     * presentation time ptsUs. A frame with no matching capture is assumed to
+     * carry a sensor timestamp anyway.
+     */
+    synchronized long toClockUs(long ptsUs) {
+
+        for (int i = 0; i < count; i++) {
+            long us = capturedUs[(head + i) % CAPACITY];
+            if (Math.abs(us - ptsUs) <= MATCH_TOLERANCE_US) {
+                skippedCount += i;
+                head = (head + i + 1) % CAPACITY;
+                count -= i + 1;
+                matchedCount++;
+                return us + sensorToClockUs;
+            }
+        }
+        unmatchedCount++;
+        return ptsUs + sensorToClockUs;
+    }
+
+    synchronized long matchedCount() {
+        return matchedCount;
+    }
+
+    /** Encoded frames whose capture was never reported. */
+    synchronized long unmatchedCount() {
+        return unmatchedCount;
+    }
+
+    /** Captures the encoder never produced a frame for. */
+    synchronized long skippedCount() {
+        return skippedCount;
+    }
+}
@@ -0,0 +1,86 @@
+package com.example.joshua.stereoonair;
+
+/**
+ * Watches how far behind capture one eye's decoded frames come out and says
+ * when to catch up. Once the viewer falls behind (a decoder hiccup, a
+ * collection, a burst off the network), what is queued before and inside the
+ * decoder keeps it behind for good, as frames leave no faster than they come.
+ * So once the lag has been over budgetUs for PATIENCE frames in a row, so that
+ * one late frame is not enough, onLag() says to skip what is queued. The
+ * caller skips ahead and reports what that cost through onCaughtUp() and
+ * onFrameSkipped(). To give the skip time to show, nothing more is asked for
+ * COOLDOWN_US after it.
+ *
+ * onLag() and the on*() calls belong to the eye's decoder thread; the getters
+ * may be called from any thread.
+ */
+class CatchUpController {
+
+    final static int PATIENCE = 5;
+    final static long COOLDOWN_US = 1_000_000;
+
+    private final long budgetUs;
+
+    private int overBudget = 0;
+    private long lastCatchUpUs = 0;
+    private boolean caughtUpBefore = false;
+
+    private volatile long catchUpCount = 0;
+    private volatile long framesSkipped = 0;
+    private volatile long lagUs = 0;
+
+    CatchUpController(long budgetUs) {
+
+        if (budgetUs <= 0) {
+            throw new IllegalArgumentException("Bad lag budget: " + budgetUs);
+        }
+        this.budgetUs = budgetUs;
+    }
+
+    /**
+     * Takes the lag of a frame decoded at nowUs, its capture time to now on one
+     * clock, and returns whether to catch up now.
+     */
+    boolean onLag(long lagUs, long nowUs) {
+
+        this.lagUs = lagUs;
+        if (lagUs <= budgetUs) {
+            overBudget = 0;
+            return false;
+        }
+        overBudget++;
+        if (overBudget < PATIENCE || caughtUpBefore && nowUs - lastCatchUpUs < COOLDOWN_US) {
+            return false;
+        }
+        overBudget = 0;
+        lastCatchUpUs = nowUs;
+        caughtUpBefore = true;
+        return true;
+    }
+
+    /** A catch up has dropped skipped frames before decoding. */
+    void onCaughtUp(int skipped) {
+
+        catchUpCount++;
+        framesSkipped += skipped;
+    }
+
+    /** A frame was decoded to keep the picture intact but not shown, to catch up. */
+    void onFrameSkipped() {
+        framesSkipped++;
+    }
+
+    long catchUpCount() {
+        return catchUpCount;
+    }
+
+    /** Frames dropped or decoded without being shown, over all catch ups. */
+    long framesSkipped() {
+        return framesSkipped;
+    }
+
+    /** The lag of the last frame decoded. */
+    long lagUs() {
+        return lagUs;
+    }
+}
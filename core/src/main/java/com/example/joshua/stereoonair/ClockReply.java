@@ -0,0 +1,23 @@
+package com.example.joshua.stereoonair;
+
+/**
+ * A camera's answer to one of the viewer's clock pings: when, by the camera's
+ * clock, the ping arrived and the answer left. The viewer adds the times it sent
+ * the ping and got the answer to make one ClockSync sample.
+ */
+class ClockReply {
+
+    Side side;
+    int pingId;
+    long receiveUs;
+    long transmitUs;
+
+    ClockReply() { }
+
+    ClockReply(Side side, int pingId, long receiveUs) {
+
+        this.side = side;
+        this.pingId = pingId;
+        this.receiveUs = receiveUs;
+    }
+}
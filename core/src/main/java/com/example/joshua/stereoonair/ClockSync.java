@@ -0,0 +1,194 @@
+package com.example.joshua.stereoonair;
+
+/**
+ * NTP-style estimate of one camera's clock relative to the viewer's. Each ping
+ * gives four times, t0 and t3 on the viewer and t1 and t2 on the camera, from
+ * which
+ *
+ * <pre>
+ *   offset = ((t1 - t0) + (t2 - t3)) / 2     camera minus viewer
+ *   delay  = (t3 - t0) - (t2 - t1)           round trip spent on the network
+ * </pre>
+ *
+ * A sample is only as good as its delay is symmetric, and queueing is what makes
+ * it lopsided, so the estimate uses just the samples whose delay is close to the
+ * smallest recently seen. A least-squares line through them gives the offset and
+ * how fast it drifts (skew); with too few of them the best single sample is used.
+ *
+ * ping() and onReply() belong to one thread; toLocalUs() and the getters may be
+ * called from any thread and see a consistent estimate.
+ */
+class ClockSync {
+
+    private final static int WINDOW = 128;
+    private final static int MAX_OUTSTANDING = 16;
+    private final static int MIN_SAMPLES_FOR_SKEW = 4;
+    private final static long MIN_SPAN_FOR_SKEW_US = 2_000_000;
+    private final static long DELAY_MARGIN_US = 500;
+    private final static double MAX_SKEW = 200e-6;
+
+    private final long[] sampleTimeUs = new long[WINDOW];
+    private final long[] sampleOffsetUs = new long[WINDOW];
+    private final long[] sampleDelayUs = new long[WINDOW];
+    private int sampleCount = 0;
+    private int nextSample = 0;
+
+    private final int[] outstandingIds = new int[MAX_OUTSTANDING];
+    private final long[] outstandingSentUs = new long[MAX_OUTSTANDING];
+    private int nextPingId = 0;
+
+    private volatile Estimate estimate = null;
+    private volatile long samplesTaken = 0;
+
+    /** Offset at a reference point on the viewer's clock, and its drift. */
+    private static class Estimate {
+
+        final long referenceUs;
+        final double offsetUs;
+        final double skew;
+        final long delayUs;
+
+        Estimate(long referenceUs, double offsetUs, double skew, long delayUs) {
+
+            this.referenceUs = referenceUs;
+            this.offsetUs = offsetUs;
+            this.skew = skew;
+            this.delayUs = delayUs;
+        }
+
+        double offsetAt(long localUs) {
+            return offsetUs + skew * (localUs - referenceUs);
+        }
+    }
+
+    ClockSync() {
+
+        for (int i = 0; i < MAX_OUTSTANDING; i++) {
+            outstandingIds[i] = -1;
+        }
+    }
+
+    /** Records a ping being sent now and returns the id to send with it. */
+    int ping(long nowUs) {
+
+        int id = nextPingId;
+        nextPingId = (nextPingId + 1) & 0xFFFF;
+        outstandingIds[id % MAX_OUTSTANDING] = id;
+        outstandingSentUs[id % MAX_OUTSTANDING] = nowUs;
+        return id;
+    }
+
+    /** Takes the camera's answer to a ping, received at nowUs. */
+    void onReply(ClockReply reply, long nowUs) {
+
+        int slot = reply.pingId % MAX_OUTSTANDING;
+        if (outstandingIds[slot] != reply.pingId) {
+            // Too old, or never sent
+            return;
+        }
+        outstandingIds[slot] = -1;
+        long t0 = outstandingSentUs[slot];
+        long delay = (nowUs - t0) - (reply.transmitUs - reply.receiveUs);
+        if (delay < 0) {
+            return;
+        }
+        long offset = ((reply.receiveUs - t0) + (reply.transmitUs - nowUs)) / 2;
+
+        sampleTimeUs[nextSample] = (t0 + nowUs) / 2;
+        sampleOffsetUs[nextSample] = offset;
+        sampleDelayUs[nextSample] = delay;
+        nextSample = (nextSample + 1) % WINDOW;
+        sampleCount = Math.min(sampleCount + 1, WINDOW);
+        samplesTaken++;
+        estimate = fit();
+    }
+
+    boolean isSynchronized() {
+        return estimate != null;
+    }
+
+    /** Maps a time on the camera's clock onto the viewer's. */
+    long toLocalUs(long remoteUs) {
+
+        Estimate current = estimate;
+        if (current == null) {
+            return remoteUs;
+        }
+        long guess = remoteUs - (long) current.offsetUs;
+        return remoteUs - (long) current.offsetAt(guess);
+    }
+
+    /** Camera clock minus viewer clock at localUs. */
+    long offsetUs(long localUs) {
+
+        Estimate current = estimate;
+        return current == null ? 0 : (long) current.offsetAt(localUs);
+    }
+
+    /** How much faster the camera's clock runs, in parts per million. */
+    double skewPpm() {
+
+        Estimate current = estimate;
+        return current == null ? 0 : current.skew * 1e6;
+    }
+
+    /** Round trip of the best recent sample. */
+    long delayUs() {
+
+        Estimate current = estimate;
+        return current == null ? 0 : current.delayUs;
+    }
+
+    long samplesTaken() {
+        return samplesTaken;
+    }
+
+    private Estimate fit() {
+
+        long minDelay = Long.MAX_VALUE;
+        int best = 0;
+        for (int i = 0; i < sampleCount; i++) {
+            if (sampleDelayUs[i] < minDelay) {
+                minDelay = sampleDelayUs[i];
+                best = i;
+            }
+        }
+        long threshold = 2 * minDelay + DELAY_MARGIN_US;
+
+        int count = 0;
+        long firstTime = Long.MAX_VALUE;
+        long lastTime = Long.MIN_VALUE;
+        double meanTime = 0;
+        double meanOffset = 0;
+        for (int i = 0; i < sampleCount; i++) {
+            if (sampleDelayUs[i] <= threshold) {
+                count++;
+                firstTime = Math.min(firstTime, sampleTimeUs[i]);
+                lastTime = Math.max(lastTime, sampleTimeUs[i]);
+                // Relative to the best sample so the sums stay small
+                meanTime += sampleTimeUs[i] - sampleTimeUs[best];
+                meanOffset += sampleOffsetUs[i] - sampleOffsetUs[best];
+            }
+        }
+
+        Estimate previous = estimate;
+        if (count < MIN_SAMPLES_FOR_SKEW || lastTime - firstTime < MIN_SPAN_FOR_SKEW_US) {
+            double skew = previous == null ? 0 : previous.skew;
+            return new Estimate(sampleTimeUs[best], sampleOffsetUs[best], skew, minDelay);
+        }
+
+        meanTime /= count;
+        meanOffset /= count;
+        double covariance = 0;
+        double variance = 0;
+        for (int i = 0; i < sampleCount; i++) {
+            if (sampleDelayUs[i] <= threshold) {
+                double dt = sampleTimeUs[i] - sampleTimeUs[best] - meanTime;
+                covariance += dt * (sampleOffsetUs[i] - sampleOffsetUs[best] - meanOffset);
+                variance += dt * dt;
+            }
+        }
+        double skew = Math.max(-MAX_SKEW, Math.min(MAX_SKEW, covariance / variance));
+        return new Estimate(sampleTimeUs[best] + (long) meanTime, sampleOffsetUs[best] + meanOffset, skew, minDelay);
+    }
+}
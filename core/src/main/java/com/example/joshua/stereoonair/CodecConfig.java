@@ -0,0 +1,70 @@
+package com.example.joshua.stereoonair;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The codec config an encoder emits before its first picture, kept so it can be
+ * sent to every viewer that connects and handed to a decoder as its csd-N
+ * buffers before any picture arrives.
+ */
+class CodecConfig {
+
+    private CodecConfig() { }
+
+    /** A copy of config's payload that outlives the pooled buffer it came in. */
+    static Frame copyOf(Frame config) {
+
+        ByteBuffer payload = ByteBuffer.allocate(config.size());
+        payload.put(config.payload.duplicate());
+        payload.flip();
+        return new Frame(config.sequence, config.streamId, config.ptsUs, config.flags, payload);
+    }
+
+    /**
+     * Splits an Annex B codec config into the csd-N buffers MediaFormat expects:
+     * for H.264 the SPS as csd-0 and the PPS as csd-1, start codes included; for
+     * anything else the whole config as csd-0.
+     */
+    static ByteBuffer[] toCsd(String mimeType, ByteBuffer config) {
+
+        if (! "video/avc".equals(mimeType)) {
+            return new ByteBuffer[] { copy(config, config.position(), config.limit()) };
+        }
+
+        int end = config.limit();
+        int spsStart = -1;
+        int spsEnd = -1;
+        int ppsStart = -1;
+        int ppsEnd = -1;
+        int start = RtpPacketizer.findStartCode(config, config.position(), end);
+        while (start + 3 < end) {
+            int next = RtpPacketizer.findStartCode(config, start + 3, end);
+            // Include the leading zero of a four byte start code
+            int from = start > config.position() && config.get(start - 1) == 0 ? start - 1 : start;
+            int to = next < end && config.get(next - 1) == 0 ? next - 1 : next;
+            int type = config.get(start + 3) & 0x1F;
+            if (type == AnnexBAssembler.NAL_SPS && spsStart < 0) {
+                spsStart = from;
+                spsEnd = to;
+            } else if (type == AnnexBAssembler.NAL_PPS && ppsStart < 0) {
+                ppsStart = from;
+                ppsEnd = to;
+            }
+            start = next;
+        }
+        if (spsStart < 0 || ppsStart < 0) {
+            return new ByteBuffer[] { copy(config, config.position(), config.limit()) };
+        }
+        return new ByteBuffer[] { copy(config, spsStart, spsEnd), copy(config, ppsStart, ppsEnd) };
+    }
+
+    private static ByteBuffer copy(ByteBuffer src, int from, int to) {
+
+        ByteBuffer copy = ByteBuffer.allocate(to - from);
+        for (int i = from; i < to; i++) {
+            copy.put(src.get(i));
+        }
+        copy.flip();
+        return copy;
+    }
+}
@@ -0,0 +1,51 @@
+package com.example.joshua.stereoonair;
+
+/**
+ * How the camera's encoder trades latency against picture quality. Each
+ * profile is a set of requests the encoder may or may not honour; what it took
+ * goes back to the viewer as EncoderSettings.
+ *
+ * Where the encoder supports intra refresh, the profiles that ask for it
+ * refresh the picture a band at a time over intraRefreshSeconds rather than
+ * with whole key frames, which keeps every frame about the same size and is the
+ * biggest saving there is for two streams on one link. Key frames still come
+ * every keyFrameIntervalSeconds, for viewers joining through a relay, and
+ * whenever a viewer asks for one.
+ */
+enum EncoderProfile {
+
+    ULTRA_LOW_LATENCY(0.25f, 2, true, true, BitrateMode.CBR),
+    BALANCED(0.5f, 2, true, false, BitrateMode.CBR),
+    QUALITY(0, 1, false, false, BitrateMode.VBR);
+
+    enum BitrateMode { CBR, VBR }
+
+    // 0 for none
+    final float intraRefreshSeconds;
+    final float keyFrameIntervalSeconds;
+    // Ask for output after each frame rather than after a look-ahead
+    final boolean lowLatency;
+    // Ask the encoder to run as fast as it can rather than at the frame rate, so
+    // each frame spends less time in it
+    final boolean maxOperatingRate;
+    final BitrateMode bitrateMode;
+
+    EncoderProfile(float intraRefreshSeconds, float keyFrameIntervalSeconds, boolean lowLatency,
+                   boolean maxOperatingRate, BitrateMode bitrateMode) {
+
+        this.intraRefreshSeconds = intraRefreshSeconds;
+        this.keyFrameIntervalSeconds = keyFrameIntervalSeconds;
+        this.lowLatency = lowLatency;
+        this.maxOperatingRate = maxOperatingRate;
+        this.bitrateMode = bitrateMode;
+    }
+
+    static EncoderProfile fromId(int id) {
+        return id >= 0 && id < values().length ? values()[id] : null;
+    }
+
+    /** Frames over which to refresh the whole picture at fps, 0 for no intra refresh. */
+    int intraRefreshFrames(int fps) {
+        return intraRefreshSeconds > 0 ? Math.max(1, Math.round(intraRefreshSeconds * fps)) : 0;
+    }
+}
@@ -0,0 +1,84 @@
+package com.example.joshua.stereoonair;
+
+/**
+ * What a camera's encoder actually runs with: the EncoderProfile asked for, which
+ * of its requests were made and which of those the encoder confirmed taking.
+ * Sent to the viewer, which otherwise couldn't tell an encoder that refreshes a
+ * band at a time from one that ignored the request.
+ */
+class EncoderSettings {
+
+    // Bits of features and requestedFeatures
+    final static int FEATURE_INTRA_REFRESH = 1;
+    final static int FEATURE_LOW_LATENCY = 1 << 1;
+    final static int FEATURE_REALTIME_PRIORITY = 1 << 2;
+    final static int FEATURE_OPERATING_RATE = 1 << 3;
+    final static int FEATURE_BITRATE_MODE = 1 << 4;
+    final static int FEATURE_CODEC_PROFILE = 1 << 5;
+
+    Side side;
+    EncoderProfile profile;
+    // Confirmed by the encoder's configured format
+    int features;
+    // Asked for, a superset of features
+    int requestedFeatures;
+    // 0 when not refreshing
+    int intraRefreshFrames;
+    int keyFrameIntervalMs;
+    int bitrate;
+
+    EncoderSettings() { }
+
+    EncoderSettings(Side side, EncoderProfile profile) {
+
+        this.side = side;
+        this.profile = profile;
+    }
+
+    boolean has(int feature) {
+        return (features & feature) != 0;
+    }
+
+    @Override
+    public String toString() {
+
+        StringBuilder builder = new StringBuilder();
+        builder.append(side).append(' ').append(profile).append(' ').append(bitrate / 1000).append(" kbit/s");
+        if (has(FEATURE_BITRATE_MODE)) {
+            builder.append(' ').append(profile.bitrateMode);
+        }
+        if (has(FEATURE_INTRA_REFRESH)) {
+            builder.append(" intra refresh over ").append(intraRefreshFrames).append(" frames");
+        }
+        builder.append(" key frame every ").append(keyFrameIntervalMs).append(" ms");
+        appendFeatures(builder, features & ~(FEATURE_BITRATE_MODE | FEATURE_INTRA_REFRESH));
+        int unconfirmed = requestedFeatures & ~features;
+        if (unconfirmed != 0) {
+            builder.append(", unconfirmed:");
+            appendFeatures(builder, unconfirmed);
+        }
+        return builder.toString();
+    }
+
+    private static void appendFeatures(StringBuilder builder, int features) {
+
+        if ((features & FEATURE_INTRA_REFRESH) != 0) {
+            builder.append(" intra refresh");
+        }
+        if ((features & FEATURE_LOW_LATENCY) != 0) {
+            builder.append(" low latency");
+        }
+        if ((features & FEATURE_REALTIME_PRIORITY) != 0) {
+            builder.append(" realtime");
+        }
+        if ((features & FEATURE_OPERATING_RATE) != 0) {
+            builder.append(" max operating rate");
+        }
+        if ((features & FEATURE_BITRATE_MODE) != 0) {
+            builder.append(" bitrate mode");
+        }
+        if ((features & FEATURE_CODEC_PROFILE) != 0) {
+            builder.append(" codec profile");
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package com.example.joshua.stereoonair;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Sits in front of an RtpDepacketizer and rebuilds lost media packets from the
+ * parity packets written by FecEncoder. Media packets pass straight through and
+ * are kept in a window of recent packets; a parity packet is held until all but
+ * one of the packets it covers are present, then the missing one is rebuilt and
+ * passed on as if it had just arrived. Parity that is still missing two or more
+ * packets once the stream has moved REORDER_DISTANCE packets past it counts
+ * those packets as unrecoverable.
+ *
+ * Not thread-safe, bar the counters, which may be read from any thread; the
+ * caller supplies the clock so tests can run without one.
+ */
+class FecDecoder {
+
+    private final static int WINDOW = 1024;
+    private final static int MAX_PENDING_PARITY = 64;
+    private final static int MAX_PACKET_SIZE = 2048;
+    // Packets further behind than this are taken as lost rather than reordered
+    private final static int REORDER_DISTANCE = 128;
+
+    private final RtpDepacketizer depacketizer;
+    private final byte[][] packets = new byte[WINDOW][];
+    private final int[] lengths = new int[WINDOW];
+    private final int[] sequences = new int[WINDOW];
+    private final Parity[] pending = new Parity[MAX_PENDING_PARITY];
+    private final byte[] recovered = new byte[MAX_PACKET_SIZE];
+
+    private boolean paritySeen = false;
+    private boolean haveSequence = false;
+    private int lastSequence;
+
+    private volatile long packetsRecovered = 0;
+    private volatile long packetsUnrecoverable = 0;
+    private volatile long parityPackets = 0;
+
+    private static class Parity {
+
+        final byte[] bytes = new byte[MAX_PACKET_SIZE];
+        boolean active;
+        int length;
+        int baseSequence;
+        int stride;
+        int count;
+        int lengthXor;
+    }
+
+    FecDecoder(RtpDepacketizer depacketizer) {
+
+        this.depacketizer = depacketizer;
+        for (int i = 0; i < WINDOW; i++) {
+            sequences[i] = Integer.MIN_VALUE;
+        }
+        for (int i = 0; i < pending.length; i++) {
+            pending[i] = new Parity();
+        }
+    }
+
+    void onPacket(ByteBuffer datagram, long nowNanos) {
+
+        int base = datagram.position();
+        int length = datagram.remaining();
+        if (length <= RtpPacketizer.HEADER_SIZE || (datagram.get(base) & 0xC0) != 0x80) {
+            depacketizer.onPacket(datagram, nowNanos);
+            return;
+        }
+        if ((datagram.get(base + 1) & 0x7F) == FecEncoder.PAYLOAD_TYPE) {
+            onParity(datagram, nowNanos);
+            return;
+        }
+
+        int sequence = extendSequence(datagram.getShort(base + 2) & 0xFFFF);
+        if (length <= MAX_PACKET_SIZE) {
+            store(sequence, datagram);
+        }
+        depacketizer.onPacket(datagram, nowNanos);
+
+        if (paritySeen) {
+            for (Parity parity : pending) {
+                if (parity.active && covers(parity, sequence)) {
+                    tryRecover(parity, nowNanos);
+                }
+            }
+        }
+    }
+
+    RtpDepacketizer getDepacketizer() {
+        return depacketizer;
+    }
+
+    long packetsRecovered() {
+        return packetsRecovered;
+    }
+
+    long packetsUnrecoverable() {
+        return packetsUnrecoverable;
+    }
+
+    long parityPackets() {
+        return parityPackets;
+    }
+
+    private void onParity(ByteBuffer datagram, long nowNanos) {
+
+        int base = datagram.position();
+        int length = datagram.remaining() - RtpPacketizer.HEADER_SIZE - FecEncoder.HEADER_SIZE;
+        if (length < 0 || length > MAX_PACKET_SIZE) {
+            return;
+        }
+        parityPackets++;
+        paritySeen = true;
+        if (! haveSequence) {
+            // Nothing to rebuild against yet
+            return;
+        }
+
+        int header = base + RtpPacketizer.HEADER_SIZE;
+        int baseSequence = lastSequence + (short) ((datagram.getShort(header) & 0xFFFF) - (lastSequence & 0xFFFF));
+        int stride = datagram.get(header + 2) & 0xFF;
+        int count = datagram.get(header + 3) & 0xFF;
+        if (stride == 0 || count == 0 || stride * count > WINDOW - REORDER_DISTANCE) {
+            return;
+        }
+
+        Parity parity = null;
+        for (Parity candidate : pending) {
+            if (! candidate.active) {
+                parity = candidate;
+            } else if (lastSequence - lastProtected(candidate) > REORDER_DISTANCE) {
+                candidate.active = false;
+                packetsUnrecoverable += missing(candidate);
+                parity = candidate;
+            }
+        }
+        if (parity == null) {
+            return;
+        }
+
+        parity.active = true;
+        parity.length = length;
+        parity.baseSequence = baseSequence;
+        parity.stride = stride;
+        parity.count = count;
+        parity.lengthXor = datagram.getShort(header + 4) & 0xFFFF;
+        ByteBuffer bytes = datagram.duplicate();
+        bytes.position(header + FecEncoder.HEADER_SIZE);
+        bytes.get(parity.bytes, 0, length);
+        tryRecover(parity, nowNanos);
+    }
+
+    private void tryRecover(Parity parity, long nowNanos) {
+
+        int missing = missing(parity);
+        if (missing != 1) {
+            if (missing == 0) {
+                parity.active = false;
+            }
+            return;
+        }
+
+        System.arraycopy(parity.bytes, 0, recovered, 0, parity.length);
+        int length = parity.lengthXor;
+        int missingSequence = 0;
+        for (int i = 0; i < parity.count; i++) {
+            int sequence = parity.baseSequence + i * parity.stride;
+            int slot = sequence & (WINDOW - 1);
+            if (sequences[slot] != sequence) {
+                missingSequence = sequence;
+                continue;
+            }
+            byte[] bytes = packets[slot];
+            int packetLength = Math.min(lengths[slot], parity.length);
+            for (int j = 0; j < packetLength; j++) {
+                recovered[j] ^= bytes[j];
+            }
+            length ^= lengths[slot];
+        }
+        parity.active = false;
+        if (length <= RtpPacketizer.HEADER_SIZE || length > parity.length
+                || (recovered[2] & 0xFF) != ((missingSequence >> 8) & 0xFF)
+                || (recovered[3] & 0xFF) != (missingSequence & 0xFF)) {
+            packetsUnrecoverable++;
+            return;
+        }
+
+        packetsRecovered++;
+        ByteBuffer packet = ByteBuffer.wrap(recovered, 0, length);
+        store(missingSequence, packet);
+        depacketizer.onPacket(packet, nowNanos);
+    }
+
+    private int missing(Parity parity) {
+
+        int missing = 0;
+        for (int i = 0; i < parity.count; i++) {
+            int sequence = parity.baseSequence + i * parity.stride;
+            if (sequences[sequence & (WINDOW - 1)] != sequence) {
+                missing++;
+            }
+        }
+        return missing;
+    }
+
+    private static int lastProtected(Parity parity) {
+        return parity.baseSequence + (parity.count - 1) * parity.stride;
+    }
+
+    private static boolean covers(Parity parity, int sequence) {
+
+        int offset = sequence - parity.baseSequence;
+        return offset >= 0 && offset % parity.stride == 0 && offset / parity.stride < parity.count;
+    }
+
+    private void store(int sequence, ByteBuffer datagram) {
+
+        int slot = sequence & (WINDOW - 1);
+        int length = datagram.remaining();
+        if (packets[slot] == null) {
+            packets[slot] = new byte[MAX_PACKET_SIZE];
+        }
+        datagram.duplicate().get(packets[slot], 0, length);
+        lengths[slot] = length;
+        sequences[slot] = sequence;
+    }
+
+    private int extendSequence(int sequence) {
+
+        if (! haveSequence) {
+            haveSequence = true;
+            lastSequence = sequence;
+            return sequence;
+        }
+        int extended = lastSequence + (short) (sequence - (lastSequence & 0xFFFF));
+        lastSequence = Math.max(lastSequence, extended);
+        return extended;
+    }
+}
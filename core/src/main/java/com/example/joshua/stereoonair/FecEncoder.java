@@ -0,0 +1,202 @@
+package com.example.joshua.stereoonair;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Adds XOR parity packets to the RTP stream written by RtpPacketizer. Media
+ * packets are protected in blocks of groupSize * interleave packets: column c of
+ * a block holds packets c, c + interleave, c + 2 * interleave, ... and gets one
+ * parity packet, so any burst of up to interleave consecutive losses in a block
+ * can be rebuilt by FecDecoder. A block is also closed at the end of every frame
+ * so parity never waits for the next frame to be captured; by then the viewer
+ * would have given up on the frame. A block closed short would still get a parity
+ * packet per column, so its columns are folded into ceil(packets / groupSize) of
+ * them, rounded up to a divisor of interleave so each still covers packets a
+ * fixed stride apart. Short frames thereby lose some of the burst protection.
+ *
+ * Overhead is 1 / groupSize for frames of whole groups, but every frame costs at
+ * least one parity packet: a frame of one packet is in effect sent twice, one of
+ * two packets costs 50% whatever the groupSize. Both settings may be changed from another
+ * thread at any time and take effect at the next block; a groupSize of 0 turns
+ * FEC off.
+ *
+ * A parity packet is the RTP header followed by:
+ *
+ * <pre>
+ *  0  baseSequence  short  first media sequence number in the column
+ *  2  stride        byte   sequence distance between protected packets
+ *  3  count         byte   number of protected packets
+ *  4  lengthXor     short  XOR of the protected packets' lengths
+ *  6  parity             XOR of the protected packets, zero padded
+ * </pre>
+ *
+ * It covers whole media packets, RTP header included, so it is OVERHEAD bytes
+ * longer than the longest one; RtpPacketizer should leave room for that.
+ */
+class FecEncoder {
+
+    final static int PAYLOAD_TYPE = 97;
+    final static int HEADER_SIZE = 6;
+    final static int OVERHEAD = RtpPacketizer.HEADER_SIZE + HEADER_SIZE;
+    final static int MAX_INTERLEAVE = 16;
+
+    private final int maxPacketSize;
+    private final byte[][] parity;
+    private final int[] parityLength = new int[MAX_INTERLEAVE];
+    private final int[] lengthXor = new int[MAX_INTERLEAVE];
+    private final int[] count = new int[MAX_INTERLEAVE];
+    private final int[] baseSequence = new int[MAX_INTERLEAVE];
+    private final ByteBuffer packet;
+
+    private volatile int groupSize;
+    private volatile int interleave;
+    private int blockGroupSize;
+    private int blockInterleave;
+    private int blockPackets = 0;
+    private int sequence = 0;
+
+    private long mediaPacketCount = 0;
+    private long parityPacketCount = 0;
+
+    FecEncoder(int maxPacketSize, int groupSize, int interleave) {
+
+        this.maxPacketSize = maxPacketSize;
+        parity = new byte[MAX_INTERLEAVE][maxPacketSize];
+        packet = ByteBuffer.allocateDirect(OVERHEAD + maxPacketSize);
+        setGroupSize(groupSize);
+        setInterleave(interleave);
+    }
+
+    void setGroupSize(int groupSize) {
+
+        if (groupSize < 0 || groupSize > 255) {
+            throw new IllegalArgumentException("Bad FEC group size: " + groupSize);
+        }
+        this.groupSize = groupSize;
+    }
+
+    void setInterleave(int interleave) {
+
+        if (interleave < 1 || interleave > MAX_INTERLEAVE) {
+            throw new IllegalArgumentException("Bad FEC interleave: " + interleave);
+        }
+        this.interleave = interleave;
+    }
+
+    int getGroupSize() {
+        return groupSize;
+    }
+
+    int getInterleave() {
+        return interleave;
+    }
+
+    /**
+     * Forwards media packet to callback, then any parity packets the block it
+     * completes needs.
+     */
+    void onPacket(ByteBuffer media, RtpPacketizer.OnPacketCallback callback) throws IOException {
+
+        int base = media.position();
+        int length = media.remaining();
+        int mediaSequence = media.getShort(base + 2) & 0xFFFF;
+        int timestamp = media.getInt(base + 4);
+        int ssrc = media.getInt(base + 8);
+        boolean marker = (media.get(base + 1) & 0x80) != 0;
+
+        if (blockPackets == 0) {
+            blockGroupSize = groupSize;
+            blockInterleave = interleave;
+        }
+        if (blockGroupSize == 0 || length > maxPacketSize) {
+            mediaPacketCount++;
+            callback.onPacket(media);
+            return;
+        }
+
+        int column = blockPackets % blockInterleave;
+        byte[] columnParity = parity[column];
+        if (count[column] == 0) {
+            baseSequence[column] = mediaSequence;
+            parityLength[column] = 0;
+            lengthXor[column] = 0;
+        }
+        // Past the longest packet so far the parity is just this packet's bytes
+        int overlap = Math.min(length, parityLength[column]);
+        for (int i = 0; i < overlap; i++) {
+            columnParity[i] ^= media.get(base + i);
+        }
+        for (int i = overlap; i < length; i++) {
+            columnParity[i] = media.get(base + i);
+        }
+        parityLength[column] = Math.max(parityLength[column], length);
+        lengthXor[column] ^= length;
+        count[column]++;
+        blockPackets++;
+
+        mediaPacketCount++;
+        callback.onPacket(media);
+
+        if (marker || blockPackets == blockGroupSize * blockInterleave) {
+            int columns = Math.min(blockPackets, blockInterleave);
+            int stride = (blockPackets + blockGroupSize - 1) / blockGroupSize;
+            while (blockInterleave % stride != 0) {
+                stride++;
+            }
+            for (int c = stride; c < columns; c++) {
+                fold(c, c % stride);
+            }
+            for (int c = 0; c < Math.min(stride, columns); c++) {
+                sendParity(c, stride, timestamp, ssrc, callback);
+            }
+            blockPackets = 0;
+        }
+    }
+
+    long mediaPacketCount() {
+        return mediaPacketCount;
+    }
+
+    long parityPacketCount() {
+        return parityPacketCount;
+    }
+
+    /** Adds column from's parity into column into's, which then covers both. */
+    private void fold(int from, int into) {
+
+        byte[] fromParity = parity[from];
+        byte[] intoParity = parity[into];
+        int overlap = Math.min(parityLength[from], parityLength[into]);
+        for (int i = 0; i < overlap; i++) {
+            intoParity[i] ^= fromParity[i];
+        }
+        for (int i = overlap; i < parityLength[from]; i++) {
+            intoParity[i] = fromParity[i];
+        }
+        parityLength[into] = Math.max(parityLength[into], parityLength[from]);
+        lengthXor[into] ^= lengthXor[from];
+        count[into] += count[from];
+        count[from] = 0;
+    }
+
+    private void sendParity(int column, int stride, int timestamp, int ssrc,
+                            RtpPacketizer.OnPacketCallback callback) throws IOException {
+
+        packet.clear();
+        packet.put((byte) 0x80);
+        packet.put((byte) PAYLOAD_TYPE);
+        packet.putShort((short) sequence++);
+        packet.putInt(timestamp);
+        packet.putInt(ssrc);
+        packet.putShort((short) baseSequence[column]);
+        packet.put((byte) stride);
+        packet.put((byte) count[column]);
+        packet.putShort((short) lengthXor[column]);
+        packet.put(parity[column], 0, parityLength[column]);
+        packet.flip();
+        count[column] = 0;
+        parityPacketCount++;
+        callback.onPacket(packet);
+    }
+}
@@ -0,0 +1,51 @@
+package com.example.joshua.stereoonair;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One encoded access unit plus the per-frame header fields that travel with it
+ * between CameraService and ViewerActivity.
+ */
+class Frame {
+
+    final static int FLAG_KEY_FRAME = 1;
+    final static int FLAG_CODEC_CONFIG = 1 << 1;
+    // VideoCodec id, H.264 being 0
+    final static int FLAG_CODEC_SHIFT = 2;
+    final static int FLAG_CODEC_MASK = 0x3 << FLAG_CODEC_SHIFT;
+
+    int sequence;
+    int streamId;
+    long ptsUs;
+    int flags;
+    ByteBuffer payload;
+    // Whether the frame is back in its FramePool, to catch it being handed back twice
+    boolean pooled;
+
+    Frame() { }
+
+    Frame(int sequence, int streamId, long ptsUs, int flags, ByteBuffer payload) {
+
+        this.sequence = sequence;
+        this.streamId = streamId;
+        this.ptsUs = ptsUs;
+        this.flags = flags;
+        this.payload = payload;
+    }
+
+    boolean isKeyFrame() {
+        return (flags & FLAG_KEY_FRAME) != 0;
+    }
+
+    boolean isCodecConfig() {
+        return (flags & FLAG_CODEC_CONFIG) != 0;
+    }
+
+    VideoCodec codec() {
+        return VideoCodec.fromFlags(flags);
+    }
+
+    int size() {
+        return payload.remaining();
+    }
+}
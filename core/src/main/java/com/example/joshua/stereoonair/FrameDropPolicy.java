@@ -0,0 +1,193 @@
+package com.example.joshua.stereoonair;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Decides what to throw away when encoded frames arrive faster than the network
+ * thread takes them out of the ring. Frames that don't fit wait in a short
+ * backlog on the encoder thread; once that is full, victims are picked by how
+ * much of the stream they take down with them:
+ *
+ * <ul>
+ *   <li>codec config and IDR frames are never dropped,</li>
+ *   <li>non-reference frames go first, since nothing is predicted from them,</li>
+ *   <li>then the oldest reference frame, together with everything after it up to
+ *       the next IDR, since none of that can be decoded any more. The encoder is
+ *       asked for a sync frame right away so the gap is as short as possible.</li>
+ * </ul>
+ *
+ * Everything here runs on the thread that fills frames; dropped frames are handed
+ * to the callback so they can go back to the FramePool.
+ */
+class FrameDropPolicy {
+
+    enum FrameType { CODEC_CONFIG, KEY, REFERENCE, NON_REFERENCE }
+
+    static abstract class OnDropCallback {
+        abstract void onDrop(Frame frame);
+        abstract void onSyncFrameNeeded();
+    }
+
+    private final SpscRing<Frame> ring;
+    private final int maxBacklog;
+    private final OnDropCallback callback;
+    private final ArrayDeque<Frame> backlog = new ArrayDeque<>();
+    private boolean skippingGop = false;
+
+    private final long[] droppedCount = new long[FrameType.values().length];
+    private volatile long syncFramesRequested = 0;
+
+    FrameDropPolicy(SpscRing<Frame> ring, int maxBacklog, OnDropCallback callback) {
+
+        this.ring = ring;
+        this.maxBacklog = maxBacklog;
+        this.callback = callback;
+    }
+
+    /**
+     * Classifies a frame from its flags and, for H.264 and HEVC pictures, the
+     * NAL unit header of its first slice: nal_ref_idc, or whether the type is a
+     * sub-layer non-reference one. VP9 pictures all count as reference.
+     */
+    static FrameType typeOf(int flags, ByteBuffer payload) {
+
+        if ((flags & Frame.FLAG_CODEC_CONFIG) != 0) {
+            return FrameType.CODEC_CONFIG;
+        }
+        if ((flags & Frame.FLAG_KEY_FRAME) != 0) {
+            return FrameType.KEY;
+        }
+        VideoCodec codec = VideoCodec.fromFlags(flags);
+        if (codec.nalHeaderSize() == 0) {
+            return FrameType.REFERENCE;
+        }
+        int end = payload.limit();
+        int start = RtpPacketizer.findStartCode(payload, payload.position(), end);
+        while (start + 3 < end) {
+            int header = payload.get(start + 3) & 0xFF;
+            int type = codec.nalType(header);
+            if (codec.isKeyFrameNal(type)) {
+                return FrameType.KEY;
+            }
+            if (codec.isVcl(type)) {
+                return codec.isReference(type, header) ? FrameType.REFERENCE : FrameType.NON_REFERENCE;
+            }
+            start = RtpPacketizer.findStartCode(payload, start + 3, end);
+        }
+        // Not something we can look into: assume other frames depend on it
+        return FrameType.REFERENCE;
+    }
+
+    /**
+     * Hands frame to the ring, or backlogs or drops it according to the policy.
+     */
+    void offer(Frame frame) {
+
+        FrameType type = typeOf(frame.flags, frame.payload);
+        flush();
+
+        if (skippingGop) {
+            if (type == FrameType.REFERENCE || type == FrameType.NON_REFERENCE) {
+                drop(frame, type);
+                return;
+            }
+            skippingGop = false;
+        }
+
+        if (backlog.isEmpty() && ring.offer(frame)) {
+            return;
+        }
+        backlog.add(frame);
+        while (backlog.size() > maxBacklog && evict()) {
+            // Keep going until the backlog fits or only frames we must keep are left
+        }
+    }
+
+    /**
+     * Records a frame that never made it into a Frame, e.g. because the pool was
+     * exhausted. Losing anything but a non-reference frame breaks the GOP.
+     */
+    void lost(FrameType type) {
+
+        droppedCount[type.ordinal()]++;
+        if (type != FrameType.NON_REFERENCE) {
+            skipGop();
+        }
+    }
+
+    /**
+     * Moves backlogged frames into the ring as space allows. Returns true while
+     * frames are still waiting.
+     */
+    boolean flush() {
+
+        Frame frame;
+        while ((frame = backlog.peek()) != null && ring.offer(frame)) {
+            backlog.poll();
+        }
+        return ! backlog.isEmpty();
+    }
+
+    int backlog() {
+        return backlog.size();
+    }
+
+    long droppedCount(FrameType type) {
+        return droppedCount[type.ordinal()];
+    }
+
+    long syncFramesRequested() {
+        return syncFramesRequested;
+    }
+
+    /**
+     * Drops the cheapest frames in the backlog. Returns false if nothing in it
+     * may be dropped.
+     */
+    private boolean evict() {
+
+        for (Iterator<Frame> iterator = backlog.iterator(); iterator.hasNext(); ) {
+            Frame frame = iterator.next();
+            if (typeOf(frame.flags, frame.payload) == FrameType.NON_REFERENCE) {
+                iterator.remove();
+                drop(frame, FrameType.NON_REFERENCE);
+                return true;
+            }
+        }
+
+        boolean dropping = false;
+        for (Iterator<Frame> iterator = backlog.iterator(); iterator.hasNext(); ) {
+            Frame frame = iterator.next();
+            FrameType type = typeOf(frame.flags, frame.payload);
+            if (type == FrameType.REFERENCE || (dropping && type == FrameType.NON_REFERENCE)) {
+                iterator.remove();
+                drop(frame, type);
+                dropping = true;
+            } else if (dropping) {
+                // A new GOP starts here and decodes fine
+                return true;
+            }
+        }
+        if (dropping) {
+            skipGop();
+        }
+        return dropping;
+    }
+
+    private void skipGop() {
+
+        if (! skippingGop) {
+            skippingGop = true;
+            syncFramesRequested++;
+            callback.onSyncFrameNeeded();
+        }
+    }
+
+    private void drop(Frame frame, FrameType type) {
+
+        droppedCount[type.ordinal()]++;
+        callback.onDrop(frame);
+    }
+}
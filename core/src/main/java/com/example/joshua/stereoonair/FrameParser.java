@@ -0,0 +1,103 @@
+package com.example.joshua.stereoonair;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental parser for the FrameProtocol byte stream. A complete Frame is
+ * handed to the callback for every access unit, regardless of how TCP split or
+ * merged them. Answers to clock pings that the camera sends between frames go
+ * to the clock callback, and what it says of its modes and encoder to the
+ * status callback, if there are any.
+ */
+class FrameParser extends StreamParser {
+
+    static abstract class OnClockReplyCallback {
+        abstract void onClockReply(ClockReply reply);
+    }
+
+    static abstract class OnCameraStatusCallback {
+        /** modes are VideoMode bits. */
+        abstract void onCameraModes(int modes);
+        abstract void onEncoderSettings(EncoderSettings settings);
+    }
+
+    private final ByteBuffer headerBuffer = ByteBuffer.allocate(FrameProtocol.HEADER_SIZE);
+    private final OnClockReplyCallback clockCallback;
+    private final OnCameraStatusCallback statusCallback;
+    private Frame frame;
+    private ByteBuffer payload;
+
+    FrameParser(OnFrameCallback callback) {
+        this(callback, null);
+    }
+
+    FrameParser(OnFrameCallback callback, OnClockReplyCallback clockCallback) {
+        this(callback, clockCallback, null);
+    }
+
+    FrameParser(OnFrameCallback callback, OnClockReplyCallback clockCallback, OnCameraStatusCallback statusCallback) {
+
+        super(callback);
+        this.clockCallback = clockCallback;
+        this.statusCallback = statusCallback;
+    }
+
+    /**
+     * Throws if the stream is not in FrameProtocol format; the parser cannot
+     * resynchronise after that.
+     */
+    @Override
+    void feed(ByteBuffer chunk) throws ProtocolException {
+
+        while (chunk.hasRemaining()) {
+
+            if (payload == null) {
+                copy(chunk, headerBuffer);
+                if (headerBuffer.hasRemaining()) {
+                    return;
+                }
+                headerBuffer.flip();
+                if (headerBuffer.getInt(0) == FrameProtocol.CLOCK_REPLY_MAGIC) {
+                    ClockReply reply = new ClockReply();
+                    FrameProtocol.readClockReply(headerBuffer, reply);
+                    headerBuffer.clear();
+                    if (clockCallback != null) {
+                        clockCallback.onClockReply(reply);
+                    }
+                    continue;
+                }
+                if (headerBuffer.getInt(0) == FrameProtocol.CAMERA_MODES_MAGIC) {
+                    int modes = FrameProtocol.readCameraModes(headerBuffer);
+                    headerBuffer.clear();
+                    if (statusCallback != null) {
+                        statusCallback.onCameraModes(modes);
+                    }
+                    continue;
+                }
+                if (headerBuffer.getInt(0) == FrameProtocol.ENCODER_SETTINGS_MAGIC) {
+                    EncoderSettings settings = new EncoderSettings();
+                    FrameProtocol.readEncoderSettings(headerBuffer, settings);
+                    headerBuffer.clear();
+                    if (statusCallback != null) {
+                        statusCallback.onEncoderSettings(settings);
+                    }
+                    continue;
+                }
+                frame = new Frame();
+                int length = FrameProtocol.readHeader(headerBuffer, frame);
+                headerBuffer.clear();
+                payload = ByteBuffer.allocate(length);
+            }
+
+            copy(chunk, payload);
+            if (! payload.hasRemaining()) {
+                payload.flip();
+                frame.payload = payload;
+                payload = null;
+                callback.onFrame(frame);
+                frame = null;
+            }
+        }
+    }
+}
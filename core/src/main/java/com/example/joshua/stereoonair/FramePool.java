@@ -0,0 +1,107 @@
+package com.example.joshua.stereoonair;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Bounded pool of Frames backed by reusable direct buffers. The encoder callback
+ * copies each output buffer into a pooled Frame once, and the network thread
+ * writes it straight from the direct buffer and hands it back, so the steady
+ * state allocates nothing per frame.
+ *
+ * acquire() and recycle() belong to the thread that fills frames, release() to
+ * the thread that consumes them, which keeps the free list single-producer.
+ * Handing a frame back twice would have two frames share one buffer, so it
+ * throws instead.
+ */
+class FramePool {
+
+    private final SpscRing<Frame> free;
+    private final int size;
+    // Frames handed back by the filling thread itself, only touched by that thread
+    private final Frame[] recycled;
+    private int recycledCount = 0;
+
+    private volatile long acquiredCount = 0;
+    private volatile long exhaustedCount = 0;
+    private volatile long grownCount = 0;
+
+    FramePool(int size, int initialCapacity) {
+
+        this.size = size;
+        recycled = new Frame[size];
+        free = new SpscRing<>(size, SpscRing.WaitStrategy.SPIN);
+        for (int i = 0; i < size; i++) {
+            Frame frame = new Frame();
+            frame.payload = ByteBuffer.allocateDirect(initialCapacity);
+            frame.pooled = true;
+            recycled[recycledCount++] = frame;
+        }
+    }
+
+    /**
+     * Returns a Frame whose payload is cleared and can hold at least capacity
+     * bytes, or null if every Frame is in use.
+     */
+    Frame acquire(int capacity) {
+
+        Frame frame = recycledCount > 0 ? recycled[--recycledCount] : free.poll();
+        if (frame == null) {
+            exhaustedCount++;
+            return null;
+        }
+        if (frame.payload.capacity() < capacity) {
+            // Round up so a slowly growing keyframe size doesn't reallocate every time
+            frame.payload = ByteBuffer.allocateDirect(Integer.highestOneBit(capacity - 1) << 1);
+            grownCount++;
+        }
+        frame.pooled = false;
+        frame.payload.clear();
+        acquiredCount++;
+        return frame;
+    }
+
+    /** Returns a frame from the consuming thread. */
+    void release(Frame frame) {
+
+        checkNotPooled(frame);
+        free.offer(frame);
+    }
+
+    /** Returns a frame that never left the filling thread, e.g. because it was dropped. */
+    void recycle(Frame frame) {
+
+        checkNotPooled(frame);
+        recycled[recycledCount++] = frame;
+    }
+
+    private static void checkNotPooled(Frame frame) {
+
+        if (frame.pooled) {
+            throw new IllegalStateException("Frame " + frame.sequence + " handed back twice");
+        }
+        frame.pooled = true;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /** Approximate when called from a thread other than the filling one. */
+    int available() {
+        return recycledCount + free.size();
+    }
+
+    long acquiredCount() {
+        return acquiredCount;
+    }
+
+    /** Number of acquire() calls that found the pool empty. */
+    long exhaustedCount() {
+        return exhaustedCount;
+    }
+
+    /** Number of times a pooled buffer had to be replaced by a bigger one. */
+    long grownCount() {
+        return grownCount;
+    }
+}
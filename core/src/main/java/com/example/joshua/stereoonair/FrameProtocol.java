@@ -0,0 +1,466 @@
+package com.example.joshua.stereoonair;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Wire format for frames sent from a camera to the viewer. A connection starts
+ * with a hello in which the camera claims its eye:
+ *
+ * <pre>
+ *  0  magic      int   'S' 'O' 'A' 'H'
+ *  4  version    byte
+ *  5  side       byte  Side ordinal
+ *  6  reserved   short
+ * </pre>
+ *
+ * After that every access unit is preceded by a fixed-size, big-endian header:
+ *
+ * <pre>
+ *  0  magic      int   'S' 'O' 'A' 'F'
+ *  4  version    byte
+ *  5  flags      byte  Frame.FLAG_*
+ *  6  streamId   byte
+ *  7  reserved   byte
+ *  8  sequence   int
+ * 12  ptsUs      long  capture presentation time in microseconds
+ * 20  length     int   payload bytes that follow the header
+ * </pre>
+ *
+ * The viewer periodically sends a ReceiverReport the other way, on the same TCP
+ * connection or as a datagram back to the camera's RTP socket:
+ *
+ * <pre>
+ *  0  magic           int   'S' 'O' 'A' 'R'
+ *  4  version         byte
+ *  5  side            byte  Side ordinal
+ *  6  reserved        short
+ *  8  intervalMs      int
+ * 12  bytesReceived   int
+ * 16  framesReceived  int
+ * 20  framesLost      int
+ * 24  packetsLate     int
+ * 28  jitterUs        int
+ * 32  queueDepth      int
+ * </pre>
+ *
+ * Alongside the reports the viewer pings each camera to learn its clock, and
+ * the camera answers with when the ping arrived and when the answer left. Over
+ * TCP the answer travels between frames, so it is a frame header in size:
+ *
+ * <pre>
+ *  ping                              answer
+ *  0  magic    int   'S' 'O' 'A' 'P'  0  magic       int   'S' 'O' 'A' 'T'
+ *  4  version  byte                   4  version     byte
+ *  5  side     byte                   5  side        byte
+ *  6  pingId   short                  6  pingId      short
+ *                                     8  receiveUs   long  camera clock
+ *                                    16  transmitUs  long  camera clock
+ * </pre>
+ *
+ * With each report the viewer also offers the codecs it can decode, and the
+ * camera encodes in the best of them it can:
+ *
+ * <pre>
+ *  0  magic     int   'S' 'O' 'A' 'C'
+ *  4  version   byte
+ *  5  side      byte  Side ordinal
+ *  6  codecs    byte  VideoCodec bits
+ *  7  reserved  byte
+ * </pre>
+ *
+ * With each clock answer the camera also says which VideoModes it can capture
+ * and encode at, in a message of frame header size as well, and once the viewer
+ * has picked one for both eyes it asks for it with each report:
+ *
+ * <pre>
+ *  camera modes                       video mode
+ *  0  magic     int   'S' 'O' 'A' 'M'  0  magic     int   'S' 'O' 'A' 'V'
+ *  4  version   byte                   4  version   byte
+ *  5  side      byte                   5  side      byte
+ *  6  reserved  short                  6  mode      byte  VideoMode ordinal
+ *  8  modes     int   VideoMode bits   7  reserved  byte
+ * 12  reserved  12 bytes
+ * </pre>
+ *
+ * After those comes what its encoder runs with (EncoderSettings):
+ *
+ * <pre>
+ *  0  magic               int   'S' 'O' 'A' 'E'
+ *  4  version             byte
+ *  5  side                byte
+ *  6  profile             byte  EncoderProfile ordinal
+ *  7  features            byte  EncoderSettings.FEATURE_* confirmed
+ *  8  intraRefreshFrames  int
+ * 12  keyFrameIntervalMs  int
+ * 16  bitrate             int
+ * 20  requestedFeatures   byte  EncoderSettings.FEATURE_* asked for
+ * 21  reserved            3 bytes
+ * </pre>
+ */
+final class FrameProtocol {
+
+    final static int MAGIC = 0x534F4146;
+    final static int VERSION = 1;
+    final static int HEADER_SIZE = 24;
+    final static int MAX_FRAME_SIZE = 4 * 1024 * 1024;
+
+    final static int HELLO_MAGIC = 0x534F4148;
+    final static int HELLO_SIZE = 8;
+
+    final static int REPORT_MAGIC = 0x534F4152;
+    final static int REPORT_SIZE = 36;
+
+    final static int CLOCK_PING_MAGIC = 0x534F4150;
+    final static int CLOCK_PING_SIZE = 8;
+    final static int CLOCK_REPLY_MAGIC = 0x534F4154;
+    final static int CLOCK_REPLY_SIZE = HEADER_SIZE;
+
+    final static int CODEC_OFFER_MAGIC = 0x534F4143;
+    final static int CODEC_OFFER_SIZE = 8;
+
+    final static int CAMERA_MODES_MAGIC = 0x534F414D;
+    final static int CAMERA_MODES_SIZE = HEADER_SIZE;
+    final static int VIDEO_MODE_MAGIC = 0x534F4156;
+    final static int VIDEO_MODE_SIZE = 8;
+
+    final static int ENCODER_SETTINGS_MAGIC = 0x534F4145;
+    final static int ENCODER_SETTINGS_SIZE = HEADER_SIZE;
+
+    private FrameProtocol() { }
+
+    static void writeHello(ByteBuffer dst, Side side) {
+
+        dst.putInt(HELLO_MAGIC);
+        dst.put((byte) VERSION);
+        dst.put((byte) side.ordinal());
+        dst.putShort((short) 0);
+    }
+
+    /**
+     * Reads a hello from src, which must have HELLO_SIZE bytes remaining, and
+     * returns the side it claims.
+     */
+    static Side readHello(ByteBuffer src) throws ProtocolException {
+
+        int magic = src.getInt();
+        if (magic != HELLO_MAGIC) {
+            throw new ProtocolException("Bad hello magic: 0x" + Integer.toHexString(magic));
+        }
+        int version = src.get() & 0xFF;
+        if (version != VERSION) {
+            throw new ProtocolException("Unsupported hello version: " + version);
+        }
+        Side side = Side.fromId(src.get() & 0xFF);
+        src.getShort();
+        if (side == null) {
+            throw new ProtocolException("Hello claims unknown side");
+        }
+        return side;
+    }
+
+    static void writeReport(ByteBuffer dst, ReceiverReport report) {
+
+        dst.putInt(REPORT_MAGIC);
+        dst.put((byte) VERSION);
+        dst.put((byte) report.side.ordinal());
+        dst.putShort((short) 0);
+        dst.putInt(report.intervalMs);
+        dst.putInt(report.bytesReceived);
+        dst.putInt(report.framesReceived);
+        dst.putInt(report.framesLost);
+        dst.putInt(report.packetsLate);
+        dst.putInt(report.jitterUs);
+        dst.putInt(report.queueDepth);
+    }
+
+    /**
+     * Reads a report from src, which must have REPORT_SIZE bytes remaining, into
+     * report.
+     */
+    static void readReport(ByteBuffer src, ReceiverReport report) throws ProtocolException {
+
+        int magic = src.getInt();
+        if (magic != REPORT_MAGIC) {
+            throw new ProtocolException("Bad report magic: 0x" + Integer.toHexString(magic));
+        }
+        int version = src.get() & 0xFF;
+        if (version != VERSION) {
+            throw new ProtocolException("Unsupported report version: " + version);
+        }
+        Side side = Side.fromId(src.get() & 0xFF);
+        src.getShort();
+        if (side == null) {
+            throw new ProtocolException("Report for unknown side");
+        }
+        report.side = side;
+        report.intervalMs = src.getInt();
+        report.bytesReceived = src.getInt();
+        report.framesReceived = src.getInt();
+        report.framesLost = src.getInt();
+        report.packetsLate = src.getInt();
+        report.jitterUs = src.getInt();
+        report.queueDepth = src.getInt();
+    }
+
+    /**
+     * Size of a viewer-to-camera message from its magic, or -1 if the magic is not
+     * one of them.
+     */
+    static int feedbackMessageSize(int magic) {
+
+        switch (magic) {
+            case REPORT_MAGIC:
+                return REPORT_SIZE;
+            case CLOCK_PING_MAGIC:
+                return CLOCK_PING_SIZE;
+            case CODEC_OFFER_MAGIC:
+                return CODEC_OFFER_SIZE;
+            case VIDEO_MODE_MAGIC:
+                return VIDEO_MODE_SIZE;
+            default:
+                return -1;
+        }
+    }
+
+    static void writeClockPing(ByteBuffer dst, Side side, int pingId) {
+
+        dst.putInt(CLOCK_PING_MAGIC);
+        dst.put((byte) VERSION);
+        dst.put((byte) side.ordinal());
+        dst.putShort((short) pingId);
+    }
+
+    /**
+     * Reads a ping from src, which must have CLOCK_PING_SIZE bytes remaining, and
+     * returns its id.
+     */
+    static int readClockPing(ByteBuffer src) throws ProtocolException {
+
+        int magic = src.getInt();
+        if (magic != CLOCK_PING_MAGIC) {
+            throw new ProtocolException("Bad clock ping magic: 0x" + Integer.toHexString(magic));
+        }
+        int version = src.get() & 0xFF;
+        if (version != VERSION) {
+            throw new ProtocolException("Unsupported clock ping version: " + version);
+        }
+        src.get();
+        return src.getShort() & 0xFFFF;
+    }
+
+    static void writeCodecOffer(ByteBuffer dst, Side side, int codecs) {
+
+        dst.putInt(CODEC_OFFER_MAGIC);
+        dst.put((byte) VERSION);
+        dst.put((byte) side.ordinal());
+        dst.put((byte) codecs);
+        dst.put((byte) 0);
+    }
+
+    /**
+     * Reads a codec offer from src, which must have CODEC_OFFER_SIZE bytes
+     * remaining, and returns the VideoCodec bits offered.
+     */
+    static int readCodecOffer(ByteBuffer src) throws ProtocolException {
+
+        int magic = src.getInt();
+        if (magic != CODEC_OFFER_MAGIC) {
+            throw new ProtocolException("Bad codec offer magic: 0x" + Integer.toHexString(magic));
+        }
+        int version = src.get() & 0xFF;
+        if (version != VERSION) {
+            throw new ProtocolException("Unsupported codec offer version: " + version);
+        }
+        src.get();
+        int codecs = src.get() & 0xFF;
+        src.get();
+        return codecs;
+    }
+
+    static void writeVideoMode(ByteBuffer dst, Side side, VideoMode mode) {
+
+        dst.putInt(VIDEO_MODE_MAGIC);
+        dst.put((byte) VERSION);
+        dst.put((byte) side.ordinal());
+        dst.put((byte) mode.ordinal());
+        dst.put((byte) 0);
+    }
+
+    /**
+     * Reads a video mode request from src, which must have VIDEO_MODE_SIZE bytes
+     * remaining, and returns the mode asked for.
+     */
+    static VideoMode readVideoMode(ByteBuffer src) throws ProtocolException {
+
+        int magic = src.getInt();
+        if (magic != VIDEO_MODE_MAGIC) {
+            throw new ProtocolException("Bad video mode magic: 0x" + Integer.toHexString(magic));
+        }
+        int version = src.get() & 0xFF;
+        if (version != VERSION) {
+            throw new ProtocolException("Unsupported video mode version: " + version);
+        }
+        src.get();
+        VideoMode mode = VideoMode.fromId(src.get() & 0xFF);
+        src.get();
+        if (mode == null) {
+            throw new ProtocolException("Unknown video mode");
+        }
+        return mode;
+    }
+
+    static void writeCameraModes(ByteBuffer dst, Side side, int modes) {
+
+        dst.putInt(CAMERA_MODES_MAGIC);
+        dst.put((byte) VERSION);
+        dst.put((byte) side.ordinal());
+        dst.putShort((short) 0);
+        dst.putInt(modes);
+        dst.putInt(0);
+        dst.putLong(0);
+    }
+
+    /**
+     * Reads the modes a camera offers from src, which must have CAMERA_MODES_SIZE
+     * bytes remaining, and returns them as VideoMode bits.
+     */
+    static int readCameraModes(ByteBuffer src) throws ProtocolException {
+
+        int magic = src.getInt();
+        if (magic != CAMERA_MODES_MAGIC) {
+            throw new ProtocolException("Bad camera modes magic: 0x" + Integer.toHexString(magic));
+        }
+        int version = src.get() & 0xFF;
+        if (version != VERSION) {
+            throw new ProtocolException("Unsupported camera modes version: " + version);
+        }
+        src.get();
+        src.getShort();
+        int modes = src.getInt();
+        src.getInt();
+        src.getLong();
+        return modes & VideoMode.ALL;
+    }
+
+    static void writeEncoderSettings(ByteBuffer dst, EncoderSettings settings) {
+
+        dst.putInt(ENCODER_SETTINGS_MAGIC);
+        dst.put((byte) VERSION);
+        dst.put((byte) settings.side.ordinal());
+        dst.put((byte) settings.profile.ordinal());
+        dst.put((byte) settings.features);
+        dst.putInt(settings.intraRefreshFrames);
+        dst.putInt(settings.keyFrameIntervalMs);
+        dst.putInt(settings.bitrate);
+        dst.put((byte) settings.requestedFeatures);
+        dst.put((byte) 0);
+        dst.putShort((short) 0);
+    }
+
+    /**
+     * Reads encoder settings from src, which must have ENCODER_SETTINGS_SIZE
+     * bytes remaining, into settings.
+     */
+    static void readEncoderSettings(ByteBuffer src, EncoderSettings settings) throws ProtocolException {
+
+        int magic = src.getInt();
+        if (magic != ENCODER_SETTINGS_MAGIC) {
+            throw new ProtocolException("Bad encoder settings magic: 0x" + Integer.toHexString(magic));
+        }
+        int version = src.get() & 0xFF;
+        if (version != VERSION) {
+            throw new ProtocolException("Unsupported encoder settings version: " + version);
+        }
+        Side side = Side.fromId(src.get() & 0xFF);
+        EncoderProfile profile = EncoderProfile.fromId(src.get() & 0xFF);
+        settings.features = src.get() & 0xFF;
+        settings.intraRefreshFrames = src.getInt();
+        settings.keyFrameIntervalMs = src.getInt();
+        settings.bitrate = src.getInt();
+        settings.requestedFeatures = src.get() & 0xFF;
+        src.get();
+        src.getShort();
+        if (side == null || profile == null) {
+            throw new ProtocolException("Encoder settings for unknown side or profile");
+        }
+        settings.side = side;
+        settings.profile = profile;
+    }
+
+    static void writeClockReply(ByteBuffer dst, ClockReply reply) {
+
+        dst.putInt(CLOCK_REPLY_MAGIC);
+        dst.put((byte) VERSION);
+        dst.put((byte) reply.side.ordinal());
+        dst.putShort((short) reply.pingId);
+        dst.putLong(reply.receiveUs);
+        dst.putLong(reply.transmitUs);
+    }
+
+    /**
+     * Reads an answer to a clock ping from src, which must have CLOCK_REPLY_SIZE
+     * bytes remaining, into reply.
+     */
+    static void readClockReply(ByteBuffer src, ClockReply reply) throws ProtocolException {
+
+        int magic = src.getInt();
+        if (magic != CLOCK_REPLY_MAGIC) {
+            throw new ProtocolException("Bad clock reply magic: 0x" + Integer.toHexString(magic));
+        }
+        int version = src.get() & 0xFF;
+        if (version != VERSION) {
+            throw new ProtocolException("Unsupported clock reply version: " + version);
+        }
+        Side side = Side.fromId(src.get() & 0xFF);
+        if (side == null) {
+            throw new ProtocolException("Clock reply from unknown side");
+        }
+        reply.side = side;
+        reply.pingId = src.getShort() & 0xFFFF;
+        reply.receiveUs = src.getLong();
+        reply.transmitUs = src.getLong();
+    }
+
+    /**
+     * Writes the header for frame into dst at its current position. The payload
+     * length is taken from frame.payload.remaining().
+     */
+    static void writeHeader(ByteBuffer dst, Frame frame) {
+
+        dst.putInt(MAGIC);
+        dst.put((byte) VERSION);
+        dst.put((byte) frame.flags);
+        dst.put((byte) frame.streamId);
+        dst.put((byte) 0);
+        dst.putInt(frame.sequence);
+        dst.putLong(frame.ptsUs);
+        dst.putInt(frame.size());
+    }
+
+    /**
+     * Reads a header from src into frame and returns the payload length. src must
+     * have at least HEADER_SIZE bytes remaining.
+     */
+    static int readHeader(ByteBuffer src, Frame frame) throws ProtocolException {
+
+        int magic = src.getInt();
+        if (magic != MAGIC) {
+            throw new ProtocolException("Bad frame magic: 0x" + Integer.toHexString(magic));
+        }
+        int version = src.get() & 0xFF;
+        if (version != VERSION) {
+            throw new ProtocolException("Unsupported frame version: " + version);
+        }
+        frame.flags = src.get() & 0xFF;
+        frame.streamId = src.get() & 0xFF;
+        src.get();
+        frame.sequence = src.getInt();
+        frame.ptsUs = src.getLong();
+        int length = src.getInt();
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+            throw new ProtocolException("Bad frame length: " + length);
+        }
+        return length;
+    }
+}
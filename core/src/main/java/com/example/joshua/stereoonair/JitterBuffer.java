@@ -0,0 +1,240 @@
+package com.example.joshua.stereoonair;
+
+import java.util.ArrayList;
+
+/**
+ * Holds one eye's frames between the network and the decoder so that uneven
+ * arrival doesn't reach the screen. Frames are kept in sequence order and each is
+ * played out at
+ *
+ * <pre>
+ *   ptsUs + base transit + delay
+ * </pre>
+ *
+ * where the base transit is the quickest arrival (local clock minus capture time)
+ * seen over the last WINDOW frames, so neither the two clocks' offset nor their
+ * drift matters, and the delay follows the inter-arrival jitter (RFC 3550) between
+ * minDelayUs and maxDelayUs. A frame that turns up after its playout time is an
+ * underrun: it goes out straight away and the delay is raised at once. Lowering
+ * it again happens a little at a time so playout doesn't lurch. A frame that
+ * arrives once its successor has already gone out is no use to the decoder and
+ * is dropped as late.
+ *
+ * Codec config and frames without a capture time (the raw Annex B stream) skip
+ * the buffer and go out in sequence as soon as they arrive. Codec config from
+ * behind the last frame played, or a sequence far behind it, means the camera
+ * started over, and the buffer does too.
+ *
+ * offer() and poll() belong to the decoder's thread; the getters may be called
+ * from any thread.
+ */
+class JitterBuffer {
+
+    private final static int WINDOW = 128;
+    // Playout waits this many times the measured jitter
+    private final static int JITTER_MULTIPLIER = 3;
+    // How much of the gap to the target a lower delay closes per frame
+    private final static int DECAY_DIVISOR = 64;
+    private final static long UNDERRUN_STEP_US = 5_000;
+
+    private final long minDelayUs;
+    private final long maxDelayUs;
+    private final ArrayList<Frame> frames = new ArrayList<>();
+
+    private final long[] transitUs = new long[WINDOW];
+    private int transitCount = 0;
+    private int nextTransit = 0;
+    private long baseTransitUs = 0;
+    private boolean hasLastTransit = false;
+    private long lastTransitUs = 0;
+    private double jitter = 0;
+
+    private boolean released = false;
+    private int lastReleasedSequence = 0;
+
+    private volatile long delayUs;
+    private volatile long jitterUs = 0;
+    private volatile int size = 0;
+    private volatile long underrunCount = 0;
+    private volatile long lateDropCount = 0;
+    private volatile long releasedCount = 0;
+
+    JitterBuffer(long minDelayUs, long maxDelayUs) {
+
+        if (minDelayUs < 0 || minDelayUs > maxDelayUs) {
+            throw new IllegalArgumentException("Bad playout delay range: " + minDelayUs + " - " + maxDelayUs);
+        }
+        this.minDelayUs = minDelayUs;
+        this.maxDelayUs = maxDelayUs;
+        delayUs = minDelayUs;
+    }
+
+    /**
+     * Takes a frame that arrived at nowUs. Returns false if it came too late to
+     * be played and was dropped.
+     */
+    boolean offer(Frame frame, long nowUs) {
+
+        if (released && frame.sequence - lastReleasedSequence <= 0) {
+            if (frame.isCodecConfig() || lastReleasedSequence - frame.sequence > WINDOW) {
+                // The camera has started a new stream, its sequence from scratch
+                clear();
+            } else {
+                lateDropCount++;
+                return false;
+            }
+        }
+
+        int position = frames.size();
+        while (position > 0 && frames.get(position - 1).sequence - frame.sequence > 0) {
+            position--;
+        }
+        if (position > 0 && frames.get(position - 1).sequence == frame.sequence) {
+            // A duplicate
+            lateDropCount++;
+            return false;
+        }
+        frames.add(position, frame);
+        size = frames.size();
+
+        if (isTimed(frame)) {
+            onArrival(frame, nowUs);
+        }
+        return true;
+    }
+
+    /** Returns the next frame if it is due at nowUs, or null. */
+    Frame poll(long nowUs) {
+
+        if (frames.isEmpty() || playoutUs(frames.get(0)) > nowUs) {
+            return null;
+        }
+        Frame frame = frames.remove(0);
+        size = frames.size();
+        released = true;
+        lastReleasedSequence = frame.sequence;
+        releasedCount++;
+        return frame;
+    }
+
+    /** When the next frame is due, or Long.MAX_VALUE if there is none. */
+    long nextPlayoutUs() {
+        return frames.isEmpty() ? Long.MAX_VALUE : playoutUs(frames.get(0));
+    }
+
+    boolean isEmpty() {
+        return frames.isEmpty();
+    }
+
+    /**
+     * Drops the frames held ahead of the newest key frame, codec config aside,
+     * so that playout goes straight on from it. Returns how many were dropped,
+     * 0 if no key frame is held.
+     */
+    int skipToLastKeyFrame() {
+
+        int keyFrame = frames.size() - 1;
+        while (keyFrame >= 0 && ! frames.get(keyFrame).isKeyFrame()) {
+            keyFrame--;
+        }
+        int skipped = 0;
+        for (int i = keyFrame - 1; i >= 0; i--) {
+            if (! frames.get(i).isCodecConfig()) {
+                frames.remove(i);
+                skipped++;
+            }
+        }
+        size = frames.size();
+        return skipped;
+    }
+
+    /** The newest capture time held, or Long.MIN_VALUE if nothing is. */
+    long newestPtsUs() {
+
+        long newest = Long.MIN_VALUE;
+        for (int i = 0; i < frames.size(); i++) {
+            newest = Math.max(newest, frames.get(i).ptsUs);
+        }
+        return newest;
+    }
+
+    /** Empties the buffer and starts timing afresh, e.g. after a reconnect. */
+    void clear() {
+
+        frames.clear();
+        size = 0;
+        released = false;
+        transitCount = 0;
+        nextTransit = 0;
+        hasLastTransit = false;
+    }
+
+    /** The playout delay currently added on top of the quickest transit. */
+    long delayUs() {
+        return delayUs;
+    }
+
+    long jitterUs() {
+        return jitterUs;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long underrunCount() {
+        return underrunCount;
+    }
+
+    long lateDropCount() {
+        return lateDropCount;
+    }
+
+    long releasedCount() {
+        return releasedCount;
+    }
+
+    private static boolean isTimed(Frame frame) {
+        return ! frame.isCodecConfig() && frame.ptsUs > 0;
+    }
+
+    private long playoutUs(Frame frame) {
+        return isTimed(frame) ? frame.ptsUs + baseTransitUs + delayUs : Long.MIN_VALUE;
+    }
+
+    private void onArrival(Frame frame, long nowUs) {
+
+        long transit = nowUs - frame.ptsUs;
+        if (hasLastTransit) {
+            jitter += (Math.abs(transit - lastTransitUs) - jitter) / 16;
+            jitterUs = (long) jitter;
+        }
+        hasLastTransit = true;
+        lastTransitUs = transit;
+
+        transitUs[nextTransit] = transit;
+        nextTransit = (nextTransit + 1) % WINDOW;
+        transitCount = Math.min(transitCount + 1, WINDOW);
+        long base = Long.MAX_VALUE;
+        for (int i = 0; i < transitCount; i++) {
+            base = Math.min(base, transitUs[i]);
+        }
+        baseTransitUs = base;
+
+        long target = clamp((long) (JITTER_MULTIPLIER * jitter));
+        if (released && frame.ptsUs + baseTransitUs + delayUs < nowUs) {
+            // The decoder went without this frame for a while
+            underrunCount++;
+            target = Math.max(target, clamp(delayUs + UNDERRUN_STEP_US));
+        }
+        if (target > delayUs) {
+            delayUs = target;
+        } else {
+            delayUs = clamp(delayUs - (delayUs - target) / DECAY_DIVISOR);
+        }
+    }
+
+    private long clamp(long value) {
+        return Math.max(minDelayUs, Math.min(maxDelayUs, value));
+    }
+}
@@ -0,0 +1,128 @@
+package com.example.joshua.stereoonair;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size histogram of latencies in microseconds, laid out like an
+ * HdrHistogram: values below 64 get a bucket each, and every power of two above
+ * that is split into 32 buckets, so any value is off by at most 1/32 (about 3%)
+ * from where it is counted, from 1 us up to MAX_VALUE_US, in about 8 KB.
+ *
+ * record() neither locks nor allocates and may be called from any number of
+ * threads; readers see a snapshot that may be a few values out of step.
+ */
+class LatencyHistogram {
+
+    private final static int SUB_BUCKET_BITS = 6;
+    private final static int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private final static int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+    // Longer than anything worth measuring here: about 19 hours
+    final static long MAX_VALUE_US = (1L << 36) - 1;
+    private final static int BUCKET_COUNT = indexOf(MAX_VALUE_US) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong totalUs = new AtomicLong();
+    private final AtomicLong maxUs = new AtomicLong();
+
+    /** Counts one latency. Negative values count as 0, huge ones as MAX_VALUE_US. */
+    void record(long valueUs) {
+
+        long value = Math.max(0, Math.min(MAX_VALUE_US, valueUs));
+        counts.incrementAndGet(indexOf(value));
+        totalCount.incrementAndGet();
+        totalUs.addAndGet(value);
+        long max;
+        while (value > (max = maxUs.get()) && ! maxUs.compareAndSet(max, value)) {
+            // Lost a race with another writer; look again
+        }
+    }
+
+    long count() {
+        return totalCount.get();
+    }
+
+    long maxUs() {
+        return maxUs.get();
+    }
+
+    long meanUs() {
+
+        long count = totalCount.get();
+        return count == 0 ? 0 : totalUs.get() / count;
+    }
+
+    /**
+     * The latency that percentile percent of recorded values are at or below,
+     * reported as the top of its bucket like HdrHistogram does. 0 if empty.
+     */
+    long percentileUs(double percent) {
+
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += counts.get(i);
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percent / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(maxUs.get(), highestEquivalent(i));
+            }
+        }
+        return maxUs.get();
+    }
+
+    void reset() {
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+        totalCount.set(0);
+        totalUs.set(0);
+        maxUs.set(0);
+    }
+
+    /** Calls back with the range and count of every non-empty bucket, in order. */
+    void forEachBucket(OnBucketCallback callback) {
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long count = counts.get(i);
+            if (count > 0) {
+                callback.onBucket(lowestEquivalent(i), highestEquivalent(i), count);
+            }
+        }
+    }
+
+    static abstract class OnBucketCallback {
+        abstract void onBucket(long fromUs, long toUs, long count);
+    }
+
+    static int indexOf(long value) {
+
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        // Shift that brings value into [SUB_BUCKET_HALF, SUB_BUCKET_COUNT)
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return shift * SUB_BUCKET_HALF + (int) (value >> shift);
+    }
+
+    static long lowestEquivalent(int index) {
+
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_HALF - 1;
+        long subBucket = index % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+        return subBucket << shift;
+    }
+
+    static long highestEquivalent(int index) {
+        return lowestEquivalent(index + 1) - 1;
+    }
+}
@@ -0,0 +1,134 @@
+package com.example.joshua.stereoonair;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Where the time between capture and display goes. At each stage boundary a
+ * frame's age since capture is recorded into that stage's LatencyHistogram,
+ * together with the frame and its size for throughput, so the cost of a stage is
+ * the step from the boundary before it. The camera records its two stages on its
+ * own clock; the viewer records the rest on its clock, with capture times mapped
+ * across by ClockSync, and only once that is synchronized.
+ *
+ * Recording is lock-free and allocation-free; summary() and dump() may be called
+ * from any thread at any time.
+ */
+class PipelineMetrics {
+
+    enum Stage {
+        ENCODED("encoder output"),
+        SENT("network send"),
+        RECEIVED("viewer receive"),
+        DECODER_INPUT("decoder input"),
+        DECODED("decoder output"),
+        RENDERED("render");
+
+        final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+    }
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Stage.values().length];
+    private final AtomicLongArray frames = new AtomicLongArray(Stage.values().length);
+    private final AtomicLongArray bytes = new AtomicLongArray(Stage.values().length);
+    private volatile long startNanos;
+
+    PipelineMetrics(long nowNanos) {
+
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+        startNanos = nowNanos;
+    }
+
+    /** A frame of size bytes (0 if not known) reached stage ageUs after capture. */
+    void record(Stage stage, long ageUs, int size) {
+
+        histograms[stage.ordinal()].record(ageUs);
+        frames.incrementAndGet(stage.ordinal());
+        bytes.addAndGet(stage.ordinal(), size);
+    }
+
+    LatencyHistogram histogram(Stage stage) {
+        return histograms[stage.ordinal()];
+    }
+
+    long frames(Stage stage) {
+        return frames.get(stage.ordinal());
+    }
+
+    double framesPerSecond(Stage stage, long nowNanos) {
+
+        long elapsed = nowNanos - startNanos;
+        return elapsed <= 0 ? 0 : frames.get(stage.ordinal()) * 1e9 / elapsed;
+    }
+
+    double bitsPerSecond(Stage stage, long nowNanos) {
+
+        long elapsed = nowNanos - startNanos;
+        return elapsed <= 0 ? 0 : bytes.get(stage.ordinal()) * 8e9 / elapsed;
+    }
+
+    /** Starts every histogram and rate afresh, e.g. before and after a tuning change. */
+    void reset(long nowNanos) {
+
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i].reset();
+            frames.set(i, 0);
+            bytes.set(i, 0);
+        }
+        startNanos = nowNanos;
+    }
+
+    /** One line per stage that has seen a frame: percentiles in ms and throughput. */
+    String summary(long nowNanos) {
+
+        StringBuilder summary = new StringBuilder();
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram histogram = histograms[stage.ordinal()];
+            if (histogram.count() == 0) {
+                continue;
+            }
+            if (summary.length() > 0) {
+                summary.append('\n');
+            }
+            summary.append(String.format(Locale.US, "%-15s p50 %6.1f p99 %6.1f p99.9 %6.1f max %6.1f ms %5.1f fps",
+                    stage.label,
+                    histogram.percentileUs(50) / 1000.0, histogram.percentileUs(99) / 1000.0,
+                    histogram.percentileUs(99.9) / 1000.0, histogram.maxUs() / 1000.0,
+                    framesPerSecond(stage, nowNanos)));
+            if (bytes.get(stage.ordinal()) > 0) {
+                summary.append(String.format(Locale.US, " %6.0f kbit/s", bitsPerSecond(stage, nowNanos) / 1000));
+            }
+        }
+        return summary.toString();
+    }
+
+    /** Writes summary() followed by every stage's full distribution. */
+    void dump(final Writer writer, long nowNanos) throws IOException {
+
+        writer.write(summary(nowNanos));
+        writer.write('\n');
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram histogram = histograms[stage.ordinal()];
+            if (histogram.count() == 0) {
+                continue;
+            }
+            writer.write("\n# " + stage.label + ", age since capture in us: from to count\n");
+            final StringBuilder lines = new StringBuilder();
+            histogram.forEachBucket(new LatencyHistogram.OnBucketCallback() {
+                @Override
+                void onBucket(long fromUs, long toUs, long count) {
+                    lines.append(fromUs).append(' ').append(toUs).append(' ').append(count).append('\n');
+                }
+            });
+            writer.write(lines.toString());
+        }
+        writer.flush();
+    }
+}
@@ -0,0 +1,45 @@
+package com.example.joshua.stereoonair;
+
+/**
+ * What the viewer saw of one camera's stream over the last report interval.
+ * Sent back to the camera, which feeds it to its BitrateController.
+ */
+class ReceiverReport {
+
+    Side side;
+    int intervalMs;
+    int bytesReceived;
+    int framesReceived;
+    int framesLost;
+    int packetsLate;
+    int jitterUs;
+    int queueDepth;
+
+    ReceiverReport() { }
+
+    ReceiverReport(Side side, int intervalMs, int bytesReceived, int framesReceived,
+                   int framesLost, int packetsLate, int jitterUs, int queueDepth) {
+
+        this.side = side;
+        this.intervalMs = intervalMs;
+        this.bytesReceived = bytesReceived;
+        this.framesReceived = framesReceived;
+        this.framesLost = framesLost;
+        this.packetsLate = packetsLate;
+        this.jitterUs = jitterUs;
+        this.queueDepth = queueDepth;
+    }
+
+    /** Bits per second that arrived during the interval. */
+    long receiveRate() {
+        return intervalMs > 0 ? bytesReceived * 8000L / intervalMs : 0;
+    }
+
+    @Override
+    public String toString() {
+
+        return side + " " + receiveRate() / 1000 + " kbit/s " + framesReceived + " frames "
+                + framesLost + " lost " + packetsLate + " late " + jitterUs / 1000 + " ms jitter "
+                + queueDepth + " queued";
+    }
+}
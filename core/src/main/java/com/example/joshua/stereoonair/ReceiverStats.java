@@ -0,0 +1,76 @@
+package com.example.joshua.stereoonair;
+
+/**
+ * Collects what goes into a ReceiverReport for one eye. Inter-arrival jitter is
+ * estimated as in RFC 3550: the difference between how far apart two frames
+ * arrived and how far apart they were captured, smoothed with a gain of 1/16.
+ *
+ * Not thread-safe; the caller supplies the clock so tests can run without one.
+ */
+class ReceiverStats {
+
+    private final Side side;
+    private long intervalStartNanos;
+    private int bytesReceived = 0;
+    private int framesReceived = 0;
+    private long lastLost = 0;
+    private long lastLate = 0;
+
+    private boolean haveFrame = false;
+    private long lastArrivalUs;
+    private long lastPtsUs;
+    private double jitterUs = 0;
+
+    ReceiverStats(Side side, long nowNanos) {
+
+        this.side = side;
+        intervalStartNanos = nowNanos;
+    }
+
+    void onBytes(int count) {
+        bytesReceived += count;
+    }
+
+    void onFrame(Frame frame, long nowNanos) {
+
+        framesReceived++;
+        if (frame.isCodecConfig()) {
+            return;
+        }
+        long arrivalUs = nowNanos / 1000;
+        if (haveFrame) {
+            long transit = (arrivalUs - lastArrivalUs) - (frame.ptsUs - lastPtsUs);
+            jitterUs += (Math.abs(transit) - jitterUs) / 16;
+        }
+        haveFrame = true;
+        lastArrivalUs = arrivalUs;
+        lastPtsUs = frame.ptsUs;
+    }
+
+    long intervalStartNanos() {
+        return intervalStartNanos;
+    }
+
+    /**
+     * Fills report with the interval that ends now and starts the next one.
+     * totalLost and totalLate are running totals; the report gets what was added
+     * since the last call.
+     */
+    void finishInterval(ReceiverReport report, long nowNanos, int queueDepth, long totalLost, long totalLate) {
+
+        report.side = side;
+        report.intervalMs = (int) ((nowNanos - intervalStartNanos) / 1_000_000);
+        report.bytesReceived = bytesReceived;
+        report.framesReceived = framesReceived;
+        report.framesLost = (int) (totalLost - lastLost);
+        report.packetsLate = (int) (totalLate - lastLate);
+        report.jitterUs = (int) jitterUs;
+        report.queueDepth = queueDepth;
+
+        intervalStartNanos = nowNanos;
+        bytesReceived = 0;
+        framesReceived = 0;
+        lastLost = totalLost;
+        lastLate = totalLate;
+    }
+}
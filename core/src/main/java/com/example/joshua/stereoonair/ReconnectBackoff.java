@@ -0,0 +1,53 @@
+package com.example.joshua.stereoonair;
+
+import java.util.Random;
+
+/**
+ * How long to wait before each attempt to reconnect: initialMillis, doubling
+ * with every failed attempt up to maxMillis. Each wait is shortened by a random
+ * part of up to a quarter so both cameras losing the viewer at once don't come
+ * back in lockstep. reset() once a connection is back up.
+ */
+class ReconnectBackoff {
+
+    private final long initialMillis;
+    private final long maxMillis;
+    private final Random random;
+    private long nextMillis;
+    private int attempts = 0;
+
+    ReconnectBackoff(long initialMillis, long maxMillis) {
+        this(initialMillis, maxMillis, new Random());
+    }
+
+    ReconnectBackoff(long initialMillis, long maxMillis, Random random) {
+
+        if (initialMillis <= 0 || initialMillis > maxMillis) {
+            throw new IllegalArgumentException("Bad backoff range: " + initialMillis + " - " + maxMillis);
+        }
+        this.initialMillis = initialMillis;
+        this.maxMillis = maxMillis;
+        this.random = random;
+        nextMillis = initialMillis;
+    }
+
+    /** Returns the wait before the next attempt and counts the attempt. */
+    long nextDelayMillis() {
+
+        long delay = nextMillis - (long) (random.nextDouble() * nextMillis / 4);
+        nextMillis = Math.min(maxMillis, nextMillis * 2);
+        attempts++;
+        return delay;
+    }
+
+    /** Attempts since the last reset(). */
+    int attempts() {
+        return attempts;
+    }
+
+    void reset() {
+
+        nextMillis = initialMillis;
+        attempts = 0;
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.joshua.stereoonair;
+
+import java.io.IOException;
+
+/**
+ * Plays a RecordingStore back into the decoders' rings as if the frames were
+ * arriving again: from fromUs, with the gaps between arrivals as recorded, up to
+ * untilUs or the end of the recording. Recorded times are moved forward to now,
+ * capture times included, so the jitter buffers and pairing downstream see a
+ * stream on the viewer's clock like any other. Frames without a capture time
+ * stay without one. Nothing is decoded or encoded on the way.
+ *
+ * run() returns when playback is over or its thread is interrupted, and calls
+ * onFinished() either way.
+ */
+class RecordingPlayer implements Runnable {
+
+    static abstract class OnPlaybackCallback {
+        abstract void onFinished(long framesPlayed, IOException exception);
+    }
+
+    private final RecordingStore store;
+    private final long fromUs;
+    private final long untilUs;
+    private final SpscRing<Frame> leftRing;
+    private final SpscRing<Frame> rightRing;
+    private final OnPlaybackCallback callback;
+    private volatile long framesPlayed = 0;
+
+    RecordingPlayer(RecordingStore store, long fromUs, long untilUs,
+                    SpscRing<Frame> leftRing, SpscRing<Frame> rightRing, OnPlaybackCallback callback) {
+
+        this.store = store;
+        this.fromUs = fromUs;
+        this.untilUs = untilUs;
+        this.leftRing = leftRing;
+        this.rightRing = rightRing;
+        this.callback = callback;
+    }
+
+    @Override
+    public void run() {
+
+        IOException failure = null;
+        try {
+            play();
+        } catch (IOException exception) {
+            failure = exception;
+        } catch (InterruptedException exception) {
+            // Stopped
+        }
+        callback.onFinished(framesPlayed, failure);
+    }
+
+    private void play() throws IOException, InterruptedException {
+
+        RecordingStore.Cursor cursor = store.seek(fromUs);
+        if (cursor == null) {
+            return;
+        }
+        long shiftUs = 0;
+        boolean first = true;
+        Frame frame;
+        while ((frame = cursor.next()) != null && cursor.arrivalUs <= untilUs) {
+            if (first) {
+                first = false;
+                shiftUs = clockUs() - cursor.arrivalUs;
+            }
+            long dueUs = cursor.arrivalUs + shiftUs;
+            long waitUs = dueUs - clockUs();
+            if (waitUs > 0) {
+                Thread.sleep(waitUs / 1000, (int) (waitUs % 1000) * 1000);
+            }
+            frame.ptsUs = cursor.captureUs > 0 ? cursor.captureUs + shiftUs : 0;
+            (cursor.side == Side.LEFT ? leftRing : rightRing).put(frame);
+            framesPlayed++;
+        }
+    }
+
+    private static long clockUs() {
+        return System.nanoTime() / 1000;
+    }
+
+    long framesPlayed() {
+        return framesPlayed;
+    }
+}
@@ -0,0 +1,611 @@
+package com.example.joshua.stereoonair;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Log of both eyes' encoded frames as the viewer received them, kept in
+ * fixed-size segment files that are sized up front and memory-mapped, so
+ * appending a frame is a copy into mapped memory and never a system call. A
+ * segment is laid out as
+ *
+ * <pre>
+ *  0  magic      int   'S' 'O' 'A' 'S'
+ *  4  version    byte
+ *  5  reserved   3 bytes
+ *  8  number     long  segments are numbered from 0 in recording order
+ * 16  records, each:
+ *      0  FrameProtocol frame header, its streamId the Side and its reserved
+ *         byte 1 for a codec config repeated at the start of a segment
+ *     24  arrivalUs  long  viewer clock
+ *     32  captureUs  long  capture time on the viewer clock, 0 if not known
+ *     40  payload
+ * </pre>
+ *
+ * and ends at the first record that doesn't start with the frame magic. Each
+ * segment opens with the codec config in force for each eye, so it can be
+ * decoded without the ones before it.
+ *
+ * Every key frame's arrival time and position go into a small in-memory index,
+ * with the position of the codec config that goes with it, so playback can
+ * start from any point (seek()). open() rebuilds the index from the headers.
+ *
+ * With maxSegments set the store is a ring for instant replay: once it holds
+ * that many, the oldest is renamed and written over. Otherwise segments are
+ * added for as long as the recording runs, each unmapped once it is full.
+ *
+ * append() and close() belong to one writer thread. Cursors may be used from
+ * other threads while it writes.
+ */
+class RecordingStore {
+
+    final static int SEGMENT_MAGIC = 0x534F4153;
+    final static int VERSION = 1;
+    final static int SEGMENT_HEADER_SIZE = 16;
+    final static int RECORD_HEADER_SIZE = FrameProtocol.HEADER_SIZE + 16;
+    private final static String SUFFIX = ".soa";
+    private final static int INITIAL_INDEX_CAPACITY = 256;
+
+    /** One segment file and the index of the key frames in it. */
+    private static class Segment {
+
+        File file;
+        volatile long number;
+        // Null once a full segment of an unbounded recording has been unmapped
+        volatile MappedByteBuffer buffer;
+        // End of the last complete record; cursors read up to here
+        volatile int end = SEGMENT_HEADER_SIZE;
+        volatile boolean full = false;
+
+        // Key frames of both eyes in arrival order. The arrays are only replaced,
+        // grown, before keyCount is raised, so a reader that reads keyCount first
+        // finds every entry it counts.
+        long[] keyArrivalUs = new long[INITIAL_INDEX_CAPACITY];
+        int[] keyOffset = new int[INITIAL_INDEX_CAPACITY];
+        int[] keyConfigOffset = new int[INITIAL_INDEX_CAPACITY];
+        byte[] keySide = new byte[INITIAL_INDEX_CAPACITY];
+        volatile int keyCount = 0;
+        // Where each eye's latest codec config in this segment is, or -1
+        final int[] configOffset = { -1, -1 };
+
+        Segment(File file, long number, MappedByteBuffer buffer) {
+
+            this.file = file;
+            this.number = number;
+            this.buffer = buffer;
+        }
+
+        void addKey(Side side, long arrivalUs, int offset) {
+
+            int count = keyCount;
+            if (count == keyOffset.length) {
+                keyArrivalUs = Arrays.copyOf(keyArrivalUs, 2 * count);
+                keyOffset = Arrays.copyOf(keyOffset, 2 * count);
+                keyConfigOffset = Arrays.copyOf(keyConfigOffset, 2 * count);
+                keySide = Arrays.copyOf(keySide, 2 * count);
+            }
+            keyArrivalUs[count] = arrivalUs;
+            keyOffset[count] = offset;
+            keyConfigOffset[count] = configOffset[side.ordinal()];
+            keySide[count] = (byte) side.ordinal();
+            keyCount = count + 1;
+        }
+
+        void reset(long number) {
+
+            keyCount = 0;
+            end = SEGMENT_HEADER_SIZE;
+            full = false;
+            configOffset[0] = -1;
+            configOffset[1] = -1;
+            this.number = number;
+        }
+
+        /** The segment's bytes, mapped again for reading if it has been unmapped. */
+        ByteBuffer view() throws IOException {
+
+            MappedByteBuffer mapped = buffer;
+            if (mapped != null) {
+                return mapped.duplicate();
+            }
+            try (RandomAccessFile file = new RandomAccessFile(this.file, "r")) {
+                return file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            }
+        }
+    }
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final boolean writable;
+    // Oldest first; replaced, never changed, when a segment is added or recycled
+    private volatile Segment[] segments;
+    private Segment current;
+    // The latest codec config of each eye, written again at the start of every segment
+    private final Frame[] codecConfigs = new Frame[Side.values().length];
+
+    private volatile long framesWritten = 0;
+    private volatile long bytesWritten = 0;
+    private volatile long framesTooLarge = 0;
+    private volatile long segmentsRecycled = 0;
+
+    /**
+     * Starts a new recording in directory, deleting any segments already there.
+     * maxSegments of 0 keeps every segment; otherwise the store is a ring of that
+     * many, at least two.
+     */
+    RecordingStore(File directory, int segmentSize, int maxSegments) throws IOException {
+
+        if (segmentSize <= SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE || maxSegments < 0 || maxSegments == 1) {
+            throw new IllegalArgumentException("Bad recording layout: " + maxSegments + " x " + segmentSize);
+        }
+        if (! directory.isDirectory() && ! directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        for (File file : segmentFiles(directory)) {
+            if (! file.delete()) {
+                throw new IOException("Cannot delete " + file);
+            }
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        writable = true;
+        segments = new Segment[0];
+    }
+
+    private RecordingStore(File directory, Segment[] segments) {
+
+        this.directory = directory;
+        this.segments = segments;
+        segmentSize = 0;
+        maxSegments = 0;
+        writable = false;
+    }
+
+    /** Opens a finished recording for playback, indexing it from its headers. */
+    static RecordingStore open(File directory) throws IOException {
+
+        List<Segment> segments = new ArrayList<>();
+        for (File file : segmentFiles(directory)) {
+            Segment segment = load(file);
+            if (segment != null) {
+                segments.add(segment);
+            }
+        }
+        Collections.sort(segments, new Comparator<Segment>() {
+            @Override
+            public int compare(Segment a, Segment b) {
+                return Long.compare(a.number, b.number);
+            }
+        });
+        return new RecordingStore(directory, segments.toArray(new Segment[0]));
+    }
+
+    private static File[] segmentFiles(File directory) {
+
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+        List<File> segmentFiles = new ArrayList<>();
+        for (File file : files) {
+            if (file.getName().endsWith(SUFFIX)) {
+                segmentFiles.add(file);
+            }
+        }
+        return segmentFiles.toArray(new File[0]);
+    }
+
+    /** Maps and indexes a segment file, or returns null if it isn't one. */
+    private static Segment load(File file) throws IOException {
+
+        MappedByteBuffer buffer;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.length() < SEGMENT_HEADER_SIZE || raf.length() > Integer.MAX_VALUE) {
+                return null;
+            }
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+        if (buffer.getInt(0) != SEGMENT_MAGIC || (buffer.get(4) & 0xFF) != VERSION) {
+            return null;
+        }
+        Segment segment = new Segment(file, buffer.getLong(8), buffer);
+        int offset = SEGMENT_HEADER_SIZE;
+        while (offset + RECORD_HEADER_SIZE <= buffer.capacity() && buffer.getInt(offset) == FrameProtocol.MAGIC) {
+            int length = buffer.getInt(offset + 20);
+            Side side = Side.fromId(buffer.get(offset + 6) & 0xFF);
+            if (length < 0 || side == null || length > buffer.capacity() - offset - RECORD_HEADER_SIZE) {
+                break;
+            }
+            index(segment, side, buffer.get(offset + 5) & 0xFF, buffer.getLong(offset + 24), offset);
+            offset += RECORD_HEADER_SIZE + length;
+        }
+        segment.end = offset;
+        segment.full = true;
+        return segment;
+    }
+
+    private static void index(Segment segment, Side side, int flags, long arrivalUs, int offset) {
+
+        if ((flags & Frame.FLAG_CODEC_CONFIG) != 0) {
+            segment.configOffset[side.ordinal()] = offset;
+        } else if ((flags & Frame.FLAG_KEY_FRAME) != 0) {
+            segment.addKey(side, arrivalUs, offset);
+        }
+    }
+
+    /**
+     * Appends side's frame, which arrived at arrivalUs and was captured at
+     * captureUs (0 if not known), both on the viewer's clock. Returns false if
+     * the frame is too big for a segment and was left out.
+     */
+    boolean append(Side side, Frame frame, long arrivalUs, long captureUs) throws IOException {
+
+        if (! writable) {
+            throw new IllegalStateException("Recording in " + directory + " is open for playback only");
+        }
+        int recordSize = RECORD_HEADER_SIZE + frame.size();
+        if (recordSize > segmentSize - SEGMENT_HEADER_SIZE - configSize()) {
+            framesTooLarge++;
+            return false;
+        }
+        if (current == null || current.end + recordSize > segmentSize) {
+            startSegment(arrivalUs);
+        }
+        write(current, side, frame, arrivalUs, captureUs, false);
+        if (frame.isCodecConfig()) {
+            codecConfigs[side.ordinal()] = CodecConfig.copyOf(frame);
+        }
+        framesWritten++;
+        bytesWritten += recordSize;
+        return true;
+    }
+
+    private int configSize() {
+
+        int size = 0;
+        for (Frame config : codecConfigs) {
+            if (config != null) {
+                size += RECORD_HEADER_SIZE + config.size();
+            }
+        }
+        return size;
+    }
+
+    private void write(Segment segment, Side side, Frame frame, long arrivalUs, long captureUs, boolean repeat) {
+
+        ByteBuffer out = segment.buffer;
+        int offset = segment.end;
+        out.position(offset);
+        FrameProtocol.writeHeader(out, frame);
+        out.put(offset + 6, (byte) side.ordinal());
+        out.put(offset + 7, (byte) (repeat ? 1 : 0));
+        out.putLong(arrivalUs);
+        out.putLong(captureUs);
+        out.put(frame.payload.duplicate());
+        int end = out.position();
+        if (end + 4 <= out.capacity()) {
+            // A segment being written over still holds old records past here
+            out.putInt(end, 0);
+        }
+        index(segment, side, frame.flags, arrivalUs, offset);
+        segment.end = end;
+    }
+
+    /** Moves on to a fresh segment, or to the oldest one in a full ring. */
+    private void startSegment(long arrivalUs) throws IOException {
+
+        long number = 0;
+        if (current != null) {
+            number = current.number + 1;
+            current.full = true;
+            if (maxSegments == 0) {
+                current.buffer.force();
+                current.buffer = null;
+            }
+        }
+
+        Segment[] list = segments;
+        Segment segment;
+        File file = new File(directory, String.format("%08d%s", number, SUFFIX));
+        if (maxSegments > 0 && list.length == maxSegments) {
+            segment = list[0];
+            segment.reset(number);
+            if (! segment.file.renameTo(file)) {
+                throw new IOException("Cannot rename " + segment.file + " to " + file);
+            }
+            segment.file = file;
+            list = Arrays.copyOfRange(list, 1, list.length + 1);
+            segmentsRecycled++;
+        } else {
+            MappedByteBuffer buffer;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(segmentSize);
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            }
+            segment = new Segment(file, number, buffer);
+            list = Arrays.copyOf(list, list.length + 1);
+        }
+
+        ByteBuffer out = segment.buffer;
+        out.putInt(0, SEGMENT_MAGIC);
+        out.put(4, (byte) VERSION);
+        out.putLong(8, number);
+        out.putInt(SEGMENT_HEADER_SIZE, 0);
+        list[list.length - 1] = segment;
+        segments = list;
+        current = segment;
+
+        for (Side side : Side.values()) {
+            Frame config = codecConfigs[side.ordinal()];
+            if (config != null) {
+                write(segment, side, config, arrivalUs, 0, true);
+            }
+        }
+    }
+
+    /** Flushes what has been written to the file system. */
+    void close() throws IOException {
+
+        if (current != null) {
+            current.buffer.force();
+            current.full = true;
+        }
+    }
+
+    /**
+     * A cursor at the latest point from which both eyes can be played by
+     * arrivalUs: each eye's last key frame at or before it, or its first one if
+     * there is none that early, and the earlier of the two. Returns null if
+     * nothing decodable has been recorded. In a full ring the oldest segment,
+     * the next to be written over, is left out.
+     */
+    Cursor seek(long arrivalUs) throws IOException {
+
+        Segment[] list = segments;
+        int first = maxSegments > 0 && list.length == maxSegments ? 1 : 0;
+        Cursor cursor = new Cursor();
+        for (Side side : Side.values()) {
+            Segment found = null;
+            int foundOffset = -1;
+            int foundConfigOffset = -1;
+            search:
+            for (int s = list.length - 1; s >= first; s--) {
+                Segment segment = list[s];
+                // Count first: the arrays are at least as new
+                int count = segment.keyCount;
+                long[] keyArrivalUs = segment.keyArrivalUs;
+                int[] keyOffset = segment.keyOffset;
+                int[] keyConfigOffset = segment.keyConfigOffset;
+                byte[] keySide = segment.keySide;
+                for (int k = count - 1; k >= 0; k--) {
+                    if (keySide[k] == side.ordinal()) {
+                        // Going on back to the very first if none is early enough
+                        found = segment;
+                        foundOffset = keyOffset[k];
+                        foundConfigOffset = keyConfigOffset[k];
+                        if (keyArrivalUs[k] <= arrivalUs) {
+                            break search;
+                        }
+                    }
+                }
+            }
+            if (found != null) {
+                cursor.startAt(side, found, foundOffset, foundConfigOffset);
+            }
+        }
+        return cursor.segment != null ? cursor : null;
+    }
+
+    /** The first segment numbered after number, or null if there is none. */
+    private Segment segmentAfter(long number) {
+
+        for (Segment segment : segments) {
+            if (segment.number > number) {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    long framesWritten() {
+        return framesWritten;
+    }
+
+    long bytesWritten() {
+        return bytesWritten;
+    }
+
+    /** Frames left out because a segment couldn't hold them. */
+    long framesTooLarge() {
+        return framesTooLarge;
+    }
+
+    long segmentsRecycled() {
+        return segmentsRecycled;
+    }
+
+    int segmentCount() {
+        return segments.length;
+    }
+
+    File directory() {
+        return directory;
+    }
+
+    /**
+     * Reads the recording forwards from where seek() put it, one frame at a time
+     * and each eye starting at a key frame, while the writer may still be adding
+     * to it. A cursor belongs to one thread.
+     */
+    class Cursor {
+
+        private Segment segment;
+        private long number;
+        private ByteBuffer view;
+        private int offset;
+        private final boolean[] started = new boolean[Side.values().length];
+        // Repeated codec config is only wanted to start over after being overtaken
+        private boolean takeRepeats = false;
+        // Where the codec config handed out up front came from, not to hand it out twice
+        private final long[] handedOutNumber = { -1, -1 };
+        private final int[] handedOutOffset = { -1, -1 };
+        private final ArrayDeque<Frame> configs = new ArrayDeque<>();
+        private final ArrayDeque<Long> configArrivals = new ArrayDeque<>();
+        private long overtakenCount = 0;
+
+        // Of the frame next() returned last
+        Side side;
+        long arrivalUs;
+        long captureUs;
+
+        private Cursor() { }
+
+        private void startAt(Side side, Segment at, int keyOffset, int configOffset) throws IOException {
+
+            ByteBuffer atView = at.view();
+            long atNumber = at.number;
+            Frame config = configOffset >= 0 ? read(atView, configOffset) : null;
+            if (config != null) {
+                handedOutNumber[side.ordinal()] = atNumber;
+                handedOutOffset[side.ordinal()] = configOffset;
+                configs.add(config);
+                configArrivals.add(atView.getLong(keyOffset + 24));
+            }
+            if (segment == null || atNumber < number || (atNumber == number && keyOffset < offset)) {
+                segment = at;
+                number = atNumber;
+                view = atView;
+                offset = keyOffset;
+            }
+        }
+
+        /**
+         * The next frame, a copy of its own, or null if the cursor has caught up
+         * with the writer or reached the end of the recording. The codec config
+         * each eye starts with comes first.
+         */
+        Frame next() throws IOException {
+
+            if (! configs.isEmpty()) {
+                Frame config = configs.poll();
+                side = Side.fromId(config.streamId);
+                arrivalUs = configArrivals.poll();
+                captureUs = 0;
+                return config;
+            }
+
+            while (true) {
+                if (segment.number != number) {
+                    overtaken();
+                    if (segment == null) {
+                        return null;
+                    }
+                }
+                if (offset >= segment.end) {
+                    if (! segment.full) {
+                        return null;
+                    }
+                    Segment next = segmentAfter(number);
+                    if (next == null) {
+                        return null;
+                    }
+                    moveTo(next);
+                    continue;
+                }
+
+                Frame frame = read(view, offset);
+                long frameArrivalUs = view.getLong(offset + 24);
+                long frameCaptureUs = view.getLong(offset + 32);
+                if (segment.number != number) {
+                    // Written over while it was being read
+                    continue;
+                }
+                if (frame == null) {
+                    throw new ProtocolException("Bad record at " + offset + " in " + segment.file);
+                }
+                Side frameSide = Side.fromId(frame.streamId);
+                boolean repeat = view.get(offset + 7) == 1;
+                boolean handedOut = handedOutNumber[frameSide.ordinal()] == number
+                        && handedOutOffset[frameSide.ordinal()] == offset;
+                offset += RECORD_HEADER_SIZE + frame.size();
+                if ((repeat && ! takeRepeats) || handedOut) {
+                    continue;
+                }
+                takeRepeats &= repeat;
+
+                if (! started[frameSide.ordinal()]) {
+                    if (! frame.isCodecConfig() && ! frame.isKeyFrame()) {
+                        continue;
+                    }
+                    started[frameSide.ordinal()] = frame.isKeyFrame();
+                }
+                side = frameSide;
+                arrivalUs = frameArrivalUs;
+                captureUs = frameCaptureUs;
+                return frame;
+            }
+        }
+
+        /** Times the writer went round the ring past this cursor, losing frames. */
+        long overtakenCount() {
+            return overtakenCount;
+        }
+
+        private void overtaken() throws IOException {
+
+            overtakenCount++;
+            Arrays.fill(started, false);
+            takeRepeats = true;
+            segment = segmentAfter(number);
+            if (segment != null) {
+                moveTo(segment);
+            }
+        }
+
+        private void moveTo(Segment next) throws IOException {
+
+            segment = next;
+            number = next.number;
+            view = next.view();
+            offset = SEGMENT_HEADER_SIZE;
+        }
+
+        /** Returns null if there is no whole record at, e.g. because it is being written over. */
+        private Frame read(ByteBuffer src, int at) {
+
+            src.limit(src.capacity());
+            src.position(at);
+            Frame frame = new Frame();
+            int length;
+            try {
+                length = FrameProtocol.readHeader(src, frame);
+            } catch (ProtocolException exception) {
+                return null;
+            }
+            if (length > src.capacity() - at - RECORD_HEADER_SIZE || Side.fromId(frame.streamId) == null) {
+                return null;
+            }
+            src.position(at + RECORD_HEADER_SIZE);
+            src.limit(at + RECORD_HEADER_SIZE + length);
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            payload.put(src);
+            payload.flip();
+            src.limit(src.capacity());
+            frame.payload = payload;
+            return frame;
+        }
+    }
+}
@@ -0,0 +1,680 @@
+package com.example.joshua.stereoonair;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * Takes in both cameras once and forwards every frame to any number of viewers,
+ * so the phones encode and send each eye once however many are watching.
+ * Cameras connect to a ViewerServer inside the relay exactly as they would to a
+ * viewer, over TCP or UDP. Viewers subscribe on a second port with one
+ * connection per eye (see ViewerServer.subscribe()), each opened with a hello
+ * naming the eye. The relay answers with a hello of its own, then streams the
+ * eye in FrameProtocol and answers the viewer's clock pings. Capture times are
+ * moved onto the relay's clock on the way through, so to a viewer the relay
+ * looks like the camera.
+ *
+ * Each frame is copied once into a shared buffer that every subscriber's queue
+ * refers to, and the buffer goes back to the pool when the last of them has
+ * written it. The subscriber side runs on one selector thread with non-blocking
+ * writes, so a stalled viewer costs the others nothing. A subscriber whose queue
+ * holds queueSize frames when the next one comes is resynchronised: what it has
+ * queued is dropped, and it carries on at the next key frame, after the codec
+ * config if that was among the dropped. One that falls behind again more than
+ * MAX_RESYNCS times without emptying its queue in between, or that takes no
+ * bytes for PEER_TIMEOUT_MILLIS while it has some to write, is evicted. One
+ * that sends no report or ping for as long is taken to be gone.
+ *
+ * A subscriber that joins mid-stream gets the eye's codec config and the last
+ * key frame with whatever followed it, so it can start decoding at once. Once
+ * that group of pictures is longer than half a queue, a joiner waits for the
+ * next key frame instead.
+ *
+ * The cameras are offered the codecs every subscriber that has said so can
+ * decode; until one has, whatever was offered last, H.264 to begin with. Their
+ * VideoMode is the best both cameras share, as subscribers never hear of modes.
+ *
+ * run() starts the camera side on a thread of its own and loops until its
+ * thread is interrupted.
+ */
+class RelayServer implements Runnable {
+
+    /** Camera events come from the camera thread, subscriber events from run()'s. */
+    static abstract class OnRelayCallback {
+        abstract void onCameraConnected(Side side);
+        abstract void onCameraDisconnected(Side side, IOException exception);
+        abstract void onSubscribed(Side side, SocketAddress address);
+        abstract void onUnsubscribed(Side side, SocketAddress address, IOException exception);
+    }
+
+    final static int DEFAULT_QUEUE_SIZE = 30;
+    final static int MAX_RESYNCS = 3;
+    final static long PEER_TIMEOUT_MILLIS = ViewerServer.PEER_TIMEOUT_MILLIS;
+    private final static long CHECK_INTERVAL_MILLIS = 250;
+    private final static int CAMERA_RING_SIZE = 8;
+    private final static int FEEDBACK_BUFFER_SIZE = 64;
+
+    /** One frame as it goes on the wire, shared by every queue it is in. */
+    private static class SharedFrame {
+
+        ByteBuffer bytes;
+        int size;
+        int flags;
+        int refs;
+
+        boolean isKeyFrame() {
+            return (flags & Frame.FLAG_KEY_FRAME) != 0;
+        }
+
+        boolean isCodecConfig() {
+            return (flags & Frame.FLAG_CODEC_CONFIG) != 0;
+        }
+    }
+
+    private static class Subscriber {
+
+        final SocketChannel channel;
+        final SelectionKey key;
+        final SocketAddress address;
+        final ArrayDeque<SharedFrame> queue = new ArrayDeque<>();
+        final ByteBuffer feedback = ByteBuffer.allocate(FEEDBACK_BUFFER_SIZE);
+        // Hello, then clock replies, written between frames
+        final ByteBuffer control = (ByteBuffer) ByteBuffer.allocate(FrameProtocol.CLOCK_REPLY_SIZE).limit(0);
+        final ClockReply reply = new ClockReply();
+        boolean replyDue = false;
+        // VideoCodec bits, 0 until the subscriber offers them
+        int decoders = 0;
+        Side side;
+        // How much of the head of the queue is written
+        int offset = 0;
+        boolean awaitingKeyFrame = false;
+        int resyncsSinceDrained = 0;
+        long lastReadNanos = System.nanoTime();
+        long lastWriteNanos = lastReadNanos;
+
+        Subscriber(SocketChannel channel, SelectionKey key, SocketAddress address) {
+
+            this.channel = channel;
+            this.key = key;
+            this.address = address;
+        }
+
+        boolean hasPending() {
+            return offset > 0 || control.hasRemaining() || replyDue || ! queue.isEmpty();
+        }
+    }
+
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final ViewerServer cameraServer;
+    private final SpscRing<Frame> leftRing;
+    private final SpscRing<Frame> rightRing;
+    private final int queueSize;
+    private final OnRelayCallback callback;
+    private final ArrayList<Subscriber> subscribers = new ArrayList<>();
+    private final ArrayDeque<SharedFrame> pool = new ArrayDeque<>();
+    private final int maxPooled;
+    private final SharedFrame[] configs = new SharedFrame[Side.values().length];
+    private final ArrayList<SharedFrame>[] groups;
+    private final ReceiverReport report = new ReceiverReport();
+    private long nextCheckNanos;
+
+    private volatile int subscriberCount = 0;
+    private volatile long framesReceived = 0;
+    private volatile long framesSent = 0;
+    private volatile long bytesSent = 0;
+    private volatile long framesSkipped = 0;
+    private volatile long resyncCount = 0;
+    private volatile long evictionCount = 0;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    RelayServer(int cameraPort, int subscriberPort, int queueSize, OnRelayCallback callback) throws IOException {
+
+        if (queueSize < 2) {
+            throw new IllegalArgumentException("Queue too short: " + queueSize);
+        }
+        this.queueSize = queueSize;
+        this.callback = callback;
+        maxPooled = 4 * queueSize;
+        groups = new ArrayList[Side.values().length];
+        for (int i = 0; i < groups.length; i++) {
+            groups[i] = new ArrayList<>();
+        }
+
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(new InetSocketAddress(subscriberPort));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        leftRing = createCameraRing();
+        rightRing = createCameraRing();
+        cameraServer = new ViewerServer(cameraPort, leftRing, rightRing, new ViewerServer.OnConnectionCallback() {
+            @Override
+            void onConnected(Side side) {
+                RelayServer.this.callback.onCameraConnected(side);
+            }
+
+            @Override
+            void onDisconnected(Side side, IOException exception) {
+                RelayServer.this.callback.onCameraDisconnected(side, exception);
+            }
+
+            @Override
+            void onCodecConfig(Side side, VideoCodec codec, ByteBuffer config) { }
+        });
+        nextCheckNanos = System.nanoTime() + CHECK_INTERVAL_MILLIS * 1_000_000;
+    }
+
+    /** A ring that wakes the selector for every frame the camera side puts in. */
+    private SpscRing<Frame> createCameraRing() {
+
+        return new SpscRing<Frame>(CAMERA_RING_SIZE, SpscRing.WaitStrategy.PARK) {
+            @Override
+            boolean offer(Frame frame) {
+
+                if (! super.offer(frame)) {
+                    return false;
+                }
+                selector.wakeup();
+                return true;
+            }
+        };
+    }
+
+    int getCameraPort() {
+        return cameraServer.getLocalPort();
+    }
+
+    int getSubscriberPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /** Where the cameras come in; its getters are as safe to use as ever. */
+    ViewerServer getCameraServer() {
+        return cameraServer;
+    }
+
+    /** Subscribers that have named their eye. */
+    int subscriberCount() {
+        return subscriberCount;
+    }
+
+    long framesReceived() {
+        return framesReceived;
+    }
+
+    /** Frames written out, counted once per subscriber. */
+    long framesSent() {
+        return framesSent;
+    }
+
+    long bytesSent() {
+        return bytesSent;
+    }
+
+    /** Frames some subscriber went without, while resynchronising or joining. */
+    long framesSkipped() {
+        return framesSkipped;
+    }
+
+    long resyncCount() {
+        return resyncCount;
+    }
+
+    long evictionCount() {
+        return evictionCount;
+    }
+
+    @Override
+    public void run() {
+
+        Thread cameraThread = new Thread(cameraServer, "relayCameraServer");
+        cameraThread.start();
+        try {
+            while (! Thread.currentThread().isInterrupted()) {
+
+                selector.select(Math.max(1, (nextCheckNanos - System.nanoTime()) / 1_000_000));
+
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    if (! key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Subscriber subscriber = (Subscriber) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            read(subscriber);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            flush(subscriber);
+                        }
+                    } catch (IOException exception) {
+                        drop(subscriber, exception);
+                    }
+                }
+
+                forward(Side.LEFT, leftRing);
+                forward(Side.RIGHT, rightRing);
+
+                long now = System.nanoTime();
+                if (now - nextCheckNanos >= 0) {
+                    nextCheckNanos = now + CHECK_INTERVAL_MILLIS * 1_000_000;
+                    expireSubscribers(now);
+                }
+            }
+        } catch (IOException exception) {
+            dropAll(exception);
+            stop(cameraThread);
+            return;
+        }
+        dropAll(null);
+        stop(cameraThread);
+    }
+
+    /**
+     * Closes the listening sockets, the cameras' included. Call once run() has
+     * returned for good.
+     */
+    void close() throws IOException {
+
+        serverChannel.close();
+        selector.close();
+        cameraServer.close();
+    }
+
+    /** Waits for thread to end, although run() usually ends because its own was interrupted. */
+    private static void stop(Thread thread) {
+
+        boolean interrupted = Thread.interrupted();
+        thread.interrupt();
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException exception) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void accept() throws IOException {
+
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        Subscriber subscriber = new Subscriber(channel, key, channel.getRemoteAddress());
+        key.attach(subscriber);
+        subscribers.add(subscriber);
+    }
+
+    /** Reads the subscriber's hello, then its reports, clock pings and codec offers. */
+    private void read(Subscriber subscriber) throws IOException {
+
+        ByteBuffer feedback = subscriber.feedback;
+        if (subscriber.channel.read(feedback) == -1) {
+            drop(subscriber, null);
+            return;
+        }
+        long receivedUs = CameraStreamer.clockUs();
+        subscriber.lastReadNanos = System.nanoTime();
+        feedback.flip();
+        try {
+            if (subscriber.side == null) {
+                if (feedback.remaining() < FrameProtocol.HELLO_SIZE) {
+                    return;
+                }
+                join(subscriber, FrameProtocol.readHello(feedback));
+            }
+            while (feedback.remaining() >= 4) {
+                int size = FrameProtocol.feedbackMessageSize(feedback.getInt(feedback.position()));
+                if (size < 0) {
+                    throw new ProtocolException("Bad feedback magic: 0x"
+                            + Integer.toHexString(feedback.getInt(feedback.position())));
+                }
+                if (feedback.remaining() < size) {
+                    break;
+                }
+                int magic = feedback.getInt(feedback.position());
+                if (magic == FrameProtocol.CLOCK_PING_MAGIC) {
+                    subscriber.reply.side = subscriber.side;
+                    subscriber.reply.pingId = FrameProtocol.readClockPing(feedback);
+                    subscriber.reply.receiveUs = receivedUs;
+                    subscriber.replyDue = true;
+                } else if (magic == FrameProtocol.CODEC_OFFER_MAGIC) {
+                    int decoders = FrameProtocol.readCodecOffer(feedback);
+                    if (decoders != subscriber.decoders) {
+                        subscriber.decoders = decoders;
+                        offerDecoders();
+                    }
+                } else if (magic == FrameProtocol.VIDEO_MODE_MAGIC) {
+                    // The cameras' mode is settled between them and the relay
+                    FrameProtocol.readVideoMode(feedback);
+                } else {
+                    FrameProtocol.readReport(feedback, report);
+                }
+            }
+        } finally {
+            feedback.compact();
+        }
+        if (subscriber.replyDue) {
+            flush(subscriber);
+        }
+    }
+
+    /** Starts a subscriber off on side with the codec config and the current group of pictures. */
+    private void join(Subscriber subscriber, Side side) throws IOException {
+
+        int id = side.ordinal();
+        subscriber.side = side;
+        subscriber.control.clear();
+        FrameProtocol.writeHello(subscriber.control, side);
+        subscriber.control.flip();
+        if (configs[id] != null) {
+            subscriber.queue.add(retain(configs[id]));
+        }
+        if (groups[id].isEmpty()) {
+            subscriber.awaitingKeyFrame = true;
+        }
+        for (SharedFrame frame : groups[id]) {
+            subscriber.queue.add(retain(frame));
+        }
+        subscriberCount++;
+        callback.onSubscribed(side, subscriber.address);
+        flush(subscriber);
+    }
+
+    /** Offers the cameras what every subscriber that has offered anything decodes. */
+    private void offerDecoders() {
+
+        int common = VideoCodec.ALL;
+        boolean offered = false;
+        for (int i = 0; i < subscribers.size(); i++) {
+            int decoders = subscribers.get(i).decoders;
+            if (decoders != 0) {
+                common &= decoders;
+                offered = true;
+            }
+        }
+        if (offered) {
+            cameraServer.setDecoders(common);
+        }
+    }
+
+    /** Hands everything the camera side has received for side to its subscribers. */
+    private void forward(Side side, SpscRing<Frame> ring) {
+
+        Frame frame;
+        while ((frame = ring.poll()) != null) {
+            SharedFrame shared = share(side, frame);
+            framesReceived++;
+            cache(side.ordinal(), shared);
+            for (int i = subscribers.size() - 1; i >= 0; i--) {
+                Subscriber subscriber = subscribers.get(i);
+                if (subscriber.side == side) {
+                    enqueue(subscriber, shared);
+                }
+            }
+            release(shared);
+        }
+    }
+
+    /** Copies frame, with its capture time on the relay's clock, into a pooled buffer. */
+    private SharedFrame share(Side side, Frame frame) {
+
+        SharedFrame shared = pool.poll();
+        if (shared == null) {
+            shared = new SharedFrame();
+        }
+        int size = FrameProtocol.HEADER_SIZE + frame.size();
+        if (shared.bytes == null || shared.bytes.capacity() < size) {
+            // Round up so a slowly growing keyframe size doesn't reallocate every time
+            shared.bytes = ByteBuffer.allocateDirect(Integer.highestOneBit(size - 1) << 1);
+        }
+        ClockSync clockSync = cameraServer.getClockSync(side);
+        frame.ptsUs = clockSync.isSynchronized() && frame.ptsUs > 0 ? clockSync.toLocalUs(frame.ptsUs) : 0;
+        ByteBuffer bytes = shared.bytes;
+        bytes.clear();
+        FrameProtocol.writeHeader(bytes, frame);
+        bytes.put(frame.payload);
+        shared.size = bytes.position();
+        shared.flags = frame.flags;
+        shared.refs = 1;
+        return shared;
+    }
+
+    /** Keeps what a subscriber joining now would need. */
+    private void cache(int id, SharedFrame shared) {
+
+        ArrayList<SharedFrame> group = groups[id];
+        if (shared.isCodecConfig()) {
+            if (configs[id] != null) {
+                release(configs[id]);
+            }
+            configs[id] = retain(shared);
+            clear(group);
+        } else if (shared.isKeyFrame()) {
+            // A codec that needs no config, such as VP9, took over from one that did
+            if (configs[id] != null && ((configs[id].flags ^ shared.flags) & Frame.FLAG_CODEC_MASK) != 0) {
+                release(configs[id]);
+                configs[id] = null;
+            }
+            clear(group);
+            group.add(retain(shared));
+        } else if (! group.isEmpty()) {
+            if (group.size() < queueSize / 2) {
+                group.add(retain(shared));
+            } else {
+                clear(group);
+            }
+        }
+    }
+
+    private void enqueue(Subscriber subscriber, SharedFrame shared) {
+
+        if (subscriber.queue.size() >= queueSize && ! resync(subscriber)) {
+            return;
+        }
+        if (subscriber.awaitingKeyFrame) {
+            if (shared.isKeyFrame()) {
+                subscriber.awaitingKeyFrame = false;
+            } else if (! shared.isCodecConfig()) {
+                framesSkipped++;
+                return;
+            }
+        }
+        boolean idle = ! subscriber.hasPending();
+        subscriber.queue.add(retain(shared));
+        if (idle) {
+            try {
+                flush(subscriber);
+            } catch (IOException exception) {
+                drop(subscriber, exception);
+            }
+        }
+    }
+
+    /**
+     * Drops what the subscriber has queued, bar a frame it is halfway through,
+     * and has it wait for a key frame. Returns false if it was evicted instead.
+     */
+    private boolean resync(Subscriber subscriber) {
+
+        if (++subscriber.resyncsSinceDrained > MAX_RESYNCS) {
+            evictionCount++;
+            drop(subscriber, new IOException("Evicted, behind again after " + MAX_RESYNCS + " resyncs"));
+            return false;
+        }
+        SharedFrame head = subscriber.offset > 0 ? subscriber.queue.poll() : null;
+        boolean configDropped = false;
+        SharedFrame frame;
+        while ((frame = subscriber.queue.poll()) != null) {
+            configDropped |= frame.isCodecConfig();
+            release(frame);
+            framesSkipped++;
+        }
+        if (head != null) {
+            subscriber.queue.add(head);
+        }
+        SharedFrame config = configs[subscriber.side.ordinal()];
+        if (configDropped && config != null) {
+            subscriber.queue.add(retain(config));
+        }
+        subscriber.awaitingKeyFrame = true;
+        resyncCount++;
+        return true;
+    }
+
+    /**
+     * Writes as much as the socket takes: a clock reply or the hello whenever a
+     * frame boundary allows, then queued frames. Asks for OP_WRITE while anything
+     * is left.
+     */
+    private void flush(Subscriber subscriber) throws IOException {
+
+        SocketChannel channel = subscriber.channel;
+        while (true) {
+            if (subscriber.offset == 0) {
+                ByteBuffer control = subscriber.control;
+                if (! control.hasRemaining() && subscriber.replyDue) {
+                    control.clear();
+                    subscriber.reply.transmitUs = CameraStreamer.clockUs();
+                    FrameProtocol.writeClockReply(control, subscriber.reply);
+                    control.flip();
+                    subscriber.replyDue = false;
+                }
+                if (control.hasRemaining()) {
+                    channel.write(control);
+                    if (control.hasRemaining()) {
+                        break;
+                    }
+                }
+            }
+            SharedFrame head = subscriber.queue.peek();
+            if (head == null) {
+                break;
+            }
+            ByteBuffer bytes = head.bytes;
+            bytes.limit(head.size);
+            bytes.position(subscriber.offset);
+            int written = channel.write(bytes);
+            if (written > 0) {
+                subscriber.offset += written;
+                subscriber.lastWriteNanos = System.nanoTime();
+                bytesSent += written;
+            }
+            if (subscriber.offset < head.size) {
+                break;
+            }
+            subscriber.queue.poll();
+            subscriber.offset = 0;
+            release(head);
+            framesSent++;
+            if (subscriber.queue.isEmpty()) {
+                subscriber.resyncsSinceDrained = 0;
+            }
+        }
+        subscriber.key.interestOps(SelectionKey.OP_READ | (subscriber.hasPending() ? SelectionKey.OP_WRITE : 0));
+    }
+
+    private void expireSubscribers(long now) {
+
+        long timeoutNanos = PEER_TIMEOUT_MILLIS * 1_000_000;
+        for (int i = subscribers.size() - 1; i >= 0; i--) {
+            Subscriber subscriber = subscribers.get(i);
+            if (! subscriber.hasPending()) {
+                // Nothing to write, so not taking anything says nothing
+                subscriber.lastWriteNanos = now;
+            }
+            if (now - subscriber.lastReadNanos > timeoutNanos) {
+                drop(subscriber, new SocketTimeoutException("Nothing received for " + PEER_TIMEOUT_MILLIS + " ms"));
+            } else if (now - subscriber.lastWriteNanos > timeoutNanos) {
+                evictionCount++;
+                drop(subscriber, new IOException("Evicted, took nothing for " + PEER_TIMEOUT_MILLIS + " ms"));
+            }
+        }
+    }
+
+    private void drop(Subscriber subscriber, IOException exception) {
+
+        if (! subscribers.remove(subscriber)) {
+            return;
+        }
+        subscriber.key.cancel();
+        try {
+            subscriber.channel.close();
+        } catch (IOException ignored) {
+        }
+        SharedFrame frame;
+        while ((frame = subscriber.queue.poll()) != null) {
+            release(frame);
+        }
+        if (subscriber.side != null) {
+            subscriberCount--;
+            callback.onUnsubscribed(subscriber.side, subscriber.address, exception);
+        }
+        if (subscriber.decoders != 0) {
+            offerDecoders();
+        }
+    }
+
+    private void dropAll(IOException exception) {
+
+        for (int i = subscribers.size() - 1; i >= 0; i--) {
+            drop(subscribers.get(i), exception);
+        }
+        for (int id = 0; id < configs.length; id++) {
+            if (configs[id] != null) {
+                release(configs[id]);
+                configs[id] = null;
+            }
+            clear(groups[id]);
+        }
+    }
+
+    private void clear(ArrayList<SharedFrame> group) {
+
+        for (SharedFrame frame : group) {
+            release(frame);
+        }
+        group.clear();
+    }
+
+    private static SharedFrame retain(SharedFrame frame) {
+
+        frame.refs++;
+        return frame;
+    }
+
+    private void release(SharedFrame frame) {
+
+        if (--frame.refs == 0 && pool.size() < maxPooled) {
+            pool.add(frame);
+        }
+    }
+}
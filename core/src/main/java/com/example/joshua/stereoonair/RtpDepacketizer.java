@@ -0,0 +1,382 @@
+package com.example.joshua.stereoonair;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reassembles the RTP packets written by RtpPacketizer back into access units,
+ * Annex-B for H.264 and HEVC, whole frames for VP9, in the codec the payload
+ * type names. Packets may arrive out of order; a frame is handed on once every
+ * packet from its first one up to its marker is present. A frame is abandoned
+ * when its deadline passes, when a newer frame completes first, or when there
+ * are too many frames in flight. Packets for frames that were already emitted
+ * or abandoned are counted as late and ignored.
+ *
+ * The 90 kHz RTP timestamp wraps every 13.25 hours, and a camera may well have
+ * been up longer, so given the camera's ClockSync each frame's capture time is
+ * rebuilt in full: of the times the timestamp could stand for, the one nearest
+ * the camera's clock now, which the frame is only a fraction of a second behind.
+ * Until the clock is synchronized the timestamp is extended from the first one
+ * seen, which is only right while the camera has been up less than that.
+ *
+ * Not thread-safe; the caller supplies the clock so tests can run without one.
+ */
+class RtpDepacketizer {
+
+    private final static int MAX_PENDING_FRAMES = 4;
+    private final static int MAX_PACKETS_PER_FRAME = 1024;
+    private final static byte[] START_CODE = { 0, 0, 0, 1 };
+
+    private final int streamId;
+    private final long deadlineNanos;
+    private final ClockSync clockSync;
+    private final StreamParser.OnFrameCallback callback;
+    private final Assembly[] assemblies = new Assembly[MAX_PENDING_FRAMES];
+
+    private boolean haveSequence = false;
+    private int lastSequence;
+    private boolean haveTimestamp = false;
+    private long lastTimestamp;
+    private long lastEmittedTimestamp = Long.MIN_VALUE;
+    private int lastEmittedMarker = Integer.MIN_VALUE;
+    private int frameSequence = 0;
+
+    private long framesCompleted = 0;
+    private long framesDropped = 0;
+    private long packetsLate = 0;
+    private long packetsDuplicate = 0;
+    private long packetsInvalid = 0;
+
+    /** Packets of one access unit, indexed by extended sequence number modulo the window. */
+    private static class Assembly {
+
+        final byte[][] packets = new byte[MAX_PACKETS_PER_FRAME][];
+        final int[] lengths = new int[MAX_PACKETS_PER_FRAME];
+        final boolean[] present = new boolean[MAX_PACKETS_PER_FRAME];
+        VideoCodec codec;
+        boolean active;
+        long timestamp;
+        long firstArrivalNanos;
+        int minSequence;
+        int maxSequence;
+        int startSequence;
+        int markerSequence;
+        int count;
+        int bytes;
+
+        void reset(long timestamp, long nowNanos) {
+
+            this.active = true;
+            this.timestamp = timestamp;
+            this.firstArrivalNanos = nowNanos;
+            minSequence = Integer.MAX_VALUE;
+            maxSequence = Integer.MIN_VALUE;
+            startSequence = Integer.MAX_VALUE;
+            markerSequence = Integer.MIN_VALUE;
+            count = 0;
+            bytes = 0;
+        }
+
+        void clear() {
+
+            if (count > 0) {
+                for (int s = minSequence; s <= maxSequence; s++) {
+                    present[s & (MAX_PACKETS_PER_FRAME - 1)] = false;
+                }
+            }
+            active = false;
+        }
+
+        boolean isComplete() {
+
+            return markerSequence != Integer.MIN_VALUE && startSequence != Integer.MAX_VALUE
+                    && count == markerSequence - startSequence + 1 && minSequence == startSequence;
+        }
+    }
+
+    RtpDepacketizer(int streamId, long deadlineNanos, StreamParser.OnFrameCallback callback) {
+        this(streamId, deadlineNanos, null, callback);
+    }
+
+    /** clockSync is the camera's, to rebuild capture times beyond the RTP timestamp's wrap. */
+    RtpDepacketizer(int streamId, long deadlineNanos, ClockSync clockSync, StreamParser.OnFrameCallback callback) {
+
+        this.streamId = streamId;
+        this.deadlineNanos = deadlineNanos;
+        this.clockSync = clockSync;
+        this.callback = callback;
+        for (int i = 0; i < assemblies.length; i++) {
+            assemblies[i] = new Assembly();
+        }
+    }
+
+    /**
+     * Consumes one datagram. Completed frames are handed to the callback before
+     * this returns.
+     */
+    void onPacket(ByteBuffer datagram, long nowNanos) {
+
+        int length = datagram.remaining();
+        int base = datagram.position();
+        if (length <= RtpPacketizer.HEADER_SIZE || (datagram.get(base) & 0xC0) != 0x80) {
+            packetsInvalid++;
+            return;
+        }
+        boolean marker = (datagram.get(base + 1) & 0x80) != 0;
+        VideoCodec codec = RtpPacketizer.codecOf(datagram.get(base + 1) & 0x7F);
+        if (codec == null) {
+            packetsInvalid++;
+            return;
+        }
+        int sequence = extendSequence(datagram.getShort(base + 2) & 0xFFFF);
+        long timestamp = extendTimestamp(datagram.getInt(base + 4) & 0xFFFFFFFFL);
+
+        // Equal timestamps are fine: codec config and the picture after it may share one
+        if (timestamp < lastEmittedTimestamp || sequence <= lastEmittedMarker) {
+            packetsLate++;
+            return;
+        }
+
+        Assembly assembly = assemblyFor(timestamp, nowNanos);
+        assembly.codec = codec;
+        int slot = sequence & (MAX_PACKETS_PER_FRAME - 1);
+        if (assembly.count > 0
+                && (sequence - assembly.minSequence >= MAX_PACKETS_PER_FRAME
+                        || assembly.maxSequence - sequence >= MAX_PACKETS_PER_FRAME)) {
+            packetsInvalid++;
+            return;
+        }
+        if (assembly.present[slot]) {
+            packetsDuplicate++;
+            return;
+        }
+
+        int payloadLength = length - RtpPacketizer.HEADER_SIZE;
+        byte[] bytes = assembly.packets[slot];
+        if (bytes == null || bytes.length < payloadLength) {
+            bytes = new byte[Math.max(payloadLength, 1500)];
+            assembly.packets[slot] = bytes;
+        }
+        ByteBuffer payload = datagram.duplicate();
+        payload.position(base + RtpPacketizer.HEADER_SIZE);
+        payload.get(bytes, 0, payloadLength);
+        assembly.lengths[slot] = payloadLength;
+        assembly.present[slot] = true;
+        assembly.count++;
+        assembly.minSequence = Math.min(assembly.minSequence, sequence);
+        assembly.maxSequence = Math.max(assembly.maxSequence, sequence);
+        assembly.bytes += payloadLength + START_CODE.length;
+
+        if (marker) {
+            assembly.markerSequence = sequence;
+        }
+        if (sequence == lastEmittedMarker + 1 || startsAccessUnit(codec, bytes, payloadLength)) {
+            assembly.startSequence = Math.min(assembly.startSequence, sequence);
+        }
+
+        if (assembly.isComplete()) {
+            emit(assembly, nowNanos);
+        }
+    }
+
+    /**
+     * Abandons frames that have been waiting longer than the deadline.
+     */
+    void expire(long nowNanos) {
+
+        for (Assembly assembly : assemblies) {
+            if (assembly.active && nowNanos - assembly.firstArrivalNanos > deadlineNanos) {
+                drop(assembly);
+            }
+        }
+    }
+
+    boolean hasPending() {
+
+        for (Assembly assembly : assemblies) {
+            if (assembly.active) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    long framesCompleted() {
+        return framesCompleted;
+    }
+
+    long framesDropped() {
+        return framesDropped;
+    }
+
+    long packetsLate() {
+        return packetsLate;
+    }
+
+    long packetsDuplicate() {
+        return packetsDuplicate;
+    }
+
+    long packetsInvalid() {
+        return packetsInvalid;
+    }
+
+    private Assembly assemblyFor(long timestamp, long nowNanos) {
+
+        Assembly free = null;
+        Assembly oldest = null;
+        for (Assembly assembly : assemblies) {
+            if (! assembly.active) {
+                free = free == null ? assembly : free;
+            } else if (assembly.timestamp == timestamp) {
+                return assembly;
+            } else if (oldest == null || assembly.timestamp < oldest.timestamp) {
+                oldest = assembly;
+            }
+        }
+        if (free == null) {
+            drop(oldest);
+            free = oldest;
+        }
+        free.reset(timestamp, nowNanos);
+        return free;
+    }
+
+    private void emit(Assembly done, long nowNanos) {
+
+        // Anything older than this frame can no longer be decoded in order
+        for (Assembly assembly : assemblies) {
+            if (assembly.active && assembly.timestamp < done.timestamp) {
+                drop(assembly);
+            }
+        }
+
+        VideoCodec codec = done.codec;
+        ByteBuffer au = ByteBuffer.allocate(done.bytes);
+        boolean hasVcl = false;
+        boolean hasIdr = false;
+        for (int s = done.startSequence; s <= done.markerSequence; s++) {
+            int slot = s & (MAX_PACKETS_PER_FRAME - 1);
+            byte[] bytes = done.packets[slot];
+            int length = done.lengths[slot];
+            if (codec == VideoCodec.VP9) {
+                au.put(bytes, 1, length - 1);
+                continue;
+            }
+            int type = codec.nalType(bytes[0] & 0xFF);
+            if (codec == VideoCodec.HEVC && type == RtpPacketizer.HEVC_NAL_FU && length > 3) {
+                type = bytes[2] & 0x3F;
+                if ((bytes[2] & 0x80) != 0) {
+                    au.put(START_CODE);
+                    au.put((byte) ((bytes[0] & 0x81) | (type << 1)));
+                    au.put(bytes[1]);
+                }
+                au.put(bytes, 3, length - 3);
+            } else if (codec == VideoCodec.AVC && type == RtpPacketizer.NAL_FU_A) {
+                type = bytes[1] & 0x1F;
+                if ((bytes[1] & 0x80) != 0) {
+                    au.put(START_CODE);
+                    au.put((byte) ((bytes[0] & 0xE0) | type));
+                }
+                au.put(bytes, 2, length - 2);
+            } else {
+                au.put(START_CODE);
+                au.put(bytes, 0, length);
+            }
+            hasVcl |= codec.isVcl(type);
+            hasIdr |= codec.isKeyFrameNal(type);
+        }
+        au.flip();
+        if (codec == VideoCodec.VP9) {
+            // VP9 has no codec config of its own, and says in its frame header what it is
+            hasVcl = true;
+            hasIdr = VideoCodec.isVp9KeyFrame(au, 0);
+        }
+
+        int flags = codec.flags();
+        if (! hasVcl) {
+            flags |= Frame.FLAG_CODEC_CONFIG;
+        }
+        if (hasIdr) {
+            flags |= Frame.FLAG_KEY_FRAME;
+        }
+        // Codec config carries the encoder's own timestamp, not a capture time
+        long ptsUs = hasVcl ? toPtsUs(done.timestamp, nowNanos) : done.timestamp * 100 / 9;
+
+        lastEmittedTimestamp = done.timestamp;
+        lastEmittedMarker = done.markerSequence;
+        done.clear();
+        framesCompleted++;
+        callback.onFrame(new Frame(frameSequence++, streamId, ptsUs, flags, au));
+    }
+
+    private void drop(Assembly assembly) {
+
+        assembly.clear();
+        framesDropped++;
+    }
+
+    /**
+     * Whether a packet payload begins an access unit: a parameter set, AUD or SEI,
+     * the first slice of a picture, or for VP9 the first packet of a frame.
+     */
+    private static boolean startsAccessUnit(VideoCodec codec, byte[] payload, int length) {
+
+        if (codec == VideoCodec.VP9) {
+            return (payload[0] & RtpPacketizer.VP9_BEGIN) != 0;
+        }
+        int type = codec.nalType(payload[0] & 0xFF);
+        int headerSize = codec.nalHeaderSize();
+        boolean fragment = codec == VideoCodec.HEVC ? type == RtpPacketizer.HEVC_NAL_FU : type == RtpPacketizer.NAL_FU_A;
+        if (fragment) {
+            int fuHeader = payload[headerSize] & 0xFF;
+            if (length < headerSize + 2 || (fuHeader & 0x80) == 0) {
+                return false;
+            }
+            type = codec == VideoCodec.HEVC ? fuHeader & 0x3F : fuHeader & 0x1F;
+            // The fragment header sits where the slice header's first byte would
+            if (codec.isVcl(type)) {
+                return (payload[headerSize + 1] & 0x80) != 0;
+            }
+        } else if (codec.isVcl(type)) {
+            return codec.isFirstSlice(payload, 0, length);
+        }
+        return codec.isAccessUnitPrefix(type)
+                || type == (codec == VideoCodec.HEVC ? RtpPacketizer.HEVC_NAL_AP : RtpPacketizer.NAL_STAP_A);
+    }
+
+    private int extendSequence(int sequence) {
+
+        if (! haveSequence) {
+            haveSequence = true;
+            lastSequence = sequence;
+            return sequence;
+        }
+        int extended = lastSequence + (short) (sequence - (lastSequence & 0xFFFF));
+        lastSequence = Math.max(lastSequence, extended);
+        return extended;
+    }
+
+    /** The capture time, on the camera's clock, of an extended RTP timestamp. */
+    private long toPtsUs(long timestamp, long nowNanos) {
+
+        if (clockSync == null || ! clockSync.isSynchronized()) {
+            return timestamp * 100 / 9;
+        }
+        long localUs = nowNanos / 1000;
+        long cameraTimestamp = RtpPacketizer.toRtpTicks(localUs + clockSync.offsetUs(localUs));
+        // The nearest candidate is under half a wrap away, whatever the high bits were
+        return (cameraTimestamp + (int) (timestamp - cameraTimestamp)) * 100 / 9;
+    }
+
+    private long extendTimestamp(long timestamp) {
+
+        if (! haveTimestamp) {
+            haveTimestamp = true;
+            lastTimestamp = timestamp;
+            return timestamp;
+        }
+        long extended = lastTimestamp + (int) (timestamp - (lastTimestamp & 0xFFFFFFFFL));
+        lastTimestamp = Math.max(lastTimestamp, extended);
+        return extended;
+    }
+}
@@ -0,0 +1,204 @@
+package com.example.joshua.stereoonair;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Splits access units into RTP packets. H.264 (RFC 6184) and HEVC (RFC 7798)
+ * Annex-B units go out NAL unit by NAL unit: those that fit as single NAL unit
+ * packets, bigger ones as FU-A or HEVC FU fragments. A VP9 frame is cut into
+ * packets that each start with a one-byte payload descriptor whose B and E bits
+ * mark the first and last (RFC 9628; nothing else of it is used). The marker
+ * bit is set on the last packet of each access unit, the SSRC carries the
+ * camera's side, so the viewer needs no hello for datagrams, and the payload
+ * type names the codec (payloadType()).
+ *
+ * One packet buffer is reused for every packet; the callback must be done with
+ * it before returning.
+ */
+class RtpPacketizer {
+
+    static abstract class OnPacketCallback {
+        abstract void onPacket(ByteBuffer packet) throws IOException;
+    }
+
+    final static int HEADER_SIZE = 12;
+    final static int PAYLOAD_TYPE = 96;
+    final static int SSRC_BASE = 0x534F4100;
+    final static int NAL_FU_A = 28;
+    final static int NAL_STAP_A = 24;
+    final static int HEVC_NAL_AP = 48;
+    final static int HEVC_NAL_FU = 49;
+    final static int VP9_BEGIN = 0x08;
+    final static int VP9_END = 0x04;
+
+    private final int ssrc;
+    private final int maxPayloadSize;
+    private final ByteBuffer packet;
+    private int sequence = 0;
+    private long packetCount = 0;
+
+    RtpPacketizer(Side side, int maxPacketSize) {
+
+        if (maxPacketSize < HEADER_SIZE + 4) {
+            throw new IllegalArgumentException("Bad maximum packet size: " + maxPacketSize);
+        }
+        ssrc = SSRC_BASE | side.ordinal();
+        maxPayloadSize = maxPacketSize - HEADER_SIZE;
+        packet = ByteBuffer.allocateDirect(maxPacketSize);
+    }
+
+    /** 90 kHz RTP clock, wrapping at 32 bits. */
+    static int toRtpTimestamp(long ptsUs) {
+        return (int) toRtpTicks(ptsUs);
+    }
+
+    /** 90 kHz RTP clock before it is cut to 32 bits. */
+    static long toRtpTicks(long ptsUs) {
+        return ptsUs * 9 / 100;
+    }
+
+    /** PAYLOAD_TYPE for H.264 as ever, the others after FecEncoder's. */
+    static int payloadType(VideoCodec codec) {
+        return codec == VideoCodec.AVC ? PAYLOAD_TYPE : FecEncoder.PAYLOAD_TYPE + codec.id;
+    }
+
+    /** The codec payloadType() gave payloadType, or null if none did. */
+    static VideoCodec codecOf(int payloadType) {
+
+        if (payloadType == PAYLOAD_TYPE) {
+            return VideoCodec.AVC;
+        }
+        VideoCodec codec = VideoCodec.fromId(payloadType - FecEncoder.PAYLOAD_TYPE);
+        return codec != VideoCodec.AVC ? codec : null;
+    }
+
+    void packetize(Frame frame, OnPacketCallback callback) throws IOException {
+
+        ByteBuffer au = frame.payload.duplicate();
+        int end = au.limit();
+        int timestamp = toRtpTimestamp(frame.ptsUs);
+        VideoCodec codec = frame.codec();
+        if (codec == VideoCodec.VP9) {
+            sendVp9(au, timestamp, callback);
+            return;
+        }
+
+        int startCode = findStartCode(au, au.position(), end);
+        if (startCode == end) {
+            // Not Annex-B: send the whole buffer as one NAL unit
+            sendNal(codec, au, au.position(), end, timestamp, true, callback);
+            return;
+        }
+
+        int nalStart = startCode + 3;
+        while (nalStart < end) {
+            int next = findStartCode(au, nalStart, end);
+            int nalEnd = next;
+            // A four byte start code's leading zero belongs to it, not to this NAL unit
+            if (next < end && nalEnd > nalStart && au.get(nalEnd - 1) == 0) {
+                nalEnd--;
+            }
+            if (nalEnd > nalStart) {
+                sendNal(codec, au, nalStart, nalEnd, timestamp, next == end, callback);
+                au.limit(end);
+            }
+            nalStart = next + 3;
+        }
+    }
+
+    long packetCount() {
+        return packetCount;
+    }
+
+    private void sendNal(VideoCodec codec, ByteBuffer au, int start, int end, int timestamp, boolean lastOfFrame,
+                         OnPacketCallback callback) throws IOException {
+
+        int length = end - start;
+        if (length <= maxPayloadSize) {
+            writeHeader(codec, timestamp, lastOfFrame);
+            au.limit(end);
+            au.position(start);
+            packet.put(au);
+            send(callback);
+            return;
+        }
+
+        // Fragments carry the NAL unit header's fields in headers of their own, not the header itself
+        boolean hevc = codec == VideoCodec.HEVC;
+        int headerSize = codec.nalHeaderSize();
+        int nalHeader = au.get(start) & 0xFF;
+        int type = codec.nalType(nalHeader);
+        int offset = start + headerSize;
+        while (offset < end) {
+            int count = Math.min(maxPayloadSize - headerSize - 1, end - offset);
+            boolean first = offset == start + headerSize;
+            boolean last = offset + count == end;
+            writeHeader(codec, timestamp, last && lastOfFrame);
+            if (hevc) {
+                packet.put((byte) ((nalHeader & 0x81) | (HEVC_NAL_FU << 1)));
+                packet.put(au.get(start + 1));
+            } else {
+                packet.put((byte) ((nalHeader & 0xE0) | NAL_FU_A));
+            }
+            packet.put((byte) ((first ? 0x80 : 0) | (last ? 0x40 : 0) | type));
+            au.limit(offset + count);
+            au.position(offset);
+            packet.put(au);
+            send(callback);
+            offset += count;
+        }
+    }
+
+    private void sendVp9(ByteBuffer au, int timestamp, OnPacketCallback callback) throws IOException {
+
+        int end = au.limit();
+        int offset = au.position();
+        do {
+            int count = Math.min(maxPayloadSize - 1, end - offset);
+            boolean first = offset == au.position();
+            boolean last = offset + count == end;
+            writeHeader(VideoCodec.VP9, timestamp, last);
+            packet.put((byte) ((first ? VP9_BEGIN : 0) | (last ? VP9_END : 0)));
+            ByteBuffer range = au.duplicate();
+            range.limit(offset + count);
+            range.position(offset);
+            packet.put(range);
+            send(callback);
+            offset += count;
+        } while (offset < end);
+    }
+
+    private void writeHeader(VideoCodec codec, int timestamp, boolean marker) {
+
+        packet.clear();
+        packet.put((byte) 0x80);
+        packet.put((byte) ((marker ? 0x80 : 0) | payloadType(codec)));
+        packet.putShort((short) sequence++);
+        packet.putInt(timestamp);
+        packet.putInt(ssrc);
+    }
+
+    private void send(OnPacketCallback callback) throws IOException {
+
+        packet.flip();
+        packetCount++;
+        callback.onPacket(packet);
+    }
+
+    /**
+     * Returns the index of the next 00 00 01 at or after from, or end.
+     */
+    static int findStartCode(ByteBuffer buffer, int from, int end) {
+
+        for (int i = from; i + 2 < end; i++) {
+            if (buffer.get(i + 2) > 1) {
+                // Neither of the next two positions can start a start code
+                i += 2;
+            } else if (buffer.get(i) == 0 && buffer.get(i + 1) == 0 && buffer.get(i + 2) == 1) {
+                return i;
+            }
+        }
+        return end;
+    }
+}
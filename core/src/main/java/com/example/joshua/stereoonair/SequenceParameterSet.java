@@ -0,0 +1,241 @@
+package com.example.joshua.stereoonair;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * The few fields of an H.264 sequence parameter set (ITU-T H.264 7.3.2.1.1)
+ * that the transport cares about: picture size after cropping, and the frame
+ * rate if the VUI carries timing info. Everything in between is read only to
+ * get past it.
+ */
+class SequenceParameterSet {
+
+    final int profileIdc;
+    final int levelIdc;
+    final int width;
+    final int height;
+    /** Frames per second from the VUI timing info, or 0 if there is none. */
+    final double frameRate;
+
+    private SequenceParameterSet(int profileIdc, int levelIdc, int width, int height, double frameRate) {
+
+        this.profileIdc = profileIdc;
+        this.levelIdc = levelIdc;
+        this.width = width;
+        this.height = height;
+        this.frameRate = frameRate;
+    }
+
+    /**
+     * Parses the first SPS in an Annex-B buffer, e.g. a codec config Frame's
+     * payload, or returns null if there is none.
+     */
+    static SequenceParameterSet find(ByteBuffer annexB) throws ProtocolException {
+
+        int end = annexB.limit();
+        int start = RtpPacketizer.findStartCode(annexB, annexB.position(), end);
+        while (start + 3 < end) {
+            int next = RtpPacketizer.findStartCode(annexB, start + 3, end);
+            if ((annexB.get(start + 3) & 0x1F) == AnnexBAssembler.NAL_SPS) {
+                ByteBuffer nal = annexB.duplicate();
+                nal.limit(next);
+                nal.position(start + 3);
+                return parse(nal);
+            }
+            start = next;
+        }
+        return null;
+    }
+
+    /** Parses an SPS NAL unit, header byte included and without a start code. */
+    static SequenceParameterSet parse(ByteBuffer nal) throws ProtocolException {
+
+        BitReader bits = new BitReader(nal);
+        if ((bits.read(8) & 0x1F) != AnnexBAssembler.NAL_SPS) {
+            throw new ProtocolException("Not an SPS");
+        }
+        int profileIdc = bits.read(8);
+        bits.read(8);
+        int levelIdc = bits.read(8);
+        bits.readUe();
+
+        int chromaFormatIdc = 1;
+        boolean separateColourPlanes = false;
+        if (profileIdc == 100 || profileIdc == 110 || profileIdc == 122 || profileIdc == 244 || profileIdc == 44
+                || profileIdc == 83 || profileIdc == 86 || profileIdc == 118 || profileIdc == 128
+                || profileIdc == 138 || profileIdc == 139 || profileIdc == 134 || profileIdc == 135) {
+            chromaFormatIdc = bits.readUe();
+            if (chromaFormatIdc == 3) {
+                separateColourPlanes = bits.read(1) == 1;
+            }
+            bits.readUe();
+            bits.readUe();
+            bits.read(1);
+            if (bits.read(1) == 1) {
+                for (int i = 0; i < (chromaFormatIdc != 3 ? 8 : 12); i++) {
+                    if (bits.read(1) == 1) {
+                        skipScalingList(bits, i < 6 ? 16 : 64);
+                    }
+                }
+            }
+        }
+
+        bits.readUe();
+        int picOrderCntType = bits.readUe();
+        if (picOrderCntType == 0) {
+            bits.readUe();
+        } else if (picOrderCntType == 1) {
+            bits.read(1);
+            bits.readSe();
+            bits.readSe();
+            int cycle = bits.readUe();
+            for (int i = 0; i < cycle; i++) {
+                bits.readSe();
+            }
+        }
+        bits.readUe();
+        bits.read(1);
+        int widthInMbs = bits.readUe() + 1;
+        int heightInMapUnits = bits.readUe() + 1;
+        boolean frameMbsOnly = bits.read(1) == 1;
+        if (! frameMbsOnly) {
+            bits.read(1);
+        }
+        bits.read(1);
+
+        int cropLeft = 0;
+        int cropRight = 0;
+        int cropTop = 0;
+        int cropBottom = 0;
+        if (bits.read(1) == 1) {
+            cropLeft = bits.readUe();
+            cropRight = bits.readUe();
+            cropTop = bits.readUe();
+            cropBottom = bits.readUe();
+        }
+        // Crop offsets count chroma samples, and field pairs for interlaced streams
+        int chromaArrayType = separateColourPlanes ? 0 : chromaFormatIdc;
+        int cropUnitX = chromaArrayType == 0 || chromaArrayType == 3 ? 1 : 2;
+        int cropUnitY = (chromaArrayType == 1 ? 2 : 1) * (frameMbsOnly ? 1 : 2);
+        int width = widthInMbs * 16 - cropUnitX * (cropLeft + cropRight);
+        int height = (frameMbsOnly ? 1 : 2) * heightInMapUnits * 16 - cropUnitY * (cropTop + cropBottom);
+
+        double frameRate = 0;
+        if (bits.read(1) == 1) {
+            frameRate = readVuiFrameRate(bits);
+        }
+        return new SequenceParameterSet(profileIdc, levelIdc, width, height, frameRate);
+    }
+
+    private static double readVuiFrameRate(BitReader bits) throws ProtocolException {
+
+        if (bits.read(1) == 1 && bits.read(8) == 255) {
+            // Extended_SAR
+            bits.read(16);
+            bits.read(16);
+        }
+        if (bits.read(1) == 1) {
+            bits.read(1);
+        }
+        if (bits.read(1) == 1) {
+            bits.read(4);
+            if (bits.read(1) == 1) {
+                bits.read(24);
+            }
+        }
+        if (bits.read(1) == 1) {
+            bits.readUe();
+            bits.readUe();
+        }
+        if (bits.read(1) == 0) {
+            return 0;
+        }
+        long numUnitsInTick = bits.readLong(32);
+        long timeScale = bits.readLong(32);
+        // A tick is a field, so a frame takes two
+        return numUnitsInTick == 0 ? 0 : timeScale / (2.0 * numUnitsInTick);
+    }
+
+    private static void skipScalingList(BitReader bits, int size) throws ProtocolException {
+
+        int lastScale = 8;
+        int nextScale = 8;
+        for (int j = 0; j < size; j++) {
+            if (nextScale != 0) {
+                nextScale = (lastScale + bits.readSe() + 256) % 256;
+            }
+            lastScale = nextScale == 0 ? lastScale : nextScale;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return width + "x" + height + (frameRate > 0 ? " @ " + frameRate + " fps" : "")
+                + " profile " + profileIdc + " level " + levelIdc;
+    }
+
+    /** Reads an RBSP, dropping emulation prevention bytes as it goes. */
+    private static class BitReader {
+
+        private final ByteBuffer src;
+        private int zeros = 0;
+        private int current;
+        private int bitsLeft = 0;
+
+        BitReader(ByteBuffer src) {
+            this.src = src.duplicate();
+        }
+
+        int read(int count) throws ProtocolException {
+            return (int) readLong(count);
+        }
+
+        long readLong(int count) throws ProtocolException {
+
+            long value = 0;
+            for (int i = 0; i < count; i++) {
+                if (bitsLeft == 0) {
+                    nextByte();
+                }
+                bitsLeft--;
+                value = (value << 1) | ((current >> bitsLeft) & 1);
+            }
+            return value;
+        }
+
+        /** Exp-Golomb ue(v). */
+        int readUe() throws ProtocolException {
+
+            int leadingZeros = 0;
+            while (read(1) == 0) {
+                if (++leadingZeros > 31) {
+                    throw new ProtocolException("Bad exp-Golomb code");
+                }
+            }
+            return (int) ((1L << leadingZeros) - 1 + readLong(leadingZeros));
+        }
+
+        /** Exp-Golomb se(v). */
+        int readSe() throws ProtocolException {
+
+            int code = readUe();
+            return (code & 1) != 0 ? (code + 1) / 2 : -(code / 2);
+        }
+
+        private void nextByte() throws ProtocolException {
+
+            if (! src.hasRemaining()) {
+                throw new ProtocolException("SPS ends early");
+            }
+            current = src.get() & 0xFF;
+            if (zeros >= 2 && current == 3) {
+                zeros = 0;
+                nextByte();
+                return;
+            }
+            zeros = current == 0 ? zeros + 1 : 0;
+            bitsLeft = 8;
+        }
+    }
+}
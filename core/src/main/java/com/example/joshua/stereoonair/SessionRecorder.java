@@ -0,0 +1,93 @@
+package com.example.joshua.stereoonair;
+
+import java.io.IOException;
+
+/**
+ * Writes the frames the viewer receives into a RecordingStore from a thread of
+ * its own. The network thread only queues a view of each frame, so a slow
+ * disk can never hold up live playback: a frame that finds the queue full is
+ * left out of the recording and counted.
+ *
+ * record() belongs to the network thread. run() returns when interrupted, after
+ * writing out what is queued and closing the store, or when the store fails.
+ */
+class SessionRecorder implements Runnable {
+
+    private final static int QUEUE_SIZE = 64;
+
+    private static class Entry {
+
+        final Side side;
+        final Frame frame;
+        final long arrivalUs;
+        final long captureUs;
+
+        Entry(Side side, Frame frame, long arrivalUs, long captureUs) {
+
+            this.side = side;
+            this.frame = frame;
+            this.arrivalUs = arrivalUs;
+            this.captureUs = captureUs;
+        }
+    }
+
+    private final RecordingStore store;
+    private final SpscRing<Entry> queue = new SpscRing<>(QUEUE_SIZE, SpscRing.WaitStrategy.PARK);
+    private volatile IOException failure;
+    private volatile long framesSkipped = 0;
+
+    SessionRecorder(RecordingStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Queues side's frame, as it arrived at arrivalUs. The frame's payload must
+     * not change afterwards, only its position.
+     */
+    void record(Side side, Frame frame, long arrivalUs, long captureUs) {
+
+        Frame view = new Frame(frame.sequence, frame.streamId, frame.ptsUs, frame.flags, frame.payload.duplicate());
+        if (failure != null || ! queue.offer(new Entry(side, view, arrivalUs, captureUs))) {
+            framesSkipped++;
+        }
+    }
+
+    @Override
+    public void run() {
+
+        try {
+            try {
+                while (true) {
+                    write(queue.take());
+                }
+            } catch (InterruptedException exception) {
+                Entry entry;
+                while ((entry = queue.poll()) != null) {
+                    write(entry);
+                }
+            } finally {
+                store.close();
+            }
+        } catch (IOException exception) {
+            failure = exception;
+        }
+    }
+
+    private void write(Entry entry) throws IOException {
+        store.append(entry.side, entry.frame, entry.arrivalUs, entry.captureUs);
+    }
+
+    RecordingStore getStore() {
+        return store;
+    }
+
+    /** Frames left out because the recording thread was behind or had failed. */
+    long framesSkipped() {
+        return framesSkipped;
+    }
+
+    /** Why recording stopped, or null if it hasn't. */
+    IOException failure() {
+        return failure;
+    }
+}
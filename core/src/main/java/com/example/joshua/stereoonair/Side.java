@@ -0,0 +1,18 @@
+package com.example.joshua.stereoonair;
+
+/**
+ * Which eye a camera feeds. The ordinal is what goes on the wire as the stream id.
+ */
+enum Side {
+
+    LEFT, RIGHT;
+
+    static Side fromId(int id) {
+
+        Side[] sides = values();
+        if (id < 0 || id >= sides.length) {
+            return null;
+        }
+        return sides[id];
+    }
+}
@@ -0,0 +1,232 @@
+package com.example.joshua.stereoonair;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lock-free ring for handing objects from exactly one producer thread to
+ * exactly one consumer thread. Capacity is rounded up to a power of two and the
+ * head and tail counters sit on their own cache lines, so the two threads only
+ * ever touch each other's counter when their cached copy says the ring looks
+ * full or empty.
+ *
+ * offer() and poll() never block. put() and take() wait using the ring's
+ * WaitStrategy. Under PARK a waiting thread leaves itself in the ring for the
+ * other side to unpark, so it sleeps until there is something to do; to make
+ * sure the other side sees it, a PARK ring publishes its counters with a full
+ * volatile write instead of lazySet().
+ */
+class SpscRing<T> {
+
+    enum WaitStrategy {
+
+        /** Busy-spin. Lowest hand-off latency, burns a core while waiting. */
+        SPIN,
+        /** Spin briefly, then Thread.yield(). */
+        YIELD,
+        /** Spin, yield, then park until the other side hands over. Suits threads that idle. */
+        PARK;
+
+        private final static int SPIN_TRIES = 100;
+        private final static int YIELD_TRIES = 100;
+
+        /** Waits a little. Returns false once PARK has spun and yielded enough and should park. */
+        boolean idle(int tries) {
+
+            if (this == SPIN || tries < SPIN_TRIES) {
+                return true;
+            }
+            if (this == YIELD || tries < SPIN_TRIES + YIELD_TRIES) {
+                Thread.yield();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    // Only a safety net; the other side unparks a waiting thread as soon as it can go on
+    private final static long MAX_PARK_NANOS = 1_000_000_000;
+
+    /** AtomicLong followed by enough padding to keep neighbours off its cache line. */
+    @SuppressWarnings({"serial", "unused"})
+    private static class PaddedSequence extends AtomicLong {
+        long p1, p2, p3, p4, p5, p6, p7;
+    }
+
+    private final Object[] slots;
+    private final int mask;
+    private final WaitStrategy waitStrategy;
+    private final boolean parks;
+
+    // Next slot to read, written by the consumer only
+    private final PaddedSequence head = new PaddedSequence();
+    // Next slot to write, written by the producer only
+    private final PaddedSequence tail = new PaddedSequence();
+    // Each side's cached copy of the other side's counter
+    private long producerCachedHead = 0;
+    @SuppressWarnings("unused")
+    private long p1, p2, p3, p4, p5, p6, p7;
+    private long consumerCachedTail = 0;
+
+    private volatile int highWaterMark = 0;
+    // The thread parked in put() or take(), if any
+    private volatile Thread parkedProducer;
+    private volatile Thread parkedConsumer;
+
+    SpscRing(int capacity, WaitStrategy waitStrategy) {
+
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Bad ring capacity: " + capacity);
+        }
+        int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        slots = new Object[size];
+        mask = size - 1;
+        this.waitStrategy = waitStrategy;
+        parks = waitStrategy == WaitStrategy.PARK;
+    }
+
+    /**
+     * Producer only. Returns false without blocking if the ring is full.
+     */
+    boolean offer(T item) {
+
+        long t = tail.get();
+        if (t - producerCachedHead >= slots.length) {
+            producerCachedHead = head.get();
+            if (t - producerCachedHead >= slots.length) {
+                return false;
+            }
+        }
+        slots[(int) t & mask] = item;
+        if (parks) {
+            tail.set(t + 1);
+            unpark(parkedConsumer);
+        } else {
+            tail.lazySet(t + 1);
+        }
+        return true;
+    }
+
+    /**
+     * Producer only. Waits for a free slot.
+     */
+    void put(T item) throws InterruptedException {
+
+        int tries = 0;
+        while (! offer(item)) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (! waitStrategy.idle(tries++)) {
+                parkedProducer = Thread.currentThread();
+                // Looked at again once visible, or a poll() in between would go unnoticed
+                if (tail.get() - head.get() >= slots.length) {
+                    LockSupport.parkNanos(this, MAX_PARK_NANOS);
+                }
+                parkedProducer = null;
+            }
+        }
+    }
+
+    /**
+     * Consumer only. Returns null without blocking if the ring is empty.
+     */
+    @SuppressWarnings("unchecked")
+    T poll() {
+
+        long h = head.get();
+        if (h >= consumerCachedTail && ! refreshTail(h)) {
+            return null;
+        }
+        int index = (int) h & mask;
+        T item = (T) slots[index];
+        slots[index] = null;
+        if (parks) {
+            head.set(h + 1);
+            unpark(parkedProducer);
+        } else {
+            head.lazySet(h + 1);
+        }
+        return item;
+    }
+
+    /**
+     * Consumer only. Waits for an item.
+     */
+    T take() throws InterruptedException {
+
+        int tries = 0;
+        T item;
+        while ((item = poll()) == null) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (! waitStrategy.idle(tries++)) {
+                parkedConsumer = Thread.currentThread();
+                // Looked at again once visible, or an offer() in between would go unnoticed
+                if (! refreshTail(head.get())) {
+                    LockSupport.parkNanos(this, MAX_PARK_NANOS);
+                }
+                parkedConsumer = null;
+            }
+        }
+        return item;
+    }
+
+    /**
+     * Consumer only. Returns the next item without removing it, or null.
+     */
+    @SuppressWarnings("unchecked")
+    T peek() {
+
+        long h = head.get();
+        if (h >= consumerCachedTail && ! refreshTail(h)) {
+            return null;
+        }
+        return (T) slots[(int) h & mask];
+    }
+
+    /**
+     * Consumer only. Re-reads the producer's tail and returns whether anything is
+     * available at h. This is also where occupancy is sampled for the high-water
+     * mark, so the hot path never touches it.
+     */
+    private boolean refreshTail(long h) {
+
+        long t = tail.get();
+        consumerCachedTail = t;
+        int occupancy = (int) (t - h);
+        if (occupancy > highWaterMark) {
+            highWaterMark = occupancy;
+        }
+        return t > h;
+    }
+
+    private static void unpark(Thread thread) {
+
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    int capacity() {
+        return slots.length;
+    }
+
+    /** Current occupancy. Exact from either end, approximate from other threads. */
+    int size() {
+
+        long h = head.get();
+        long t = tail.get();
+        return (int) Math.max(0, Math.min(t - h, slots.length));
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /** Highest occupancy the consumer has seen when catching up with the producer. */
+    int highWaterMark() {
+        return highWaterMark;
+    }
+}
@@ -0,0 +1,156 @@
+package com.example.joshua.stereoonair;
+
+import java.util.ArrayDeque;
+
+/**
+ * Holds decoded frames from both eyes and releases them in pairs whose capture
+ * times, on the viewer's clock, are within a tolerance of each other. Capture
+ * times only go forward, so a frame that is older than the other eye's oldest by
+ * more than the tolerance can never be paired and is dropped rather than shown
+ * against the wrong picture. If one eye has had nothing for maxWaitUs, e.g. while
+ * its camera reconnects, the other is shown on its own so it doesn't freeze.
+ *
+ * Decoders have only a few output buffers, so no more than MAX_HELD are kept per
+ * eye. Both decoder threads call in, so every method is synchronized.
+ */
+class StereoPairer {
+
+    static abstract class OnReleaseCallback {
+        abstract void onRelease(Side side, int index, long captureUs, boolean render);
+
+        /** Both halves of a pair, to be shown together; by default released one after the other. */
+        void onReleasePair(int leftIndex, long leftCaptureUs, int rightIndex, long rightCaptureUs) {
+
+            onRelease(Side.LEFT, leftIndex, leftCaptureUs, true);
+            onRelease(Side.RIGHT, rightIndex, rightCaptureUs, true);
+        }
+    }
+
+    final static int MAX_HELD = 3;
+
+    private final long toleranceUs;
+    private final long maxWaitUs;
+    private final OnReleaseCallback callback;
+    private final ArrayDeque<Held> left = new ArrayDeque<>();
+    private final ArrayDeque<Held> right = new ArrayDeque<>();
+
+    private long pairedCount = 0;
+    private long droppedCount = 0;
+    private long soloCount = 0;
+    private long skewSumUs = 0;
+    private long maxSkewUs = 0;
+
+    private static class Held {
+
+        final int index;
+        final long captureUs;
+        final long arrivalUs;
+
+        Held(int index, long captureUs, long arrivalUs) {
+
+            this.index = index;
+            this.captureUs = captureUs;
+            this.arrivalUs = arrivalUs;
+        }
+    }
+
+    StereoPairer(long toleranceUs, long maxWaitUs, OnReleaseCallback callback) {
+
+        this.toleranceUs = toleranceUs;
+        this.maxWaitUs = maxWaitUs;
+        this.callback = callback;
+    }
+
+    /**
+     * Offers decoder output buffer index of side, captured at captureUs on the
+     * viewer's clock. Releases whatever that makes ready.
+     */
+    synchronized void offer(Side side, int index, long captureUs, long nowUs) {
+
+        ArrayDeque<Held> queue = side == Side.LEFT ? left : right;
+        queue.add(new Held(index, captureUs, nowUs));
+        if (queue.size() > MAX_HELD) {
+            // The other eye is too far behind to wait for
+            soloCount++;
+            Held oldest = queue.poll();
+            callback.onRelease(side, oldest.index, oldest.captureUs, true);
+        }
+        poll(nowUs);
+    }
+
+    /** Releases anything whose wait is over. Call now and then if frames stop. */
+    synchronized void poll(long nowUs) {
+
+        while (true) {
+            Held l = left.peek();
+            Held r = right.peek();
+            if (l != null && r != null) {
+                long skew = l.captureUs - r.captureUs;
+                if (Math.abs(skew) <= toleranceUs) {
+                    left.poll();
+                    right.poll();
+                    pairedCount++;
+                    skewSumUs += Math.abs(skew);
+                    maxSkewUs = Math.max(maxSkewUs, Math.abs(skew));
+                    callback.onReleasePair(l.index, l.captureUs, r.index, r.captureUs);
+                } else if (skew < 0) {
+                    left.poll();
+                    droppedCount++;
+                    callback.onRelease(Side.LEFT, l.index, l.captureUs, false);
+                } else {
+                    right.poll();
+                    droppedCount++;
+                    callback.onRelease(Side.RIGHT, r.index, r.captureUs, false);
+                }
+            } else if (l != null && nowUs - l.arrivalUs > maxWaitUs) {
+                left.poll();
+                soloCount++;
+                callback.onRelease(Side.LEFT, l.index, l.captureUs, true);
+            } else if (r != null && nowUs - r.arrivalUs > maxWaitUs) {
+                right.poll();
+                soloCount++;
+                callback.onRelease(Side.RIGHT, r.index, r.captureUs, true);
+            } else {
+                return;
+            }
+        }
+    }
+
+    /** Drops everything held for side, e.g. when its decoder is flushed. */
+    synchronized void clear(Side side) {
+
+        ArrayDeque<Held> queue = side == Side.LEFT ? left : right;
+        Held held;
+        while ((held = queue.poll()) != null) {
+            callback.onRelease(side, held.index, held.captureUs, false);
+        }
+    }
+
+    synchronized long pairedCount() {
+        return pairedCount;
+    }
+
+    synchronized long droppedCount() {
+        return droppedCount;
+    }
+
+    synchronized long soloCount() {
+        return soloCount;
+    }
+
+    /** Share of frames shown as part of a pair. */
+    synchronized double pairingRate() {
+
+        long total = 2 * pairedCount + droppedCount + soloCount;
+        return total == 0 ? 0 : 2.0 * pairedCount / total;
+    }
+
+    /** Mean capture time difference between the two halves of a pair. */
+    synchronized long meanSkewUs() {
+        return pairedCount == 0 ? 0 : skewSumUs / pairedCount;
+    }
+
+    synchronized long maxSkewUs() {
+        return maxSkewUs;
+    }
+}
@@ -0,0 +1,41 @@
+package com.example.joshua.stereoonair;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Turns a byte stream received from a camera into whole Frames. Bytes are fed in
+ * whatever chunks the socket returns and the callback is invoked once for every
+ * complete access unit.
+ */
+abstract class StreamParser {
+
+    static abstract class OnFrameCallback {
+        abstract void onFrame(Frame frame);
+    }
+
+    final OnFrameCallback callback;
+
+    StreamParser(OnFrameCallback callback) {
+        this.callback = callback;
+    }
+
+    /**
+     * Consumes every remaining byte of chunk.
+     */
+    abstract void feed(ByteBuffer chunk) throws ProtocolException;
+
+    /**
+     * Called at end of stream to hand over anything still buffered.
+     */
+    void flush() { }
+
+    static void copy(ByteBuffer src, ByteBuffer dst) {
+
+        int count = Math.min(src.remaining(), dst.remaining());
+        int limit = src.limit();
+        src.limit(src.position() + count);
+        dst.put(src);
+        src.limit(limit);
+    }
+}
@@ -0,0 +1,179 @@
+package com.example.joshua.stereoonair;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The codecs a camera and viewer can agree on, and what little of each
+ * bitstream the transport has to look into: NAL unit headers for H.264 and
+ * HEVC, the uncompressed frame header for VP9. The id is what goes on the wire,
+ * in Frame flags and as the RTP payload type's offset; H.264 being 0 keeps
+ * frames from ends that know nothing of negotiation valid.
+ *
+ * The viewer offers the set it can decode (FrameProtocol's codec offer) and the
+ * camera encodes in the most efficient codec both have, H.264 if there is none.
+ */
+enum VideoCodec {
+
+    AVC(0, "video/avc", 0),
+    HEVC(1, "video/hevc", 2),
+    VP9(2, "video/x-vnd.on2.vp9", 1);
+
+    final static int ALL = AVC.bit() | HEVC.bit() | VP9.bit();
+
+    final static int HEVC_NAL_IRAP_FIRST = 16;
+    final static int HEVC_NAL_IRAP_LAST = 23;
+    final static int HEVC_NAL_VPS = 32;
+    final static int HEVC_NAL_SPS = 33;
+    final static int HEVC_NAL_PPS = 34;
+    final static int HEVC_NAL_AUD = 35;
+    final static int HEVC_NAL_PREFIX_SEI = 39;
+    // Highest of the VCL types whose even numbers mark sub-layer non-reference pictures
+    private final static int HEVC_NAL_RESERVED_VCL_N14 = 14;
+
+    final int id;
+    final String mimeType;
+    // Higher compresses better
+    private final int efficiency;
+
+    VideoCodec(int id, String mimeType, int efficiency) {
+
+        this.id = id;
+        this.mimeType = mimeType;
+        this.efficiency = efficiency;
+    }
+
+    static VideoCodec fromId(int id) {
+
+        for (VideoCodec codec : values()) {
+            if (codec.id == id) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    static VideoCodec fromMimeType(String mimeType) {
+
+        for (VideoCodec codec : values()) {
+            if (codec.mimeType.equalsIgnoreCase(mimeType)) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /** The codec frame flags say a frame is in; unknown ids read as H.264. */
+    static VideoCodec fromFlags(int flags) {
+
+        VideoCodec codec = fromId((flags & Frame.FLAG_CODEC_MASK) >> Frame.FLAG_CODEC_SHIFT);
+        return codec != null ? codec : AVC;
+    }
+
+    /**
+     * The most efficient codec in both bit sets, or H.264, which every Android
+     * device encodes and decodes, if they share nothing better.
+     */
+    static VideoCodec choose(int encoders, int decoders) {
+
+        VideoCodec best = AVC;
+        int common = encoders & decoders;
+        for (VideoCodec codec : values()) {
+            if ((common & codec.bit()) != 0 && codec.efficiency > best.efficiency) {
+                best = codec;
+            }
+        }
+        return best;
+    }
+
+    int bit() {
+        return 1 << id;
+    }
+
+    /** This codec's bits of Frame.flags. */
+    int flags() {
+        return id << Frame.FLAG_CODEC_SHIFT;
+    }
+
+    /** Whether the encoder puts out a codec config first; VP9 frames carry their own. */
+    boolean hasCodecConfig() {
+        return this != VP9;
+    }
+
+    /** Bytes of NAL unit header, 0 for VP9, which has no NAL units. */
+    int nalHeaderSize() {
+        return this == HEVC ? 2 : this == AVC ? 1 : 0;
+    }
+
+    /** The NAL unit type in the first byte of a NAL unit header. */
+    int nalType(int headerByte) {
+        return this == HEVC ? (headerByte >> 1) & 0x3F : headerByte & 0x1F;
+    }
+
+    boolean isVcl(int nalType) {
+        return this == HEVC ? nalType < 32 : AnnexBAssembler.isVcl(nalType);
+    }
+
+    /** Whether a NAL unit of this type makes its picture a random access point. */
+    boolean isKeyFrameNal(int nalType) {
+
+        if (this == HEVC) {
+            return nalType >= HEVC_NAL_IRAP_FIRST && nalType <= HEVC_NAL_IRAP_LAST;
+        }
+        return nalType == AnnexBAssembler.NAL_IDR;
+    }
+
+    /** Whether a NAL unit of this type goes before the pictures of an access unit. */
+    boolean isAccessUnitPrefix(int nalType) {
+
+        if (this == HEVC) {
+            return nalType == HEVC_NAL_VPS || nalType == HEVC_NAL_SPS || nalType == HEVC_NAL_PPS
+                    || nalType == HEVC_NAL_AUD || nalType == HEVC_NAL_PREFIX_SEI;
+        }
+        return nalType == AnnexBAssembler.NAL_SPS || nalType == AnnexBAssembler.NAL_PPS
+                || nalType == AnnexBAssembler.NAL_AUD || nalType == AnnexBAssembler.NAL_SEI;
+    }
+
+    /**
+     * Whether the VCL NAL unit starting at offset, header included, is the first
+     * slice of its picture. length counts from offset.
+     */
+    boolean isFirstSlice(byte[] nal, int offset, int length) {
+
+        int headerSize = nalHeaderSize();
+        // HEVC: first_slice_segment_in_pic_flag. H.264: first_mb_in_slice is ue(v), so a leading 1 bit means 0
+        return length > headerSize && (nal[offset + headerSize] & 0x80) != 0;
+    }
+
+    /**
+     * Whether a VCL NAL unit of this type, with headerByte its first header
+     * byte, can be predicted from. Unknown means yes.
+     */
+    boolean isReference(int nalType, int headerByte) {
+
+        if (this == HEVC) {
+            return nalType > HEVC_NAL_RESERVED_VCL_N14 || nalType % 2 == 1;
+        }
+        return (headerByte & 0x60) != 0;
+    }
+
+    /**
+     * Whether a whole VP9 frame, uncompressed header first, is a key frame
+     * (VP9 bitstream spec, 6.2). Other codecs say so in their NAL units.
+     */
+    static boolean isVp9KeyFrame(ByteBuffer frame, int offset) {
+
+        if (offset >= frame.limit()) {
+            return false;
+        }
+        int header = frame.get(offset) & 0xFF;
+        if ((header >> 6) != 2) {
+            return false;
+        }
+        int profile = ((header >> 5) & 1) | (((header >> 4) & 1) << 1);
+        // Profile 3 has a reserved bit before show_existing_frame
+        int showExistingBit = profile == 3 ? 5 : 4;
+        boolean showExistingFrame = (header & (0x80 >> showExistingBit)) != 0;
+        boolean interFrame = (header & (0x80 >> (showExistingBit + 1))) != 0;
+        return ! showExistingFrame && ! interFrame;
+    }
+}
@@ -0,0 +1,112 @@
+package com.example.joshua.stereoonair;
+
+/**
+ * The capture sizes and rates a session can run at, least demanding first. Each
+ * camera says which of them its sensor and encoder sustain, the viewer which it
+ * can decode both of at once and has the screen for, and both eyes run at the
+ * best one all three share (choose()), so the pair stays identical.
+ *
+ * Sets of modes travel as bits, as VideoCodecs do; a mode's bit is its ordinal.
+ */
+enum VideoMode {
+
+    VGA_30(640, 480, 30),
+    VGA_60(640, 480, 60),
+    SVGA_30(800, 600, 30),
+    SVGA_60(800, 600, 60),
+    HD_30(1280, 720, 30),
+    HD_60(1280, 720, 60),
+    FULL_HD_30(1920, 1080, 30),
+    FULL_HD_60(1920, 1080, 60),
+    QHD_30(2560, 1440, 30),
+    QHD_60(2560, 1440, 60),
+    UHD_30(3840, 2160, 30),
+    UHD_60(3840, 2160, 60);
+
+    final static int ALL = (1 << values().length) - 1;
+
+    final int width;
+    final int height;
+    final int fps;
+
+    VideoMode(int width, int height, int fps) {
+
+        this.width = width;
+        this.height = height;
+        this.fps = fps;
+    }
+
+    static VideoMode fromId(int id) {
+        return id >= 0 && id < values().length ? values()[id] : null;
+    }
+
+    /** The mode of this size and rate, or null if there is none. */
+    static VideoMode of(int width, int height, int fps) {
+
+        for (VideoMode mode : values()) {
+            if (mode.width == width && mode.height == height && mode.fps == fps) {
+                return mode;
+            }
+        }
+        return null;
+    }
+
+    int bit() {
+        return 1 << ordinal();
+    }
+
+    /** The most demanding mode in modes, or null if it is empty. */
+    static VideoMode best(int modes) {
+
+        VideoMode[] values = values();
+        for (int i = values.length - 1; i >= 0; i--) {
+            if ((modes & values[i].bit()) != 0) {
+                return values[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The best mode in all of modeSets, or null if they share none. A set of 0
+     * is one not known yet and left out.
+     */
+    static VideoMode choose(int... modeSets) {
+
+        int common = ALL;
+        boolean known = false;
+        for (int modes : modeSets) {
+            if (modes != 0) {
+                common &= modes;
+                known = true;
+            }
+        }
+        return known ? best(common) : null;
+    }
+
+    /**
+     * modes without the sizes bigger than the smallest one that covers a width by
+     * height viewport, whose extra pixels the viewer could never show.
+     */
+    static int fitting(int modes, int width, int height) {
+
+        int coverArea = Integer.MAX_VALUE;
+        for (VideoMode mode : values()) {
+            if ((modes & mode.bit()) != 0 && mode.width >= width && mode.height >= height) {
+                coverArea = Math.min(coverArea, mode.width * mode.height);
+            }
+        }
+        int fitting = 0;
+        for (VideoMode mode : values()) {
+            if ((modes & mode.bit()) != 0 && mode.width * mode.height <= coverArea) {
+                fitting |= mode.bit();
+            }
+        }
+        return fitting;
+    }
+
+    @Override
+    public String toString() {
+        return width + "x" + height + "@" + fps;
+    }
+}
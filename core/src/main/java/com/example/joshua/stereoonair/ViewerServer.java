@@ -0,0 +1,838 @@
+package com.example.joshua.stereoonair;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.nio.channels.UnsupportedAddressTypeException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Non-blocking server that accepts both camera connections on one port and runs
+ * them from a single selector thread. Each camera opens with a FrameProtocol
+ * hello that claims its eye; a connection without one (e.g. a plain Annex-B
+ * sender) gets whichever eye is still free. Frames are handed to the ring for
+ * that eye. If a ring is full the connection simply stops being read until the
+ * decoder catches up, so one slow eye never holds up the other.
+ *
+ * Every REPORT_INTERVAL_MILLIS each camera gets a ReceiverReport back, over its
+ * TCP connection or as a datagram to the address its RTP comes from, so it can
+ * fit its bitrate to the link, together with a clock ping whose answer feeds the
+ * eye's ClockSync and the codecs this end decodes (setDecoders()), from which
+ * the camera picks what to encode in. Connections without a hello are not sent
+ * any of these. Cameras say which VideoModes they can run at, and once the
+ * server knows, the best one both cameras and this end (setVideoModes()) share
+ * is asked of both with every report. They also say what their encoders run
+ * with (getEncoderSettings()).
+ *
+ * A camera sends frames many times a second, so one that has sent nothing for
+ * PEER_TIMEOUT_MILLIS, while its eye was being read, is taken to be gone: its
+ * connection is closed, or for UDP its eye is released, and onDisconnected()
+ * called. Whatever it sends next starts it over.
+ *
+ * Cameras in UDP mode send RTP datagrams to the same port number instead; the
+ * eye comes from the SSRC. Datagrams can't be pushed back on, so a frame that
+ * finds its ring full is dropped and counted. Lost packets are rebuilt from the
+ * camera's FEC parity packets where possible.
+ *
+ * Instead of waiting for cameras, the server can subscribe to a RelayServer
+ * (see subscribe()): it connects out once per eye, names the eye in a hello of
+ * its own, and from the relay's hello on treats the connection like a camera's.
+ * A subscription that drops is made again after a ReconnectBackoff wait.
+ *
+ * run() loops until its thread is interrupted.
+ */
+class ViewerServer implements Runnable {
+
+    static abstract class OnConnectionCallback {
+        abstract void onConnected(Side side);
+        abstract void onDisconnected(Side side, IOException exception);
+        /**
+         * Called with a read-only view of each codec config before it reaches the
+         * ring, and with a null config when a frame arrives in a codec other than
+         * the eye's last one without a config first, as VP9 does.
+         */
+        abstract void onCodecConfig(Side side, VideoCodec codec, ByteBuffer config);
+    }
+
+    private final static int READ_BUFFER_SIZE = 64 * 1024;
+    private final static long STALL_RETRY_MILLIS = 2;
+    private final static long UDP_FRAME_DEADLINE_MILLIS = 100;
+    private final static long UDP_EXPIRE_MILLIS = 5;
+    private final static long REPORT_INTERVAL_MILLIS = 250;
+    private final static long RESUBSCRIBE_INITIAL_MILLIS = 100;
+    private final static long RESUBSCRIBE_MAX_MILLIS = 5_000;
+    final static long PEER_TIMEOUT_MILLIS = 2_000;
+
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final SpscRing<Frame> leftRing;
+    private final SpscRing<Frame> rightRing;
+    private final OnConnectionCallback callback;
+    private final Connection[] connections = new Connection[Side.values().length];
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private int stalledCount = 0;
+
+    private final DatagramChannel datagramChannel;
+    private final RtpDepacketizer[] depacketizers = new RtpDepacketizer[Side.values().length];
+    private final FecDecoder[] fecDecoders = new FecDecoder[Side.values().length];
+    private final boolean[] datagramsSeen = new boolean[Side.values().length];
+    private final SocketAddress[] datagramSources = new SocketAddress[Side.values().length];
+    private final long[] datagramFramesDroppedBySide = new long[Side.values().length];
+    private final long[] lastDatagramNanos = new long[Side.values().length];
+    private volatile long datagramFramesDropped = 0;
+
+    private final ReceiverStats[] receiverStats = new ReceiverStats[Side.values().length];
+    private final ClockSync[] clockSyncs = new ClockSync[Side.values().length];
+    private final PipelineMetrics metrics;
+    private final ClockReply clockReply = new ClockReply();
+    private final ReceiverReport report = new ReceiverReport();
+    private final ByteBuffer reportBuffer = ByteBuffer.allocate(FrameProtocol.REPORT_SIZE);
+    private final ByteBuffer pingBuffer = ByteBuffer.allocate(FrameProtocol.CLOCK_PING_SIZE);
+    private final ByteBuffer offerBuffer = ByteBuffer.allocate(FrameProtocol.CODEC_OFFER_SIZE);
+    private final VideoCodec[] codecs = new VideoCodec[Side.values().length];
+    private volatile int decoders = VideoCodec.AVC.bit();
+    private final ByteBuffer modeBuffer = ByteBuffer.allocate(FrameProtocol.VIDEO_MODE_SIZE);
+    private final int[] cameraModes = new int[Side.values().length];
+    private volatile int viewerModes = VideoMode.ALL;
+    private volatile VideoMode videoMode;
+    private final AtomicReferenceArray<EncoderSettings> encoderSettings = new AtomicReferenceArray<>(Side.values().length);
+    private long nextReportNanos;
+    private volatile long reportsSent = 0;
+    private volatile SessionRecorder recorder;
+
+    private volatile InetSocketAddress relayAddress;
+    // relayAddress looked up off the server thread; null until then and after it drops
+    private volatile InetSocketAddress resolvedRelayAddress;
+    private final AtomicBoolean resolvingRelay = new AtomicBoolean();
+    private volatile boolean relayResolveFailed = false;
+    private final Connection[] subscriptions = new Connection[Side.values().length];
+    private final ReconnectBackoff[] subscribeBackoffs = new ReconnectBackoff[Side.values().length];
+    private final long[] nextSubscribeNanos = new long[Side.values().length];
+
+    private class Connection {
+
+        final SocketChannel channel;
+        final SelectionKey key;
+        // Hello, then the first four stream bytes that tell FrameProtocol from Annex-B
+        final ByteBuffer prefix = ByteBuffer.allocate(FrameProtocol.HELLO_SIZE);
+        final ArrayDeque<Frame> pending = new ArrayDeque<>();
+        boolean helloRead = false;
+        boolean sendsReports = false;
+        final ByteBuffer reportOut = (ByteBuffer) ByteBuffer.allocate(
+                FrameProtocol.REPORT_SIZE + FrameProtocol.CLOCK_PING_SIZE + FrameProtocol.CODEC_OFFER_SIZE
+                        + FrameProtocol.VIDEO_MODE_SIZE).limit(0);
+        boolean stalled = false;
+        long lastReadNanos = System.nanoTime();
+        // The eye asked a relay for, on a connection this end opened
+        Side subscribedSide;
+        Side side;
+        SpscRing<Frame> ring;
+        StreamParser parser;
+
+        Connection(SocketChannel channel, SelectionKey key) {
+
+            this.channel = channel;
+            this.key = key;
+        }
+
+        final StreamParser.OnFrameCallback onFrameCallback = new StreamParser.OnFrameCallback() {
+            @Override
+            void onFrame(Frame frame) {
+                onFrameReceived(side, frame);
+                pending.add(frame);
+            }
+        };
+
+        final FrameParser.OnClockReplyCallback onClockReplyCallback = new FrameParser.OnClockReplyCallback() {
+            @Override
+            void onClockReply(ClockReply reply) {
+                clockSyncs[side.ordinal()].onReply(reply, System.nanoTime() / 1000);
+            }
+        };
+
+        final FrameParser.OnCameraStatusCallback onCameraStatusCallback = new FrameParser.OnCameraStatusCallback() {
+            @Override
+            void onCameraModes(int modes) {
+                onModesOffered(side, modes);
+            }
+
+            @Override
+            void onEncoderSettings(EncoderSettings settings) {
+                encoderSettings.set(side.ordinal(), settings);
+            }
+        };
+    }
+
+    ViewerServer(int port, SpscRing<Frame> leftRing, SpscRing<Frame> rightRing, OnConnectionCallback callback) throws IOException {
+
+        this.leftRing = leftRing;
+        this.rightRing = rightRing;
+        this.callback = callback;
+
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        datagramChannel = DatagramChannel.open();
+        datagramChannel.socket().setReuseAddress(true);
+        datagramChannel.socket().setReceiveBufferSize(1024 * 1024);
+        datagramChannel.socket().bind(new InetSocketAddress(getLocalPort()));
+        datagramChannel.configureBlocking(false);
+        datagramChannel.register(selector, SelectionKey.OP_READ);
+
+        long now = System.nanoTime();
+        metrics = new PipelineMetrics(now);
+        nextReportNanos = now + REPORT_INTERVAL_MILLIS * 1_000_000;
+        for (final Side side : Side.values()) {
+            final SpscRing<Frame> ring = side == Side.LEFT ? leftRing : rightRing;
+            receiverStats[side.ordinal()] = new ReceiverStats(side, now);
+            clockSyncs[side.ordinal()] = new ClockSync();
+            codecs[side.ordinal()] = VideoCodec.AVC;
+            depacketizers[side.ordinal()] = new RtpDepacketizer(side.ordinal(),
+                    UDP_FRAME_DEADLINE_MILLIS * 1_000_000, clockSyncs[side.ordinal()], new StreamParser.OnFrameCallback() {
+                @Override
+                void onFrame(Frame frame) {
+                    onFrameReceived(side, frame);
+                    if (! ring.offer(frame)) {
+                        datagramFramesDroppedBySide[side.ordinal()]++;
+                        datagramFramesDropped++;
+                    }
+                }
+            });
+            fecDecoders[side.ordinal()] = new FecDecoder(depacketizers[side.ordinal()]);
+            subscribeBackoffs[side.ordinal()] = new ReconnectBackoff(RESUBSCRIBE_INITIAL_MILLIS, RESUBSCRIBE_MAX_MILLIS);
+        }
+    }
+
+    int getLocalPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    boolean isConnected(Side side) {
+        return connections[side.ordinal()] != null;
+    }
+
+    /** Only safe to read from the server thread. */
+    RtpDepacketizer getDepacketizer(Side side) {
+        return depacketizers[side.ordinal()];
+    }
+
+    /** Only safe to read from the server thread. */
+    FecDecoder getFecDecoder(Side side) {
+        return fecDecoders[side.ordinal()];
+    }
+
+    /** Frames that arrived over UDP while their eye's ring was full. */
+    long datagramFramesDropped() {
+        return datagramFramesDropped;
+    }
+
+    /** Safe to use from any thread. */
+    ClockSync getClockSync(Side side) {
+        return clockSyncs[side.ordinal()];
+    }
+
+    long reportsSent() {
+        return reportsSent;
+    }
+
+    /**
+     * The VideoCodec bits this end can decode, offered to cameras with each
+     * report from then on. Only H.264 until set.
+     */
+    void setDecoders(int decoders) {
+        this.decoders = decoders;
+    }
+
+    /**
+     * The VideoMode bits this end can decode both eyes at and has the screen for.
+     * Every mode until set.
+     */
+    void setVideoModes(int modes) {
+
+        viewerModes = modes;
+        selector.wakeup();
+    }
+
+    /** The mode asked of the cameras, or null until both ends have said what they can do. */
+    VideoMode getVideoMode() {
+        return videoMode;
+    }
+
+    /** What side's camera last said its encoder runs with, or null if it hasn't. Safe from any thread. */
+    EncoderSettings getEncoderSettings(Side side) {
+        return encoderSettings.get(side.ordinal());
+    }
+
+    /**
+     * Hands every frame received from now on, codec config included, to
+     * recorder as well, or with null stops doing so.
+     */
+    void setRecorder(SessionRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Takes both eyes from the relay at address rather than from cameras, from the
+     * next turn of run() on. An unresolved name is looked up on a thread of its
+     * own, again whenever the relay has been lost, so the cameras never wait on
+     * DNS. Cameras can still connect as well; whichever claims an eye
+     * last has it.
+     */
+    void subscribe(InetSocketAddress address) {
+
+        relayAddress = address;
+        resolvedRelayAddress = address.isUnresolved() ? null : address;
+        selector.wakeup();
+    }
+
+    /** The viewer's end of the pipeline; frames are recorded here as they arrive. */
+    PipelineMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public void run() {
+
+        try {
+            while (! Thread.currentThread().isInterrupted()) {
+
+                if (relayAddress != null) {
+                    renewSubscriptions(System.nanoTime());
+                }
+                boolean datagramsPending = depacketizers[0].hasPending() || depacketizers[1].hasPending();
+                long timeout = Math.max(1, (nextReportNanos - System.nanoTime()) / 1_000_000);
+                if (stalledCount > 0) {
+                    timeout = Math.min(timeout, STALL_RETRY_MILLIS);
+                } else if (datagramsPending) {
+                    timeout = Math.min(timeout, UDP_EXPIRE_MILLIS);
+                }
+                selector.select(timeout);
+
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    if (! key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.channel() == datagramChannel) {
+                        receiveDatagrams();
+                    } else if (key.isConnectable()) {
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            finishSubscribing(connection);
+                        } catch (IOException exception) {
+                            close(connection, exception);
+                        }
+                    } else if (key.isReadable()) {
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            read(connection);
+                        } catch (IOException exception) {
+                            close(connection, exception);
+                        }
+                    }
+                }
+
+                if (datagramsPending) {
+                    long now = System.nanoTime();
+                    for (RtpDepacketizer depacketizer : depacketizers) {
+                        depacketizer.expire(now);
+                    }
+                }
+
+                if (stalledCount > 0) {
+                    for (Connection connection : connections) {
+                        if (connection != null && connection.stalled) {
+                            deliver(connection);
+                        }
+                    }
+                }
+
+                long now = System.nanoTime();
+                if (now - nextReportNanos >= 0) {
+                    nextReportNanos = now + REPORT_INTERVAL_MILLIS * 1_000_000;
+                    expireSilentPeers(now);
+                    sendReports(now);
+                }
+            }
+        } catch (IOException exception) {
+            closeAll(exception);
+            return;
+        }
+        closeAll(null);
+    }
+
+    private void closeAll(IOException exception) {
+
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() != null) {
+                close((Connection) key.attachment(), exception);
+            }
+        }
+    }
+
+    /**
+     * Closes the listening socket. Call once run() has returned for good.
+     */
+    void close() throws IOException {
+
+        serverChannel.close();
+        datagramChannel.close();
+        selector.close();
+    }
+
+    private void accept() throws IOException {
+
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new Connection(channel, key));
+    }
+
+    /**
+     * Connects to the relay for each eye that has no subscription and whose
+     * backoff wait is over.
+     */
+    private void renewSubscriptions(long now) {
+
+        InetSocketAddress address = resolvedRelayAddress;
+        for (Side side : Side.values()) {
+            int id = side.ordinal();
+            if (subscriptions[id] != null || now - nextSubscribeNanos[id] < 0) {
+                continue;
+            }
+            if (address == null) {
+                if (resolvingRelay.get()) {
+                    continue;
+                }
+                if (relayResolveFailed) {
+                    // Looked up again once the wait is over
+                    relayResolveFailed = false;
+                    nextSubscribeNanos[id] = now + subscribeBackoffs[id].nextDelayMillis() * 1_000_000;
+                } else {
+                    resolveRelay(relayAddress);
+                }
+                continue;
+            }
+            SocketChannel channel = null;
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                channel.connect(address);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_CONNECT);
+                Connection connection = new Connection(channel, key);
+                connection.subscribedSide = side;
+                key.attach(connection);
+                subscriptions[id] = connection;
+            } catch (IOException | UnresolvedAddressException | UnsupportedAddressTypeException exception) {
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+                nextSubscribeNanos[id] = now + subscribeBackoffs[id].nextDelayMillis() * 1_000_000;
+            }
+        }
+    }
+
+    /**
+     * Looks up unresolved on a thread of its own and wakes the server thread with
+     * the answer in resolvedRelayAddress, or relayResolveFailed set.
+     */
+    private void resolveRelay(final InetSocketAddress unresolved) {
+
+        if (! resolvingRelay.compareAndSet(false, true)) {
+            return;
+        }
+        Thread resolver = new Thread(new Runnable() {
+            @Override
+            public void run() {
+
+                InetSocketAddress resolved = new InetSocketAddress(unresolved.getHostString(), unresolved.getPort());
+                if (resolved.isUnresolved()) {
+                    relayResolveFailed = true;
+                } else if (relayAddress == unresolved) {
+                    resolvedRelayAddress = resolved;
+                }
+                resolvingRelay.set(false);
+                selector.wakeup();
+            }
+        }, "relayResolver");
+        resolver.setDaemon(true);
+        resolver.start();
+    }
+
+    /** Completes the connection to the relay and names the eye wanted. */
+    private void finishSubscribing(Connection connection) throws IOException {
+
+        connection.channel.finishConnect();
+        ByteBuffer hello = ByteBuffer.allocate(FrameProtocol.HELLO_SIZE);
+        FrameProtocol.writeHello(hello, connection.subscribedSide);
+        hello.flip();
+        connection.channel.write(hello);
+        if (hello.hasRemaining()) {
+            throw new IOException("Couldn't send hello to the relay");
+        }
+        connection.lastReadNanos = System.nanoTime();
+        connection.key.interestOps(SelectionKey.OP_READ);
+    }
+
+    private void receiveDatagrams() throws IOException {
+
+        while (true) {
+            readBuffer.clear();
+            SocketAddress source = datagramChannel.receive(readBuffer);
+            if (source == null) {
+                return;
+            }
+            readBuffer.flip();
+            if (readBuffer.remaining() == FrameProtocol.CLOCK_REPLY_SIZE
+                    && readBuffer.getInt(0) == FrameProtocol.CLOCK_REPLY_MAGIC) {
+                try {
+                    FrameProtocol.readClockReply(readBuffer, clockReply);
+                    clockSyncs[clockReply.side.ordinal()].onReply(clockReply, System.nanoTime() / 1000);
+                } catch (ProtocolException ignored) {
+                    // A stray datagram must not take the server down
+                }
+                continue;
+            }
+            if (readBuffer.remaining() == FrameProtocol.CAMERA_MODES_SIZE
+                    && readBuffer.getInt(0) == FrameProtocol.CAMERA_MODES_MAGIC) {
+                Side side = Side.fromId(readBuffer.get(5) & 0xFF);
+                try {
+                    int modes = FrameProtocol.readCameraModes(readBuffer);
+                    if (side != null) {
+                        onModesOffered(side, modes);
+                    }
+                } catch (ProtocolException ignored) {
+                }
+                continue;
+            }
+            if (readBuffer.remaining() == FrameProtocol.ENCODER_SETTINGS_SIZE
+                    && readBuffer.getInt(0) == FrameProtocol.ENCODER_SETTINGS_MAGIC) {
+                EncoderSettings settings = new EncoderSettings();
+                try {
+                    FrameProtocol.readEncoderSettings(readBuffer, settings);
+                    encoderSettings.set(settings.side.ordinal(), settings);
+                } catch (ProtocolException ignored) {
+                }
+                continue;
+            }
+            if (readBuffer.remaining() < RtpPacketizer.HEADER_SIZE) {
+                continue;
+            }
+            int ssrc = readBuffer.getInt(8);
+            Side side = Side.fromId(ssrc & 0xFF);
+            if ((ssrc & ~0xFF) != RtpPacketizer.SSRC_BASE || side == null) {
+                continue;
+            }
+            if (! datagramsSeen[side.ordinal()]) {
+                datagramsSeen[side.ordinal()] = true;
+                callback.onConnected(side);
+            }
+            datagramSources[side.ordinal()] = source;
+            lastDatagramNanos[side.ordinal()] = System.nanoTime();
+            receiverStats[side.ordinal()].onBytes(readBuffer.remaining());
+            fecDecoders[side.ordinal()].onPacket(readBuffer, System.nanoTime());
+        }
+    }
+
+    private void read(Connection connection) throws IOException {
+
+        readBuffer.clear();
+        int numBytes = connection.channel.read(readBuffer);
+        if (numBytes == -1) {
+            if (connection.parser != null) {
+                connection.parser.flush();
+                deliver(connection);
+            }
+            close(connection, null);
+            return;
+        }
+        readBuffer.flip();
+        connection.lastReadNanos = System.nanoTime();
+
+        boolean ready = connection.parser != null || readPrefix(connection);
+        if (connection.side != null) {
+            receiverStats[connection.side.ordinal()].onBytes(numBytes);
+        }
+        if (! ready) {
+            return;
+        }
+        connection.parser.feed(readBuffer);
+        deliver(connection);
+    }
+
+    /**
+     * Consumes the hello and stream-format bytes at the start of a connection.
+     * Returns true once the connection has a parser.
+     */
+    private boolean readPrefix(Connection connection) throws ProtocolException {
+
+        ByteBuffer prefix = connection.prefix;
+
+        if (! connection.helloRead) {
+            StreamParser.copy(readBuffer, prefix);
+            if (prefix.hasRemaining()) {
+                return false;
+            }
+            prefix.flip();
+            connection.helloRead = true;
+
+            if (prefix.getInt(0) == FrameProtocol.HELLO_MAGIC) {
+                Side side = FrameProtocol.readHello(prefix);
+                if (connection.subscribedSide != null && side != connection.subscribedSide) {
+                    throw new ProtocolException("Relay sent " + side + " for " + connection.subscribedSide);
+                }
+                claim(connection, side);
+                connection.sendsReports = true;
+                prefix.clear();
+                prefix.limit(4);
+            } else if (connection.subscribedSide != null) {
+                throw new ProtocolException("Relay didn't answer with a hello");
+            } else {
+                // No hello: the bytes are already stream data
+                Side side = connections[Side.LEFT.ordinal()] == null ? Side.LEFT
+                        : connections[Side.RIGHT.ordinal()] == null ? Side.RIGHT : null;
+                if (side == null) {
+                    throw new ProtocolException("Both eyes are already connected");
+                }
+                claim(connection, side);
+                prefix.position(prefix.limit());
+            }
+        }
+
+        StreamParser.copy(readBuffer, prefix);
+        if (prefix.hasRemaining()) {
+            return false;
+        }
+        prefix.flip();
+
+        int magic = prefix.getInt(0);
+        if (magic == FrameProtocol.MAGIC || magic == FrameProtocol.CLOCK_REPLY_MAGIC
+                || magic == FrameProtocol.CAMERA_MODES_MAGIC || magic == FrameProtocol.ENCODER_SETTINGS_MAGIC) {
+            connection.parser = new FrameParser(connection.onFrameCallback, connection.onClockReplyCallback,
+                    connection.onCameraStatusCallback);
+        } else {
+            connection.parser = new AnnexBAssembler(connection.side.ordinal(), connection.onFrameCallback);
+        }
+        connection.parser.feed(prefix);
+        return true;
+    }
+
+    private void claim(Connection connection, Side side) {
+
+        Connection previous = connections[side.ordinal()];
+        if (previous != null) {
+            // A camera that reconnects takes its eye back from the stale connection
+            close(previous, null);
+        }
+        connection.side = side;
+        connection.ring = side == Side.LEFT ? leftRing : rightRing;
+        connections[side.ordinal()] = connection;
+        if (connection.subscribedSide != null) {
+            subscribeBackoffs[side.ordinal()].reset();
+        }
+        callback.onConnected(side);
+    }
+
+    /**
+     * Moves parsed frames into the eye's ring. While the ring is full the
+     * connection is taken out of the read set and retried on a short timeout.
+     */
+    private void deliver(Connection connection) {
+
+        Frame frame;
+        while ((frame = connection.pending.peek()) != null && connection.ring.offer(frame)) {
+            connection.pending.poll();
+        }
+
+        boolean stalled = ! connection.pending.isEmpty();
+        if (stalled != connection.stalled) {
+            connection.stalled = stalled;
+            stalledCount += stalled ? 1 : -1;
+            if (connection.key.isValid()) {
+                connection.key.interestOps(stalled ? 0 : SelectionKey.OP_READ);
+            }
+        }
+    }
+
+    /**
+     * Sends each eye's camera what arrived since the last report. A report that
+     * didn't fit into a TCP send buffer is finished first and the new one skipped.
+     */
+    private void sendReports(long now) {
+
+        VideoMode mode = chooseVideoMode();
+        for (Side side : Side.values()) {
+            int id = side.ordinal();
+            Connection connection = connections[id];
+            SpscRing<Frame> ring = side == Side.LEFT ? leftRing : rightRing;
+            int queueDepth = ring.size() + (connection != null ? connection.pending.size() : 0);
+            receiverStats[id].finishInterval(report, now, queueDepth,
+                    depacketizers[id].framesDropped() + datagramFramesDroppedBySide[id], depacketizers[id].packetsLate());
+
+            if (connection != null && connection.sendsReports) {
+                try {
+                    if (! connection.reportOut.hasRemaining()) {
+                        connection.reportOut.clear();
+                        FrameProtocol.writeReport(connection.reportOut, report);
+                        FrameProtocol.writeClockPing(connection.reportOut, side, clockSyncs[id].ping(now / 1000));
+                        FrameProtocol.writeCodecOffer(connection.reportOut, side, decoders);
+                        if (mode != null) {
+                            FrameProtocol.writeVideoMode(connection.reportOut, side, mode);
+                        }
+                        connection.reportOut.flip();
+                        reportsSent++;
+                    }
+                    connection.channel.write(connection.reportOut);
+                } catch (IOException exception) {
+                    close(connection, exception);
+                }
+            } else if (datagramSources[id] != null) {
+                reportBuffer.clear();
+                FrameProtocol.writeReport(reportBuffer, report);
+                reportBuffer.flip();
+                pingBuffer.clear();
+                FrameProtocol.writeClockPing(pingBuffer, side, clockSyncs[id].ping(now / 1000));
+                pingBuffer.flip();
+                offerBuffer.clear();
+                FrameProtocol.writeCodecOffer(offerBuffer, side, decoders);
+                offerBuffer.flip();
+                try {
+                    datagramChannel.send(reportBuffer, datagramSources[id]);
+                    datagramChannel.send(pingBuffer, datagramSources[id]);
+                    datagramChannel.send(offerBuffer, datagramSources[id]);
+                    if (mode != null) {
+                        modeBuffer.clear();
+                        FrameProtocol.writeVideoMode(modeBuffer, side, mode);
+                        modeBuffer.flip();
+                        datagramChannel.send(modeBuffer, datagramSources[id]);
+                    }
+                    reportsSent++;
+                } catch (IOException exception) {
+                    // The camera may be gone; its next datagram will tell
+                }
+            }
+        }
+    }
+
+    private void onModesOffered(Side side, int modes) {
+        cameraModes[side.ordinal()] = modes;
+    }
+
+    /**
+     * The best mode both cameras, as far as they have said, and this end share,
+     * or null while no camera has said or they share none.
+     */
+    private VideoMode chooseVideoMode() {
+
+        int left = cameraModes[Side.LEFT.ordinal()];
+        int right = cameraModes[Side.RIGHT.ordinal()];
+        VideoMode mode = left != 0 || right != 0 ? VideoMode.choose(left, right, viewerModes) : null;
+        videoMode = mode;
+        return mode;
+    }
+
+    private void onFrameReceived(Side side, Frame frame) {
+
+        long now = System.nanoTime();
+        receiverStats[side.ordinal()].onFrame(frame, now);
+        ClockSync clockSync = clockSyncs[side.ordinal()];
+        SessionRecorder recorder = this.recorder;
+        if (recorder != null) {
+            long captureUs = clockSync.isSynchronized() && frame.ptsUs > 0 ? clockSync.toLocalUs(frame.ptsUs) : 0;
+            recorder.record(side, frame, now / 1000, captureUs);
+        }
+        VideoCodec codec = frame.codec();
+        if (frame.isCodecConfig()) {
+            codecs[side.ordinal()] = codec;
+            callback.onCodecConfig(side, codec, frame.payload.asReadOnlyBuffer());
+            return;
+        }
+        if (codec != codecs[side.ordinal()]) {
+            codecs[side.ordinal()] = codec;
+            callback.onCodecConfig(side, codec, null);
+        }
+        if (clockSync.isSynchronized() && frame.ptsUs > 0) {
+            metrics.record(PipelineMetrics.Stage.RECEIVED, now / 1000 - clockSync.toLocalUs(frame.ptsUs), frame.size());
+        }
+    }
+
+    private void expireSilentPeers(long now) {
+
+        long timeoutNanos = PEER_TIMEOUT_MILLIS * 1_000_000;
+        for (SelectionKey key : selector.keys()) {
+            Connection connection = (Connection) key.attachment();
+            if (connection == null) {
+                continue;
+            }
+            if (connection.stalled) {
+                // Not being read, so its silence says nothing
+                connection.lastReadNanos = now;
+            } else if (now - connection.lastReadNanos > timeoutNanos) {
+                close(connection, new SocketTimeoutException("Nothing received for " + PEER_TIMEOUT_MILLIS + " ms"));
+            }
+        }
+        for (Side side : Side.values()) {
+            int id = side.ordinal();
+            if (datagramsSeen[id] && now - lastDatagramNanos[id] > timeoutNanos) {
+                datagramsSeen[id] = false;
+                datagramSources[id] = null;
+                callback.onDisconnected(side, new SocketTimeoutException("No datagrams for " + PEER_TIMEOUT_MILLIS + " ms"));
+            }
+        }
+    }
+
+    private void close(Connection connection, IOException exception) {
+
+        if (connection.stalled) {
+            connection.stalled = false;
+            stalledCount--;
+        }
+        connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException ignored) {
+        }
+        if (connection.subscribedSide != null && subscriptions[connection.subscribedSide.ordinal()] == connection) {
+            int id = connection.subscribedSide.ordinal();
+            subscriptions[id] = null;
+            nextSubscribeNanos[id] = System.nanoTime() + subscribeBackoffs[id].nextDelayMillis() * 1_000_000;
+            InetSocketAddress address = relayAddress;
+            if (address != null && address.isUnresolved()) {
+                // The relay may have moved
+                resolvedRelayAddress = null;
+            }
+        }
+        if (connection.side != null && connections[connection.side.ordinal()] == connection) {
+            connections[connection.side.ordinal()] = null;
+            callback.onDisconnected(connection.side, exception);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.example.joshua.stereoonair;
+
+/**
+ * Puts the pictures StereoPairer lets through on screen a vsync at a time. It
+ * keeps the newest picture per eye until the display's next frame callback
+ * (Choreographer on Android), then has both eyes of a pair rendered at the same
+ * vsync, the one after the callback. Releasing them as they come would have each
+ * eye latched at whatever vsync follows it, so half a pair could land a refresh
+ * after the other. A picture that a newer one overtakes before its vsync is
+ * dropped rather than queued, since queueing would only add a refresh of
+ * latency per picture.
+ *
+ * Timestamps are System.nanoTime(), what MediaCodec.releaseOutputBuffer(int,
+ * long) expects. The decoder threads offer pictures and the display thread calls
+ * onVsync(), so every method is synchronized.
+ */
+class VsyncPresenter extends StereoPairer.OnReleaseCallback {
+
+    static abstract class OnPresentCallback {
+        /** Render side's output buffer index at renderTimeNanos. */
+        abstract void onPresent(Side side, int index, long captureUs, long renderTimeNanos);
+        /** Give side's output buffer index back without rendering it. */
+        abstract void onDrop(Side side, int index, long captureUs);
+    }
+
+    private final long periodNanos;
+    private final OnPresentCallback callback;
+    private final Pending[] pending = new Pending[Side.values().length];
+
+    private long vsyncCount = 0;
+    private long presentCount = 0;
+    private long framesPresented = 0;
+    private long staleDropCount = 0;
+    private long judderCount = 0;
+    private long eyeMismatchCount = 0;
+    // Vsyncs between the last two presentations, to tell a change of cadence
+    private long lastPresentVsync = -1;
+    private long lastCadence = 0;
+
+    private static class Pending {
+
+        final int index;
+        final long captureUs;
+        // Whether the other eye's pending picture is its pair
+        final boolean paired;
+
+        Pending(int index, long captureUs, boolean paired) {
+
+            this.index = index;
+            this.captureUs = captureUs;
+            this.paired = paired;
+        }
+    }
+
+    /** periodNanos is the display's refresh period. */
+    VsyncPresenter(long periodNanos, OnPresentCallback callback) {
+
+        if (periodNanos <= 0) {
+            throw new IllegalArgumentException("Bad refresh period: " + periodNanos);
+        }
+        this.periodNanos = periodNanos;
+        this.callback = callback;
+    }
+
+    /** A picture shown on its own, or one the pairer gives up on when render is false. */
+    @Override
+    synchronized void onRelease(Side side, int index, long captureUs, boolean render) {
+
+        if (! render) {
+            callback.onDrop(side, index, captureUs);
+            return;
+        }
+        Pending previous = pending[side.ordinal()];
+        if (previous != null && previous.paired) {
+            // Its partner would only be shown against the wrong picture
+            dropPending(side == Side.LEFT ? Side.RIGHT : Side.LEFT);
+        }
+        dropPending(side);
+        pending[side.ordinal()] = new Pending(index, captureUs, false);
+    }
+
+    @Override
+    synchronized void onReleasePair(int leftIndex, long leftCaptureUs, int rightIndex, long rightCaptureUs) {
+
+        dropPending(Side.LEFT);
+        dropPending(Side.RIGHT);
+        pending[Side.LEFT.ordinal()] = new Pending(leftIndex, leftCaptureUs, true);
+        pending[Side.RIGHT.ordinal()] = new Pending(rightIndex, rightCaptureUs, true);
+    }
+
+    /**
+     * Presents what is pending at the first vsync after nowNanos, frameTimeNanos
+     * being the vsync the display's frame callback is for. A callback that comes
+     * late still aims both eyes at one vsync, just a later one.
+     */
+    synchronized void onVsync(long frameTimeNanos, long nowNanos) {
+
+        vsyncCount++;
+        Pending left = pending[Side.LEFT.ordinal()];
+        Pending right = pending[Side.RIGHT.ordinal()];
+        if (left == null && right == null) {
+            return;
+        }
+        long behindNanos = Math.max(0, nowNanos - frameTimeNanos);
+        long renderTimeNanos = frameTimeNanos + (behindNanos / periodNanos + 1) * periodNanos;
+        pending[Side.LEFT.ordinal()] = null;
+        pending[Side.RIGHT.ordinal()] = null;
+        if (left != null) {
+            callback.onPresent(Side.LEFT, left.index, left.captureUs, renderTimeNanos);
+            framesPresented++;
+        }
+        if (right != null) {
+            callback.onPresent(Side.RIGHT, right.index, right.captureUs, renderTimeNanos);
+            framesPresented++;
+        }
+        if (left == null || right == null) {
+            eyeMismatchCount++;
+        }
+        presentCount++;
+        if (lastPresentVsync >= 0) {
+            long cadence = vsyncCount - lastPresentVsync;
+            if (lastCadence != 0 && cadence != lastCadence) {
+                judderCount++;
+            }
+            lastCadence = cadence;
+        }
+        lastPresentVsync = vsyncCount;
+    }
+
+    /** Drops what is pending for side, e.g. when its decoder is flushed. */
+    synchronized void clear(Side side) {
+
+        Pending held = pending[side.ordinal()];
+        pending[side.ordinal()] = null;
+        if (held != null) {
+            callback.onDrop(side, held.index, held.captureUs);
+        }
+    }
+
+    private void dropPending(Side side) {
+
+        Pending held = pending[side.ordinal()];
+        if (held != null) {
+            pending[side.ordinal()] = null;
+            staleDropCount++;
+            callback.onDrop(side, held.index, held.captureUs);
+        }
+    }
+
+    synchronized long vsyncCount() {
+        return vsyncCount;
+    }
+
+    /** Vsyncs that put up something new, a pair or one eye. */
+    synchronized long presentCount() {
+        return presentCount;
+    }
+
+    /** Pictures per eye per vsync: 0.5 for 30 fps on a 60 Hz display. */
+    synchronized double framesPerVsync() {
+        return vsyncCount == 0 ? 0 : framesPresented / 2.0 / vsyncCount;
+    }
+
+    /** Pictures overtaken by a newer one before their vsync came. */
+    synchronized long staleDropCount() {
+        return staleDropCount;
+    }
+
+    /** Presentations that came a different number of vsyncs after the last than it did after its own. */
+    synchronized long judderCount() {
+        return judderCount;
+    }
+
+    /** Presentations that updated one eye only. */
+    synchronized long eyeMismatchCount() {
+        return eyeMismatchCount;
+    }
+}
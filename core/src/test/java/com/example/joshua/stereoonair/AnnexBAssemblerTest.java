@@ -0,0 +1,102 @@
+package com.example.joshua.stereoonair;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AnnexBAssemblerTest {
+
+    private static byte[] nal(int type, int firstByte, int size, boolean longStartCode) {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (longStartCode) {
+            out.write(0);
+        }
+        out.write(0);
+        out.write(0);
+        out.write(1);
+        out.write(0x60 | type);
+        out.write(firstByte);
+        for (int i = 2; i < size; i++) {
+            // Payload that never forms a start code
+            out.write(i % 7 == 0 ? 0 : 0x42);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static List<Frame> assemble(byte[] stream, int chunkSize) {
+
+        final List<Frame> frames = new ArrayList<>();
+        AnnexBAssembler assembler = new AnnexBAssembler(1, new StreamParser.OnFrameCallback() {
+            @Override
+            void onFrame(Frame frame) {
+                frames.add(frame);
+            }
+        });
+        for (int offset = 0; offset < stream.length; offset += chunkSize) {
+            assembler.feed(ByteBuffer.wrap(stream, offset, Math.min(chunkSize, stream.length - offset)));
+        }
+        assembler.flush();
+        return frames;
+    }
+
+    private static byte[] bytes(Frame frame) {
+
+        byte[] bytes = new byte[frame.size()];
+        frame.payload.duplicate().get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void splitsAccessUnitsOnStartCodesAndNalTypes() {
+
+        byte[] config = concat(
+                nal(AnnexBAssembler.NAL_SPS, 0x64, 12, true),
+                nal(AnnexBAssembler.NAL_PPS, 0xEE, 6, true));
+        byte[] idr = concat(
+                nal(AnnexBAssembler.NAL_IDR, 0x88, 40_000, true),
+                // second slice of the same picture: first_mb_in_slice != 0
+                nal(AnnexBAssembler.NAL_IDR, 0x12, 20_000, false));
+        byte[] p1 = nal(AnnexBAssembler.NAL_SLICE, 0x9A, 3_000, true);
+        byte[] p2 = concat(
+                nal(AnnexBAssembler.NAL_AUD, 0xF0, 2, true),
+                nal(AnnexBAssembler.NAL_SLICE, 0x9A, 5_000, true));
+        byte[] stream = concat(config, idr, p1, p2);
+
+        for (int chunkSize : new int[] { 1, 3, 5, 1460, 65536, stream.length }) {
+            List<Frame> frames = assemble(stream, chunkSize);
+            assertEquals(4, frames.size());
+
+            assertTrue(frames.get(0).isCodecConfig());
+            assertTrue(Arrays.equals(config, bytes(frames.get(0))));
+
+            assertTrue(frames.get(1).isKeyFrame());
+            assertFalse(frames.get(1).isCodecConfig());
+            assertTrue(Arrays.equals(idr, bytes(frames.get(1))));
+
+            assertFalse(frames.get(2).isKeyFrame());
+            assertTrue(Arrays.equals(p1, bytes(frames.get(2))));
+            assertTrue(Arrays.equals(p2, bytes(frames.get(3))));
+
+            for (int i = 0; i < frames.size(); i++) {
+                assertEquals(i, frames.get(i).sequence);
+                assertEquals(1, frames.get(i).streamId);
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.example.joshua.stereoonair;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class BitrateControllerTest {
+
+    private final static int MIN = 300_000;
+    private final static int MAX = 8_000_000;
+    private final static int INTERVAL_MS = 250;
+    private final static int FRAME_RATE = 30;
+
+    /**
+     * A bottleneck with a 100 ms buffer in front of it. Each step sends one report
+     * interval of video at the controller's bitrate and reports what came out.
+     */
+    private static class Link {
+
+        private double queuedBits = 0;
+
+        ReceiverReport step(int bitrate, int capacity) {
+
+            double frameBits = bitrate / (double) FRAME_RATE;
+            queuedBits += bitrate * (INTERVAL_MS / 1000.0);
+            double delivered = Math.min(queuedBits, capacity * (INTERVAL_MS / 1000.0));
+            queuedBits -= delivered;
+            double lostBits = Math.max(0, queuedBits - capacity * 0.1);
+            queuedBits -= lostBits;
+
+            int jitterUs = (int) (queuedBits / capacity * 1_000_000 / 2);
+            return new ReceiverReport(Side.LEFT, INTERVAL_MS, (int) (delivered / 8), (int) (delivered / frameBits),
+                    (int) Math.ceil(lostBits / frameBits), 0, jitterUs, 0);
+        }
+    }
+
+    /** Replays capacity, one entry per report, and returns the bitrate after each. */
+    private static int[] replay(BitrateController controller, int[] capacity) {
+
+        Link link = new Link();
+        int[] bitrates = new int[capacity.length];
+        for (int i = 0; i < capacity.length; i++) {
+            controller.onReport(link.step(controller.getBitrate(), capacity[i]));
+            bitrates[i] = controller.getBitrate();
+        }
+        return bitrates;
+    }
+
+    private static int[] trace(int... reportsThenCapacity) {
+
+        int total = 0;
+        for (int i = 0; i < reportsThenCapacity.length; i += 2) {
+            total += reportsThenCapacity[i];
+        }
+        int[] capacity = new int[total];
+        int index = 0;
+        for (int i = 0; i < reportsThenCapacity.length; i += 2) {
+            for (int j = 0; j < reportsThenCapacity[i]; j++) {
+                capacity[index++] = reportsThenCapacity[i + 1];
+            }
+        }
+        return capacity;
+    }
+
+    private static double average(int[] values, int from, int to) {
+
+        double sum = 0;
+        for (int i = from; i < to; i++) {
+            sum += values[i];
+        }
+        return sum / (to - from);
+    }
+
+    @Test
+    public void climbsToMaximumOnFastLink() {
+
+        BitrateController controller = new BitrateController(2_000_000, MIN, MAX);
+        int[] bitrates = replay(controller, trace(120, 50_000_000));
+        assertEquals(MAX, bitrates[bitrates.length - 1]);
+        assertEquals(0, controller.decreaseCount());
+    }
+
+    @Test
+    public void followsCapacityDownAndBackUp() {
+
+        BitrateController controller = new BitrateController(2_000_000, MIN, MAX);
+        int[] bitrates = replay(controller, trace(60, 6_000_000, 60, 1_500_000, 80, 4_000_000));
+
+        // Settles under the first capacity without overshooting for long
+        assertTrue(average(bitrates, 40, 60) > 0.6 * 6_000_000);
+        assertTrue(average(bitrates, 40, 60) < 6_000_000);
+
+        // Gets under the new capacity within a second of the drop
+        assertTrue(bitrates[63] <= 1_500_000);
+        assertTrue(average(bitrates, 90, 120) > 0.6 * 1_500_000);
+        assertTrue(average(bitrates, 90, 120) < 1_500_000);
+
+        // And climbs back once the link recovers
+        assertTrue(average(bitrates, 180, 200) > 0.6 * 4_000_000);
+        for (int bitrate : bitrates) {
+            assertTrue(bitrate >= MIN && bitrate <= MAX);
+        }
+    }
+
+    @Test
+    public void neverGoesBelowMinimum() {
+
+        BitrateController controller = new BitrateController(2_000_000, MIN, MAX);
+        int[] bitrates = replay(controller, trace(60, 100_000));
+        assertEquals(MIN, bitrates[bitrates.length - 1]);
+    }
+
+    @Test
+    public void staticSceneDoesNotTalkTargetUp() {
+
+        // The encoder only produces 300 kbit/s however much it is allowed
+        BitrateController controller = new BitrateController(400_000, MIN, MAX);
+        for (int i = 0; i < 100; i++) {
+            controller.onReport(new ReceiverReport(Side.RIGHT, INTERVAL_MS, 300_000 / 8 / 4, 8, 0, 0, 1_000, 0));
+        }
+        assertTrue(controller.getBitrate() <= 450_000);
+    }
+
+    @Test
+    public void oneLossBurstCutsOnce() {
+
+        BitrateController controller = new BitrateController(4_000_000, MIN, MAX);
+        ReceiverReport clean = new ReceiverReport(Side.LEFT, INTERVAL_MS, 4_000_000 / 8 / 4, 8, 0, 0, 1_000, 0);
+        ReceiverReport lossy = new ReceiverReport(Side.LEFT, INTERVAL_MS, 4_000_000 / 8 / 4, 6, 2, 5, 1_000, 0);
+
+        assertFalse(controller.onReport(clean));
+        assertTrue(controller.onReport(lossy));
+        int cut = controller.getBitrate();
+        assertEquals((int) (4_000_000 * 0.85), cut);
+        // The same event still showing in the next report doesn't cut again
+        assertFalse(controller.onReport(lossy));
+        assertEquals(cut, controller.getBitrate());
+        assertEquals(1, controller.decreaseCount());
+    }
+
+    @Test
+    public void jitterSpikeCountsAsCongestion() {
+
+        BitrateController controller = new BitrateController(4_000_000, MIN, MAX);
+        ReceiverReport calm = new ReceiverReport(Side.LEFT, INTERVAL_MS, 4_000_000 / 8 / 4, 8, 0, 0, 3_000, 0);
+        for (int i = 0; i < 10; i++) {
+            controller.onReport(calm);
+        }
+        long increases = controller.increaseCount();
+        calm.jitterUs = 40_000;
+        controller.onReport(calm);
+        assertEquals(1, controller.decreaseCount());
+        assertEquals(increases, controller.increaseCount());
+    }
+
+    @Test
+    public void reportRoundTrips() throws Exception {
+
+        ReceiverReport sent = new ReceiverReport(Side.RIGHT, 251, 123_456, 7, 2, 3, 4_567, 1);
+        ByteBuffer bytes = ByteBuffer.allocate(FrameProtocol.REPORT_SIZE);
+        FrameProtocol.writeReport(bytes, sent);
+        assertFalse(bytes.hasRemaining());
+        bytes.flip();
+        ReceiverReport received = new ReceiverReport();
+        FrameProtocol.readReport(bytes, received);
+        assertEquals(sent.toString(), received.toString());
+        assertEquals(sent.intervalMs, received.intervalMs);
+        assertEquals(sent.bytesReceived, received.bytesReceived);
+    }
+}
@@ -0,0 +1,48 @@
+package com.example.joshua.stereoonair;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CaptureClockTest {
+
+    @Test
+    public void matchesEncodedFramesToCaptures() {
+
+        // A REALTIME sensor, 3 s of deep sleep ahead of System.nanoTime()
+        CaptureClock clock = new CaptureClock(-3_000_000);
+        clock.onCaptured(10_000_000_123L);
+        clock.onCaptured(10_033_333_456L);
+        clock.onCaptured(10_066_666_789L);
+
+        assertEquals(7_000_000, clock.toClockUs(10_000_000));
+        // The encoder skipped the second capture
+        assertEquals(7_066_666, clock.toClockUs(10_066_666));
+        assertEquals(2, clock.matchedCount());
+        assertEquals(1, clock.skippedCount());
+        assertEquals(0, clock.unmatchedCount());
+    }
+
+    @Test
+    public void unknownFramesAreStillTreatedAsSensorTime() {
+
+        CaptureClock clock = new CaptureClock(0);
+        clock.onCaptured(5_000_000_000L);
+        assertEquals(4_999_000, clock.toClockUs(4_999_000));
+        assertEquals(1, clock.unmatchedCount());
+        // The capture it didn't match is still there for its own frame
+        assertEquals(5_000_000, clock.toClockUs(5_000_000));
+        assertEquals(0, clock.skippedCount());
+    }
+
+    @Test
+    public void forgetsCapturesThatNeverGetEncoded() {
+
+        CaptureClock clock = new CaptureClock(0);
+        for (int i = 0; i < 100; i++) {
+            clock.onCaptured(i * 33_333_000L);
+        }
+        assertEquals(99 * 33_333, clock.toClockUs(99 * 33_333));
+        assertEquals(99, clock.skippedCount());
+    }
+}
@@ -0,0 +1,63 @@
+package com.example.joshua.stereoonair;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CatchUpControllerTest {
+
+    private final static long BUDGET_US = 250_000;
+    private final static long FRAME_US = 33_333;
+
+    @Test
+    public void catchesUpOnceLagStaysOverBudget() {
+
+        CatchUpController controller = new CatchUpController(BUDGET_US);
+        long nowUs = 0;
+        // A late frame now and then is no reason
+        for (int i = 0; i < 20; i++) {
+            nowUs += FRAME_US;
+            assertFalse(controller.onLag(i % 4 == 0 ? 2 * BUDGET_US : 50_000, nowUs));
+        }
+
+        for (int i = 1; i < CatchUpController.PATIENCE; i++) {
+            nowUs += FRAME_US;
+            assertFalse(controller.onLag(BUDGET_US + 1, nowUs));
+        }
+        nowUs += FRAME_US;
+        assertTrue(controller.onLag(BUDGET_US + 1, nowUs));
+        controller.onCaughtUp(7);
+
+        assertEquals(1, controller.catchUpCount());
+        assertEquals(7, controller.framesSkipped());
+        assertEquals(BUDGET_US + 1, controller.lagUs());
+    }
+
+    @Test
+    public void waitsForTheLastCatchUpToShow() {
+
+        CatchUpController controller = new CatchUpController(BUDGET_US);
+        long nowUs = 0;
+        boolean caughtUp = false;
+        for (int i = 0; i < CatchUpController.PATIENCE; i++) {
+            nowUs += FRAME_US;
+            caughtUp = controller.onLag(BUDGET_US * 2, nowUs);
+        }
+        assertTrue(caughtUp);
+        controller.onCaughtUp(0);
+        controller.onFrameSkipped();
+        controller.onFrameSkipped();
+
+        long caughtUpUs = nowUs;
+        while (nowUs + FRAME_US - caughtUpUs < CatchUpController.COOLDOWN_US) {
+            nowUs += FRAME_US;
+            assertFalse(controller.onLag(BUDGET_US * 2, nowUs));
+        }
+        nowUs += FRAME_US;
+        assertTrue(controller.onLag(BUDGET_US * 2, nowUs));
+        controller.onCaughtUp(3);
+
+        assertEquals(2, controller.catchUpCount());
+        assertEquals(5, controller.framesSkipped());
+    }
+}
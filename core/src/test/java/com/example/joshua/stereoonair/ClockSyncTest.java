@@ -0,0 +1,77 @@
+package com.example.joshua.stereoonair;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ClockSyncTest {
+
+    /** A camera clock that is offsetUs ahead of the viewer's and runs skewPpm fast. */
+    private static long cameraUs(long viewerUs, long offsetUs, double skewPpm) {
+        return viewerUs + offsetUs + (long) (viewerUs * skewPpm / 1e6);
+    }
+
+    /**
+     * Pings every 250 ms for seconds, with one-way delays of 1 ms plus random
+     * queueing that is often much worse in one direction than the other.
+     */
+    private static ClockSync simulate(long offsetUs, double skewPpm, int seconds, long seed) {
+
+        ClockSync clockSync = new ClockSync();
+        Random random = new Random(seed);
+        for (long t0 = 1_000_000; t0 < seconds * 1_000_000L; t0 += 250_000) {
+            int id = clockSync.ping(t0);
+            long up = 1_000 + (random.nextInt(4) == 0 ? random.nextInt(30_000) : random.nextInt(300));
+            long hold = random.nextInt(20_000);
+            long down = 1_000 + (random.nextInt(4) == 0 ? random.nextInt(30_000) : random.nextInt(300));
+            ClockReply reply = new ClockReply(Side.LEFT, id, cameraUs(t0 + up, offsetUs, skewPpm));
+            reply.transmitUs = cameraUs(t0 + up + hold, offsetUs, skewPpm);
+            clockSync.onReply(reply, t0 + up + hold + down);
+        }
+        return clockSync;
+    }
+
+    @Test
+    public void findsOffsetDespiteAsymmetricQueueing() {
+
+        ClockSync clockSync = simulate(-123_456_789, 0, 10, 1);
+        long now = 10_000_000;
+        assertEquals(-123_456_789, clockSync.offsetUs(now), 500);
+        assertEquals(now, clockSync.toLocalUs(cameraUs(now, -123_456_789, 0)), 500);
+        assertTrue(clockSync.delayUs() < 3_000);
+    }
+
+    @Test
+    public void tracksSkew() {
+
+        ClockSync clockSync = simulate(40_000_000, 50, 30, 2);
+        assertEquals(50, clockSync.skewPpm(), 10);
+
+        // Extrapolating a few seconds ahead stays within a millisecond
+        long later = 33_000_000;
+        assertEquals(later, clockSync.toLocalUs(cameraUs(later, 40_000_000, 50)), 1_000);
+    }
+
+    @Test
+    public void ignoresUnknownAndRepeatedAnswers() {
+
+        ClockSync clockSync = new ClockSync();
+        assertFalse(clockSync.isSynchronized());
+        assertEquals(123, clockSync.toLocalUs(123));
+
+        ClockReply stray = new ClockReply(Side.RIGHT, 7, 5_000);
+        stray.transmitUs = 5_000;
+        clockSync.onReply(stray, 10_000);
+        assertFalse(clockSync.isSynchronized());
+
+        int id = clockSync.ping(1_000);
+        ClockReply reply = new ClockReply(Side.RIGHT, id, 2_000);
+        reply.transmitUs = 2_000;
+        clockSync.onReply(reply, 3_000);
+        clockSync.onReply(reply, 50_000);
+        assertEquals(1, clockSync.samplesTaken());
+        assertEquals(0, clockSync.offsetUs(2_000));
+    }
+}
@@ -0,0 +1,62 @@
+package com.example.joshua.stereoonair;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class CodecConfigTest {
+
+    private static byte[] bytes(ByteBuffer buffer) {
+
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void splitsAvcConfigIntoSpsAndPps() {
+
+        byte[] sps = RtpTest.nal(AnnexBAssembler.NAL_SPS, 0x42, 12);
+        byte[] pps = RtpTest.nal(AnnexBAssembler.NAL_PPS, 0xCE, 5);
+        Frame config = RtpTest.frame(0, 0, Frame.FLAG_CODEC_CONFIG, sps, pps);
+
+        ByteBuffer[] csd = CodecConfig.toCsd("video/avc", config.payload);
+        assertEquals(2, csd.length);
+        assertArrayEquals(sps, bytes(csd[0]));
+        assertArrayEquals(pps, bytes(csd[1]));
+        // The frame itself is left for the decoder
+        assertEquals(sps.length + pps.length, config.size());
+    }
+
+    @Test
+    public void passesOtherConfigsWhole() {
+
+        byte[] sps = RtpTest.nal(AnnexBAssembler.NAL_SPS, 0x42, 12);
+        Frame config = RtpTest.frame(0, 0, Frame.FLAG_CODEC_CONFIG, sps);
+
+        // No PPS to split off
+        ByteBuffer[] csd = CodecConfig.toCsd("video/avc", config.payload);
+        assertEquals(1, csd.length);
+        assertArrayEquals(sps, bytes(csd[0]));
+
+        csd = CodecConfig.toCsd("video/hevc", config.payload);
+        assertEquals(1, csd.length);
+        assertArrayEquals(sps, bytes(csd[0]));
+    }
+
+    @Test
+    public void copyOutlivesThePooledBuffer() {
+
+        byte[] sps = RtpTest.nal(AnnexBAssembler.NAL_SPS, 0x42, 12);
+        Frame config = RtpTest.frame(7, 0, Frame.FLAG_CODEC_CONFIG, sps);
+        Frame copy = CodecConfig.copyOf(config);
+
+        Arrays.fill(config.payload.array(), (byte) 0);
+        assertArrayEquals(sps, bytes(copy.payload));
+        assertEquals(7, copy.sequence);
+        assertTrue(copy.isCodecConfig());
+    }
+}
@@ -0,0 +1,204 @@
+package com.example.joshua.stereoonair;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FecTest {
+
+    private final static int MAX_PACKET_SIZE = 1200;
+
+    private static List<byte[]> protect(int groupSize, int interleave, Frame... frames) throws Exception {
+
+        final FecEncoder encoder = new FecEncoder(MAX_PACKET_SIZE - FecEncoder.OVERHEAD, groupSize, interleave);
+        final List<byte[]> packets = new ArrayList<>();
+        final RtpPacketizer.OnPacketCallback out = new RtpPacketizer.OnPacketCallback() {
+            @Override
+            void onPacket(ByteBuffer packet) {
+                assertTrue(packet.remaining() <= MAX_PACKET_SIZE);
+                byte[] bytes = new byte[packet.remaining()];
+                packet.get(bytes);
+                packets.add(bytes);
+            }
+        };
+        RtpPacketizer packetizer = new RtpPacketizer(Side.RIGHT, MAX_PACKET_SIZE - FecEncoder.OVERHEAD);
+        for (Frame frame : frames) {
+            packetizer.packetize(frame, new RtpPacketizer.OnPacketCallback() {
+                @Override
+                void onPacket(ByteBuffer packet) throws IOException {
+                    encoder.onPacket(packet, out);
+                }
+            });
+        }
+        return packets;
+    }
+
+    private static boolean isParity(byte[] packet) {
+        return (packet[1] & 0x7F) == FecEncoder.PAYLOAD_TYPE;
+    }
+
+    private static FecDecoder decoder(final List<Frame> received) {
+
+        return new FecDecoder(new RtpDepacketizer(Side.RIGHT.ordinal(), 50_000_000, new StreamParser.OnFrameCallback() {
+            @Override
+            void onFrame(Frame frame) {
+                received.add(frame);
+            }
+        }));
+    }
+
+    private static byte[] bytes(Frame frame) {
+
+        byte[] bytes = new byte[frame.size()];
+        frame.payload.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static Frame[] stream(int count) {
+
+        Frame[] frames = new Frame[count];
+        frames[0] = RtpTest.frame(0, 0, Frame.FLAG_KEY_FRAME,
+                RtpTest.nal(AnnexBAssembler.NAL_IDR, 0x88, 30_000));
+        for (int i = 1; i < count; i++) {
+            frames[i] = RtpTest.frame(i, i * 33_333, 0, RtpTest.nal(AnnexBAssembler.NAL_SLICE, 0x9A, 500 + i * 997 % 6_000));
+        }
+        return frames;
+    }
+
+    @Test
+    public void rebuildsBurstUpToInterleaveDepth() throws Exception {
+
+        Frame[] sent = stream(8);
+        List<byte[]> packets = protect(4, 3, sent);
+        // Three back to back media packets from the middle of the key frame
+        assertFalse(isParity(packets.get(5)) || isParity(packets.get(6)) || isParity(packets.get(7)));
+        packets.remove(5);
+        packets.remove(5);
+        packets.remove(5);
+
+        List<Frame> received = new ArrayList<>();
+        FecDecoder decoder = decoder(received);
+        for (byte[] packet : packets) {
+            decoder.onPacket(ByteBuffer.wrap(packet), 0);
+        }
+
+        assertEquals(sent.length, received.size());
+        for (int i = 0; i < sent.length; i++) {
+            assertTrue(Arrays.equals(bytes(sent[i]), bytes(received.get(i))));
+        }
+        assertEquals(3, decoder.packetsRecovered());
+        assertEquals(0, decoder.packetsUnrecoverable());
+    }
+
+    @Test
+    public void rebuildsPacketWhoseParityArrivedFirst() throws Exception {
+
+        Frame[] sent = stream(2);
+        List<byte[]> packets = protect(4, 1, sent);
+        // Of the first group, the third packet is lost and the fourth is overtaken by the parity
+        int parity = 0;
+        while (! isParity(packets.get(parity))) {
+            parity++;
+        }
+        packets.remove(parity - 2);
+        packets.add(parity - 2, packets.remove(parity - 1));
+
+        List<Frame> received = new ArrayList<>();
+        FecDecoder decoder = decoder(received);
+        for (byte[] packet : packets) {
+            decoder.onPacket(ByteBuffer.wrap(packet), 0);
+        }
+        assertEquals(sent.length, received.size());
+        assertEquals(1, decoder.packetsRecovered());
+    }
+
+    @Test
+    public void countsLossesBeyondParity() throws Exception {
+
+        Frame[] sent = stream(60);
+        List<byte[]> packets = protect(4, 2, sent);
+        // Two losses in the same column of the key frame's first block
+        packets.remove(3);
+        packets.remove(1);
+
+        List<Frame> received = new ArrayList<>();
+        FecDecoder decoder = decoder(received);
+        for (byte[] packet : packets) {
+            decoder.onPacket(ByteBuffer.wrap(packet), 0);
+        }
+
+        assertEquals(sent.length - 1, received.size());
+        assertEquals(0, decoder.packetsRecovered());
+        assertEquals(2, decoder.packetsUnrecoverable());
+        assertEquals(1, decoder.getDepacketizer().framesDropped());
+    }
+
+    @Test
+    public void overheadFollowsGroupSize() throws Exception {
+
+        Frame[] sent = stream(1);
+        int media = protect(0, 1, sent).size();
+        int parity = 0;
+        for (byte[] packet : protect(8, 1, sent)) {
+            parity += isParity(packet) ? 1 : 0;
+        }
+        assertEquals((media + 7) / 8, parity);
+    }
+
+    @Test
+    public void smallFramesCostAboutOneOverGroupSize() throws Exception {
+
+        // P-frames of four packets each, well short of a block of 8 x 4
+        Frame[] sent = new Frame[30];
+        for (int i = 0; i < sent.length; i++) {
+            sent[i] = RtpTest.frame(i, i * 33_333, i == 0 ? Frame.FLAG_KEY_FRAME : 0,
+                    RtpTest.nal(i == 0 ? AnnexBAssembler.NAL_IDR : AnnexBAssembler.NAL_SLICE, 0x9A, 4_000));
+        }
+        int media = protect(0, 1, sent).size();
+        assertEquals(4 * sent.length, media);
+        List<byte[]> packets = protect(8, 4, sent);
+        assertEquals(media + sent.length, packets.size());
+
+        // The folded parity still rebuilds a lost packet
+        assertFalse(isParity(packets.get(6)));
+        packets.remove(6);
+
+        List<Frame> received = new ArrayList<>();
+        FecDecoder decoder = decoder(received);
+        for (byte[] packet : packets) {
+            decoder.onPacket(ByteBuffer.wrap(packet), 0);
+        }
+        assertEquals(sent.length, received.size());
+        assertTrue(Arrays.equals(bytes(sent[1]), bytes(received.get(1))));
+        assertEquals(1, decoder.packetsRecovered());
+    }
+
+    @Test
+    public void foldsColumnsOfShortBlocks() throws Exception {
+
+        // Seven packets against groups of 4: two parity packets, stride 2, instead of four
+        Frame[] sent = { RtpTest.frame(0, 0, Frame.FLAG_KEY_FRAME, RtpTest.nal(AnnexBAssembler.NAL_IDR, 0x88, 8_000)) };
+        assertEquals(7, protect(0, 1, sent).size());
+        List<byte[]> packets = protect(4, 4, sent);
+        assertEquals(9, packets.size());
+        assertTrue(isParity(packets.get(7)) && isParity(packets.get(8)));
+
+        // One loss in each of the two columns
+        packets.remove(3);
+        packets.remove(0);
+        List<Frame> received = new ArrayList<>();
+        FecDecoder decoder = decoder(received);
+        for (byte[] packet : packets) {
+            decoder.onPacket(ByteBuffer.wrap(packet), 0);
+        }
+        assertEquals(1, received.size());
+        assertTrue(Arrays.equals(bytes(sent[0]), bytes(received.get(0))));
+        assertEquals(2, decoder.packetsRecovered());
+    }
+}
@@ -0,0 +1,161 @@
+package com.example.joshua.stereoonair;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FrameDropPolicyTest {
+
+    private SpscRing<Frame> ring;
+    private List<Frame> dropped;
+    private int syncRequests;
+    private FrameDropPolicy policy;
+    private int sequence;
+
+    @Before
+    public void setUp() {
+
+        ring = new SpscRing<>(2, SpscRing.WaitStrategy.YIELD);
+        dropped = new ArrayList<>();
+        syncRequests = 0;
+        sequence = 0;
+        policy = new FrameDropPolicy(ring, 2, new FrameDropPolicy.OnDropCallback() {
+            @Override
+            void onDrop(Frame frame) {
+                dropped.add(frame);
+            }
+
+            @Override
+            void onSyncFrameNeeded() {
+                syncRequests++;
+            }
+        });
+    }
+
+    private Frame config() {
+        return RtpTest.frame(sequence++, 0, Frame.FLAG_CODEC_CONFIG, RtpTest.nal(AnnexBAssembler.NAL_SPS, 0x64, 8));
+    }
+
+    private Frame idr() {
+        return RtpTest.frame(sequence++, 0, Frame.FLAG_KEY_FRAME, RtpTest.nal(AnnexBAssembler.NAL_IDR, 0x88, 100));
+    }
+
+    private Frame reference() {
+        // nal() writes nal_ref_idc 3
+        return RtpTest.frame(sequence++, 0, 0, RtpTest.nal(AnnexBAssembler.NAL_SLICE, 0x9A, 100));
+    }
+
+    private Frame nonReference() {
+
+        Frame frame = reference();
+        frame.payload.put(4, (byte) AnnexBAssembler.NAL_SLICE);
+        return frame;
+    }
+
+    private List<Integer> drain() {
+
+        List<Integer> sequences = new ArrayList<>();
+        Frame frame;
+        while ((frame = ring.poll()) != null) {
+            sequences.add(frame.sequence);
+        }
+        return sequences;
+    }
+
+    @Test
+    public void classifiesFrames() {
+
+        assertEquals(FrameDropPolicy.FrameType.CODEC_CONFIG, FrameDropPolicy.typeOf(Frame.FLAG_CODEC_CONFIG, config().payload));
+        assertEquals(FrameDropPolicy.FrameType.KEY, FrameDropPolicy.typeOf(0, idr().payload));
+        assertEquals(FrameDropPolicy.FrameType.REFERENCE, FrameDropPolicy.typeOf(0, reference().payload));
+        assertEquals(FrameDropPolicy.FrameType.NON_REFERENCE, FrameDropPolicy.typeOf(0, nonReference().payload));
+    }
+
+    @Test
+    public void dropsNonReferenceFramesFirst() {
+
+        policy.offer(config());      // 0, ring
+        policy.offer(idr());         // 1, ring
+        policy.offer(reference());   // 2, backlog
+        policy.offer(nonReference()); // 3, backlog
+        policy.offer(reference());   // 4, backlog over the limit: 3 goes
+
+        assertEquals(1, dropped.size());
+        assertEquals(3, dropped.get(0).sequence);
+        assertEquals(1, policy.droppedCount(FrameDropPolicy.FrameType.NON_REFERENCE));
+        assertEquals(0, syncRequests);
+
+        assertEquals(2, drain().size());
+        assertFalse(policy.flush());
+        assertEquals(2, drain().size());
+    }
+
+    @Test
+    public void neverDropsKeyFramesOrConfig() {
+
+        for (int i = 0; i < 4; i++) {
+            policy.offer(config());
+            policy.offer(idr());
+        }
+        assertTrue(dropped.isEmpty());
+        assertEquals(6, policy.backlog());
+
+        List<Integer> sequences = drain();
+        policy.flush();
+        sequences.addAll(drain());
+        policy.flush();
+        sequences.addAll(drain());
+        policy.flush();
+        sequences.addAll(drain());
+        for (int i = 0; i < sequences.size(); i++) {
+            assertEquals(i, (int) sequences.get(i));
+        }
+        assertEquals(8, sequences.size());
+    }
+
+    @Test
+    public void dropsRestOfGopWithReferenceFrameAndAsksForSyncFrame() {
+
+        policy.offer(idr());         // 0, ring
+        policy.offer(reference());   // 1, ring
+        policy.offer(reference());   // 2, backlog
+        policy.offer(reference());   // 3, backlog
+        policy.offer(reference());   // 4: 2, 3 and 4 go
+        assertEquals(1, syncRequests);
+        assertEquals(3, policy.droppedCount(FrameDropPolicy.FrameType.REFERENCE));
+        assertEquals(0, policy.backlog());
+
+        // Nothing of this GOP gets through any more, even with room in the ring
+        assertEquals(2, drain().size());
+        policy.offer(reference());
+        policy.offer(nonReference());
+        assertTrue(drain().isEmpty());
+        assertEquals(1, syncRequests);
+
+        Frame key = idr();
+        policy.offer(key);
+        policy.offer(reference());
+        List<Integer> sequences = drain();
+        assertEquals(2, sequences.size());
+        assertEquals(key.sequence, (int) sequences.get(0));
+    }
+
+    @Test
+    public void lostReferenceFrameSkipsGop() {
+
+        policy.lost(FrameDropPolicy.FrameType.NON_REFERENCE);
+        assertEquals(0, syncRequests);
+        policy.offer(reference());
+        assertEquals(1, drain().size());
+
+        policy.lost(FrameDropPolicy.FrameType.KEY);
+        assertEquals(1, syncRequests);
+        policy.offer(reference());
+        assertTrue(drain().isEmpty());
+        assertEquals(1, policy.droppedCount(FrameDropPolicy.FrameType.KEY));
+    }
+}
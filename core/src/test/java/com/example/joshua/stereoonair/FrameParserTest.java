@@ -0,0 +1,139 @@
+package com.example.joshua.stereoonair;
+
+import org.junit.Test;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FrameParserTest {
+
+    private static ByteBuffer encode(Frame... frames) {
+
+        int total = 0;
+        for (Frame frame : frames) {
+            total += FrameProtocol.HEADER_SIZE + frame.size();
+        }
+        ByteBuffer stream = ByteBuffer.allocate(total);
+        for (Frame frame : frames) {
+            FrameProtocol.writeHeader(stream, frame);
+            stream.put(frame.payload.duplicate());
+        }
+        stream.flip();
+        return stream;
+    }
+
+    private static Frame frame(int sequence, int size, int flags) {
+
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (byte) (sequence + i);
+        }
+        return new Frame(sequence, 1, 1000L * sequence, flags, ByteBuffer.wrap(bytes));
+    }
+
+    private static List<Frame> parse(ByteBuffer stream, int chunkSize) throws ProtocolException {
+
+        final List<Frame> frames = new ArrayList<>();
+        FrameParser parser = new FrameParser(new StreamParser.OnFrameCallback() {
+            @Override
+            void onFrame(Frame frame) {
+                frames.add(frame);
+            }
+        });
+        while (stream.hasRemaining()) {
+            ByteBuffer chunk = stream.slice();
+            chunk.limit(Math.min(chunkSize, chunk.remaining()));
+            stream.position(stream.position() + chunk.remaining());
+            parser.feed(chunk);
+        }
+        return frames;
+    }
+
+    @Test
+    public void reassemblesFramesAcrossArbitraryChunks() throws ProtocolException {
+
+        Frame[] sent = {
+                frame(0, 30, Frame.FLAG_CODEC_CONFIG),
+                frame(1, 150_000, Frame.FLAG_KEY_FRAME),
+                frame(2, 0, 0),
+                frame(3, 4_000, 0),
+        };
+        for (int chunkSize : new int[] { 1, 7, FrameProtocol.HEADER_SIZE, 1500, 1 << 20 }) {
+            List<Frame> received = parse(encode(sent), chunkSize);
+            assertEquals(sent.length, received.size());
+            for (int i = 0; i < sent.length; i++) {
+                assertEquals(sent[i].sequence, received.get(i).sequence);
+                assertEquals(sent[i].streamId, received.get(i).streamId);
+                assertEquals(sent[i].ptsUs, received.get(i).ptsUs);
+                assertEquals(sent[i].flags, received.get(i).flags);
+                assertEquals(sent[i].payload, received.get(i).payload);
+            }
+        }
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsBadMagic() throws ProtocolException {
+
+        ByteBuffer stream = encode(frame(0, 10, 0));
+        stream.put(0, (byte) 0);
+        parse(stream, 64);
+    }
+
+    @Test
+    public void readsEncoderSettingsBetweenFrames() throws ProtocolException {
+
+        EncoderSettings sent = new EncoderSettings(Side.RIGHT, EncoderProfile.ULTRA_LOW_LATENCY);
+        sent.features = EncoderSettings.FEATURE_INTRA_REFRESH | EncoderSettings.FEATURE_REALTIME_PRIORITY;
+        sent.requestedFeatures = sent.features | EncoderSettings.FEATURE_LOW_LATENCY;
+        sent.intraRefreshFrames = EncoderProfile.ULTRA_LOW_LATENCY.intraRefreshFrames(60);
+        sent.keyFrameIntervalMs = 2_000;
+        sent.bitrate = 3_500_000;
+        ByteBuffer first = encode(frame(1, 100, 0));
+        ByteBuffer second = encode(frame(2, 100, 0));
+        ByteBuffer stream = ByteBuffer.allocate(first.remaining() + FrameProtocol.ENCODER_SETTINGS_SIZE + second.remaining());
+        stream.put(first);
+        FrameProtocol.writeEncoderSettings(stream, sent);
+        stream.put(second);
+        stream.flip();
+
+        final List<Frame> frames = new ArrayList<>();
+        final List<EncoderSettings> received = new ArrayList<>();
+        FrameParser parser = new FrameParser(new StreamParser.OnFrameCallback() {
+            @Override
+            void onFrame(Frame frame) {
+                frames.add(frame);
+            }
+        }, null, new FrameParser.OnCameraStatusCallback() {
+            @Override
+            void onCameraModes(int modes) { }
+
+            @Override
+            void onEncoderSettings(EncoderSettings settings) {
+                received.add(settings);
+            }
+        });
+        while (stream.hasRemaining()) {
+            ByteBuffer chunk = stream.slice();
+            chunk.limit(Math.min(7, chunk.remaining()));
+            stream.position(stream.position() + chunk.remaining());
+            parser.feed(chunk);
+        }
+
+        assertEquals(2, frames.size());
+        assertEquals(1, received.size());
+        EncoderSettings settings = received.get(0);
+        assertEquals(Side.RIGHT, settings.side);
+        assertEquals(EncoderProfile.ULTRA_LOW_LATENCY, settings.profile);
+        assertTrue(settings.has(EncoderSettings.FEATURE_INTRA_REFRESH));
+        assertFalse(settings.has(EncoderSettings.FEATURE_BITRATE_MODE));
+        assertFalse(settings.has(EncoderSettings.FEATURE_LOW_LATENCY));
+        assertEquals(sent.requestedFeatures, settings.requestedFeatures);
+        assertEquals(15, settings.intraRefreshFrames);
+        assertEquals(2_000, settings.keyFrameIntervalMs);
+        assertEquals(3_500_000, settings.bitrate);
+    }
+}
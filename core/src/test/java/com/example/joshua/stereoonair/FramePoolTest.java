@@ -0,0 +1,90 @@
+package com.example.joshua.stereoonair;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class FramePoolTest {
+
+    @Test
+    public void reusesFramesAndBuffers() {
+
+        FramePool pool = new FramePool(1, 1024);
+        Frame first = pool.acquire(100);
+        ByteBuffer payload = first.payload;
+        first.payload.put(new byte[10]);
+        pool.release(first);
+        Frame second = pool.acquire(100);
+        pool.recycle(second);
+        Frame third = pool.acquire(1024);
+
+        assertSame(first, second);
+        assertSame(first, third);
+        assertSame(payload, third.payload);
+        assertEquals(0, third.payload.position());
+        assertEquals(1024, third.payload.limit());
+        assertEquals(3, pool.acquiredCount());
+        assertEquals(0, pool.grownCount());
+        assertEquals(0, pool.available());
+    }
+
+    @Test
+    public void returnsNullOnceExhausted() {
+
+        FramePool pool = new FramePool(2, 1024);
+        Frame first = pool.acquire(100);
+        assertNotNull(first);
+        assertNotNull(pool.acquire(100));
+        assertNull(pool.acquire(100));
+        assertNull(pool.acquire(100));
+        assertEquals(2, pool.exhaustedCount());
+        assertEquals(0, pool.available());
+
+        pool.release(first);
+        assertSame(first, pool.acquire(100));
+        assertEquals(3, pool.acquiredCount());
+        assertEquals(2, pool.exhaustedCount());
+    }
+
+    @Test
+    public void growsBuffersTooSmallForTheFrame() {
+
+        FramePool pool = new FramePool(1, 1024);
+        Frame frame = pool.acquire(3000);
+        assertEquals(4096, frame.payload.capacity());
+        assertTrue(frame.payload.isDirect());
+        assertEquals(1, pool.grownCount());
+
+        // The bigger buffer stays with the frame
+        pool.release(frame);
+        frame = pool.acquire(4096);
+        assertEquals(4096, frame.payload.capacity());
+        assertEquals(1, pool.grownCount());
+    }
+
+    @Test
+    public void rejectsAFrameHandedBackTwice() {
+
+        FramePool pool = new FramePool(2, 1024);
+        Frame frame = pool.acquire(100);
+        pool.release(frame);
+        try {
+            pool.release(frame);
+            fail("Released twice");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            pool.recycle(frame);
+            fail("Recycled after release");
+        } catch (IllegalStateException expected) {
+        }
+
+        // The pool still hands out each frame once
+        Frame first = pool.acquire(100);
+        Frame second = pool.acquire(100);
+        assertNotSame(first, second);
+        assertNull(pool.acquire(100));
+    }
+}
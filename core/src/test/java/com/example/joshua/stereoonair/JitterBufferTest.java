@@ -0,0 +1,164 @@
+package com.example.joshua.stereoonair;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class JitterBufferTest {
+
+    private final static long MIN_DELAY_US = 10_000;
+    private final static long MAX_DELAY_US = 150_000;
+    private final static long FRAME_US = 33_333;
+    // Camera clock minus viewer clock, which the buffer never needs to know
+    private final static long CLOCK_OFFSET_US = 5_000_000;
+
+    private static Frame frame(int sequence) {
+        return new Frame(sequence, 0, CLOCK_OFFSET_US + sequence * FRAME_US, 0, null);
+    }
+
+    /**
+     * Delivers frame i at its capture time plus 20 ms plus extraUs[i], stepping a
+     * fake clock a millisecond at a time, and returns when each frame was played,
+     * or -1 for frames dropped as late.
+     */
+    private static long[] replay(JitterBuffer buffer, long[] extraUs) {
+
+        long[] playedUs = new long[extraUs.length];
+        int played = 0;
+        for (long nowUs = 0; played < extraUs.length; nowUs += 1_000) {
+            for (int i = 0; i < extraUs.length; i++) {
+                long arrivalUs = i * FRAME_US + 20_000 + extraUs[i];
+                if (arrivalUs > nowUs - 1_000 && arrivalUs <= nowUs) {
+                    if (! buffer.offer(frame(i), nowUs)) {
+                        playedUs[i] = -1;
+                        played++;
+                    }
+                }
+            }
+            Frame frame;
+            while ((frame = buffer.poll(nowUs)) != null) {
+                playedUs[frame.sequence] = nowUs;
+                played++;
+            }
+        }
+        return playedUs;
+    }
+
+    @Test
+    public void smoothsJitteryArrival() {
+
+        long[] extraUs = new long[300];
+        for (int i = 0; i < extraUs.length; i++) {
+            // Up to 30 ms late in a pattern that never repeats quickly
+            extraUs[i] = (i * 7919L) % 31 * 1_000;
+        }
+        JitterBuffer buffer = new JitterBuffer(MIN_DELAY_US, MAX_DELAY_US);
+        long[] playedUs = replay(buffer, extraUs);
+
+        // Once the delay has grown to cover the jitter, frames go out evenly
+        for (int i = 101; i < playedUs.length; i++) {
+            assertEquals(FRAME_US, playedUs[i] - playedUs[i - 1], 2_000);
+        }
+        assertTrue(buffer.underrunCount() > 0);
+        assertTrue(buffer.delayUs() > 30_000 && buffer.delayUs() <= MAX_DELAY_US);
+        assertEquals(0, buffer.lateDropCount());
+    }
+
+    @Test
+    public void steadyArrivalKeepsMinimumDelay() {
+
+        JitterBuffer buffer = new JitterBuffer(MIN_DELAY_US, MAX_DELAY_US);
+        long[] playedUs = replay(buffer, new long[100]);
+        assertEquals(MIN_DELAY_US, buffer.delayUs());
+        assertEquals(0, buffer.underrunCount());
+        // Played the minimum delay after the quickest arrival
+        assertEquals(20_000 + MIN_DELAY_US, playedUs[50] - 50 * FRAME_US, 1_000);
+    }
+
+    @Test
+    public void delayComesBackDownAfterBurst() {
+
+        long[] extraUs = new long[600];
+        for (int i = 100; i < 110; i++) {
+            extraUs[i] = 60_000;
+        }
+        JitterBuffer buffer = new JitterBuffer(MIN_DELAY_US, MAX_DELAY_US);
+        long[] playedUs = replay(buffer, extraUs);
+
+        assertTrue(buffer.underrunCount() > 0);
+        assertTrue(buffer.delayUs() < 15_000);
+        // Never plays two frames out of order or at once
+        long lastUs = 0;
+        for (long us : playedUs) {
+            if (us >= 0) {
+                assertTrue(us > lastUs);
+                lastUs = us;
+            }
+        }
+    }
+
+    @Test
+    public void reordersAndDropsLateFrames() {
+
+        JitterBuffer buffer = new JitterBuffer(MIN_DELAY_US, MAX_DELAY_US);
+        long startUs = 1_000_000;
+        assertTrue(buffer.offer(frame(0), startUs));
+        assertTrue(buffer.offer(frame(2), startUs + 2 * FRAME_US));
+        assertTrue(buffer.offer(frame(1), startUs + 2 * FRAME_US + 1_000));
+        assertFalse(buffer.offer(frame(1), startUs + 2 * FRAME_US + 2_000));
+
+        long nowUs = startUs + 3 * FRAME_US;
+        assertEquals(0, buffer.poll(nowUs).sequence);
+        assertEquals(1, buffer.poll(nowUs).sequence);
+        assertEquals(2, buffer.poll(nowUs).sequence);
+        assertNull(buffer.poll(nowUs));
+
+        // 3 never shows up; 4 goes out at its own time and 3 is then useless
+        assertTrue(buffer.offer(frame(4), startUs + 4 * FRAME_US));
+        assertNull(buffer.poll(startUs + 4 * FRAME_US));
+        assertEquals(4, buffer.poll(startUs + 5 * FRAME_US).sequence);
+        assertFalse(buffer.offer(frame(3), startUs + 5 * FRAME_US));
+        assertEquals(2, buffer.lateDropCount());
+        assertEquals(4, buffer.releasedCount());
+    }
+
+    @Test
+    public void codecConfigPassesStraightThroughAndRestartsStream() {
+
+        JitterBuffer buffer = new JitterBuffer(MIN_DELAY_US, MAX_DELAY_US);
+        long nowUs = 1_000_000;
+        buffer.offer(new Frame(0, 0, 0, Frame.FLAG_CODEC_CONFIG, null), nowUs);
+        buffer.offer(frame(1), nowUs);
+        assertEquals(0, buffer.poll(nowUs).sequence);
+        assertNull(buffer.poll(nowUs));
+        assertEquals(1, buffer.poll(nowUs + MIN_DELAY_US).sequence);
+
+        // The camera reconnected and numbers its frames from zero again
+        assertTrue(buffer.offer(new Frame(0, 0, 0, Frame.FLAG_CODEC_CONFIG, null), nowUs + 1_000_000));
+        assertEquals(0, buffer.poll(nowUs + 1_000_000).sequence);
+        assertEquals(0, buffer.lateDropCount());
+    }
+
+    @Test
+    public void skipsAheadToTheNewestKeyFrame() {
+
+        JitterBuffer buffer = new JitterBuffer(MIN_DELAY_US, MAX_DELAY_US);
+        long nowUs = 1_000_000;
+        buffer.offer(frame(1), nowUs);
+        buffer.offer(new Frame(2, 0, 0, Frame.FLAG_CODEC_CONFIG, null), nowUs);
+        buffer.offer(new Frame(3, 0, CLOCK_OFFSET_US + 3 * FRAME_US, Frame.FLAG_KEY_FRAME, null), nowUs);
+        buffer.offer(frame(4), nowUs);
+        buffer.offer(new Frame(5, 0, CLOCK_OFFSET_US + 5 * FRAME_US, Frame.FLAG_KEY_FRAME, null), nowUs);
+        buffer.offer(frame(6), nowUs);
+        assertEquals(CLOCK_OFFSET_US + 6 * FRAME_US, buffer.newestPtsUs());
+
+        // The config stays for the decoder, whatever it came with
+        assertEquals(3, buffer.skipToLastKeyFrame());
+        assertEquals(3, buffer.size());
+        assertEquals(2, buffer.poll(Long.MAX_VALUE).sequence);
+        assertEquals(5, buffer.poll(Long.MAX_VALUE).sequence);
+        assertEquals(0, buffer.skipToLastKeyFrame());
+        assertEquals(6, buffer.poll(Long.MAX_VALUE).sequence);
+        assertEquals(Long.MIN_VALUE, buffer.newestPtsUs());
+    }
+}
@@ -0,0 +1,88 @@
+package com.example.joshua.stereoonair;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsCoverEveryValueWithSmallError() {
+
+        for (long value = 0; value < 1_000_000; value += 1 + value / 100) {
+            int index = LatencyHistogram.indexOf(value);
+            assertTrue(LatencyHistogram.lowestEquivalent(index) <= value);
+            assertTrue(LatencyHistogram.highestEquivalent(index) >= value);
+            long width = LatencyHistogram.highestEquivalent(index) - LatencyHistogram.lowestEquivalent(index) + 1;
+            assertTrue(width <= Math.max(1, value / 32 + 1));
+        }
+        // Neighbouring buckets meet without gaps
+        for (int index = 0; index < LatencyHistogram.indexOf(LatencyHistogram.MAX_VALUE_US); index++) {
+            assertEquals(LatencyHistogram.highestEquivalent(index) + 1, LatencyHistogram.lowestEquivalent(index + 1));
+        }
+    }
+
+    @Test
+    public void percentilesOfUniformValues() {
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int ms = 1; ms <= 1_000; ms++) {
+            histogram.record(ms * 1_000);
+        }
+        assertEquals(1_000, histogram.count());
+        assertEquals(500_000, histogram.percentileUs(50), 500_000 / 32);
+        assertEquals(990_000, histogram.percentileUs(99), 990_000 / 32);
+        assertEquals(999_000, histogram.percentileUs(99.9), 999_000 / 32);
+        assertEquals(1_000_000, histogram.maxUs());
+        assertEquals(1_000_000, histogram.percentileUs(100));
+        assertEquals(500_500, histogram.meanUs());
+    }
+
+    @Test
+    public void outOfRangeValuesAreClamped() {
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(0, histogram.percentileUs(50));
+        assertEquals(LatencyHistogram.MAX_VALUE_US, histogram.maxUs());
+        histogram.reset();
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.percentileUs(99));
+    }
+
+    @Test
+    public void concurrentWritersLoseNothing() throws Exception {
+
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] writers = new Thread[4];
+        for (int i = 0; i < writers.length; i++) {
+            final long seed = i;
+            writers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    for (int n = 0; n < 100_000; n++) {
+                        histogram.record(random.nextInt(200_000));
+                    }
+                }
+            });
+            writers[i].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        assertEquals(400_000, histogram.count());
+        final long[] bucketed = new long[1];
+        histogram.forEachBucket(new LatencyHistogram.OnBucketCallback() {
+            @Override
+            void onBucket(long fromUs, long toUs, long count) {
+                bucketed[0] += count;
+            }
+        });
+        assertEquals(400_000, bucketed[0]);
+        assertTrue(histogram.maxUs() < 200_000 && histogram.maxUs() > 199_000);
+    }
+}
@@ -0,0 +1,41 @@
+package com.example.joshua.stereoonair;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+public class PipelineMetricsTest {
+
+    @Test
+    public void reportsPercentilesAndThroughputPerStage() throws Exception {
+
+        PipelineMetrics metrics = new PipelineMetrics(0);
+        for (int i = 0; i < 300; i++) {
+            metrics.record(PipelineMetrics.Stage.ENCODED, 20_000 + i * 10, 10_000);
+            metrics.record(PipelineMetrics.Stage.RENDERED, 80_000, 0);
+        }
+        long tenSeconds = 10_000_000_000L;
+
+        assertEquals(30, metrics.framesPerSecond(PipelineMetrics.Stage.ENCODED, tenSeconds), 1e-9);
+        assertEquals(2_400_000, metrics.bitsPerSecond(PipelineMetrics.Stage.ENCODED, tenSeconds), 1e-6);
+        assertEquals(0, metrics.frames(PipelineMetrics.Stage.SENT));
+
+        String summary = metrics.summary(tenSeconds);
+        String[] lines = summary.split("\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].startsWith("encoder output"));
+        assertTrue(lines[0].contains("2400 kbit/s"));
+        assertTrue(lines[1].startsWith("render"));
+        assertTrue(lines[1].contains("max   80.0 ms"));
+
+        StringWriter dump = new StringWriter();
+        metrics.dump(dump, tenSeconds);
+        assertTrue(dump.toString().startsWith(summary));
+        assertTrue(dump.toString().contains("# render, age since capture in us: from to count\n"));
+
+        metrics.reset(tenSeconds);
+        assertEquals("", metrics.summary(tenSeconds));
+    }
+}
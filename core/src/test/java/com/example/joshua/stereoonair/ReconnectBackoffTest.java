@@ -0,0 +1,49 @@
+package com.example.joshua.stereoonair;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ReconnectBackoffTest {
+
+    @Test
+    public void doublesUpToTheLimit() {
+
+        ReconnectBackoff backoff = new ReconnectBackoff(100, 5_000, new Random(1));
+        long[] limits = { 100, 200, 400, 800, 1_600, 3_200, 5_000, 5_000, 5_000 };
+        for (long limit : limits) {
+            long delay = backoff.nextDelayMillis();
+            assertTrue(delay <= limit);
+            assertTrue(delay >= limit * 3 / 4);
+        }
+        assertEquals(limits.length, backoff.attempts());
+    }
+
+    @Test
+    public void resetStartsOverFromTheShortestWait() {
+
+        ReconnectBackoff backoff = new ReconnectBackoff(100, 5_000, new Random(2));
+        for (int i = 0; i < 20; i++) {
+            backoff.nextDelayMillis();
+        }
+        backoff.reset();
+        assertEquals(0, backoff.attempts());
+        assertTrue(backoff.nextDelayMillis() <= 100);
+    }
+
+    @Test
+    public void cumulativeWaitStaysBounded() {
+
+        // However long the outage, it keeps trying at least every 5 s
+        ReconnectBackoff backoff = new ReconnectBackoff(100, 5_000, new Random(3));
+        long waited = 0;
+        while (waited < 60_000) {
+            long delay = backoff.nextDelayMillis();
+            assertTrue(delay <= 5_000);
+            waited += delay;
+        }
+        assertTrue(backoff.attempts() < 30);
+    }
+}
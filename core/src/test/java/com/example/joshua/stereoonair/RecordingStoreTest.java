@@ -0,0 +1,191 @@
+package com.example.joshua.stereoonair;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RecordingStoreTest {
+
+    private final static int FRAME_SIZE = 1000;
+    private final static int KEY_INTERVAL = 5;
+    private final static long FRAME_INTERVAL_US = 10_000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static long arrivalUs(int index, Side side) {
+        return 1_000_000 + index * FRAME_INTERVAL_US + side.ordinal();
+    }
+
+    /** Both eyes, codec config first, a key frame every KEY_INTERVAL frames. */
+    private static void record(RecordingStore store, int from, int to) throws IOException {
+
+        for (int i = from; i < to; i++) {
+            for (Side side : Side.values()) {
+                Frame frame;
+                if (i == 0) {
+                    frame = RtpTest.frame(0, 0, Frame.FLAG_CODEC_CONFIG, RtpTest.nal(AnnexBAssembler.NAL_SPS, 0x64, 8),
+                            RtpTest.nal(AnnexBAssembler.NAL_PPS, 0xCE, 4));
+                    frame.streamId = side.ordinal();
+                    assertTrue(store.append(side, frame, arrivalUs(i, side) - 1_000, 0));
+                }
+                boolean key = i % KEY_INTERVAL == 0;
+                frame = RtpTest.frame(i + 1, 500 + i, key ? Frame.FLAG_KEY_FRAME : 0,
+                        RtpTest.nal(key ? AnnexBAssembler.NAL_IDR : AnnexBAssembler.NAL_SLICE, i & 0xFF, FRAME_SIZE));
+                frame.streamId = side.ordinal();
+                assertTrue(store.append(side, frame, arrivalUs(i, side), arrivalUs(i, side) - 4_000));
+            }
+        }
+    }
+
+    private static List<Frame> readAll(RecordingStore.Cursor cursor, List<Side> sides) throws IOException {
+
+        List<Frame> frames = new ArrayList<>();
+        Frame frame;
+        while ((frame = cursor.next()) != null) {
+            frames.add(frame);
+            sides.add(cursor.side);
+        }
+        return frames;
+    }
+
+    @Test
+    public void startsBothEyesAtTheirLastKeyFrame() throws IOException {
+
+        RecordingStore store = new RecordingStore(folder.newFolder(), 1024 * 1024, 0);
+        record(store, 0, 20);
+
+        RecordingStore.Cursor cursor = store.seek(arrivalUs(13, Side.LEFT));
+        List<Side> sides = new ArrayList<>();
+        List<Frame> frames = readAll(cursor, sides);
+
+        // The codec config of each eye, then frame 10 onwards of both
+        assertTrue(frames.get(0).isCodecConfig());
+        assertTrue(frames.get(1).isCodecConfig());
+        assertEquals(2 + 2 * 10, frames.size());
+        assertEquals(11, frames.get(2).sequence);
+        assertTrue(frames.get(2).isKeyFrame());
+        assertEquals(Side.LEFT, sides.get(2));
+        assertEquals(Side.RIGHT, sides.get(3));
+        assertEquals(FRAME_SIZE + 5, frames.get(2).size());
+        assertEquals(10, frames.get(2).payload.get(5));
+        assertEquals(510, frames.get(2).ptsUs);
+
+        cursor = store.seek(arrivalUs(13, Side.LEFT));
+        cursor.next();
+        cursor.next();
+        cursor.next();
+        assertEquals(arrivalUs(10, Side.LEFT), cursor.arrivalUs);
+        assertEquals(arrivalUs(10, Side.LEFT) - 4_000, cursor.captureUs);
+    }
+
+    @Test
+    public void followsTheWriter() throws IOException {
+
+        RecordingStore store = new RecordingStore(folder.newFolder(), 1024 * 1024, 0);
+        assertNull(store.seek(0));
+        record(store, 0, 3);
+
+        RecordingStore.Cursor cursor = store.seek(0);
+        List<Frame> frames = readAll(cursor, new ArrayList<Side>());
+        assertEquals(2 + 6, frames.size());
+        assertNull(cursor.next());
+
+        record(store, 3, 4);
+        assertEquals(4, cursor.next().sequence);
+        assertEquals(4, cursor.next().sequence);
+        assertNull(cursor.next());
+    }
+
+    @Test
+    public void startsEachSegmentWithTheCodecConfig() throws IOException {
+
+        // Room for about ten frames a segment
+        int segmentSize = 10 * (RecordingStore.RECORD_HEADER_SIZE + FRAME_SIZE + 5) + 200;
+        File directory = folder.newFolder();
+        RecordingStore store = new RecordingStore(directory, segmentSize, 3);
+        record(store, 0, 40);
+        assertEquals(3, store.segmentCount());
+        assertTrue(store.segmentsRecycled() > 0);
+        assertEquals(3, directory.listFiles().length);
+
+        // The earliest that's left, the oldest segment aside, still starts with config
+        List<Side> sides = new ArrayList<>();
+        List<Frame> frames = readAll(store.seek(0), sides);
+        assertTrue(frames.get(0).isCodecConfig());
+        assertTrue(frames.get(1).isCodecConfig());
+        assertTrue(frames.get(2).isKeyFrame());
+        assertEquals(40, frames.get(frames.size() - 1).sequence);
+        for (int i = 3; i < frames.size(); i++) {
+            assertFalse(frames.get(i).isCodecConfig());
+        }
+    }
+
+    @Test
+    public void reopensARecording() throws IOException {
+
+        File directory = folder.newFolder();
+        int segmentSize = 10 * (RecordingStore.RECORD_HEADER_SIZE + FRAME_SIZE + 5) + 200;
+        RecordingStore store = new RecordingStore(directory, segmentSize, 0);
+        record(store, 0, 30);
+        store.close();
+
+        RecordingStore reopened = RecordingStore.open(directory);
+        assertEquals(store.segmentCount(), reopened.segmentCount());
+        List<Frame> frames = readAll(reopened.seek(0), new ArrayList<Side>());
+        assertEquals(2 + 2 * 30, frames.size());
+        frames = readAll(reopened.seek(arrivalUs(22, Side.RIGHT)), new ArrayList<Side>());
+        assertEquals(2 + 2 * 10, frames.size());
+        assertEquals(21, frames.get(2).sequence);
+    }
+
+    @Test
+    public void leavesOutFramesTooBigForASegment() throws IOException {
+
+        RecordingStore store = new RecordingStore(folder.newFolder(), 4096, 2);
+        Frame frame = RtpTest.frame(1, 0, Frame.FLAG_KEY_FRAME, RtpTest.nal(AnnexBAssembler.NAL_IDR, 0x88, 8192));
+        assertFalse(store.append(Side.LEFT, frame, 1, 0));
+        assertEquals(1, store.framesTooLarge());
+        assertEquals(0, store.framesWritten());
+    }
+
+    @Test
+    public void playsBackOnTheViewerClock() throws Exception {
+
+        RecordingStore store = new RecordingStore(folder.newFolder(), 1024 * 1024, 0);
+        record(store, 0, 10);
+        SpscRing<Frame> leftRing = new SpscRing<>(32, SpscRing.WaitStrategy.YIELD);
+        SpscRing<Frame> rightRing = new SpscRing<>(32, SpscRing.WaitStrategy.YIELD);
+        final long[] played = { -1 };
+        RecordingPlayer player = new RecordingPlayer(store, arrivalUs(5, Side.RIGHT), arrivalUs(7, Side.RIGHT),
+                leftRing, rightRing, new RecordingPlayer.OnPlaybackCallback() {
+            @Override
+            void onFinished(long framesPlayed, IOException exception) {
+                played[0] = framesPlayed;
+            }
+        });
+
+        long startUs = System.nanoTime() / 1000;
+        player.run();
+        long elapsedUs = System.nanoTime() / 1000 - startUs;
+
+        // Config, then frames 5, 6 and 7 of each eye, as far apart as they arrived
+        assertEquals(8, played[0]);
+        assertTrue(elapsedUs >= 2 * FRAME_INTERVAL_US);
+        assertEquals(4, leftRing.size());
+        assertTrue(leftRing.poll().isCodecConfig());
+        Frame first = leftRing.poll();
+        Frame second = leftRing.poll();
+        assertEquals(6, first.sequence);
+        assertTrue(first.ptsUs >= startUs - 4_000);
+        assertEquals(FRAME_INTERVAL_US, second.ptsUs - first.ptsUs);
+        assertEquals(4, rightRing.size());
+    }
+}
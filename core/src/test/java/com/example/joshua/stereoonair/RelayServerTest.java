@@ -0,0 +1,197 @@
+package com.example.joshua.stereoonair;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import static org.junit.Assert.*;
+
+public class RelayServerTest {
+
+    private final static int QUEUE_SIZE = 8;
+
+    private RelayServer relay;
+    private Thread relayThread;
+    private SpscRing<Frame> leftRing;
+    private SpscRing<Frame> rightRing;
+    private ViewerServer viewer;
+    private Thread viewerThread;
+
+    @Before
+    public void setUp() throws IOException {
+
+        relay = new RelayServer(0, 0, QUEUE_SIZE, new RelayServer.OnRelayCallback() {
+            @Override
+            void onCameraConnected(Side side) { }
+
+            @Override
+            void onCameraDisconnected(Side side, IOException exception) { }
+
+            @Override
+            void onSubscribed(Side side, SocketAddress address) { }
+
+            @Override
+            void onUnsubscribed(Side side, SocketAddress address, IOException exception) { }
+        });
+        relayThread = new Thread(relay);
+        relayThread.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+
+        if (viewerThread != null) {
+            viewerThread.interrupt();
+            viewerThread.join();
+            viewer.close();
+        }
+        relayThread.interrupt();
+        relayThread.join();
+        relay.close();
+    }
+
+    /** A viewer that watches through the relay. */
+    private void subscribe() throws IOException {
+
+        leftRing = new SpscRing<>(4, SpscRing.WaitStrategy.YIELD);
+        rightRing = new SpscRing<>(4, SpscRing.WaitStrategy.YIELD);
+        viewer = new ViewerServer(0, leftRing, rightRing, new ViewerServer.OnConnectionCallback() {
+            @Override
+            void onConnected(Side side) { }
+
+            @Override
+            void onDisconnected(Side side, IOException exception) { }
+
+            @Override
+            void onCodecConfig(Side side, VideoCodec codec, ByteBuffer config) { }
+        });
+        viewer.subscribe(new InetSocketAddress("127.0.0.1", relay.getSubscriberPort()));
+        viewerThread = new Thread(viewer);
+        viewerThread.start();
+    }
+
+    private SocketChannel connect(int port, Side side) throws IOException {
+
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+        ByteBuffer hello = ByteBuffer.allocate(FrameProtocol.HELLO_SIZE);
+        FrameProtocol.writeHello(hello, side);
+        hello.flip();
+        channel.write(hello);
+        return channel;
+    }
+
+    private static void send(SocketChannel channel, int sequence, int flags, int size) throws IOException {
+
+        ByteBuffer payload = ByteBuffer.allocate(size);
+        payload.put(0, (byte) sequence);
+        Frame frame = new Frame(sequence, 0, 0, flags, payload);
+        ByteBuffer bytes = ByteBuffer.allocate(FrameProtocol.HEADER_SIZE + size);
+        FrameProtocol.writeHeader(bytes, frame);
+        bytes.put(payload);
+        bytes.flip();
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+
+    private void awaitFramesReceived(long count) throws InterruptedException {
+
+        while (relay.framesReceived() < count) {
+            Thread.sleep(1);
+        }
+    }
+
+    @Test(timeout = 10_000)
+    public void lateJoinerStartsAtTheLastKeyFrame() throws Exception {
+
+        SocketChannel camera = connect(relay.getCameraPort(), Side.LEFT);
+        send(camera, 1, Frame.FLAG_CODEC_CONFIG, 20);
+        send(camera, 2, 0, 1_000);
+        send(camera, 3, Frame.FLAG_KEY_FRAME, 5_000);
+        send(camera, 4, 0, 1_000);
+        send(camera, 5, 0, 1_000);
+        awaitFramesReceived(5);
+
+        subscribe();
+        Frame config = leftRing.take();
+        assertTrue(config.isCodecConfig());
+        assertEquals(1, config.sequence);
+        Frame key = leftRing.take();
+        assertTrue(key.isKeyFrame());
+        assertEquals(3, key.sequence);
+        assertEquals(5_000, key.size());
+        assertEquals(3, key.payload.get(key.payload.position()));
+        assertEquals(4, leftRing.take().sequence);
+        assertEquals(5, leftRing.take().sequence);
+        while (relay.subscriberCount() < 2) {
+            Thread.sleep(1);
+        }
+
+        // Live from here on
+        send(camera, 6, 0, 1_000);
+        assertEquals(6, leftRing.take().sequence);
+        assertTrue(rightRing.isEmpty());
+        assertEquals(0, relay.framesSkipped());
+
+        camera.close();
+    }
+
+    @Test(timeout = 10_000)
+    public void joinerWithoutAKeyFrameWaitsForOne() throws Exception {
+
+        subscribe();
+        while (relay.subscriberCount() < 2) {
+            Thread.sleep(1);
+        }
+        SocketChannel camera = connect(relay.getCameraPort(), Side.RIGHT);
+        send(camera, 1, 0, 1_000);
+        send(camera, 2, Frame.FLAG_CODEC_CONFIG, 20);
+        send(camera, 3, 0, 1_000);
+        send(camera, 4, Frame.FLAG_KEY_FRAME, 1_000);
+
+        assertEquals(2, rightRing.take().sequence);
+        assertEquals(4, rightRing.take().sequence);
+        assertEquals(2, relay.framesSkipped());
+
+        camera.close();
+    }
+
+    @Test(timeout = 10_000)
+    public void evictsASubscriberThatStopsReading() throws Exception {
+
+        subscribe();
+        SocketChannel stalled = SocketChannel.open();
+        stalled.socket().setReceiveBufferSize(4096);
+        stalled.connect(new InetSocketAddress("127.0.0.1", relay.getSubscriberPort()));
+        ByteBuffer hello = ByteBuffer.allocate(FrameProtocol.HELLO_SIZE);
+        FrameProtocol.writeHello(hello, Side.LEFT);
+        hello.flip();
+        stalled.write(hello);
+        while (relay.subscriberCount() < 3) {
+            Thread.sleep(1);
+        }
+
+        SocketChannel camera = connect(relay.getCameraPort(), Side.LEFT);
+        int sequence = 0;
+        while (relay.evictionCount() == 0) {
+            sequence++;
+            send(camera, sequence, sequence % 10 == 1 ? Frame.FLAG_KEY_FRAME : 0, 100_000);
+            // The viewer that keeps up gets every frame
+            assertEquals(sequence, leftRing.take().sequence);
+        }
+
+        assertTrue(relay.resyncCount() >= RelayServer.MAX_RESYNCS);
+        assertEquals(2, relay.subscriberCount());
+        send(camera, ++sequence, 0, 100_000);
+        assertEquals(sequence, leftRing.take().sequence);
+
+        stalled.close();
+        camera.close();
+    }
+}
@@ -0,0 +1,264 @@
+package com.example.joshua.stereoonair;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RtpTest {
+
+    private final static int MAX_PACKET_SIZE = 1200;
+    private final static long DEADLINE_NANOS = 50_000_000;
+
+    static byte[] nal(int type, int firstByte, int size) {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0);
+        out.write(0);
+        out.write(0);
+        out.write(1);
+        out.write(0x60 | type);
+        out.write(firstByte);
+        for (int i = 2; i < size; i++) {
+            out.write(i % 7 == 0 ? 0 : 0x42);
+        }
+        out.write(0x80);
+        return out.toByteArray();
+    }
+
+    static Frame frame(int sequence, long ptsUs, int flags, byte[]... nals) {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] nal : nals) {
+            out.write(nal, 0, nal.length);
+        }
+        return new Frame(sequence, 0, ptsUs, flags, ByteBuffer.wrap(out.toByteArray()));
+    }
+
+    static List<byte[]> packetize(Frame... frames) throws Exception {
+        return packetize(new RtpPacketizer(Side.RIGHT, MAX_PACKET_SIZE), frames);
+    }
+
+    static List<byte[]> packetize(RtpPacketizer packetizer, Frame... frames) throws Exception {
+
+        final List<byte[]> packets = new ArrayList<>();
+        for (Frame frame : frames) {
+            packetizer.packetize(frame, new RtpPacketizer.OnPacketCallback() {
+                @Override
+                void onPacket(ByteBuffer packet) {
+                    assertTrue(packet.remaining() <= MAX_PACKET_SIZE);
+                    byte[] bytes = new byte[packet.remaining()];
+                    packet.get(bytes);
+                    packets.add(bytes);
+                }
+            });
+        }
+        return packets;
+    }
+
+    private static RtpDepacketizer depacketizer(final List<Frame> received) {
+
+        return new RtpDepacketizer(Side.RIGHT.ordinal(), DEADLINE_NANOS, new StreamParser.OnFrameCallback() {
+            @Override
+            void onFrame(Frame frame) {
+                received.add(frame);
+            }
+        });
+    }
+
+    private static RtpDepacketizer depacketizer(ClockSync clockSync, final List<Frame> received) {
+
+        return new RtpDepacketizer(Side.RIGHT.ordinal(), DEADLINE_NANOS, clockSync, new StreamParser.OnFrameCallback() {
+            @Override
+            void onFrame(Frame frame) {
+                received.add(frame);
+            }
+        });
+    }
+
+    private static byte[] bytes(Frame frame) {
+
+        byte[] bytes = new byte[frame.size()];
+        frame.payload.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private Frame[] stream() {
+
+        return new Frame[] {
+                frame(0, 0, Frame.FLAG_CODEC_CONFIG,
+                        nal(AnnexBAssembler.NAL_SPS, 0x64, 12), nal(AnnexBAssembler.NAL_PPS, 0xEE, 4)),
+                frame(1, 33_333, Frame.FLAG_KEY_FRAME,
+                        nal(AnnexBAssembler.NAL_IDR, 0x88, 30_000), nal(AnnexBAssembler.NAL_IDR, 0x12, 9_000)),
+                frame(2, 66_666, 0, nal(AnnexBAssembler.NAL_SLICE, 0x9A, 800)),
+                frame(3, 100_000, 0, nal(AnnexBAssembler.NAL_SLICE, 0x9A, 5_000)),
+        };
+    }
+
+    @Test
+    public void reassemblesReorderedPackets() throws Exception {
+
+        Frame[] sent = stream();
+        RtpPacketizer packetizer = new RtpPacketizer(Side.RIGHT, MAX_PACKET_SIZE);
+        Random random = new Random(42);
+        List<byte[]> packets = new ArrayList<>();
+        for (Frame frame : sent) {
+            // Reorder within each frame, as a Wi-Fi link might
+            List<byte[]> framePackets = packetize(packetizer, frame);
+            Collections.shuffle(framePackets, random);
+            packets.addAll(framePackets);
+        }
+
+        List<Frame> received = new ArrayList<>();
+        RtpDepacketizer depacketizer = depacketizer(received);
+        for (byte[] packet : packets) {
+            depacketizer.onPacket(ByteBuffer.wrap(packet), 0);
+        }
+
+        assertEquals(sent.length, received.size());
+        for (int i = 0; i < sent.length; i++) {
+            assertTrue(Arrays.equals(bytes(sent[i]), bytes(received.get(i))));
+            assertEquals(sent[i].flags, received.get(i).flags);
+            assertEquals(sent[i].ptsUs / 100, received.get(i).ptsUs / 100);
+            assertEquals(Side.RIGHT.ordinal(), received.get(i).streamId);
+        }
+        assertEquals(0, depacketizer.framesDropped());
+    }
+
+    @Test
+    public void carriesHevcAndVp9() throws Exception {
+
+        int hevc = VideoCodec.HEVC.flags();
+        int vp9 = VideoCodec.VP9.flags();
+        Frame[] sent = {
+                frame(0, 0, Frame.FLAG_CODEC_CONFIG | hevc, VideoCodecTest.hevcNal(VideoCodec.HEVC_NAL_VPS, 0x0C, 20),
+                        VideoCodecTest.hevcNal(VideoCodec.HEVC_NAL_SPS, 0x01, 30), VideoCodecTest.hevcNal(VideoCodec.HEVC_NAL_PPS, 0xC1, 6)),
+                frame(1, 33_333, Frame.FLAG_KEY_FRAME | hevc, VideoCodecTest.hevcNal(19, 0xAF, 20_000)),
+                frame(2, 66_666, hevc, VideoCodecTest.hevcNal(1, 0x80, 3_000), VideoCodecTest.hevcNal(1, 0x12, 2_000)),
+                frame(3, 100_000, Frame.FLAG_KEY_FRAME | vp9, VideoCodecTest.vp9Frame(true, 10_000)),
+                frame(4, 133_333, vp9, VideoCodecTest.vp9Frame(false, 700)),
+        };
+        RtpPacketizer packetizer = new RtpPacketizer(Side.RIGHT, MAX_PACKET_SIZE);
+        Random random = new Random(7);
+        List<byte[]> packets = new ArrayList<>();
+        for (Frame frame : sent) {
+            List<byte[]> framePackets = packetize(packetizer, frame);
+            Collections.shuffle(framePackets, random);
+            packets.addAll(framePackets);
+        }
+
+        List<Frame> received = new ArrayList<>();
+        RtpDepacketizer depacketizer = depacketizer(received);
+        // Through FEC's receiving end, as the viewer takes them, so no payload type is mistaken for parity
+        FecDecoder fecDecoder = new FecDecoder(depacketizer);
+        for (byte[] packet : packets) {
+            fecDecoder.onPacket(ByteBuffer.wrap(packet), 0);
+        }
+
+        assertEquals(sent.length, received.size());
+        for (int i = 0; i < sent.length; i++) {
+            assertTrue(Arrays.equals(bytes(sent[i]), bytes(received.get(i))));
+            assertEquals(sent[i].flags, received.get(i).flags);
+            assertEquals(sent[i].codec(), received.get(i).codec());
+        }
+        assertEquals(0, depacketizer.packetsInvalid());
+    }
+
+    @Test
+    public void dropsIncompleteFrameWhenNewerFrameCompletes() throws Exception {
+
+        Frame[] sent = stream();
+        List<byte[]> packets = packetize(sent[1], sent[2]);
+        // Lose one fragment of the IDR
+        packets.remove(5);
+
+        List<Frame> received = new ArrayList<>();
+        RtpDepacketizer depacketizer = depacketizer(received);
+        for (byte[] packet : packets) {
+            depacketizer.onPacket(ByteBuffer.wrap(packet), 0);
+        }
+
+        assertEquals(1, received.size());
+        assertTrue(Arrays.equals(bytes(sent[2]), bytes(received.get(0))));
+        assertEquals(1, depacketizer.framesDropped());
+        assertFalse(depacketizer.hasPending());
+    }
+
+    @Test
+    public void dropsIncompleteFrameAtDeadlineAndIgnoresLatePackets() throws Exception {
+
+        Frame[] sent = stream();
+        List<byte[]> packets = packetize(sent[3]);
+        byte[] lost = packets.remove(2);
+
+        List<Frame> received = new ArrayList<>();
+        RtpDepacketizer depacketizer = depacketizer(received);
+        for (byte[] packet : packets) {
+            depacketizer.onPacket(ByteBuffer.wrap(packet), 1_000);
+        }
+        depacketizer.expire(1_000 + DEADLINE_NANOS / 2);
+        assertTrue(depacketizer.hasPending());
+        depacketizer.expire(1_000 + DEADLINE_NANOS + 1);
+        assertFalse(depacketizer.hasPending());
+        assertEquals(1, depacketizer.framesDropped());
+
+        // The next frame in sequence goes through; the straggler from the dropped one does not
+        List<byte[]> next = packetize(sent[3], sent[2]);
+        for (byte[] packet : next.subList(packets.size() + 1, next.size())) {
+            depacketizer.onPacket(ByteBuffer.wrap(packet), 2_000);
+        }
+        assertEquals(1, received.size());
+        depacketizer.onPacket(ByteBuffer.wrap(lost), 3_000);
+        assertEquals(1, depacketizer.packetsLate());
+        assertEquals(1, received.size());
+    }
+
+    @Test
+    public void rebuildsCaptureTimesPastTheTimestampWrap() throws Exception {
+
+        // Up about 13.9 hours, past the 2^32 / 90 kHz the RTP timestamp holds
+        long cameraUs = 50_000_000_000L;
+        long viewerUs = 7_000_000;
+        long offsetUs = cameraUs - viewerUs;
+        ClockSync clockSync = new ClockSync();
+        int id = clockSync.ping(viewerUs - 2_000);
+        ClockReply reply = new ClockReply(Side.RIGHT, id, viewerUs - 1_000 + offsetUs);
+        reply.transmitUs = reply.receiveUs;
+        clockSync.onReply(reply, viewerUs);
+        assertTrue(cameraUs > (1L << 32) * 100 / 9);
+
+        Frame[] sent = {
+                frame(0, cameraUs - 100_000, Frame.FLAG_CODEC_CONFIG,
+                        nal(AnnexBAssembler.NAL_SPS, 0x64, 12), nal(AnnexBAssembler.NAL_PPS, 0xEE, 4)),
+                frame(1, cameraUs - 100_000, Frame.FLAG_KEY_FRAME, nal(AnnexBAssembler.NAL_IDR, 0x88, 3_000)),
+                frame(2, cameraUs - 66_667, 0, nal(AnnexBAssembler.NAL_SLICE, 0x9A, 800)),
+                frame(3, cameraUs - 33_333, 0, nal(AnnexBAssembler.NAL_SLICE, 0x9A, 800)),
+        };
+        List<Frame> received = new ArrayList<>();
+        RtpDepacketizer depacketizer = depacketizer(clockSync, received);
+        for (byte[] packet : packetize(sent)) {
+            depacketizer.onPacket(ByteBuffer.wrap(packet), viewerUs * 1000);
+        }
+
+        assertEquals(sent.length, received.size());
+        for (int i = 1; i < sent.length; i++) {
+            // Only what the 90 kHz ticks round away
+            assertEquals(sent[i].ptsUs, received.get(i).ptsUs, 11);
+        }
+
+        // Without a synchronized clock the high bits are lost
+        received.clear();
+        depacketizer = depacketizer(new ClockSync(), received);
+        for (byte[] packet : packetize(sent)) {
+            depacketizer.onPacket(ByteBuffer.wrap(packet), viewerUs * 1000);
+        }
+        assertTrue(received.get(1).ptsUs < cameraUs - (1L << 32) * 100 / 9);
+    }
+}
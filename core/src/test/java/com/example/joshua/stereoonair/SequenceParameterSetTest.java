@@ -0,0 +1,141 @@
+package com.example.joshua.stereoonair;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class SequenceParameterSetTest {
+
+    /** Writes RBSP bits and inserts emulation prevention bytes like an encoder. */
+    private static class BitWriter {
+
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private int current = 0;
+        private int bits = 0;
+        private int zeros = 0;
+
+        BitWriter u(int count, long value) {
+
+            for (int i = count - 1; i >= 0; i--) {
+                current = (current << 1) | (int) ((value >> i) & 1);
+                if (++bits == 8) {
+                    if (zeros >= 2 && current <= 3) {
+                        out.write(3);
+                        zeros = 0;
+                    }
+                    out.write(current);
+                    zeros = current == 0 ? zeros + 1 : 0;
+                    current = 0;
+                    bits = 0;
+                }
+            }
+            return this;
+        }
+
+        BitWriter ue(int value) {
+
+            int length = 32 - Integer.numberOfLeadingZeros(value + 1);
+            u(length - 1, 0);
+            return u(length, value + 1);
+        }
+
+        BitWriter se(int value) {
+            return ue(value > 0 ? 2 * value - 1 : -2 * value);
+        }
+
+        byte[] toByteArray() {
+
+            // rbsp_trailing_bits
+            u(1, 1);
+            while (bits != 0) {
+                u(1, 0);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    /** High profile 1920x1080 (1088 cropped by 8), 4:2:0, with a scaling matrix and 30000/1001 timing. */
+    private static byte[] highProfile1080p() {
+
+        BitWriter bits = new BitWriter()
+                .u(8, 0x67).u(8, 100).u(8, 0).u(8, 40).ue(0)
+                .ue(1).ue(0).ue(0).u(1, 0)
+                // seq_scaling_matrix_present_flag, then only the first list present
+                .u(1, 1).u(1, 1);
+        for (int j = 0; j < 16; j++) {
+            bits.se(j == 0 ? 8 : 0);
+        }
+        for (int i = 1; i < 8; i++) {
+            bits.u(1, 0);
+        }
+        bits.ue(0).ue(0).ue(4)
+                .ue(4).u(1, 0).ue(119).ue(67).u(1, 1).u(1, 1)
+                .u(1, 1).ue(0).ue(0).ue(0).ue(4)
+                // VUI: square pixels, no overscan, video signal and colour, no chroma location
+                .u(1, 1).u(1, 1).u(8, 1).u(1, 0).u(1, 1).u(3, 5).u(1, 0).u(1, 1).u(24, 0x010101).u(1, 0)
+                .u(1, 1).u(32, 1001).u(32, 60000).u(1, 1);
+        return bits.toByteArray();
+    }
+
+    private static int indexOf(byte[] bytes, byte[] pattern) {
+
+        for (int i = 0; i + pattern.length <= bytes.length; i++) {
+            int j = 0;
+            while (j < pattern.length && bytes[i + j] == pattern[j]) {
+                j++;
+            }
+            if (j == pattern.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Test
+    public void readsSizeAndFrameRate() throws Exception {
+
+        SequenceParameterSet sps = SequenceParameterSet.parse(ByteBuffer.wrap(highProfile1080p()));
+        assertEquals(100, sps.profileIdc);
+        assertEquals(40, sps.levelIdc);
+        assertEquals(1920, sps.width);
+        assertEquals(1080, sps.height);
+        assertEquals(29.97, sps.frameRate, 0.01);
+    }
+
+    @Test
+    public void readsBaselineWithoutTiming() throws Exception {
+
+        // Baseline 800x600 (608 cropped by 8), no VUI. pic_order_cnt_type 1 with an
+        // offset long enough to need emulation prevention
+        byte[] nal = new BitWriter()
+                .u(8, 0x67).u(8, 66).u(8, 0xC0).u(8, 31).ue(0)
+                .ue(0).ue(1).u(1, 0).se(-(1 << 28)).se(0).ue(0)
+                .ue(1).u(1, 0).ue(49).ue(37).u(1, 1).u(1, 1)
+                .u(1, 1).ue(0).ue(0).ue(0).ue(4)
+                .u(1, 0).toByteArray();
+        assertTrue(indexOf(nal, new byte[] { 0, 0, 3 }) > 0);
+        SequenceParameterSet sps = SequenceParameterSet.parse(ByteBuffer.wrap(nal));
+        assertEquals(800, sps.width);
+        assertEquals(600, sps.height);
+        assertEquals(0, sps.frameRate, 0);
+    }
+
+    @Test
+    public void findsTheSpsInACodecConfig() throws Exception {
+
+        byte[] sps = highProfile1080p();
+        byte[] pps = RtpTest.nal(AnnexBAssembler.NAL_PPS, 0xCE, 5);
+        ByteArrayOutputStream config = new ByteArrayOutputStream();
+        config.write(new byte[] { 0, 0, 0, 1 });
+        config.write(sps);
+        config.write(pps);
+
+        SequenceParameterSet found = SequenceParameterSet.find(ByteBuffer.wrap(config.toByteArray()));
+        assertNotNull(found);
+        assertEquals(1080, found.height);
+        assertNull(SequenceParameterSet.find(ByteBuffer.wrap(pps)));
+    }
+}
@@ -0,0 +1,120 @@
+package com.example.joshua.stereoonair;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SpscRingTest {
+
+    @Test
+    public void roundsCapacityAndReportsFullAndEmpty() {
+
+        SpscRing<Integer> ring = new SpscRing<>(3, SpscRing.WaitStrategy.SPIN);
+        assertEquals(4, ring.capacity());
+        assertNull(ring.poll());
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.offer(i));
+        }
+        assertFalse(ring.offer(4));
+        assertEquals(4, ring.size());
+        assertEquals(Integer.valueOf(0), ring.peek());
+
+        for (int i = 0; i < 4; i++) {
+            assertEquals(Integer.valueOf(i), ring.poll());
+        }
+        assertNull(ring.poll());
+        assertEquals(4, ring.highWaterMark());
+    }
+
+    @Test
+    public void handsOffInOrderBetweenTwoThreads() throws InterruptedException {
+
+        // SPIN is left out: on a single-core machine each hand-off costs a whole time slice
+        for (final SpscRing.WaitStrategy waitStrategy : new SpscRing.WaitStrategy[] {
+                SpscRing.WaitStrategy.YIELD, SpscRing.WaitStrategy.PARK }) {
+
+            final int count = 20_000;
+            final SpscRing<Integer> ring = new SpscRing<>(4, waitStrategy);
+            Thread producer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < count; i++) {
+                            ring.put(i);
+                        }
+                    } catch (InterruptedException exception) {
+                        fail();
+                    }
+                }
+            });
+            producer.start();
+            for (int i = 0; i < count; i++) {
+                assertEquals(Integer.valueOf(i), ring.take());
+            }
+            producer.join();
+            assertTrue(ring.isEmpty());
+        }
+    }
+
+    @Test
+    public void parkedThreadsAreWokenByTheOtherSide() throws InterruptedException {
+
+        final SpscRing<Integer> ring = new SpscRing<>(1, SpscRing.WaitStrategy.PARK);
+        final long[] tookNanos = new long[1];
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ring.take();
+                    tookNanos[0] = System.nanoTime();
+                } catch (InterruptedException exception) {
+                    fail();
+                }
+            }
+        });
+        consumer.start();
+        waitUntilParked(consumer);
+        long offeredNanos = System.nanoTime();
+        assertTrue(ring.offer(1));
+        consumer.join();
+        // Well short of the fallback, so it was the offer that woke it
+        assertTrue(tookNanos[0] - offeredNanos < 500_000_000);
+
+        final long[] putNanos = new long[1];
+        assertTrue(ring.offer(2));
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ring.put(3);
+                    putNanos[0] = System.nanoTime();
+                } catch (InterruptedException exception) {
+                    fail();
+                }
+            }
+        });
+        producer.start();
+        waitUntilParked(producer);
+        long polledNanos = System.nanoTime();
+        assertEquals(Integer.valueOf(2), ring.poll());
+        producer.join();
+        assertTrue(putNanos[0] - polledNanos < 500_000_000);
+        assertEquals(Integer.valueOf(3), ring.poll());
+    }
+
+    private static void waitUntilParked(Thread thread) throws InterruptedException {
+
+        while (thread.getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(1);
+        }
+    }
+
+    @Test(expected = InterruptedException.class)
+    public void takeIsInterruptible() throws InterruptedException {
+
+        SpscRing<Integer> ring = new SpscRing<>(2, SpscRing.WaitStrategy.PARK);
+        Thread.currentThread().interrupt();
+        ring.take();
+    }
+}
@@ -0,0 +1,81 @@
+package com.example.joshua.stereoonair;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StereoPairerTest {
+
+    private final static long TOLERANCE_US = 8_000;
+    private final static long MAX_WAIT_US = 100_000;
+
+    private List<String> released;
+    private StereoPairer pairer;
+
+    @Before
+    public void setUp() {
+
+        released = new ArrayList<>();
+        pairer = new StereoPairer(TOLERANCE_US, MAX_WAIT_US, new StereoPairer.OnReleaseCallback() {
+            @Override
+            void onRelease(Side side, int index, long captureUs, boolean render) {
+                released.add((side == Side.LEFT ? "L" : "R") + index + (render ? "" : "x"));
+            }
+        });
+    }
+
+    @Test
+    public void releasesMatchingFramesTogether() {
+
+        pairer.offer(Side.LEFT, 0, 1_000_000, 0);
+        pairer.offer(Side.LEFT, 1, 1_033_000, 0);
+        assertTrue(released.isEmpty());
+
+        pairer.offer(Side.RIGHT, 5, 1_003_000, 0);
+        assertEquals("[L0, R5]", released.toString());
+        pairer.offer(Side.RIGHT, 6, 1_029_000, 0);
+        assertEquals("[L0, R5, L1, R6]", released.toString());
+
+        assertEquals(2, pairer.pairedCount());
+        assertEquals(1.0, pairer.pairingRate(), 0);
+        assertEquals(3_500, pairer.meanSkewUs());
+        assertEquals(4_000, pairer.maxSkewUs());
+    }
+
+    @Test
+    public void dropsFrameThatCanNoLongerBePaired() {
+
+        // The right camera lost the frame that matched left 0
+        pairer.offer(Side.LEFT, 0, 1_000_000, 0);
+        pairer.offer(Side.LEFT, 1, 1_033_000, 0);
+        pairer.offer(Side.RIGHT, 7, 1_034_000, 0);
+
+        assertEquals("[L0x, L1, R7]", released.toString());
+        assertEquals(1, pairer.droppedCount());
+        assertEquals(2.0 / 3, pairer.pairingRate(), 1e-9);
+    }
+
+    @Test
+    public void showsLoneEyeAfterWaitingAndWhenTooManyAreHeld() {
+
+        pairer.offer(Side.LEFT, 0, 1_000_000, 0);
+        pairer.poll(MAX_WAIT_US);
+        assertTrue(released.isEmpty());
+        pairer.poll(MAX_WAIT_US + 1);
+        assertEquals("[L0]", released.toString());
+
+        released.clear();
+        for (int i = 1; i <= StereoPairer.MAX_HELD + 1; i++) {
+            pairer.offer(Side.RIGHT, i, 1_000_000 + i * 33_000, 200_000);
+        }
+        assertEquals("[R1]", released.toString());
+        assertEquals(2, pairer.soloCount());
+
+        pairer.clear(Side.RIGHT);
+        assertEquals("[R1, R2x, R3x, R4x]", released.toString());
+    }
+}
@@ -0,0 +1,85 @@
+package com.example.joshua.stereoonair;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class VideoCodecTest {
+
+    static byte[] hevcNal(int type, int firstByte, int size) {
+
+        byte[] nal = new byte[4 + size];
+        nal[3] = 1;
+        nal[4] = (byte) (type << 1);
+        nal[5] = 1;
+        nal[6] = (byte) firstByte;
+        for (int i = 7; i < nal.length; i++) {
+            nal[i] = (byte) (i % 7 == 0 ? 0 : 0x42);
+        }
+        return nal;
+    }
+
+    static byte[] vp9Frame(boolean key, int size) {
+
+        byte[] frame = new byte[size];
+        // frame_marker 2, profile 0, show_existing_frame 0, then frame_type
+        frame[0] = (byte) (key ? 0x82 : 0x86);
+        for (int i = 1; i < size; i++) {
+            frame[i] = (byte) i;
+        }
+        return frame;
+    }
+
+    @Test
+    public void choosesTheBestSharedCodec() {
+
+        assertEquals(VideoCodec.HEVC, VideoCodec.choose(VideoCodec.ALL, VideoCodec.ALL));
+        assertEquals(VideoCodec.VP9, VideoCodec.choose(VideoCodec.ALL, VideoCodec.AVC.bit() | VideoCodec.VP9.bit()));
+        assertEquals(VideoCodec.AVC, VideoCodec.choose(VideoCodec.HEVC.bit(), VideoCodec.VP9.bit()));
+        assertEquals(VideoCodec.AVC, VideoCodec.choose(0, 0));
+    }
+
+    @Test
+    public void frameFlagsCarryTheCodec() {
+
+        for (VideoCodec codec : VideoCodec.values()) {
+            Frame frame = new Frame(0, 0, 0, Frame.FLAG_KEY_FRAME | codec.flags(), ByteBuffer.allocate(0));
+            assertEquals(codec, frame.codec());
+            assertTrue(frame.isKeyFrame());
+        }
+        assertEquals(VideoCodec.AVC, VideoCodec.fromFlags(0));
+    }
+
+    @Test
+    public void classifiesHevcAndVp9Frames() {
+
+        int hevc = VideoCodec.HEVC.flags();
+        assertEquals(FrameDropPolicy.FrameType.KEY,
+                FrameDropPolicy.typeOf(hevc, ByteBuffer.wrap(hevcNal(19, 0x80, 100))));
+        // TRAIL_R is predicted from, TRAIL_N is not
+        assertEquals(FrameDropPolicy.FrameType.REFERENCE,
+                FrameDropPolicy.typeOf(hevc, ByteBuffer.wrap(hevcNal(1, 0x80, 100))));
+        assertEquals(FrameDropPolicy.FrameType.NON_REFERENCE,
+                FrameDropPolicy.typeOf(hevc, ByteBuffer.wrap(hevcNal(0, 0x80, 100))));
+
+        int vp9 = VideoCodec.VP9.flags();
+        assertEquals(FrameDropPolicy.FrameType.KEY,
+                FrameDropPolicy.typeOf(vp9 | Frame.FLAG_KEY_FRAME, ByteBuffer.wrap(vp9Frame(true, 100))));
+        assertEquals(FrameDropPolicy.FrameType.REFERENCE,
+                FrameDropPolicy.typeOf(vp9, ByteBuffer.wrap(vp9Frame(false, 100))));
+    }
+
+    @Test
+    public void readsVp9FrameType() {
+
+        assertTrue(VideoCodec.isVp9KeyFrame(ByteBuffer.wrap(vp9Frame(true, 10)), 0));
+        assertFalse(VideoCodec.isVp9KeyFrame(ByteBuffer.wrap(vp9Frame(false, 10)), 0));
+        // Profile 3 has a reserved bit first
+        assertTrue(VideoCodec.isVp9KeyFrame(ByteBuffer.wrap(new byte[] { (byte) 0xB0 }), 0));
+        assertFalse(VideoCodec.isVp9KeyFrame(ByteBuffer.wrap(new byte[] { (byte) 0xB2 }), 0));
+        // show_existing_frame repeats a frame already decoded
+        assertFalse(VideoCodec.isVp9KeyFrame(ByteBuffer.wrap(new byte[] { (byte) 0x88 }), 0));
+    }
+}
@@ -0,0 +1,35 @@
+package com.example.joshua.stereoonair;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class VideoModeTest {
+
+    @Test
+    public void choosesTheBestModeAllKnownSetsShare() {
+
+        int left = VideoMode.SVGA_30.bit() | VideoMode.HD_30.bit() | VideoMode.FULL_HD_30.bit();
+        int right = VideoMode.SVGA_30.bit() | VideoMode.HD_30.bit() | VideoMode.HD_60.bit();
+        assertEquals(VideoMode.HD_30, VideoMode.choose(left, right, VideoMode.ALL));
+        assertEquals(VideoMode.SVGA_30, VideoMode.choose(left, right, VideoMode.SVGA_30.bit() | VideoMode.SVGA_60.bit()));
+        // A camera that hasn't said yet doesn't hold the other back
+        assertEquals(VideoMode.FULL_HD_30, VideoMode.choose(left, 0, VideoMode.ALL));
+        assertNull(VideoMode.choose(VideoMode.VGA_30.bit(), VideoMode.VGA_60.bit()));
+        assertNull(VideoMode.choose(0, 0));
+    }
+
+    @Test
+    public void leavesOutSizesBeyondWhatTheScreenShows() {
+
+        // Half of a 2340x1080 screen: 1920x1080 is the smallest that covers it
+        int fitting = VideoMode.fitting(VideoMode.ALL, 1170, 1080);
+        assertEquals(VideoMode.FULL_HD_60, VideoMode.best(fitting));
+        assertEquals(0, fitting & VideoMode.QHD_30.bit());
+        assertNotEquals(0, fitting & VideoMode.VGA_30.bit());
+
+        // Nothing covers it, so nothing is left out
+        int small = VideoMode.VGA_30.bit() | VideoMode.HD_30.bit();
+        assertEquals(small, VideoMode.fitting(small, 4000, 3000));
+    }
+}
@@ -0,0 +1,303 @@
+package com.example.joshua.stereoonair;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ViewerServerTest {
+
+    private SpscRing<Frame> leftRing;
+    private SpscRing<Frame> rightRing;
+    private ViewerServer server;
+    private Thread serverThread;
+
+    @Before
+    public void setUp() throws IOException {
+
+        leftRing = new SpscRing<>(4, SpscRing.WaitStrategy.YIELD);
+        rightRing = new SpscRing<>(4, SpscRing.WaitStrategy.YIELD);
+        server = new ViewerServer(0, leftRing, rightRing, new ViewerServer.OnConnectionCallback() {
+            @Override
+            void onConnected(Side side) { }
+
+            @Override
+            void onDisconnected(Side side, IOException exception) { }
+
+            @Override
+            void onCodecConfig(Side side, VideoCodec codec, ByteBuffer config) { }
+        });
+        serverThread = new Thread(server);
+        serverThread.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+
+        serverThread.interrupt();
+        serverThread.join();
+        server.close();
+    }
+
+    private SocketChannel connect(Side side) throws IOException {
+
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", server.getLocalPort()));
+        if (side != null) {
+            ByteBuffer hello = ByteBuffer.allocate(FrameProtocol.HELLO_SIZE);
+            FrameProtocol.writeHello(hello, side);
+            hello.flip();
+            channel.write(hello);
+        }
+        return channel;
+    }
+
+    private static void send(SocketChannel channel, int sequence, int size) throws IOException {
+
+        Frame frame = new Frame(sequence, 0, 0, 0, ByteBuffer.allocate(size));
+        ByteBuffer bytes = ByteBuffer.allocate(FrameProtocol.HEADER_SIZE + size);
+        FrameProtocol.writeHeader(bytes, frame);
+        bytes.position(bytes.limit());
+        bytes.flip();
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+
+    @Test(timeout = 10_000)
+    public void routesFramesByClaimedEyeNotByConnectionOrder() throws Exception {
+
+        SocketChannel right = connect(Side.RIGHT);
+        SocketChannel left = connect(Side.LEFT);
+        send(right, 7, 50_000);
+        send(left, 3, 2_000);
+
+        Frame leftFrame = leftRing.take();
+        Frame rightFrame = rightRing.take();
+        assertEquals(3, leftFrame.sequence);
+        assertEquals(2_000, leftFrame.size());
+        assertEquals(7, rightFrame.sequence);
+        assertEquals(50_000, rightFrame.size());
+        assertTrue(server.isConnected(Side.LEFT));
+        assertTrue(server.isConnected(Side.RIGHT));
+
+        left.close();
+        right.close();
+    }
+
+    @Test(timeout = 10_000)
+    public void relayThatDoesNotResolveLeavesCamerasServed() throws Exception {
+
+        server.subscribe(InetSocketAddress.createUnresolved("relay.invalid", 1));
+        Thread.sleep(500);
+        assertTrue(serverThread.isAlive());
+
+        SocketChannel left = connect(Side.LEFT);
+        send(left, 4, 100);
+        assertEquals(4, leftRing.take().sequence);
+        assertTrue(serverThread.isAlive());
+
+        left.close();
+    }
+
+    @Test(timeout = 10_000)
+    public void connectionWithoutHelloTakesFreeEye() throws Exception {
+
+        SocketChannel right = connect(Side.RIGHT);
+        send(right, 1, 100);
+        assertEquals(1, rightRing.take().sequence);
+
+        SocketChannel legacy = connect(null);
+        send(legacy, 2, 100);
+        assertEquals(2, leftRing.take().sequence);
+
+        legacy.close();
+        right.close();
+    }
+
+    @Test(timeout = 10_000)
+    public void fullRingStallsOnlyItsOwnEye() throws Exception {
+
+        SocketChannel left = connect(Side.LEFT);
+        SocketChannel right = connect(Side.RIGHT);
+        for (int i = 0; i < 10; i++) {
+            send(left, i, 1_000);
+        }
+        send(right, 100, 1_000);
+        assertEquals(100, rightRing.take().sequence);
+
+        // Nothing was dropped while the left ring was full
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, leftRing.take().sequence);
+        }
+
+        left.close();
+        right.close();
+    }
+
+    @Test(timeout = 10_000)
+    public void silentCameraIsDroppedAndCanComeBack() throws Exception {
+
+        SocketChannel left = connect(Side.LEFT);
+        send(left, 1, 1_000);
+        assertEquals(1, leftRing.take().sequence);
+        assertTrue(server.isConnected(Side.LEFT));
+
+        // Still connected, but says nothing more
+        long start = System.nanoTime();
+        while (server.isConnected(Side.LEFT)) {
+            Thread.sleep(50);
+        }
+        long silentMillis = (System.nanoTime() - start) / 1_000_000;
+        assertTrue(silentMillis >= ViewerServer.PEER_TIMEOUT_MILLIS - 100);
+        assertTrue(silentMillis < ViewerServer.PEER_TIMEOUT_MILLIS + 1_000);
+
+        SocketChannel again = connect(Side.LEFT);
+        send(again, 2, 1_000);
+        assertEquals(2, leftRing.take().sequence);
+        assertTrue(server.isConnected(Side.LEFT));
+
+        left.close();
+        again.close();
+    }
+
+    @Test(timeout = 10_000)
+    public void sendsReceiverReportsBackToHelloCameras() throws Exception {
+
+        SocketChannel left = connect(Side.LEFT);
+        send(left, 1, 10_000);
+        assertEquals(1, leftRing.take().sequence);
+
+        ByteBuffer bytes = ByteBuffer.allocate(FrameProtocol.REPORT_SIZE + FrameProtocol.CLOCK_PING_SIZE);
+        ReceiverReport report = new ReceiverReport();
+        int bytesReceived = 0;
+        do {
+            // Each report comes with a clock ping
+            bytes.clear();
+            while (bytes.hasRemaining()) {
+                assertTrue(left.read(bytes) >= 0);
+            }
+            bytes.flip();
+            FrameProtocol.readReport(bytes, report);
+            FrameProtocol.readClockPing(bytes);
+            bytesReceived += report.bytesReceived;
+        } while (report.framesReceived == 0);
+
+        assertEquals(Side.LEFT, report.side);
+        assertEquals(1, report.framesReceived);
+        assertEquals(FrameProtocol.HELLO_SIZE + FrameProtocol.HEADER_SIZE + 10_000, bytesReceived);
+        assertEquals(0, report.framesLost);
+        assertTrue(report.intervalMs > 0);
+
+        left.close();
+    }
+
+    @Test(timeout = 10_000)
+    public void asksBothCamerasForTheBestModeAllShare() throws Exception {
+
+        server.setVideoModes(VideoMode.VGA_30.bit() | VideoMode.HD_30.bit() | VideoMode.HD_60.bit());
+        SocketChannel left = connect(Side.LEFT);
+        SocketChannel right = connect(Side.RIGHT);
+        ByteBuffer modes = ByteBuffer.allocate(FrameProtocol.CAMERA_MODES_SIZE);
+        FrameProtocol.writeCameraModes(modes, Side.LEFT,
+                VideoMode.VGA_30.bit() | VideoMode.HD_30.bit() | VideoMode.HD_60.bit() | VideoMode.FULL_HD_30.bit());
+        modes.flip();
+        left.write(modes);
+        modes.clear();
+        FrameProtocol.writeCameraModes(modes, Side.RIGHT,
+                VideoMode.HD_30.bit() | VideoMode.HD_60.bit() | VideoMode.FULL_HD_30.bit() | VideoMode.FULL_HD_60.bit());
+        modes.flip();
+        right.write(modes);
+
+        ByteBuffer message = ByteBuffer.allocate(FrameProtocol.REPORT_SIZE);
+        VideoMode asked = null;
+        while (asked == null) {
+            message.clear().limit(4);
+            while (message.hasRemaining()) {
+                assertTrue(right.read(message) >= 0);
+            }
+            int magic = message.getInt(0);
+            message.limit(FrameProtocol.feedbackMessageSize(magic));
+            while (message.hasRemaining()) {
+                assertTrue(right.read(message) >= 0);
+            }
+            message.flip();
+            if (magic == FrameProtocol.VIDEO_MODE_MAGIC) {
+                asked = FrameProtocol.readVideoMode(message);
+            }
+        }
+
+        assertEquals(VideoMode.HD_60, asked);
+        assertEquals(VideoMode.HD_60, server.getVideoMode());
+
+        left.close();
+        right.close();
+    }
+
+    @Test(timeout = 10_000)
+    public void estimatesCameraClockFromPingAnswers() throws Exception {
+
+        // This camera's clock runs 5 s ahead of the viewer's
+        final long offsetUs = 5_000_000;
+        SocketChannel right = connect(Side.RIGHT);
+        ByteBuffer message = ByteBuffer.allocate(
+                FrameProtocol.REPORT_SIZE + FrameProtocol.CLOCK_PING_SIZE + FrameProtocol.CODEC_OFFER_SIZE);
+        ByteBuffer answer = ByteBuffer.allocate(FrameProtocol.CLOCK_REPLY_SIZE);
+        ClockSync clockSync = server.getClockSync(Side.RIGHT);
+        while (clockSync.samplesTaken() < 3) {
+            message.clear();
+            while (message.hasRemaining()) {
+                assertTrue(right.read(message) >= 0);
+            }
+            message.position(FrameProtocol.REPORT_SIZE);
+            ClockReply reply = new ClockReply(Side.RIGHT, FrameProtocol.readClockPing(message),
+                    System.nanoTime() / 1000 + offsetUs);
+            // Nothing but H.264 until the viewer says otherwise
+            assertEquals(VideoCodec.AVC.bit(), FrameProtocol.readCodecOffer(message));
+            reply.transmitUs = System.nanoTime() / 1000 + offsetUs;
+            answer.clear();
+            FrameProtocol.writeClockReply(answer, reply);
+            answer.flip();
+            right.write(answer);
+        }
+
+        assertTrue(clockSync.isSynchronized());
+        long now = System.nanoTime() / 1000;
+        assertEquals(offsetUs, clockSync.offsetUs(now), 20_000);
+        assertEquals(now, clockSync.toLocalUs(now + offsetUs), 20_000);
+
+        right.close();
+    }
+
+    @Test(timeout = 10_000)
+    public void receivesRtpDatagramsOnTheSamePort() throws Exception {
+
+        Frame frame = RtpTest.frame(0, 33_333, Frame.FLAG_KEY_FRAME,
+                RtpTest.nal(AnnexBAssembler.NAL_IDR, 0x88, 20_000));
+        byte[] sent = new byte[frame.size()];
+        frame.payload.duplicate().get(sent);
+
+        DatagramChannel channel = DatagramChannel.open();
+        channel.connect(new InetSocketAddress("127.0.0.1", server.getLocalPort()));
+        // RtpTest packetizes as the RIGHT camera
+        for (byte[] packet : RtpTest.packetize(frame)) {
+            channel.write(ByteBuffer.wrap(packet));
+        }
+
+        Frame received = rightRing.take();
+        byte[] bytes = new byte[received.size()];
+        received.payload.get(bytes);
+        assertTrue(Arrays.equals(sent, bytes));
+        assertTrue(received.isKeyFrame());
+        assertTrue(leftRing.isEmpty());
+
+        channel.close();
+    }
+}
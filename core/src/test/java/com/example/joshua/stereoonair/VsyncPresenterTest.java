@@ -0,0 +1,111 @@
+package com.example.joshua.stereoonair;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class VsyncPresenterTest {
+
+    private final static long PERIOD_NANOS = 16_666_667;
+
+    private List<String> released;
+    private VsyncPresenter presenter;
+
+    @Before
+    public void setUp() {
+
+        released = new ArrayList<>();
+        presenter = new VsyncPresenter(PERIOD_NANOS, new VsyncPresenter.OnPresentCallback() {
+            @Override
+            void onPresent(Side side, int index, long captureUs, long renderTimeNanos) {
+                released.add((side == Side.LEFT ? "L" : "R") + index + "@" + renderTimeNanos);
+            }
+
+            @Override
+            void onDrop(Side side, int index, long captureUs) {
+                released.add((side == Side.LEFT ? "L" : "R") + index + "x");
+            }
+        });
+    }
+
+    private long vsync(int n) {
+        return 1_000_000_000L + n * PERIOD_NANOS;
+    }
+
+    @Test
+    public void presentsBothEyesOfAPairAtTheNextVsync() {
+
+        presenter.onReleasePair(0, 1_000, 5, 1_002);
+        assertTrue(released.isEmpty());
+
+        presenter.onVsync(vsync(0), vsync(0) + 2_000_000);
+        assertEquals("[L0@" + vsync(1) + ", R5@" + vsync(1) + "]", released.toString());
+
+        // A late callback aims at a later vsync, still the same one for both
+        released.clear();
+        presenter.onReleasePair(1, 34_000, 6, 34_001);
+        presenter.onVsync(vsync(1), vsync(2) + 1_000_000);
+        assertEquals("[L1@" + vsync(3) + ", R6@" + vsync(3) + "]", released.toString());
+        assertEquals(0, presenter.eyeMismatchCount());
+    }
+
+    @Test
+    public void dropsPicturesOvertakenBeforeTheirVsync() {
+
+        presenter.onReleasePair(0, 1_000, 5, 1_002);
+        presenter.onReleasePair(1, 34_000, 6, 34_001);
+        assertEquals("[L0x, R5x]", released.toString());
+
+        // A lone eye overtaking half a pair takes the other half with it
+        presenter.onRelease(Side.LEFT, 2, 67_000, true);
+        assertEquals("[L0x, R5x, R6x, L1x]", released.toString());
+        presenter.onRelease(Side.RIGHT, 7, 66_000, false);
+        assertEquals("[L0x, R5x, R6x, L1x, R7x]", released.toString());
+
+        released.clear();
+        presenter.onVsync(vsync(0), vsync(0));
+        assertEquals("[L2@" + vsync(1) + "]", released.toString());
+        assertEquals(4, presenter.staleDropCount());
+        assertEquals(1, presenter.eyeMismatchCount());
+    }
+
+    @Test
+    public void countsFramesPerVsyncAndJudder() {
+
+        // 30 fps on 60 Hz: every other vsync, then a hiccup
+        int index = 0;
+        for (int n = 0; n < 12; n++) {
+            if (n % 2 == 0 && n != 6) {
+                presenter.onReleasePair(index, 0, index, 0);
+                index++;
+            }
+            if (n == 7) {
+                presenter.onReleasePair(index, 0, index, 0);
+                index++;
+            }
+            presenter.onVsync(vsync(n), vsync(n));
+        }
+
+        assertEquals(12, presenter.vsyncCount());
+        assertEquals(6, presenter.presentCount());
+        assertEquals(0.5, presenter.framesPerVsync(), 1e-9);
+        // 2, 2, 3, 1, 2: the cadence changes three times
+        assertEquals(3, presenter.judderCount());
+    }
+
+    @Test
+    public void clearHandsBackWhatIsPending() {
+
+        presenter.onRelease(Side.RIGHT, 3, 1_000, true);
+        presenter.clear(Side.RIGHT);
+        presenter.clear(Side.LEFT);
+        assertEquals("[R3x]", released.toString());
+        presenter.onVsync(vsync(0), vsync(0));
+        assertEquals(0, presenter.presentCount());
+        assertEquals(0, presenter.staleDropCount());
+    }
+}
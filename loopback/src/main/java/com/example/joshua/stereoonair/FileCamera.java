@@ -0,0 +1,242 @@
+package com.example.joshua.stereoonair;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Stands in for CameraService: plays an Annex-B file into a CameraStreamer as if
+ * an encoder were producing it live, one picture per frame interval, each
+ * stamped with the time it left the "encoder". Frames go through the same
+ * FramePool, FrameDropPolicy and ring as on the phone, so a viewer that can't
+ * keep up shows the same drops.
+ *
+ * run() returns once the file has been played, or after durationNanos if that is
+ * set, looping the file as often as needed. The streamer keeps running until
+ * stop().
+ */
+class FileCamera implements Runnable {
+
+    private final static int READ_SIZE = 64 * 1024;
+    private final static int MAX_FRAME_BACKLOG = 3;
+    private final static long BACKLOG_DRAIN_MILLIS = 500;
+
+    final Side side;
+    final File file;
+    private final List<Frame> units;
+    private final double frameRate;
+    private final long durationNanos;
+    private final SpscRing<Frame> frameRing;
+    private final FramePool framePool;
+    private final FrameDropPolicy frameDropPolicy;
+    private final PipelineMetrics metrics;
+    private final CameraStreamer streamer;
+    private final Thread streamerThread;
+    private final SequenceParameterSet sps;
+
+    private int frameSequence = 0;
+    private volatile long picturesProduced = 0;
+    private volatile long picturesDropped = 0;
+
+    FileCamera(Side side, File file, double frameRate, long durationNanos, InetSocketAddress viewer,
+               CameraStreamer.Transport transport, CameraStreamer.OnStreamCallback callback) throws IOException {
+
+        this.side = side;
+        this.file = file;
+        this.durationNanos = durationNanos;
+        units = readAccessUnits(file, side);
+        boolean hasPicture = false;
+        for (Frame unit : units) {
+            hasPicture |= ! unit.isCodecConfig();
+        }
+        if (! hasPicture) {
+            throw new IOException(file + " holds no H.264 pictures");
+        }
+        SequenceParameterSet found = null;
+        for (Frame unit : units) {
+            if (unit.isCodecConfig() && (found = SequenceParameterSet.find(unit.payload)) != null) {
+                break;
+            }
+        }
+        sps = found;
+        if (frameRate > 0) {
+            this.frameRate = frameRate;
+        } else if (sps != null && sps.frameRate > 0) {
+            this.frameRate = sps.frameRate;
+        } else {
+            throw new IOException(file + " has no frame rate in its SPS, give one with --fps");
+        }
+
+        frameRing = new SpscRing<>(2, SpscRing.WaitStrategy.PARK);
+        // One frame for each ring and backlog slot, plus the one being sent and the one being filled
+        framePool = new FramePool(frameRing.capacity() + MAX_FRAME_BACKLOG + 2, 256 * 1024);
+        frameDropPolicy = new FrameDropPolicy(frameRing, MAX_FRAME_BACKLOG, onDropCallback);
+        metrics = new PipelineMetrics(System.nanoTime());
+        streamer = new CameraStreamer(side, viewer, transport, frameRing, framePool, metrics, callback);
+        streamerThread = new Thread(streamer, "streamer-" + side);
+    }
+
+    /** Splits file into access units, codec config on its own as an encoder hands it out. */
+    static List<Frame> readAccessUnits(File file, Side side) throws IOException {
+
+        final List<Frame> units = new ArrayList<>();
+        AnnexBAssembler assembler = new AnnexBAssembler(side.ordinal(), new StreamParser.OnFrameCallback() {
+            @Override
+            void onFrame(Frame frame) {
+                units.add(frame);
+            }
+        });
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            ByteBuffer chunk = ByteBuffer.allocate(READ_SIZE);
+            while (channel.read(chunk) != -1) {
+                chunk.flip();
+                assembler.feed(chunk);
+                chunk.clear();
+            }
+        }
+        assembler.flush();
+        return units;
+    }
+
+    /** Starts the streamer, which connects to the viewer in the background. */
+    void start() {
+        streamerThread.start();
+    }
+
+    @Override
+    public void run() {
+
+        long start = System.nanoTime();
+        long intervalNanos = (long) (1e9 / frameRate);
+        long pictures = 0;
+        boolean played = false;
+        for (int i = 0; ! played || durationNanos > 0; i = (i + 1) % units.size()) {
+            Frame unit = units.get(i);
+            if (! unit.isCodecConfig()) {
+                long due = start + pictures * intervalNanos;
+                if (durationNanos > 0 && due - start >= durationNanos) {
+                    break;
+                }
+                if (! waitUntil(due)) {
+                    return;
+                }
+                pictures++;
+            }
+            produce(unit);
+            played |= i == units.size() - 1;
+        }
+
+        // Let whatever is still in the backlog go out
+        long drainDeadline = System.nanoTime() + BACKLOG_DRAIN_MILLIS * 1_000_000;
+        while (frameDropPolicy.flush() && System.nanoTime() < drainDeadline) {
+            LockSupport.parkNanos(1_000_000);
+        }
+    }
+
+    void stop() {
+
+        streamer.stop();
+        streamerThread.interrupt();
+    }
+
+    /** Like the encoder callback: the one copy, into a pooled frame, then the drop policy. */
+    private void produce(Frame unit) {
+
+        frameDropPolicy.flush();
+        Frame frame = framePool.acquire(unit.size());
+        if (frame == null) {
+            if (! unit.isCodecConfig()) {
+                picturesDropped++;
+            }
+            frameDropPolicy.lost(FrameDropPolicy.typeOf(unit.flags, unit.payload));
+            return;
+        }
+        frame.payload.put(unit.payload.duplicate());
+        frame.payload.flip();
+        frame.sequence = frameSequence++;
+        frame.streamId = side.ordinal();
+        frame.flags = unit.flags;
+        frame.ptsUs = unit.isCodecConfig() ? 0 : CameraStreamer.clockUs();
+        if (frame.isCodecConfig()) {
+            streamer.setCodecConfig(CodecConfig.copyOf(frame));
+        } else {
+            picturesProduced++;
+        }
+        frameDropPolicy.offer(frame);
+    }
+
+    /** Returns false if interrupted. */
+    private static boolean waitUntil(long dueNanos) {
+
+        long now;
+        while ((now = System.nanoTime()) < dueNanos) {
+            LockSupport.parkNanos(dueNanos - now);
+            if (Thread.interrupted()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private final FrameDropPolicy.OnDropCallback onDropCallback = new FrameDropPolicy.OnDropCallback() {
+
+        @Override
+        void onDrop(Frame frame) {
+
+            if (! frame.isCodecConfig()) {
+                picturesDropped++;
+            }
+            framePool.recycle(frame);
+        }
+
+        @Override
+        void onSyncFrameNeeded() {
+            // A file can't be asked for one; the next IDR comes when it comes
+        }
+    };
+
+    double frameRate() {
+        return frameRate;
+    }
+
+    /** The file's SPS, or null if it has none. */
+    SequenceParameterSet sps() {
+        return sps;
+    }
+
+    int accessUnitCount() {
+        return units.size();
+    }
+
+    long picturesProduced() {
+        return picturesProduced;
+    }
+
+    /** Pictures that never left the camera, to a full backlog or an empty pool. */
+    long picturesDropped() {
+        return picturesDropped;
+    }
+
+    FramePool getFramePool() {
+        return framePool;
+    }
+
+    FrameDropPolicy getFrameDropPolicy() {
+        return frameDropPolicy;
+    }
+
+    CameraStreamer getStreamer() {
+        return streamer;
+    }
+
+    /** The sending end: age since capture when each frame was written. */
+    PipelineMetrics getMetrics() {
+        return metrics;
+    }
+}
@@ -0,0 +1,345 @@
+package com.example.joshua.stereoonair;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * End-to-end test of the real transport on one machine, no phones needed. One or
+ * two Annex-B files (left, then right) are played at their native frame rate by
+ * FileCameras through CameraStreamer to a ViewerServer on loopback, and a
+ * headless receiver takes each eye's frames off its ring the way the decoder
+ * threads would. Per-frame latency from "capture" to reassembled frame,
+ * throughput and every kind of drop are reported at the end.
+ *
+ * Both ends run in this process on the same clock, so latency is measured
+ * exactly, without ClockSync's error.
+ *
+ *   LoopbackHarness [--udp] [--fps N] [--seconds N] [--csv FILE] [--histograms FILE] left.h264 [right.h264]
+ */
+public class LoopbackHarness {
+
+    private final static long HEARTBEAT_CHECK_MILLIS = CameraStreamer.HEARTBEAT_CHECK_MILLIS;
+    private final static long DRAIN_TIMEOUT_MILLIS = 2_000;
+
+    private CameraStreamer.Transport transport = CameraStreamer.Transport.TCP;
+    private double frameRate = 0;
+    private long durationNanos = 0;
+    private File csvFile;
+    private File histogramsFile;
+    private final List<File> files = new ArrayList<>();
+
+    private final Receiver[] receivers = new Receiver[Side.values().length];
+    private final FileCamera[] cameras = new FileCamera[Side.values().length];
+    private PrintWriter csv;
+
+    public static void main(String[] args) {
+
+        LoopbackHarness harness = new LoopbackHarness();
+        try {
+            harness.parseArguments(args);
+        } catch (IllegalArgumentException exception) {
+            System.err.println(exception.getMessage());
+            System.err.println("Usage: LoopbackHarness [--udp] [--fps N] [--seconds N] [--csv FILE]"
+                    + " [--histograms FILE] left.h264 [right.h264]");
+            System.exit(2);
+        }
+        try {
+            harness.run();
+        } catch (IOException | InterruptedException exception) {
+            System.err.println("Loopback run failed: " + exception);
+            System.exit(1);
+        }
+    }
+
+    private void parseArguments(String[] args) {
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--udp")) {
+                transport = CameraStreamer.Transport.UDP;
+            } else if (arg.equals("--fps") && i + 1 < args.length) {
+                frameRate = Double.parseDouble(args[++i]);
+            } else if (arg.equals("--seconds") && i + 1 < args.length) {
+                durationNanos = (long) (Double.parseDouble(args[++i]) * 1e9);
+            } else if (arg.equals("--csv") && i + 1 < args.length) {
+                csvFile = new File(args[++i]);
+            } else if (arg.equals("--histograms") && i + 1 < args.length) {
+                histogramsFile = new File(args[++i]);
+            } else if (arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            } else {
+                files.add(new File(arg));
+            }
+        }
+        if (files.isEmpty() || files.size() > Side.values().length) {
+            throw new IllegalArgumentException("Give one or two Annex-B files");
+        }
+    }
+
+    private void run() throws IOException, InterruptedException {
+
+        SpscRing<Frame> leftRing = new SpscRing<>(4, SpscRing.WaitStrategy.PARK);
+        SpscRing<Frame> rightRing = new SpscRing<>(4, SpscRing.WaitStrategy.PARK);
+        ViewerServer server = new ViewerServer(0, leftRing, rightRing, onConnectionCallback);
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort());
+        if (csvFile != null) {
+            csv = new PrintWriter(new BufferedWriter(new FileWriter(csvFile)));
+            csv.println("side,sequence,key_frame,size,capture_us,received_us,latency_us");
+        }
+
+        for (int i = 0; i < files.size(); i++) {
+            Side side = Side.values()[i];
+            cameras[i] = new FileCamera(side, files.get(i), frameRate, durationNanos, address, transport,
+                    streamCallback(side));
+            receivers[i] = new Receiver(side, side == Side.LEFT ? leftRing : rightRing, server.getClockSync(side));
+            SequenceParameterSet sps = cameras[i].sps();
+            log(String.format(Locale.US, "%s: %s, %s, %d access units at %.2f fps", side, files.get(i),
+                    sps == null ? "no SPS" : sps.width + "x" + sps.height, cameras[i].accessUnitCount(),
+                    cameras[i].frameRate()));
+        }
+
+        Thread serverThread = new Thread(server, "viewerServer");
+        serverThread.start();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            threads.add(startThread(receivers[i], "receiver-" + receivers[i].side));
+            cameras[i].start();
+        }
+        long startNanos = System.nanoTime();
+        List<Thread> cameraThreads = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            receivers[i].metrics.reset(startNanos);
+            cameras[i].getMetrics().reset(startNanos);
+            cameraThreads.add(startThread(cameras[i], "camera-" + cameras[i].side));
+        }
+        log("Streaming over " + transport + " to " + address);
+
+        for (Thread thread : cameraThreads) {
+            while (thread.isAlive()) {
+                thread.join(HEARTBEAT_CHECK_MILLIS);
+                for (int i = 0; i < files.size(); i++) {
+                    if (cameras[i].getStreamer().checkHeartbeat(System.nanoTime())) {
+                        log(cameras[i].side + ": nothing from the viewer, dropping connection");
+                    }
+                }
+            }
+        }
+        awaitDrain();
+        long endNanos = System.nanoTime();
+
+        for (int i = 0; i < files.size(); i++) {
+            cameras[i].stop();
+        }
+        serverThread.interrupt();
+        serverThread.join();
+        for (Thread thread : threads) {
+            thread.interrupt();
+            thread.join();
+        }
+        if (csv != null) {
+            csv.close();
+        }
+        report(server, endNanos - startNanos, endNanos);
+    }
+
+    private static Thread startThread(Runnable runnable, String name) {
+
+        Thread thread = new Thread(runnable, name);
+        thread.start();
+        return thread;
+    }
+
+    /** Waits for every picture that left each camera to come out, or for the rest to be given up as lost. */
+    private void awaitDrain() throws InterruptedException {
+
+        long deadline = System.nanoTime() + DRAIN_TIMEOUT_MILLIS * 1_000_000;
+        for (int i = 0; i < files.size(); i++) {
+            while (receivers[i].pictures < picturesSent(cameras[i]) && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    private static long picturesSent(FileCamera camera) {
+        return camera.picturesProduced() - camera.picturesDropped();
+    }
+
+    private void report(ViewerServer server, long elapsedNanos, long nowNanos) throws IOException {
+
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.US, "%n%s loopback, %.1f s%n", transport, elapsedNanos / 1e9));
+        for (int i = 0; i < files.size(); i++) {
+            FileCamera camera = cameras[i];
+            Receiver receiver = receivers[i];
+            FrameDropPolicy policy = camera.getFrameDropPolicy();
+            long droppedAtCamera = 0;
+            for (FrameDropPolicy.FrameType type : FrameDropPolicy.FrameType.values()) {
+                droppedAtCamera += policy.droppedCount(type);
+            }
+            report.append(String.format(Locale.US, "%n%s %s%n", camera.side, camera.file));
+            report.append(String.format(Locale.US,
+                    "  pictures produced %d, dropped at camera %d (pool exhausted %d), received %d, missing %d%n",
+                    camera.picturesProduced(), droppedAtCamera, camera.getFramePool().exhaustedCount(),
+                    receiver.pictures, picturesSent(camera) - receiver.pictures));
+            report.append(String.format(Locale.US, "  reconnects %d, key frames received %d, codec configs %d%n",
+                    camera.getStreamer().reconnectCount(), receiver.keyFrames, receiver.codecConfigs));
+            report.append("  capture to sent:     ")
+                    .append(line(camera.getMetrics(), PipelineMetrics.Stage.SENT, nowNanos)).append('\n');
+            report.append("  capture to received: ")
+                    .append(line(receiver.metrics, PipelineMetrics.Stage.RECEIVED, nowNanos)).append('\n');
+            if (transport == CameraStreamer.Transport.UDP) {
+                RtpDepacketizer depacketizer = server.getDepacketizer(camera.side);
+                FecDecoder fecDecoder = server.getFecDecoder(camera.side);
+                report.append(String.format(Locale.US,
+                        "  rtp frames dropped %d, packets late %d duplicate %d, fec recovered %d unrecoverable %d%n",
+                        depacketizer.framesDropped(), depacketizer.packetsLate(), depacketizer.packetsDuplicate(),
+                        fecDecoder.packetsRecovered(), fecDecoder.packetsUnrecoverable()));
+            }
+        }
+        if (transport == CameraStreamer.Transport.UDP) {
+            report.append(String.format(Locale.US, "%nframes dropped at a full ring %d%n", server.datagramFramesDropped()));
+        }
+        System.out.print(report);
+
+        if (histogramsFile != null) {
+            try (Writer writer = new FileWriter(histogramsFile)) {
+                for (int i = 0; i < files.size(); i++) {
+                    writer.write("## " + cameras[i].side + " camera\n");
+                    cameras[i].getMetrics().dump(writer, nowNanos);
+                    writer.write("\n## " + cameras[i].side + " receiver\n");
+                    receivers[i].metrics.dump(writer, nowNanos);
+                    writer.write('\n');
+                }
+            }
+            log("Latency histograms written to " + histogramsFile);
+        }
+    }
+
+    private static String line(PipelineMetrics metrics, PipelineMetrics.Stage stage, long nowNanos) {
+
+        LatencyHistogram histogram = metrics.histogram(stage);
+        if (histogram.count() == 0) {
+            return "no frames";
+        }
+        return String.format(Locale.US, "p50 %6.2f p99 %6.2f p99.9 %6.2f max %6.2f ms, %5.1f fps %7.0f kbit/s",
+                histogram.percentileUs(50) / 1000.0, histogram.percentileUs(99) / 1000.0,
+                histogram.percentileUs(99.9) / 1000.0, histogram.maxUs() / 1000.0,
+                metrics.framesPerSecond(stage, nowNanos), metrics.bitsPerSecond(stage, nowNanos) / 1000);
+    }
+
+    private static void log(String message) {
+        System.err.println(message);
+    }
+
+    private CameraStreamer.OnStreamCallback streamCallback(final Side side) {
+
+        return new CameraStreamer.OnStreamCallback() {
+
+            @Override
+            void onConnected(long recoveryMillis) {
+                log(side + ": connected" + (recoveryMillis > 0 ? " again after " + recoveryMillis + " ms" : ""));
+            }
+
+            @Override
+            void onDisconnected(IOException exception, long retryMillis) {
+                log(side + ": stream lost: " + exception + ", reconnecting in " + retryMillis + " ms");
+            }
+
+            @Override
+            void onSyncFrameNeeded() { }
+
+            @Override
+            void onReport(ReceiverReport report) { }
+
+            @Override
+            void onCodecOffer(int codecs) {
+                // The files are H.264, which every viewer decodes
+            }
+
+            @Override
+            void onVideoMode(VideoMode mode) {
+                // The files are the size they were recorded at
+            }
+        };
+    }
+
+    private final ViewerServer.OnConnectionCallback onConnectionCallback = new ViewerServer.OnConnectionCallback() {
+
+        @Override
+        void onConnected(Side side) {
+            log("Viewer: " + side + " camera connected");
+        }
+
+        @Override
+        void onDisconnected(Side side, IOException exception) {
+            log("Viewer: " + side + " camera gone" + (exception != null ? ": " + exception.getMessage() : ""));
+        }
+
+        @Override
+        void onCodecConfig(Side side, VideoCodec codec, ByteBuffer config) { }
+    };
+
+    /**
+     * Takes one eye's frames off its ring as soon as they are there, like a
+     * decoder that is never short of input buffers, and accounts for each.
+     */
+    private class Receiver implements Runnable {
+
+        final Side side;
+        final SpscRing<Frame> ring;
+        final ClockSync clockSync;
+        final PipelineMetrics metrics = new PipelineMetrics(System.nanoTime());
+        volatile long pictures = 0;
+        volatile long keyFrames = 0;
+        volatile long codecConfigs = 0;
+
+        Receiver(Side side, SpscRing<Frame> ring, ClockSync clockSync) {
+
+            this.side = side;
+            this.ring = ring;
+            this.clockSync = clockSync;
+        }
+
+        @Override
+        public void run() {
+
+            while (true) {
+                Frame frame;
+                try {
+                    frame = ring.take();
+                } catch (InterruptedException exception) {
+                    return;
+                }
+                long nowUs = CameraStreamer.clockUs();
+                if (frame.isCodecConfig()) {
+                    codecConfigs++;
+                    continue;
+                }
+                pictures++;
+                if (frame.isKeyFrame()) {
+                    keyFrames++;
+                }
+                if (transport == CameraStreamer.Transport.UDP && ! clockSync.isSynchronized()) {
+                    // Its capture time may be cut to the RTP timestamp's 32 bits until the clock is known
+                    continue;
+                }
+                long latencyUs = nowUs - frame.ptsUs;
+                metrics.record(PipelineMetrics.Stage.RECEIVED, latencyUs, frame.size());
+                if (csv != null) {
+                    csv.println(side + "," + frame.sequence + "," + (frame.isKeyFrame() ? 1 : 0) + ","
+                            + frame.size() + "," + frame.ptsUs + "," + nowUs + "," + latencyUs);
+                }
+            }
+        }
+    }
+}
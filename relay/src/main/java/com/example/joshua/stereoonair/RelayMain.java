@@ -0,0 +1,120 @@
+package com.example.joshua.stereoonair;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.Locale;
+
+/**
+ * Runs a RelayServer until killed. Cameras connect to --port as they would to a
+ * viewer, viewers subscribe on --subscriber-port, and every --stats-seconds the
+ * relay prints how many are watching and how much it has forwarded.
+ *
+ *   RelayMain [--port N] [--subscriber-port N] [--queue N] [--stats-seconds N]
+ */
+public class RelayMain {
+
+    // MainActivity.port, where cameras look for the viewer
+    private final static int DEFAULT_PORT = 18353;
+
+    private int port = DEFAULT_PORT;
+    private int subscriberPort = -1;
+    private int queueSize = RelayServer.DEFAULT_QUEUE_SIZE;
+    private long statsIntervalMillis = 5_000;
+
+    public static void main(String[] args) {
+
+        RelayMain main = new RelayMain();
+        try {
+            main.parseArguments(args);
+        } catch (IllegalArgumentException exception) {
+            System.err.println(exception.getMessage());
+            System.err.println("Usage: RelayMain [--port N] [--subscriber-port N] [--queue N] [--stats-seconds N]");
+            System.exit(2);
+        }
+        try {
+            main.run();
+        } catch (IOException | InterruptedException exception) {
+            System.err.println("Relay failed: " + exception);
+            System.exit(1);
+        }
+    }
+
+    private void parseArguments(String[] args) {
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--port") && i + 1 < args.length) {
+                port = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--subscriber-port") && i + 1 < args.length) {
+                subscriberPort = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--queue") && i + 1 < args.length) {
+                queueSize = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--stats-seconds") && i + 1 < args.length) {
+                statsIntervalMillis = (long) (Double.parseDouble(args[++i]) * 1000);
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        if (subscriberPort < 0) {
+            subscriberPort = port == 0 ? 0 : port + 1;
+        }
+    }
+
+    private void run() throws IOException, InterruptedException {
+
+        final RelayServer relay = new RelayServer(port, subscriberPort, queueSize, relayCallback);
+        final Thread relayThread = new Thread(relay, "relay");
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                relayThread.interrupt();
+            }
+        }));
+        relayThread.start();
+        log("Cameras on port " + relay.getCameraPort() + ", viewers on port " + relay.getSubscriberPort()
+                + ", " + queueSize + " frames queued per viewer at most");
+
+        long lastFramesSent = 0;
+        long lastBytesSent = 0;
+        while (relayThread.isAlive()) {
+            relayThread.join(statsIntervalMillis);
+            long framesSent = relay.framesSent();
+            long bytesSent = relay.bytesSent();
+            log(String.format(Locale.US,
+                    "%d subscribers, %d frames in, %.1f frames/s and %.2f Mbit/s out, %d skipped, %d resyncs, %d evicted",
+                    relay.subscriberCount(), relay.framesReceived(),
+                    (framesSent - lastFramesSent) * 1000.0 / statsIntervalMillis,
+                    (bytesSent - lastBytesSent) * 8 / 1000.0 / statsIntervalMillis,
+                    relay.framesSkipped(), relay.resyncCount(), relay.evictionCount()));
+            lastFramesSent = framesSent;
+            lastBytesSent = bytesSent;
+        }
+        relay.close();
+    }
+
+    private static void log(String message) {
+        System.err.println(message);
+    }
+
+    private final RelayServer.OnRelayCallback relayCallback = new RelayServer.OnRelayCallback() {
+        @Override
+        void onCameraConnected(Side side) {
+            log(side + " camera connected");
+        }
+
+        @Override
+        void onCameraDisconnected(Side side, IOException exception) {
+            log(side + " camera gone" + (exception != null ? ": " + exception.getMessage() : ""));
+        }
+
+        @Override
+        void onSubscribed(Side side, SocketAddress address) {
+            log(address + " subscribed to " + side);
+        }
+
+        @Override
+        void onUnsubscribed(Side side, SocketAddress address, IOException exception) {
+            log(address + " left " + side + (exception != null ? ": " + exception.getMessage() : ""));
+        }
+    };
+}